@@ -0,0 +1,45 @@
+package jftp.client;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import jftp.connection.DataConnectionCloser;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+/**
+ * An FTP client that keeps hold of the data socket it last opened, so another thread can close it
+ * and stop a transfer or listing the server has stopped sending.
+ */
+class AbortableFtpClient extends FTPClient implements DataConnectionCloser {
+
+    private volatile Socket dataSocket;
+
+    @Override
+    public void closeDataConnection() {
+
+        Socket socket = dataSocket;
+
+        if (null == socket)
+            return;
+
+        try {
+
+            socket.close();
+
+        } catch (IOException e) {
+
+            // The transfer fails either way once the control connection is closed.
+        }
+    }
+
+    @Override
+    protected Socket _openDataConnection_(String command, String arg) throws IOException {
+
+        Socket socket = super._openDataConnection_(command, arg);
+
+        dataSocket = socket;
+
+        return socket;
+    }
+}
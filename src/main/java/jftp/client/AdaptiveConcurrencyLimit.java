@@ -0,0 +1,157 @@
+package jftp.client;
+
+/**
+ * How many connections to use at once against one server, tuned from how the server copes. The
+ * limit grows by one each window of operations that kept every allowed connection busy, and is cut
+ * back multiplicatively when the server refuses a connection, e.g. with 421 "too many connections".
+ *
+ * A window is as many operations as the limit. At the end of each, the limit is also checked
+ * against what the window achieved. If the window moved data and the last increase didn't bring at
+ * least a little more throughput, the increase is undone. If it only ran commands and they took
+ * much longer than the best seen so far, the server is taken to be queueing them and the limit is
+ * cut back. Transfer times depend on file sizes, so they aren't compared that way.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    private static final double DEFAULT_BACKOFF_RATIO = 0.75;
+    private static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+    private static final double MINIMUM_THROUGHPUT_GAIN = 1.05;
+
+    private int limit;
+    private int maxLimit;
+
+    private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+    private double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+
+    private int windowOperations;
+    private boolean windowSaturated = true;
+    private long windowBytes;
+    private long windowNanos;
+    private long windowStart;
+
+    private double bestLatency = Double.MAX_VALUE;
+    private double lastThroughput;
+    private boolean increasedLastWindow;
+
+    public AdaptiveConcurrencyLimit(int initialLimit, int maxLimit) {
+
+        if (initialLimit < 1 || maxLimit < initialLimit)
+            throw new IllegalArgumentException("The limit must be at least one and no more than the maximum.");
+
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+
+        windowStart = nanoTime();
+    }
+
+    /**
+     * @param backoffRatio
+     * What the limit is multiplied by when the server is overloaded. Defaults to 0.75.
+     */
+    public synchronized void setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * @param latencyTolerance
+     * How many times slower than in the best window commands may take on average before the server
+     * counts as overloaded. Defaults to 2.
+     */
+    public synchronized void setLatencyTolerance(double latencyTolerance) {
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Keeps the limit within what a pool can actually open. A pool kept at its maximum has every
+     * allowed connection busy, which would otherwise count as a reason to raise the limit further.
+     */
+    synchronized void capAt(int connections) {
+
+        maxLimit = Math.min(maxLimit, connections);
+        limit = Math.min(limit, maxLimit);
+    }
+
+    /**
+     * Records an operation that completed normally.
+     *
+     * @param bytes
+     * How much data the operation moved, or zero if it only sent commands.
+     * @param inFlight
+     * How many operations were running at the time, this one included.
+     */
+    public synchronized void onSuccess(long durationNanos, long bytes, int inFlight) {
+
+        windowOperations++;
+        windowBytes += bytes;
+        windowNanos += durationNanos;
+        windowSaturated &= inFlight >= limit;
+
+        if (windowOperations >= limit)
+            endWindow();
+    }
+
+    /**
+     * Records the server refusing another connection while the given number were in use.
+     */
+    public synchronized void onOverload(int inFlight) {
+
+        limit = Math.max(1, (int) (Math.min(limit, Math.max(inFlight, 1)) * backoffRatio));
+
+        increasedLastWindow = false;
+        lastThroughput = 0;
+
+        startWindow();
+    }
+
+    private void endWindow() {
+
+        double latency = (double) windowNanos / windowOperations;
+        double throughput = windowBytes / Math.max(1.0, nanoTime() - windowStart);
+
+        boolean throughputFlat = increasedLastWindow && windowBytes > 0 && throughput < lastThroughput * MINIMUM_THROUGHPUT_GAIN;
+        boolean queueing = windowBytes == 0 && latency > bestLatency * latencyTolerance;
+
+        if (windowBytes == 0)
+            bestLatency = Math.min(bestLatency, latency);
+
+        increasedLastWindow = false;
+
+        if (queueing) {
+
+            limit = Math.max(1, (int) (limit * backoffRatio));
+
+        } else if (throughputFlat) {
+
+            limit = Math.max(1, limit - 1);
+
+        } else if (windowSaturated && limit < maxLimit) {
+
+            limit++;
+            increasedLastWindow = true;
+        }
+
+        lastThroughput = throughput;
+
+        startWindow();
+    }
+
+    private void startWindow() {
+
+        windowOperations = 0;
+        windowSaturated = true;
+        windowBytes = 0;
+        windowNanos = 0;
+        windowStart = nanoTime();
+    }
+
+    /**
+     * Also called from the constructor, so an override mustn't rely on fields of its own class.
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,641 @@
+package jftp.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jftp.connection.Connection;
+import jftp.connection.FtpFile;
+import jftp.connection.SftpConnection;
+import jftp.exception.FtpException;
+import jftp.util.FileSegmentInputStream;
+
+/**
+ * Runs housekeeping operations on many remote paths at once, spreading the work across the
+ * connections of a pool.
+ */
+public class BulkFileOperations {
+
+    private static final String FILE_SEPARATOR = "/";
+    private static final String BATCH_FAILURE_MESSAGE = "Unable to %s: %s";
+    private static final String INTERRUPTED_MESSAGE = "Interrupted while waiting for bulk operation to finish.";
+    private static final String LOCAL_READ_FAILURE_MESSAGE = "Unable to read local file %s";
+    private static final long DEFAULT_MIN_SEGMENT_SIZE = 16777216;
+    private static final long PROBE_OFFSET = 1;
+
+    private ConnectionPool connectionPool;
+    private ExecutorService executor;
+
+    private boolean archiveTransfers = true;
+    private boolean compressArchives;
+    private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+
+    public BulkFileOperations(ConnectionPool connectionPool) {
+        this(connectionPool, Executors.newFixedThreadPool(connectionPool.getMaxConnections()));
+    }
+
+    public BulkFileOperations(ConnectionPool connectionPool, ExecutorService executor) {
+
+        this.connectionPool = connectionPool;
+        this.executor = executor;
+    }
+
+    /**
+     * Whether uploadAll and downloadAll first try to move the files over SFTP as one tar stream that
+     * the server packs or unpacks. On by default.
+     */
+    public void setArchiveTransfers(boolean archiveTransfers) {
+        this.archiveTransfers = archiveTransfers;
+    }
+
+    /**
+     * Whether those tar streams are gzipped, which only pays off on slow links. Off by default.
+     */
+    public void setCompressArchives(boolean compressArchives) {
+        this.compressArchives = compressArchives;
+    }
+
+    /**
+     * The smallest piece uploadInSegments splits a file into, so small files aren't split at all.
+     * Defaults to 16 MiB.
+     */
+    public void setMinSegmentSize(long minSegmentSize) {
+
+        if (minSegmentSize < 1)
+            throw new IllegalArgumentException("Segment size must be at least 1.");
+
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * Uploads one large file as segments written side by side, one per pooled connection, each read
+     * from the local file with positional reads so slow local storage is read in parallel as well.
+     *
+     * Over FTP the first segment is written on its own before the rest, as writing from the start of
+     * a file truncates it, and then one of its bytes is written again with REST and STOR to check the
+     * server writes at an offset in place rather than truncating there. Only if it does are the rest
+     * written at their offsets, side by side. Over SFTP, which never truncates, every segment is
+     * written side by side. If the server truncates, any segment fails, or the remote file doesn't
+     * end up the size of the local one, the file is uploaded again in one piece.
+     */
+    public void uploadInSegments(String localFilePath, final String remoteFilePath) throws FtpException {
+
+        FileChannel file;
+
+        try {
+
+            file = FileChannel.open(Paths.get(localFilePath), StandardOpenOption.READ);
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(LOCAL_READ_FAILURE_MESSAGE, localFilePath), e);
+        }
+
+        try {
+
+            uploadInSegments(file, file.size(), remoteFilePath);
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(LOCAL_READ_FAILURE_MESSAGE, localFilePath), e);
+
+        } finally {
+
+            try {
+
+                file.close();
+
+            } catch (IOException e) {
+
+                // Only read from, so nothing was lost.
+            }
+        }
+    }
+
+    /**
+     * Uploads many local files into one remote directory. Over SFTP they are sent as a single tar
+     * stream if the server will unpack it, which saves the per file commands that dominate when the
+     * files are small. Otherwise each file is uploaded on its own, spread across the pool.
+     */
+    public void uploadAll(List<String> localFilePaths, final String remoteDirectory) throws FtpException {
+
+        if (localFilePaths.isEmpty() || transferredAsArchive(localFilePaths, remoteDirectory, true))
+            return;
+
+        runOnEach("upload files", localFilePaths, new PathOperation() {
+
+            @Override
+            public void run(Connection connection, String localFilePath) {
+                connection.upload(localFilePath, remoteDirectory);
+            }
+
+            @Override
+            long bytesMoved(String localFilePath) {
+                return new File(localFilePath).length();
+            }
+        });
+    }
+
+    /**
+     * Downloads many remote files into one local directory, as a single tar stream packed by the
+     * server where possible and otherwise file by file across the pool, like {@link #uploadAll}.
+     */
+    public void downloadAll(List<String> remoteFilePaths, final String localDirectory) throws FtpException {
+
+        if (remoteFilePaths.isEmpty() || transferredAsArchive(remoteFilePaths, localDirectory, false))
+            return;
+
+        runOnEach("download files", remoteFilePaths, new PathOperation() {
+
+            @Override
+            public void run(Connection connection, String remoteFilePath) {
+                connection.download(remoteFilePath, localDirectory);
+            }
+
+            @Override
+            long bytesMoved(String remoteFilePath) {
+                return localCopyOf(remoteFilePath, localDirectory).length();
+            }
+        });
+    }
+
+    public void deleteAll(List<String> remoteFilePaths) throws FtpException {
+
+        runOnEach("delete files", remoteFilePaths, new PathOperation() {
+
+            @Override
+            public void run(Connection connection, String remoteFilePath) {
+                connection.delete(remoteFilePath);
+            }
+        });
+    }
+
+    /**
+     * @param remoteFilePaths
+     * Existing remote paths mapped to the paths they should be renamed to.
+     */
+    public void renameAll(final Map<String, String> remoteFilePaths) throws FtpException {
+
+        runOnEach("rename files", new ArrayList<String>(remoteFilePaths.keySet()), new PathOperation() {
+
+            @Override
+            public void run(Connection connection, String remoteFilePath) {
+                connection.rename(remoteFilePath, remoteFilePaths.get(remoteFilePath));
+            }
+        });
+    }
+
+    /**
+     * @return
+     * The attributes of each remote path, keyed by path. Paths that couldn't be found are left out.
+     */
+    public Map<String, FtpFile> statAll(List<String> remotePaths) throws FtpException {
+
+        final Map<String, FtpFile> files = Collections.synchronizedMap(new LinkedHashMap<String, FtpFile>());
+
+        List<String> missing = runOnEach(remotePaths, new PathOperation() {
+
+            @Override
+            public void run(Connection connection, String remotePath) {
+                files.put(remotePath, connection.stat(remotePath));
+            }
+        });
+
+        Map<String, FtpFile> found = new LinkedHashMap<String, FtpFile>();
+
+        for (String remotePath : remotePaths)
+            if (!missing.contains(remotePath))
+                found.put(remotePath, files.get(remotePath));
+
+        return found;
+    }
+
+    /**
+     * Creates every given directory along with its parents. The directories they have in common are
+     * created first, then each separate subtree below them is created on its own connection.
+     */
+    public void makeDirectories(List<String> remoteDirectories) throws FtpException {
+
+        if (remoteDirectories.isEmpty())
+            return;
+
+        String commonParent = commonParent(remoteDirectories);
+
+        if (!commonParent.isEmpty()) {
+
+            Connection connection = connectionPool.borrow();
+
+            try {
+
+                connection.makeDirectories(commonParent);
+
+            } finally {
+
+                connectionPool.release(connection);
+            }
+        }
+
+        final Map<String, List<String>> subtrees = new TreeMap<String, List<String>>();
+
+        for (String remoteDirectory : remoteDirectories) {
+
+            String subtree = subtreeBelow(commonParent, remoteDirectory);
+
+            if (!subtrees.containsKey(subtree))
+                subtrees.put(subtree, new ArrayList<String>());
+
+            subtrees.get(subtree).add(remoteDirectory);
+        }
+
+        runOnEach("create directories", new ArrayList<String>(subtrees.keySet()), new PathOperation() {
+
+            @Override
+            public void run(Connection connection, String subtree) {
+
+                for (String remoteDirectory : subtrees.get(subtree))
+                    connection.makeDirectories(remoteDirectory);
+            }
+        });
+    }
+
+    /**
+     * Deletes a directory and everything below it. The tree is listed one level at a time with the
+     * directories of each level listed in parallel, then all files are deleted in parallel, then the
+     * directories are removed deepest level first.
+     */
+    public void deleteRecursively(String remoteDirectory) throws FtpException {
+
+        final List<List<String>> directoriesByDepth = new ArrayList<List<String>>();
+        final List<String> files = Collections.synchronizedList(new ArrayList<String>());
+
+        List<String> level = Collections.singletonList(remoteDirectory);
+
+        while (!level.isEmpty()) {
+
+            directoriesByDepth.add(level);
+
+            final List<String> nextLevel = Collections.synchronizedList(new ArrayList<String>());
+
+            runOnEach("list directories", level, new PathOperation() {
+
+                @Override
+                public void run(Connection connection, String directory) {
+
+                    for (FtpFile file : connection.listFiles(directory)) {
+
+                        if (isSelfOrParent(file))
+                            continue;
+
+                        if (file.isDirectory())
+                            nextLevel.add(file.getFullPath());
+                        else
+                            files.add(file.getFullPath());
+                    }
+                }
+            });
+
+            level = nextLevel;
+        }
+
+        deleteAll(files);
+
+        for (int depth = directoriesByDepth.size() - 1; depth >= 0; depth--) {
+
+            runOnEach("remove directories", directoriesByDepth.get(depth), new PathOperation() {
+
+                @Override
+                public void run(Connection connection, String directory) {
+                    connection.removeDirectory(directory);
+                }
+            });
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return
+     * Whether the files were transferred. False if the connection isn't SFTP or the server couldn't
+     * run tar, in which case any files already written will be overwritten by the per file transfers.
+     */
+    private boolean transferredAsArchive(List<String> paths, String directory, boolean upload) {
+
+        if (!archiveTransfers)
+            return false;
+
+        Connection connection = connectionPool.borrow();
+        long bytesMoved = 0;
+
+        try {
+
+            if (!(connection instanceof SftpConnection))
+                return false;
+
+            if (upload)
+                ((SftpConnection) connection).uploadArchive(paths, directory, compressArchives);
+            else
+                ((SftpConnection) connection).downloadArchive(paths, directory, compressArchives);
+
+            for (String path : paths)
+                bytesMoved += upload ? new File(path).length() : localCopyOf(path, directory).length();
+
+            return true;
+
+        } catch (FtpException e) {
+
+            return false;
+
+        } finally {
+
+            connectionPool.release(connection, bytesMoved);
+        }
+    }
+
+    private void runOnEach(String action, List<String> paths, PathOperation operation) {
+
+        List<String> failures = runOnEach(paths, operation);
+
+        if (!failures.isEmpty())
+            throw new FtpException(String.format(BATCH_FAILURE_MESSAGE, action, failures));
+    }
+
+    /**
+     * Splits the paths into one share per pooled connection and runs each share on its own borrowed
+     * connection.
+     *
+     * @return
+     * The paths the operation failed on.
+     */
+    private List<String> runOnEach(List<String> paths, final PathOperation operation) {
+
+        int shares = Math.min(paths.size(), connectionPool.getMaxConnections());
+
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        for (int share = 0; share < shares; share++) {
+
+            final List<String> sharePaths = new ArrayList<String>();
+
+            for (int i = share; i < paths.size(); i += shares)
+                sharePaths.add(paths.get(i));
+
+            results.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+
+                    Connection connection = connectionPool.borrow();
+                    long bytesMoved = 0;
+
+                    try {
+
+                        for (String path : sharePaths) {
+
+                            try {
+
+                                operation.run(connection, path);
+
+                                bytesMoved += operation.bytesMoved(path);
+
+                            } catch (FtpException e) {
+
+                                failures.add(path);
+                            }
+                        }
+
+                    } finally {
+
+                        connectionPool.release(connection, bytesMoved);
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        awaitAll(results);
+
+        return failures;
+    }
+
+    private void uploadInSegments(final FileChannel file, final long size, final String remoteFilePath) {
+
+        int segments = (int) Math.max(1, Math.min(connectionPool.getMaxConnections(), size / minSegmentSize));
+        final long segmentSize = (size + segments - 1) / segments;
+
+        Connection connection = connectionPool.borrow();
+
+        // Over SFTP every segment, the first included, is written at its offset without truncating.
+        boolean truncatesFromStart = !(connection instanceof SftpConnection);
+        boolean inPlace = true;
+        long uploaded = 0;
+
+        try {
+
+            if (truncatesFromStart || segments == 1) {
+
+                uploaded = Math.min(segmentSize, size);
+
+                connection.upload(new FileSegmentInputStream(file, 0, uploaded), remoteFilePath);
+
+                if (segments > 1)
+                    inPlace = writesInPlace(connection, file, remoteFilePath, uploaded);
+            }
+
+        } finally {
+
+            connectionPool.release(connection, uploaded);
+        }
+
+        if (segments == 1)
+            return;
+
+        final List<Long> failures = Collections.synchronizedList(new ArrayList<Long>());
+
+        if (inPlace) {
+
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+            for (long start = truncatesFromStart ? segmentSize : 0; start < size; start += segmentSize) {
+
+                final long offset = start;
+
+                results.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() {
+
+                        Connection connection = connectionPool.borrow();
+                        long length = Math.min(segmentSize, size - offset);
+
+                        try {
+
+                            connection.upload(new FileSegmentInputStream(file, offset, length), remoteFilePath, offset);
+
+                        } catch (FtpException e) {
+
+                            failures.add(offset);
+
+                            length = 0;
+
+                        } finally {
+
+                            connectionPool.release(connection, length);
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            awaitAll(results);
+        }
+
+        connection = connectionPool.borrow();
+        long reuploaded = 0;
+
+        try {
+
+            if (!inPlace || !failures.isEmpty() || connection.stat(remoteFilePath).getSize() != size) {
+
+                connection.upload(new FileSegmentInputStream(file, 0, size), remoteFilePath);
+
+                reuploaded = size;
+            }
+
+        } finally {
+
+            connectionPool.release(connection, reuploaded);
+        }
+    }
+
+    /**
+     * Writes one byte of the first segment over itself at an offset and checks the file keeps its
+     * length. A server that instead truncates at the offset a STOR restarts from would leave earlier
+     * segments cut short, or holes where they were, once the segments are written side by side.
+     */
+    private boolean writesInPlace(Connection connection, FileChannel file, String remoteFilePath, long written) {
+
+        // Commons Net doesn't send REST for offset 0, so the probe can't start there.
+        if (written < PROBE_OFFSET + 2)
+            return false;
+
+        try {
+
+            connection.upload(new FileSegmentInputStream(file, PROBE_OFFSET, 1), remoteFilePath, PROBE_OFFSET);
+
+            return connection.stat(remoteFilePath).getSize() == written;
+
+        } catch (FtpException e) {
+
+            return false;
+        }
+    }
+
+    private void awaitAll(Collection<Future<Void>> results) {
+
+        for (Future<Void> result : results) {
+
+            try {
+
+                result.get();
+
+            } catch (InterruptedException e) {
+
+                Thread.currentThread().interrupt();
+
+                throw new FtpException(INTERRUPTED_MESSAGE, e);
+
+            } catch (ExecutionException e) {
+
+                if (e.getCause() instanceof FtpException)
+                    throw (FtpException) e.getCause();
+
+                throw new FtpException("Bulk operation failed unexpectedly.", e);
+            }
+        }
+    }
+
+    private boolean isSelfOrParent(FtpFile file) {
+        return ".".equals(file.getName()) || "..".equals(file.getName());
+    }
+
+    private String commonParent(List<String> remoteDirectories) {
+
+        String[] common = remoteDirectories.get(0).split(FILE_SEPARATOR);
+        int length = common.length;
+
+        for (String remoteDirectory : remoteDirectories) {
+
+            String[] segments = remoteDirectory.split(FILE_SEPARATOR);
+
+            length = Math.min(length, segments.length - 1);
+
+            for (int i = 0; i < length; i++) {
+
+                if (!segments[i].equals(common[i])) {
+                    length = i;
+                    break;
+                }
+            }
+        }
+
+        StringBuilder parent = new StringBuilder();
+
+        for (int i = 0; i < length; i++) {
+
+            if (i > 0)
+                parent.append(FILE_SEPARATOR);
+
+            parent.append(common[i]);
+        }
+
+        return length == 1 && common[0].isEmpty() ? FILE_SEPARATOR : parent.toString();
+    }
+
+    private String subtreeBelow(String parent, String remoteDirectory) {
+
+        String relative = remoteDirectory.substring(parent.length());
+
+        if (relative.startsWith(FILE_SEPARATOR))
+            relative = relative.substring(1);
+
+        int end = relative.indexOf(FILE_SEPARATOR);
+
+        return end < 0 ? relative : relative.substring(0, end);
+    }
+
+    private File localCopyOf(String remoteFilePath, String localDirectory) {
+        return new File(localDirectory, remoteFilePath.substring(remoteFilePath.lastIndexOf(FILE_SEPARATOR) + 1));
+    }
+
+    private abstract static class PathOperation {
+
+        abstract void run(Connection connection, String path);
+
+        /**
+         * How much data running on the path moved, which the pool's concurrency limit judges transfers
+         * by. Commands move none.
+         */
+        long bytesMoved(String path) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package jftp.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets one thread stop the calls another thread makes through a {@link GuardedConnection}. A token
+ * can be shared by any number of connections, so one cancel stops a whole batch of work, and can be
+ * given a deadline after which it counts as cancelled.
+ */
+public class CancellationToken {
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final long deadline;
+
+    private boolean cancelled;
+    private List<Runnable> watchers = new ArrayList<Runnable>();
+
+    public CancellationToken() {
+        this(NO_DEADLINE);
+    }
+
+    private CancellationToken(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * A token that cancels itself once the given number of milliseconds have passed.
+     */
+    public static CancellationToken withTimeout(long timeoutMillis) {
+        return new CancellationToken(System.currentTimeMillis() + timeoutMillis);
+    }
+
+    /**
+     * Aborts every call running under this token and fails any made after it.
+     */
+    public void cancel() {
+
+        List<Runnable> toRun;
+
+        synchronized (this) {
+
+            if (cancelled)
+                return;
+
+            cancelled = true;
+            toRun = watchers;
+            watchers = new ArrayList<Runnable>();
+        }
+
+        for (Runnable watcher : toRun)
+            watcher.run();
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled || System.currentTimeMillis() >= deadline;
+    }
+
+    /**
+     * @return
+     * How many milliseconds are left until the deadline, or {@link Long#MAX_VALUE} without one.
+     */
+    synchronized long remainingMillis() {
+
+        if (NO_DEADLINE == deadline)
+            return NO_DEADLINE;
+
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * Runs the watcher on cancel, or straight away if the token has already been cancelled.
+     */
+    void register(Runnable watcher) {
+
+        synchronized (this) {
+
+            if (!cancelled) {
+                watchers.add(watcher);
+                return;
+            }
+        }
+
+        watcher.run();
+    }
+
+    synchronized void unregister(Runnable watcher) {
+        watchers.remove(watcher);
+    }
+}
@@ -2,6 +2,7 @@ package jftp.client;
 
 import jftp.client.auth.UserCredentials;
 import jftp.connection.Connection;
+import jftp.util.HappyEyeballsConnector;
 
 public abstract class Client {
 
@@ -9,11 +10,21 @@ public abstract class Client {
 	protected int port;
 	
 	protected UserCredentials userCredentials = UserCredentials.ANONYMOUS;
+
+	protected HappyEyeballsConnector hostConnector;
 	
 	public void setCredentials(UserCredentials userCredentials) {
 		this.userCredentials = userCredentials;
 	}
 
+	/**
+	 * Races the host's addresses against each other when connecting instead of trying the first one
+	 * alone. Without a connector the host is connected to directly.
+	 */
+	public void setHostConnector(HappyEyeballsConnector hostConnector) {
+		this.hostConnector = hostConnector;
+	}
+
 	public void setHost(String host) {
 		this.host = host;
 	}
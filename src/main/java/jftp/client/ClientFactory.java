@@ -3,7 +3,7 @@ package jftp.client;
 public class ClientFactory {
 
     public enum Protocol {
-        FTP, FTPS, SFTP
+        FTP, FTPS, SFTP, NIO_FTP
     }
 
     public Client createClient(Protocol clientType) {
@@ -14,6 +14,9 @@ public class ClientFactory {
         if (clientType == Protocol.FTPS)
             return new FtpsClient();
 
+        if (clientType == Protocol.NIO_FTP)
+            return new NioFtpClient();
+
         return new SftpClient();
     }
 }
@@ -0,0 +1,87 @@
+package jftp.client;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import jftp.exception.FtpException;
+
+/**
+ * Keeps the idle connections of a pool alive in the background. On every check each connection that
+ * has been idle for a whole interval is sent a keep-alive; any that fail are replaced, so a NAT or
+ * firewall dropping a quiet connection is noticed here rather than by the next borrower.
+ */
+public class ConnectionHealthMonitor {
+
+    private static final long ONE_MINUTE = 60000;
+
+    private ConnectionPool connectionPool;
+    private ScheduledExecutorService scheduler;
+
+    private long keepAliveInterval = ONE_MINUTE;
+
+    public ConnectionHealthMonitor(ConnectionPool connectionPool) {
+        this(connectionPool, Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory()));
+    }
+
+    public ConnectionHealthMonitor(ConnectionPool connectionPool, ScheduledExecutorService scheduler) {
+
+        this.connectionPool = connectionPool;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * How long, in milliseconds, a connection may sit idle before it is sent a keep-alive. This should
+     * be well under the shortest idle timeout between here and the server. Defaults to one minute.
+     */
+    public void setKeepAliveInterval(long keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    /**
+     * Checks the pool every half interval, so no connection goes much more than one interval without
+     * traffic.
+     */
+    public void start() {
+
+        long period = Math.max(1, keepAliveInterval / 2);
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                check();
+            }
+
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    void check() {
+
+        try {
+
+            connectionPool.maintainIdleConnections(keepAliveInterval);
+
+        } catch (FtpException e) {
+
+            // A failed check must not cancel the schedule; the next one tries again.
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "jftp-health-monitor");
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
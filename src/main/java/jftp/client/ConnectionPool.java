@@ -0,0 +1,448 @@
+package jftp.client;
+
+import java.net.ConnectException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import jftp.client.ClientFactory.Protocol;
+import jftp.client.auth.UserCredentials;
+import jftp.connection.Connection;
+import jftp.exception.FtpException;
+
+import org.apache.commons.net.ftp.FTPConnectionClosedException;
+
+/**
+ * Keeps up to a fixed number of connections to one host open for reuse. Each borrowed connection
+ * belongs to the borrower until it is released, so one connection is never used by two threads at
+ * once.
+ */
+public class ConnectionPool {
+
+    private static final String POOL_CLOSED_MESSAGE = "The connection pool has been closed.";
+    private static final String UNKNOWN_CONNECTION_MESSAGE = "The connection was not borrowed from this pool.";
+    private static final String SERVICE_NOT_AVAILABLE = "421";
+
+    private ClientFactory clientFactory = new ClientFactory();
+
+    private Protocol protocol;
+    private String host;
+    private int port;
+    private UserCredentials userCredentials;
+    private int maxConnections;
+    private AdaptiveConcurrencyLimit concurrencyLimit;
+
+    private Deque<PooledClient> idleClients = new ArrayDeque<PooledClient>();
+    private Map<Connection, PooledClient> borrowedClients = new IdentityHashMap<Connection, PooledClient>();
+
+    private int openConnections;
+    private int connectionsInUse;
+    private boolean closed;
+
+    public ConnectionPool(Protocol protocol, String host, int port, UserCredentials userCredentials, int maxConnections) {
+
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("A pool needs at least one connection.");
+
+        this.protocol = protocol;
+        this.host = host;
+        this.port = port;
+        this.userCredentials = userCredentials;
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Lets the given limit decide how many connections may be borrowed at once, up to the pool's
+     * maximum. The pool tells it how long each borrower kept its connection and when the server
+     * refuses a connection while others are open; borrowers can also report the data they moved
+     * with {@link #release(Connection, long)}.
+     */
+    public synchronized void setConcurrencyLimit(AdaptiveConcurrencyLimit concurrencyLimit) {
+
+        if (null != concurrencyLimit)
+            concurrencyLimit.capAt(maxConnections);
+
+        this.concurrencyLimit = concurrencyLimit;
+
+        notifyAll();
+    }
+
+    /**
+     * Hands out an idle connection, opening a new one if the pool isn't full yet, or waits for
+     * another borrower to release one.
+     */
+    public Connection borrow() throws FtpException {
+
+        synchronized (this) {
+
+            while (!closed && ((idleClients.isEmpty() && openConnections >= maxConnections) || atConcurrencyLimit()))
+                waitForRelease();
+
+            if (closed)
+                throw new FtpException(POOL_CLOSED_MESSAGE);
+
+            connectionsInUse++;
+
+            if (!idleClients.isEmpty()) {
+
+                PooledClient pooledClient = idleClients.pop();
+                lend(pooledClient);
+
+                return pooledClient.connection;
+            }
+
+            openConnections++;
+        }
+
+        PooledClient pooledClient;
+
+        try {
+
+            pooledClient = openClient();
+
+        } catch (RuntimeException e) {
+
+            synchronized (this) {
+
+                openConnections--;
+                connectionsInUse--;
+
+                // A server that took the other connections but refuses this one is at its limit.
+                if (null != concurrencyLimit && openConnections > 0 && refusedByServer(e))
+                    concurrencyLimit.onOverload(openConnections);
+
+                notifyAll();
+            }
+
+            throw e;
+        }
+
+        synchronized (this) {
+            lend(pooledClient);
+        }
+
+        return pooledClient.connection;
+    }
+
+    /**
+     * Returns a connection that only ran commands. Transfers should report what they moved with
+     * {@link #release(Connection, long)}, or their time counts against the server as slow commands.
+     */
+    public void release(Connection connection) {
+        release(connection, 0);
+    }
+
+    /**
+     * Returns a connection to the pool along with how much data was transferred over it while
+     * borrowed, which lets an adaptive concurrency limit judge whether more connections help.
+     */
+    public void release(Connection connection, long bytesTransferred) {
+
+        PooledClient pooledClient;
+
+        synchronized (this) {
+
+            pooledClient = takeBorrowed(connection);
+
+            if (null != concurrencyLimit)
+                concurrencyLimit.onSuccess(System.nanoTime() - pooledClient.borrowedAt, bytesTransferred, connectionsInUse + 1);
+
+            // Connections opened before the limit was lowered are closed as they come back.
+            if (!closed && (null == concurrencyLimit || openConnections <= concurrencyLimit.getLimit())) {
+
+                pooledClient.lastUsed = System.currentTimeMillis();
+
+                idleClients.push(pooledClient);
+
+                notifyAll();
+
+                return;
+            }
+
+            discard(pooledClient);
+        }
+
+        disconnect(pooledClient);
+    }
+
+    /**
+     * Closes a borrowed connection that is no longer usable instead of returning it to the pool.
+     */
+    public void invalidate(Connection connection) {
+
+        PooledClient pooledClient;
+
+        synchronized (this) {
+
+            pooledClient = takeBorrowed(connection);
+
+            discard(pooledClient);
+        }
+
+        disconnect(pooledClient);
+    }
+
+    /**
+     * Sends a keep-alive over every connection that has sat idle for at least the given time. Dead
+     * connections are closed and replaced with fresh ones, so borrowers are never handed a connection
+     * that has quietly been dropped. The connections being checked can't be borrowed meanwhile.
+     */
+    public void maintainIdleConnections(long idleMillis) {
+
+        for (PooledClient pooledClient : takeIdleSince(System.currentTimeMillis() - idleMillis)) {
+
+            try {
+
+                pooledClient.connection.keepAlive();
+
+            } catch (FtpException e) {
+
+                synchronized (this) {
+                    discard(pooledClient);
+                }
+
+                disconnect(pooledClient);
+
+                replaceDeadConnection();
+
+                continue;
+            }
+
+            boolean returned;
+
+            synchronized (this) {
+
+                pooledClient.lastUsed = System.currentTimeMillis();
+
+                returned = returnIdle(pooledClient);
+            }
+
+            if (!returned)
+                disconnect(pooledClient);
+        }
+    }
+
+    public void close() {
+
+        List<PooledClient> discarded = new ArrayList<PooledClient>();
+
+        synchronized (this) {
+
+            closed = true;
+
+            while (!idleClients.isEmpty()) {
+
+                PooledClient pooledClient = idleClients.pop();
+
+                discard(pooledClient);
+                discarded.add(pooledClient);
+            }
+
+            notifyAll();
+        }
+
+        for (PooledClient pooledClient : discarded)
+            disconnect(pooledClient);
+    }
+
+    protected Client createClient() {
+
+        Client client = clientFactory.createClient(protocol);
+
+        client.setHost(host);
+        client.setPort(port);
+        client.setCredentials(userCredentials);
+
+        return client;
+    }
+
+    private synchronized List<PooledClient> takeIdleSince(long idleSince) {
+
+        List<PooledClient> taken = new ArrayList<PooledClient>();
+
+        for (Iterator<PooledClient> idle = idleClients.iterator(); idle.hasNext();) {
+
+            PooledClient pooledClient = idle.next();
+
+            if (pooledClient.lastUsed <= idleSince) {
+                idle.remove();
+                taken.add(pooledClient);
+            }
+        }
+
+        return taken;
+    }
+
+    /**
+     * Idle connections are handed out most recently used first, so a checked connection goes to the
+     * back of the queue where it won't push fresher ones aside.
+     *
+     * @return
+     * False if the pool has been closed meanwhile, in which case the caller disconnects the client.
+     */
+    private boolean returnIdle(PooledClient pooledClient) {
+
+        if (closed) {
+            discard(pooledClient);
+            return false;
+        }
+
+        idleClients.addLast(pooledClient);
+
+        notifyAll();
+
+        return true;
+    }
+
+    private void replaceDeadConnection() {
+
+        synchronized (this) {
+
+            if (closed || openConnections >= maxConnections)
+                return;
+
+            openConnections++;
+        }
+
+        PooledClient replacement;
+
+        try {
+
+            replacement = openClient();
+
+        } catch (RuntimeException e) {
+
+            synchronized (this) {
+                openConnections--;
+                notifyAll();
+            }
+
+            // The server may be down for now; the next borrower opens a connection on demand.
+            return;
+        }
+
+        boolean returned;
+
+        synchronized (this) {
+            returned = returnIdle(replacement);
+        }
+
+        if (!returned)
+            disconnect(replacement);
+    }
+
+    private PooledClient openClient() {
+
+        Client client = createClient();
+        Connection connection = client.connect();
+
+        return new PooledClient(client, connection);
+    }
+
+    /**
+     * Whether the server turned the connection away, with a 421 or by refusing it outright, rather
+     * than it failing for a reason more connections have nothing to do with, such as a bad password.
+     */
+    private static boolean refusedByServer(Throwable failure) {
+
+        for (Throwable cause = failure; null != cause; cause = cause.getCause()) {
+
+            // Commons Net reports a 421 by closing the connection; the NIO client passes the reply on.
+            if (cause instanceof ConnectException || cause instanceof FTPConnectionClosedException)
+                return true;
+
+            if (null != cause.getMessage() && cause.getMessage().startsWith(SERVICE_NOT_AVAILABLE))
+                return true;
+        }
+
+        return false;
+    }
+
+    private boolean atConcurrencyLimit() {
+        return null != concurrencyLimit && connectionsInUse >= concurrencyLimit.getLimit();
+    }
+
+    private void lend(PooledClient pooledClient) {
+
+        pooledClient.borrowedAt = System.nanoTime();
+
+        borrowedClients.put(pooledClient.connection, pooledClient);
+    }
+
+    private PooledClient takeBorrowed(Connection connection) {
+
+        PooledClient pooledClient = borrowedClients.remove(connection);
+
+        if (null == pooledClient)
+            throw new FtpException(UNKNOWN_CONNECTION_MESSAGE);
+
+        connectionsInUse--;
+
+        return pooledClient;
+    }
+
+    /**
+     * Takes a client out of the pool's count. The caller disconnects it with
+     * {@link #disconnect(PooledClient)} once it no longer holds the pool's lock, so a slow server
+     * doesn't hold up every other borrower.
+     */
+    private void discard(PooledClient pooledClient) {
+
+        openConnections--;
+
+        notifyAll();
+    }
+
+    private static void disconnect(PooledClient pooledClient) {
+
+        try {
+
+            pooledClient.client.disconnect();
+
+        } catch (FtpException e) {
+
+            // The connection is being thrown away, so a failure to close it cleanly changes nothing.
+        }
+    }
+
+    private void waitForRelease() {
+
+        try {
+
+            wait();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+            throw new FtpException("Interrupted while waiting for a pooled connection.", e);
+        }
+    }
+
+    private static class PooledClient {
+
+        private Client client;
+        private Connection connection;
+        private long lastUsed;
+        private long borrowedAt;
+
+        PooledClient(Client client, Connection connection) {
+
+            this.client = client;
+            this.connection = connection;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package jftp.client;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
 
+import javax.net.SocketFactory;
+
 import jftp.connection.Connection;
 import jftp.connection.ConnectionFactory;
+import jftp.connection.FtpConnection;
 import jftp.exception.FtpException;
+import jftp.util.BufferPool;
+import jftp.util.HappyEyeballsConnector;
 
+import org.apache.commons.net.ProtocolCommandEvent;
+import org.apache.commons.net.ProtocolCommandListener;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPReply;
 
@@ -17,30 +28,70 @@ public class FtpClient extends Client {
     private static final String CONNECTION_ERROR_MESSAGE = "Unable to connect to host %s on port %d";
     private static final String STATUS_ERROR_MESSAGE = "The host %s on port %d returned a bad status code.";
 
+    private static final byte[] UNRESOLVED_ADDRESS = new byte[4];
+
     private ConnectionFactory connectionFactory = new ConnectionFactory();
 
     protected FTPClient ftpClient;
 
+    private BufferPool bufferPool;
+    private int socketTimeout;
+    private boolean useEpsv = true;
+
+    private EpsvFallback epsvFallback = new EpsvFallback();
+
     public FtpClient() {
         
-        ftpClient = new FTPClient();
+        ftpClient = new AbortableFtpClient();
     }
 
     public Connection connect() {
 
         try {
 
+            setSocketTimeouts();
             connectClientAndCheckStatus();
             setSpecificModesOnClient();
             login();
+            afterLogin();
 
         } catch (IOException e) {
             throw new FtpException(String.format(CONNECTION_ERROR_MESSAGE, host, port), e);
         }
 
-        return connectionFactory.createFtpConnection(ftpClient);
+        FtpConnection connection = connectionFactory.createFtpConnection(ftpClient);
+
+        if (null != bufferPool)
+            connection.setBufferPool(bufferPool);
+
+        return connection;
+    }
+
+    /**
+     * Has connections copy transfers through the pool's buffers. See
+     * {@link FtpConnection#setBufferPool(BufferPool)} for what that costs.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
     }
     
+    /**
+     * How long, in milliseconds, a read on the control or data connection waits for the server
+     * before the call fails. Zero, the default, waits for as long as the server keeps the socket open.
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Whether data connections are set up with EPSV, which only tells the client a port and so isn't
+     * broken by servers behind NAT advertising their private address. A server that refuses it is
+     * asked for PASV for the rest of the connection. On by default.
+     */
+    public void setUseEpsv(boolean useEpsv) {
+        this.useEpsv = useEpsv;
+    }
+
     public void disconnect() {
         
         try {
@@ -56,14 +107,45 @@ public class FtpClient extends Client {
         }
     }
 
+    private void setSocketTimeouts() {
+
+        if (socketTimeout > 0) {
+            ftpClient.setDefaultTimeout(socketTimeout);
+            ftpClient.setDataTimeout(socketTimeout);
+        }
+    }
+
     private void connectClientAndCheckStatus() throws SocketException, IOException, FtpException {
 
-        ftpClient.connect(host, port);
+        if (null == hostConnector)
+            ftpClient.connect(host, port);
+        else
+            connectOverFastestAddress();
 
         if (!FTPReply.isPositiveCompletion(ftpClient.getReplyCode()))
             throw new FtpException(String.format(STATUS_ERROR_MESSAGE, host, port));
     }
 
+    /**
+     * Commons Net asks its socket factory for the control socket, so the race runs inside the socket
+     * it is handed and the connection that won is the one the session uses. The race resolves the host
+     * itself; the address given to Commons Net only carries the name.
+     */
+    private void connectOverFastestAddress() throws IOException {
+
+        ftpClient.setSocketFactory(new RacingSocketFactory(hostConnector, host));
+
+        try {
+
+            ftpClient.connect(InetAddress.getByAddress(host, UNRESOLVED_ADDRESS), port);
+
+        } finally {
+
+            // Data connections go to the literal address the server sends and have nothing to race.
+            ftpClient.setSocketFactory(null);
+        }
+    }
+
     private void login() throws IOException, FtpException {
 
         boolean hasLoggedIn = ftpClient.login(userCredentials.getUsername(), userCredentials.getPassword());
@@ -74,9 +156,196 @@ public class FtpClient extends Client {
         ftpClient.setFileType(FTPClient.BINARY_FILE_TYPE);
     }
 
+    /**
+     * Runs once the user has logged in, before the connection is handed out.
+     */
+    protected void afterLogin() throws IOException {
+    }
+
     private void setSpecificModesOnClient() throws IOException {
 
         ftpClient.enterLocalPassiveMode();
         ftpClient.setControlKeepAliveTimeout(FIVE_MINUTES);
+        ftpClient.setUseEPSVwithIPv4(useEpsv);
+
+        ftpClient.removeProtocolCommandListener(epsvFallback);
+
+        if (useEpsv)
+            ftpClient.addProtocolCommandListener(epsvFallback);
+    }
+
+    /**
+     * Commons Net tries EPSV before every transfer and only falls back to PASV for that one transfer,
+     * so this turns EPSV off once the server refuses it to spare later transfers the round trip.
+     */
+    private static class EpsvFallback implements ProtocolCommandListener {
+
+        private static final String EPSV = "EPSV";
+
+        private boolean epsvSent;
+
+        @Override
+        public void protocolCommandSent(ProtocolCommandEvent event) {
+            epsvSent = EPSV.equalsIgnoreCase(event.getCommand());
+        }
+
+        @Override
+        public void protocolReplyReceived(ProtocolCommandEvent event) {
+
+            if (epsvSent && FTPReply.isNegativePermanent(event.getReplyCode()))
+                ((FTPClient) event.getSource()).setUseEPSVwithIPv4(false);
+
+            epsvSent = false;
+        }
+    }
+
+    private static class RacingSocketFactory extends SocketFactory {
+
+        private HappyEyeballsConnector hostConnector;
+        private String host;
+
+        RacingSocketFactory(HappyEyeballsConnector hostConnector, String host) {
+
+            this.hostConnector = hostConnector;
+            this.host = host;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new RacingSocket(hostConnector, host);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return hostConnector.connect(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localAddress, int localPort) throws IOException {
+            return hostConnector.connect(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port) throws IOException {
+            return new Socket(address, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return new Socket(address, port, localAddress, localPort);
+        }
+    }
+
+    /**
+     * Races the host's addresses when it is connected and from then on is the socket that won. The
+     * connector's own connect timeout applies rather than the one Commons Net passes in.
+     *
+     * Until then it stands in for an unconnected socket, as Commons Net sets options such as buffer
+     * sizes before connecting. Those options are kept and given to the socket that wins.
+     */
+    private static class RacingSocket extends DelegatingSocket {
+
+        private HappyEyeballsConnector hostConnector;
+        private String host;
+
+        private Integer soTimeout;
+        private Boolean tcpNoDelay;
+        private Boolean keepAlive;
+        private Integer soLinger;
+        private Integer receiveBufferSize;
+        private Integer sendBufferSize;
+
+        RacingSocket(HappyEyeballsConnector hostConnector, String host) {
+
+            super(new Socket());
+
+            this.hostConnector = hostConnector;
+            this.host = host;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+
+            Socket winner = hostConnector.connect(host, ((InetSocketAddress) endpoint).getPort());
+
+            try {
+
+                applyOptions(winner);
+
+            } catch (SocketException e) {
+
+                winner.close();
+
+                throw e;
+            }
+
+            Socket unconnected = socket;
+            socket = winner;
+
+            unconnected.close();
+        }
+
+        @Override
+        public synchronized void setSoTimeout(int timeout) throws SocketException {
+
+            super.setSoTimeout(timeout);
+            soTimeout = timeout;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+
+            super.setTcpNoDelay(on);
+            tcpNoDelay = on;
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException {
+
+            super.setKeepAlive(on);
+            keepAlive = on;
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) throws SocketException {
+
+            super.setSoLinger(on, linger);
+            soLinger = on ? linger : -1;
+        }
+
+        @Override
+        public synchronized void setReceiveBufferSize(int size) throws SocketException {
+
+            super.setReceiveBufferSize(size);
+            receiveBufferSize = size;
+        }
+
+        @Override
+        public synchronized void setSendBufferSize(int size) throws SocketException {
+
+            super.setSendBufferSize(size);
+            sendBufferSize = size;
+        }
+
+        private void applyOptions(Socket winner) throws SocketException {
+
+            if (null != soTimeout)
+                winner.setSoTimeout(soTimeout);
+
+            if (null != tcpNoDelay)
+                winner.setTcpNoDelay(tcpNoDelay);
+
+            if (null != keepAlive)
+                winner.setKeepAlive(keepAlive);
+
+            if (null != soLinger)
+                winner.setSoLinger(soLinger >= 0, Math.max(soLinger, 0));
+
+            if (null != receiveBufferSize)
+                winner.setReceiveBufferSize(receiveBufferSize);
+
+            if (null != sendBufferSize)
+                winner.setSendBufferSize(sendBufferSize);
+        }
     }
 }
@@ -1,13 +1,205 @@
 package jftp.client;
 
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+
+import jftp.connection.Connection;
+import jftp.exception.FtpException;
+
 import org.apache.commons.net.ftp.FTPSClient;
+import org.apache.commons.net.util.SSLContextUtils;
+import org.apache.commons.net.util.TrustManagerUtils;
 
+/**
+ * An FTP client over TLS. By default the connection is implicit TLS, data channels are protected
+ * with PROT P and they resume the control channel's TLS session. Settings must be made before
+ * connecting.
+ */
 public class FtpsClient extends FtpClient {
 
-    private static final String SSL = "SSL";
+    private static final String TLS = "TLS";
+    private static final String PRIVATE = "P";
+    private static final String CLEAR = "C";
+
+    private static final String CONTEXT_FAILURE_MESSAGE = "Unable to create a TLS context.";
+    private static final String PROTECTION_FAILURE_MESSAGE = "The host %s on port %d refused the data channel protection.";
+
+    /**
+     * AES-GCM suites first, which run on the AES instructions of current CPUs, all with forward secret
+     * key exchange; static RSA key exchange is left out. TLS 1.3 names come first for JVMs that
+     * support it.
+     */
+    private static final String[] FAST_CIPHER_SUITES = {
+        "TLS_AES_128_GCM_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256",
+        "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
+        "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA"
+    };
+
+    private SSLContext sslContext;
+    private boolean implicit = true;
+
+    private String[] protocols;
+    private String[] cipherSuites;
+
+    private boolean protectDataChannel = true;
+    private boolean clearCommandChannel;
+    private boolean sessionReuse = true;
+
+    private boolean clientOutdated;
 
     public FtpsClient() {
-        
-        ftpClient = new FTPSClient(SSL, true);
+
+        sslContext = defaultContext();
+        ftpClient = new ResumingFtpsClient(implicit, sslContext);
+    }
+
+    /**
+     * @param implicit
+     * True to start TLS as soon as the connection opens, usually on port 990; false to connect in the
+     * clear and upgrade with AUTH TLS, usually on port 21.
+     */
+    public void setImplicit(boolean implicit) {
+
+        this.implicit = implicit;
+        this.clientOutdated = true;
+    }
+
+    /**
+     * Replaces the default context, which validates the server's certificate against the JVM's trusted
+     * certificates, e.g. to trust a private certificate authority or authenticate with a client certificate.
+     */
+    public void setSslContext(SSLContext sslContext) {
+
+        this.sslContext = sslContext;
+        this.clientOutdated = true;
+    }
+
+    /**
+     * @param protocols
+     * The TLS versions that may be negotiated, e.g. "TLSv1.2".
+     */
+    public void setProtocols(String... protocols) {
+        this.protocols = protocols.clone();
+    }
+
+    public void setCipherSuites(String... cipherSuites) {
+        this.cipherSuites = cipherSuites.clone();
+    }
+
+    /**
+     * Limits the cipher suites to the cheapest ones to encrypt with that this JVM supports.
+     */
+    public void useFastCipherSuites() {
+
+        List<String> supported = Arrays.asList(sslContext.getSupportedSSLParameters().getCipherSuites());
+        List<String> fast = new ArrayList<String>();
+
+        for (String cipherSuite : FAST_CIPHER_SUITES)
+            if (supported.contains(cipherSuite))
+                fast.add(cipherSuite);
+
+        cipherSuites = fast.toArray(new String[fast.size()]);
+    }
+
+    /**
+     * @param protectDataChannel
+     * True to send PROT P so that files are transferred over TLS, false to send PROT C so that they
+     * are transferred in the clear. Either way PBSZ 0 is sent first.
+     *
+     * Transferring in the clear only makes sense for files that are already encrypted, but it saves
+     * the encryption and decryption of every byte on both ends, which on fast links is often what
+     * limits an FTPS transfer. The login is still encrypted.
+     */
+    public void setProtectDataChannel(boolean protectDataChannel) {
+        this.protectDataChannel = protectDataChannel;
+    }
+
+    /**
+     * Sends CCC once logged in so that, if the server allows it, the control channel drops back to
+     * the clear after the credentials went over TLS. Mostly of use to let firewalls and NAT devices
+     * read the data channel ports; a server that refuses leaves the control channel protected.
+     */
+    public void setClearCommandChannel(boolean clearCommandChannel) {
+        this.clearCommandChannel = clearCommandChannel;
+    }
+
+    /**
+     * Whether protected data channels resume the control channel's TLS session rather than each
+     * negotiating a new one. On by default; some servers refuse data channels that don't.
+     */
+    public void setSessionReuse(boolean sessionReuse) {
+        this.sessionReuse = sessionReuse;
+    }
+
+    @Override
+    public Connection connect() {
+
+        // FTPSClient only takes these in its constructor, so the client is rebuilt once, here, rather
+        // than by each setter, which would drop whatever had been set on the one it replaced.
+        if (clientOutdated) {
+            ftpClient = new ResumingFtpsClient(implicit, sslContext);
+            clientOutdated = false;
+        }
+
+        FTPSClient ftpsClient = (FTPSClient) ftpClient;
+
+        if (null != protocols)
+            ftpsClient.setEnabledProtocols(protocols);
+
+        if (null != cipherSuites)
+            ftpsClient.setEnabledCipherSuites(cipherSuites);
+
+        if (ftpsClient instanceof ResumingFtpsClient)
+            ((ResumingFtpsClient) ftpsClient).setSessionReuse(sessionReuse);
+
+        return super.connect();
+    }
+
+    @Override
+    protected void afterLogin() throws IOException {
+
+        FTPSClient ftpsClient = (FTPSClient) ftpClient;
+
+        try {
+
+            ftpsClient.execPBSZ(0);
+            ftpsClient.execPROT(protectDataChannel ? PRIVATE : CLEAR);
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(PROTECTION_FAILURE_MESSAGE, host, port), e);
+        }
+
+        if (clearCommandChannel)
+            ftpsClient.execCCC();
+    }
+
+    /**
+     * Checks the server's certificate chain against the JVM's trusted certificates, not only its dates.
+     */
+    private SSLContext defaultContext() {
+
+        try {
+
+            return SSLContextUtils.createSSLContext(TLS, (KeyManager) null, TrustManagerUtils.getDefaultTrustManager(null));
+
+        } catch (GeneralSecurityException e) {
+
+            throw new FtpException(CONTEXT_FAILURE_MESSAGE, e);
+
+        } catch (IOException e) {
+
+            throw new FtpException(CONTEXT_FAILURE_MESSAGE, e);
+        }
     }
 }
@@ -0,0 +1,504 @@
+package jftp.client;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import jftp.connection.Connection;
+import jftp.connection.FtpFile;
+import jftp.connection.FtpFileFilter;
+import jftp.exception.FtpException;
+
+/**
+ * Puts a deadline on every call made through a connection, and lets a {@link CancellationToken}
+ * stop them early. A call still running when its deadline passes or its token is cancelled is
+ * stopped with {@link Connection#abort()} and fails with an FtpException, so a server that has
+ * stopped answering can't hold the calling thread. An aborted connection can't be used again.
+ *
+ * How quickly the call then returns is down to the connection's abort: FTP connections from
+ * {@link FtpClient} and {@link FtpsClient} close the data connection as well, but one built around
+ * another Commons Net client may carry on blocking until its data timeout passes.
+ *
+ * Aborting a {@link SharedConnection} stops every call it has running; give it a call timeout of its
+ * own to only lose the session that got stuck.
+ */
+public class GuardedConnection implements Connection {
+
+    private static final String CANCELLED_MESSAGE = "The call was cancelled.";
+    private static final String TIMED_OUT_MESSAGE = "The call didn't finish within %d ms.";
+
+    private static ScheduledExecutorService sharedScheduler;
+
+    private Connection connection;
+    private ScheduledExecutorService scheduler;
+
+    private long callTimeout;
+    private volatile CancellationToken cancellationToken;
+    private volatile boolean aborted;
+
+    public GuardedConnection(Connection connection) {
+        this(connection, sharedScheduler());
+    }
+
+    /**
+     * @param scheduler
+     * Runs the deadlines. Aborts are quick, so one thread serves any number of connections.
+     */
+    public GuardedConnection(Connection connection, ScheduledExecutorService scheduler) {
+        this.connection = connection;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * How long, in milliseconds, each call may take before it is aborted. Zero, the default, leaves
+     * calls to the token, if there is one.
+     */
+    public void setCallTimeout(long callTimeout) {
+        this.callTimeout = callTimeout;
+    }
+
+    /**
+     * The token that cancels calls made from now on. Calls fail straight away while it is cancelled.
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Whether a call was aborted, leaving the connection unusable.
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    @Override
+    public void abort() {
+
+        aborted = true;
+
+        connection.abort();
+    }
+
+    @Override
+    public void append(final InputStream source, final String remoteFilePath) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.append(source, remoteFilePath);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void changeDirectory(final String directory) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.changeDirectory(directory);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void delete(final String remoteFilePath) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.delete(remoteFilePath);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void download(final String remoteFilePath, final String localDirectory) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.download(remoteFilePath, localDirectory);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void download(final String remoteFilePath, final OutputStream destination) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.download(remoteFilePath, destination);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void download(final String remoteFilePath, final OutputStream destination, final long offset) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.download(remoteFilePath, destination, offset);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void download(final String remoteFilePath, final ByteBuffer destination) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.download(remoteFilePath, destination);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public ByteBuffer download(final String remoteFilePath) throws FtpException {
+
+        return guard(new Operation<ByteBuffer>() {
+
+            @Override
+            public ByteBuffer run() {
+                return connection.download(remoteFilePath);
+            }
+        });
+    }
+
+    @Override
+    public void keepAlive() throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.keepAlive();
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public List<FtpFile> listFiles() throws FtpException {
+
+        return guard(new Operation<List<FtpFile>>() {
+
+            @Override
+            public List<FtpFile> run() {
+                return connection.listFiles();
+            }
+        });
+    }
+
+    @Override
+    public List<FtpFile> listFiles(final String path) throws FtpException {
+
+        return guard(new Operation<List<FtpFile>>() {
+
+            @Override
+            public List<FtpFile> run() {
+                return connection.listFiles(path);
+            }
+        });
+    }
+
+    @Override
+    public List<FtpFile> listFiles(final String path, final FtpFileFilter filter) throws FtpException {
+
+        return guard(new Operation<List<FtpFile>>() {
+
+            @Override
+            public List<FtpFile> run() {
+                return connection.listFiles(path, filter);
+            }
+        });
+    }
+
+    @Override
+    public void makeDirectories(final String remoteDirectory) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.makeDirectories(remoteDirectory);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public String printWorkingDirectory() throws FtpException {
+
+        return guard(new Operation<String>() {
+
+            @Override
+            public String run() {
+                return connection.printWorkingDirectory();
+            }
+        });
+    }
+
+    @Override
+    public void removeDirectory(final String remoteDirectory) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.removeDirectory(remoteDirectory);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void rename(final String fromRemotePath, final String toRemotePath) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.rename(fromRemotePath, toRemotePath);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public FtpFile stat(final String remotePath) throws FtpException {
+
+        return guard(new Operation<FtpFile>() {
+
+            @Override
+            public FtpFile run() {
+                return connection.stat(remotePath);
+            }
+        });
+    }
+
+    @Override
+    public void upload(final String localFilePath, final String remoteDirectory) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.upload(localFilePath, remoteDirectory);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void upload(final InputStream source, final String remoteFilePath) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.upload(source, remoteFilePath);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void upload(final InputStream source, final String remoteFilePath, final long offset) throws FtpException {
+
+        guard(new Operation<Void>() {
+
+            @Override
+            public Void run() {
+
+                connection.upload(source, remoteFilePath, offset);
+
+                return null;
+            }
+        });
+    }
+
+    private <T> T guard(Operation<T> operation) {
+
+        CancellationToken token = cancellationToken;
+
+        if (null != token && token.isCancelled())
+            throw new FtpException(CANCELLED_MESSAGE);
+
+        Watchdog watchdog = new Watchdog();
+        ScheduledFuture<?> deadline = scheduleDeadline(watchdog, token);
+
+        if (null != token)
+            token.register(watchdog);
+
+        T result;
+
+        try {
+
+            result = operation.run();
+
+        } catch (RuntimeException e) {
+
+            String reason = watchdog.finish();
+
+            if (null == reason)
+                throw e;
+
+            throw new FtpException(reason, e);
+
+        } finally {
+
+            if (null != deadline)
+                deadline.cancel(false);
+
+            if (null != token)
+                token.unregister(watchdog);
+        }
+
+        // A deadline passing between the call returning and this point has already aborted the
+        // connection, so the call fails like any other the abort caught.
+        String reason = watchdog.finish();
+
+        if (null != reason)
+            throw new FtpException(reason);
+
+        return result;
+    }
+
+    /**
+     * Schedules whichever comes first of the call timeout and the token's deadline.
+     */
+    private ScheduledFuture<?> scheduleDeadline(final Watchdog watchdog, CancellationToken token) {
+
+        long delay = callTimeout > 0 ? callTimeout : Long.MAX_VALUE;
+        String reason = String.format(TIMED_OUT_MESSAGE, callTimeout);
+
+        if (null != token && token.remainingMillis() < delay) {
+            delay = token.remainingMillis();
+            reason = CANCELLED_MESSAGE;
+        }
+
+        if (Long.MAX_VALUE == delay)
+            return null;
+
+        final String timeoutReason = reason;
+
+        return scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                watchdog.fire(timeoutReason);
+            }
+
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService sharedScheduler() {
+
+        if (null == sharedScheduler)
+            sharedScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+        return sharedScheduler;
+    }
+
+    /**
+     * Aborts the connection at most once, and only while its call is still running.
+     */
+    private class Watchdog implements Runnable {
+
+        private boolean finished;
+        private String reason;
+
+        @Override
+        public void run() {
+            fire(CANCELLED_MESSAGE);
+        }
+
+        synchronized void fire(String reason) {
+
+            if (finished || null != this.reason)
+                return;
+
+            this.reason = reason;
+
+            abort();
+        }
+
+        /**
+         * @return
+         * Why the call was aborted, or null if it wasn't.
+         */
+        synchronized String finish() {
+
+            finished = true;
+
+            return reason;
+        }
+    }
+
+    private interface Operation<T> {
+
+        T run();
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "jftp-call-deadlines");
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package jftp.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.HostKeyRepository;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.UserInfo;
+
+/**
+ * Host keys kept in memory, shared by every session configured from the same
+ * {@link SftpSessionConfig}. Keys pinned here take precedence; other hosts are looked up in the
+ * known_hosts files the config loaded, if any.
+ *
+ * Hosts on a port other than 22 are named "[host]:port", as in known_hosts.
+ */
+class HostKeyStore implements HostKeyRepository {
+
+    private static final String REPOSITORY_ID = "jftp";
+
+    private final List<HostKey> hostKeys = new ArrayList<HostKey>();
+
+    private final List<HostKeyRepository> knownHostsFiles = new ArrayList<HostKeyRepository>();
+
+    private boolean pinned;
+
+    synchronized void pin(HostKey hostKey) {
+
+        hostKeys.add(hostKey);
+        pinned = true;
+    }
+
+    synchronized void addKnownHosts(HostKeyRepository knownHosts) {
+        knownHostsFiles.add(knownHosts);
+    }
+
+    /**
+     * @return
+     * True once keys have been pinned or loaded, as opposed to only learned from servers on first use.
+     */
+    synchronized boolean hasTrustedKeys() {
+        return pinned || !knownHostsFiles.isEmpty();
+    }
+
+    /**
+     * @return
+     * True if any key has been pinned or learned for the host.
+     */
+    synchronized boolean knows(String host) {
+
+        for (HostKey hostKey : hostKeys)
+            if (hostKey.getHost().equals(host))
+                return true;
+
+        return false;
+    }
+
+    @Override
+    public synchronized int check(String host, byte[] key) {
+
+        String encodedKey = encode(host, key);
+        boolean hostIsPinned = false;
+
+        for (HostKey hostKey : hostKeys) {
+
+            if (!hostKey.getHost().equals(host))
+                continue;
+
+            hostIsPinned = true;
+
+            if (hostKey.getKey().equals(encodedKey))
+                return OK;
+        }
+
+        if (hostIsPinned)
+            return CHANGED;
+
+        int result = NOT_INCLUDED;
+
+        for (HostKeyRepository knownHosts : knownHostsFiles) {
+
+            int checked = knownHosts.check(host, key);
+
+            if (checked == OK)
+                return OK;
+
+            if (checked == CHANGED)
+                result = CHANGED;
+        }
+
+        return result;
+    }
+
+    @Override
+    public synchronized void add(HostKey hostKey, UserInfo userInfo) {
+        hostKeys.add(hostKey);
+    }
+
+    @Override
+    public synchronized void remove(String host, String type) {
+        remove(host, type, null);
+    }
+
+    @Override
+    public synchronized void remove(String host, String type, byte[] key) {
+
+        String encodedKey = null == key ? null : encode(host, key);
+        List<HostKey> removed = new ArrayList<HostKey>();
+
+        for (HostKey hostKey : hostKeys) {
+
+            boolean typeMatches = null == type || type.equals(hostKey.getType());
+            boolean keyMatches = null == key || hostKey.getKey().equals(encodedKey);
+
+            if (hostKey.getHost().equals(host) && typeMatches && keyMatches)
+                removed.add(hostKey);
+        }
+
+        hostKeys.removeAll(removed);
+    }
+
+    @Override
+    public String getKnownHostsRepositoryID() {
+        return REPOSITORY_ID;
+    }
+
+    @Override
+    public synchronized HostKey[] getHostKey() {
+        return hostKeys.toArray(new HostKey[hostKeys.size()]);
+    }
+
+    @Override
+    public synchronized HostKey[] getHostKey(String host, String type) {
+
+        List<HostKey> matching = new ArrayList<HostKey>();
+
+        for (HostKey hostKey : hostKeys)
+            if (hostKey.getHost().equals(host) && (null == type || type.equals(hostKey.getType())))
+                matching.add(hostKey);
+
+        if (matching.isEmpty())
+            for (HostKeyRepository knownHosts : knownHostsFiles)
+                matching.addAll(Arrays.asList(knownHosts.getHostKey(host, type)));
+
+        return matching.toArray(new HostKey[matching.size()]);
+    }
+
+    /**
+     * JSch only exposes keys base64 encoded, so the key being checked is encoded the same way.
+     */
+    private String encode(String host, byte[] key) {
+
+        try {
+
+            return new HostKey(host, key).getKey();
+
+        } catch (JSchException e) {
+
+            // A key of a type JSch can't read can't match any key it stored either.
+            return null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package jftp.client;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jftp.connection.Connection;
+import jftp.connection.NioFtpConnection;
+import jftp.connection.NioFtpEngine;
+import jftp.exception.FtpException;
+
+/**
+ * An FTP client whose connections run on a shared {@link NioFtpEngine}, so that many connections
+ * don't each need a thread of their own. Clients share one engine unless given their own.
+ */
+public class NioFtpClient extends Client {
+
+    private static final int FIVE_MINUTES = 300;
+    private static final String CONNECTION_ERROR_MESSAGE = "Unable to connect to host %s on port %d";
+
+    private static NioFtpEngine sharedEngine;
+
+    private NioFtpEngine engine;
+    private NioFtpConnection connection;
+
+    public void setEngine(NioFtpEngine engine) {
+        this.engine = engine;
+    }
+
+    public Connection connect() {
+
+        Future<NioFtpConnection> futureConnection = engine().connect(host, port, userCredentials.getUsername(),
+                userCredentials.getPassword());
+
+        try {
+
+            connection = futureConnection.get(FIVE_MINUTES, TimeUnit.SECONDS);
+
+        } catch (ExecutionException e) {
+
+            if (e.getCause() instanceof FtpException)
+                throw (FtpException) e.getCause();
+
+            throw new FtpException(String.format(CONNECTION_ERROR_MESSAGE, host, port), e);
+
+        } catch (TimeoutException e) {
+
+            throw new FtpException(String.format(CONNECTION_ERROR_MESSAGE, host, port), e);
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+            throw new FtpException(String.format(CONNECTION_ERROR_MESSAGE, host, port), e);
+        }
+
+        return connection;
+    }
+
+    public void disconnect() {
+
+        if (null == connection)
+            throw new FtpException("The underlying client was null.");
+
+        connection.close();
+    }
+
+    private NioFtpEngine engine() {
+
+        if (null == engine)
+            engine = sharedEngine();
+
+        return engine;
+    }
+
+    private static synchronized NioFtpEngine sharedEngine() {
+
+        if (null == sharedEngine)
+            sharedEngine = new NioFtpEngine();
+
+        return sharedEngine;
+    }
+}
@@ -0,0 +1,196 @@
+package jftp.client;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import jftp.client.auth.KeyCredentials;
+import jftp.exception.FtpException;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.IdentityRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+
+/**
+ * Private keys that have already been read and decrypted, so that connecting again with the same
+ * {@link KeyCredentials} skips the file read and the passphrase's key derivation. A key file is read
+ * again if it has been modified since. SFTP clients share one cache unless given their own.
+ */
+public class PrivateKeyCache {
+
+    private static final String KEY_LOAD_FAILURE_MESSAGE = "Unable to load the private key %s";
+    private static final String KEY_DECRYPT_FAILURE_MESSAGE = "Unable to decrypt the private key %s";
+    private static final String IN_MEMORY_KEY = "in memory";
+
+    private static PrivateKeyCache sharedCache;
+
+    private Map<String, CachedKey> keys = new HashMap<String, CachedKey>();
+
+    static synchronized PrivateKeyCache sharedCache() {
+
+        if (null == sharedCache)
+            sharedCache = new PrivateKeyCache();
+
+        return sharedCache;
+    }
+
+    /**
+     * Forgets every decrypted key.
+     */
+    public synchronized void clear() {
+
+        for (CachedKey cachedKey : keys.values())
+            cachedKey.identity.clear();
+
+        keys.clear();
+    }
+
+    /**
+     * @return
+     * The decrypted key for the credentials, wrapped for a single session to authenticate with.
+     */
+    synchronized IdentityRepository identities(KeyCredentials credentials) throws FtpException {
+
+        String name = nameOf(credentials);
+        long lastModified = lastModified(credentials);
+        byte[] passphrase = credentials.getPassphrase();
+
+        CachedKey cachedKey = keys.get(name);
+
+        if (null == cachedKey || cachedKey.lastModified != lastModified) {
+
+            cachedKey = new CachedKey(load(credentials), lastModified, passphrase);
+            keys.put(name, cachedKey);
+
+        } else if (!Arrays.equals(cachedKey.passphrase, passphrase)) {
+
+            throw new FtpException(String.format(KEY_DECRYPT_FAILURE_MESSAGE, describe(credentials)));
+        }
+
+        return new SingleIdentityRepository(cachedKey.identity);
+    }
+
+    /**
+     * @return
+     * A name telling keys apart: the key file's absolute path, or a digest of a key given in memory.
+     */
+    String nameOf(KeyCredentials credentials) {
+
+        if (null != credentials.getPrivateKeyFile())
+            return new File(credentials.getPrivateKeyFile()).getAbsolutePath();
+
+        try {
+
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(credentials.getPrivateKey());
+
+            StringBuilder name = new StringBuilder();
+
+            for (byte b : digest)
+                name.append(String.format("%02x", b));
+
+            return name.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Identity load(KeyCredentials credentials) {
+
+        JSch loader = new JSch();
+
+        try {
+
+            if (null != credentials.getPrivateKeyFile())
+                loader.addIdentity(credentials.getPrivateKeyFile(), credentials.getPassphrase());
+            else
+                loader.addIdentity(nameOf(credentials), credentials.getPrivateKey(), null, credentials.getPassphrase());
+
+            Identity identity = (Identity) loader.getIdentityRepository().getIdentities().firstElement();
+
+            if (identity.isEncrypted())
+                throw new FtpException(String.format(KEY_DECRYPT_FAILURE_MESSAGE, describe(credentials)));
+
+            return identity;
+
+        } catch (JSchException e) {
+
+            throw new FtpException(String.format(KEY_LOAD_FAILURE_MESSAGE, describe(credentials)), e);
+        }
+    }
+
+    private long lastModified(KeyCredentials credentials) {
+        return null == credentials.getPrivateKeyFile() ? 0 : new File(credentials.getPrivateKeyFile()).lastModified();
+    }
+
+    private String describe(KeyCredentials credentials) {
+        return null == credentials.getPrivateKeyFile() ? IN_MEMORY_KEY : credentials.getPrivateKeyFile();
+    }
+
+    private static class CachedKey {
+
+        private Identity identity;
+        private long lastModified;
+        private byte[] passphrase;
+
+        CachedKey(Identity identity, long lastModified, byte[] passphrase) {
+
+            this.identity = identity;
+            this.lastModified = lastModified;
+            this.passphrase = passphrase;
+        }
+    }
+
+    /**
+     * Offers a session just the one cached key. Removing it from the session does not clear the key,
+     * as it would from JSch's own repository, so the key stays usable by later sessions.
+     */
+    private static class SingleIdentityRepository implements IdentityRepository {
+
+        private Identity identity;
+
+        SingleIdentityRepository(Identity identity) {
+            this.identity = identity;
+        }
+
+        @Override
+        public String getName() {
+            return identity.getName();
+        }
+
+        @Override
+        public int getStatus() {
+            return RUNNING;
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Vector getIdentities() {
+
+            Vector<Identity> identities = new Vector<Identity>();
+            identities.add(identity);
+
+            return identities;
+        }
+
+        @Override
+        public boolean add(byte[] identity) {
+            return false;
+        }
+
+        @Override
+        public boolean remove(byte[] blob) {
+            return false;
+        }
+
+        @Override
+        public void removeAll() {
+        }
+    }
+}
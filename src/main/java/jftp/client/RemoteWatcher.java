@@ -0,0 +1,353 @@
+package jftp.client;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import jftp.connection.Connection;
+import jftp.connection.FtpFile;
+import jftp.connection.FtpFileFilter;
+import jftp.exception.FtpException;
+
+/**
+ * Polls remote directories for files being created, modified and deleted. Any number of directories,
+ * on any number of servers, share one scheduler, and each is listed over a connection borrowed from
+ * its server's pool.
+ *
+ * Each listing is reduced to a fingerprint of every entry's name, size and modified time, and the
+ * fingerprints to one hash for the directory, so an unchanged directory costs one comparison. A new
+ * or changed file is only reported once its fingerprint has stayed the same for a number of polls,
+ * so files still being written aren't picked up half finished. Directories where nothing happens
+ * are polled less and less often, from the minimum interval up to the maximum, and go back to the
+ * minimum as soon as anything changes.
+ *
+ * Files already in a directory when it is first listed are taken as the starting point and not
+ * reported.
+ */
+public class RemoteWatcher {
+
+    private static final long FIVE_SECONDS = 5000;
+    private static final long FIVE_MINUTES = 300000;
+    private static final int DEFAULT_SETTLE_POLLS = 1;
+
+    private ScheduledExecutorService scheduler;
+
+    private long minInterval = FIVE_SECONDS;
+    private long maxInterval = FIVE_MINUTES;
+    private int settlePolls = DEFAULT_SETTLE_POLLS;
+
+    /**
+     * Receives the changes found in a watched directory, on the scheduler's thread.
+     */
+    public interface Listener {
+
+        /**
+         * A new file whose size and modified time have settled.
+         */
+        void created(FtpFile file);
+
+        /**
+         * A known file whose size or modified time changed and has since settled.
+         */
+        void modified(FtpFile file);
+
+        void deleted(String fullPath);
+    }
+
+    public RemoteWatcher() {
+        this(Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory()));
+    }
+
+    /**
+     * @param scheduler
+     * Runs every poll. Give it more threads when watching directories on many slow servers.
+     */
+    public RemoteWatcher(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * How long, in milliseconds, to wait between polls of a directory that has just changed. Defaults
+     * to five seconds.
+     */
+    public void setMinInterval(long minInterval) {
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * The longest, in milliseconds, a quiet directory goes between polls. Defaults to five minutes.
+     */
+    public void setMaxInterval(long maxInterval) {
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * How many more polls must see a new or changed file with the same size and modified time before
+     * it is reported. Defaults to 1.
+     */
+    public void setSettlePolls(int settlePolls) {
+        this.settlePolls = settlePolls;
+    }
+
+    public Watch watch(ConnectionPool connectionPool, String remoteDirectory, Listener listener) {
+        return watch(connectionPool, remoteDirectory, null, listener);
+    }
+
+    /**
+     * Starts polling a directory, listing only the entries the filter accepts.
+     */
+    public Watch watch(ConnectionPool connectionPool, String remoteDirectory, FtpFileFilter filter, Listener listener) {
+
+        Watch watch = new Watch(connectionPool, remoteDirectory, filter, listener);
+
+        watch.schedule(0);
+
+        return watch;
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * One watched directory. Its polls never overlap, as each schedules the next when it finishes.
+     */
+    public class Watch {
+
+        private ConnectionPool connectionPool;
+        private String remoteDirectory;
+        private FtpFileFilter filter;
+        private Listener listener;
+
+        private Map<String, Long> known;
+        private Map<String, Unsettled> unsettled = new HashMap<String, Unsettled>();
+        private long directoryHash;
+
+        private long interval = minInterval;
+        private volatile boolean cancelled;
+        private ScheduledFuture<?> nextPoll;
+
+        Watch(ConnectionPool connectionPool, String remoteDirectory, FtpFileFilter filter, Listener listener) {
+
+            this.connectionPool = connectionPool;
+            this.remoteDirectory = remoteDirectory;
+            this.filter = filter;
+            this.listener = listener;
+        }
+
+        public String getRemoteDirectory() {
+            return remoteDirectory;
+        }
+
+        /**
+         * How long, in milliseconds, until the directory is polled again.
+         */
+        public synchronized long getInterval() {
+            return interval;
+        }
+
+        public synchronized void cancel() {
+
+            cancelled = true;
+
+            if (null != nextPoll)
+                nextPoll.cancel(false);
+        }
+
+        void poll() {
+
+            try {
+
+                boolean changed = compare(list());
+
+                synchronized (this) {
+                    interval = changed || !unsettled.isEmpty() ? minInterval : Math.min(maxInterval, interval * 2);
+                }
+
+            } catch (FtpException e) {
+
+                // An unreachable server is tried again at the same interval.
+
+            } finally {
+
+                schedule(getInterval());
+            }
+        }
+
+        private List<FtpFile> list() {
+
+            Connection connection = connectionPool.borrow();
+            List<FtpFile> files;
+
+            try {
+
+                files = null == filter ? connection.listFiles(remoteDirectory) : connection.listFiles(remoteDirectory, filter);
+
+            } catch (RuntimeException e) {
+
+                // The listing may have died halfway, leaving the session in no state to hand out again.
+                connectionPool.invalidate(connection);
+
+                throw e;
+            }
+
+            connectionPool.release(connection);
+
+            return files;
+        }
+
+        /**
+         * @return
+         * Whether anything in the directory changed since the last poll.
+         */
+        private boolean compare(List<FtpFile> files) {
+
+            long hash = files.size();
+
+            for (FtpFile file : files)
+                hash += fingerprint(file);
+
+            if (null != known && hash == directoryHash && unsettled.isEmpty())
+                return false;
+
+            directoryHash = hash;
+
+            if (null == known) {
+
+                known = new HashMap<String, Long>();
+
+                for (FtpFile file : files)
+                    if (!isSelfOrParent(file))
+                        known.put(file.getFullPath(), fingerprint(file));
+
+                return false;
+            }
+
+            Set<String> seen = new HashSet<String>();
+
+            for (FtpFile file : files) {
+
+                if (isSelfOrParent(file))
+                    continue;
+
+                seen.add(file.getFullPath());
+
+                compare(file, fingerprint(file));
+            }
+
+            unsettled.keySet().retainAll(seen);
+
+            Iterator<String> knownPaths = known.keySet().iterator();
+
+            while (knownPaths.hasNext()) {
+
+                String path = knownPaths.next();
+
+                if (!seen.contains(path)) {
+
+                    knownPaths.remove();
+                    listener.deleted(path);
+                }
+            }
+
+            return true;
+        }
+
+        private void compare(FtpFile file, long fingerprint) {
+
+            Long knownFingerprint = known.get(file.getFullPath());
+
+            if (null != knownFingerprint && knownFingerprint == fingerprint) {
+                unsettled.remove(file.getFullPath());
+                return;
+            }
+
+            Unsettled change = unsettled.get(file.getFullPath());
+
+            if (null == change || change.fingerprint != fingerprint) {
+                unsettled.put(file.getFullPath(), new Unsettled(fingerprint));
+                return;
+            }
+
+            if (++change.stablePolls < settlePolls)
+                return;
+
+            unsettled.remove(file.getFullPath());
+            known.put(file.getFullPath(), fingerprint);
+
+            if (null == knownFingerprint)
+                listener.created(file);
+            else
+                listener.modified(file);
+        }
+
+        private synchronized void schedule(long delay) {
+
+            if (cancelled)
+                return;
+
+            nextPoll = scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    poll();
+                }
+
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Mixes an entry's name, size and modified time into one well spread 64 bit value.
+     */
+    static long fingerprint(FtpFile file) {
+
+        long hash = file.getName().hashCode();
+
+        hash = hash * 0x9E3779B97F4A7C15L + file.getSize();
+        hash = hash * 0x9E3779B97F4A7C15L + file.getLastModified().getMillis();
+
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    private static boolean isSelfOrParent(FtpFile file) {
+        return ".".equals(file.getName()) || "..".equals(file.getName());
+    }
+
+    /**
+     * A new or changed file waiting for its size and modified time to stop changing.
+     */
+    private static class Unsettled {
+
+        private long fingerprint;
+        private int stablePolls;
+
+        Unsettled(long fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "jftp-remote-watcher");
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package jftp.client;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import jftp.connection.DataConnectionCloser;
+
+import org.apache.commons.net.ftp.FTPSClient;
+
+/**
+ * An FTPS client whose protected data channels resume the control channel's TLS session instead of
+ * each negotiating a new one. Java only offers a cached session to a socket connected to the same
+ * host and port, so data sockets are opened plain and then wrapped in TLS over a socket reporting
+ * the control channel's port. Besides saving a full handshake per transfer, this satisfies servers
+ * that require data channels to reuse the control channel's session.
+ *
+ * Like {@link AbortableFtpClient}, it keeps hold of the plain data socket so another thread can close
+ * it, which unblocks a read on the TLS socket wrapped around it too.
+ */
+class ResumingFtpsClient extends FTPSClient implements DataConnectionCloser {
+
+    private static final String PRIVATE = "P";
+
+    private SSLContext context;
+
+    private String[] protocols;
+    private String[] cipherSuites;
+
+    private boolean sessionReuse = true;
+    private boolean dataProtected;
+
+    private volatile Socket dataSocket;
+
+    ResumingFtpsClient(boolean implicit, SSLContext context) {
+
+        super(implicit, context);
+
+        this.context = context;
+    }
+
+    void setSessionReuse(boolean sessionReuse) {
+        this.sessionReuse = sessionReuse;
+    }
+
+    @Override
+    public void setEnabledProtocols(String[] protocols) {
+
+        super.setEnabledProtocols(protocols);
+
+        this.protocols = protocols.clone();
+    }
+
+    @Override
+    public void setEnabledCipherSuites(String[] cipherSuites) {
+
+        super.setEnabledCipherSuites(cipherSuites);
+
+        this.cipherSuites = cipherSuites.clone();
+    }
+
+    @Override
+    public void execPROT(String prot) throws IOException {
+
+        super.execPROT(prot);
+
+        dataProtected = PRIVATE.equals(prot);
+
+        // Data sockets are then created plain, and wrapped in TLS once connected.
+        if (dataProtected && sessionReuse)
+            setSocketFactory(null);
+    }
+
+    @Override
+    public void closeDataConnection() {
+
+        Socket socket = dataSocket;
+
+        if (null == socket)
+            return;
+
+        try {
+
+            socket.close();
+
+        } catch (IOException e) {
+
+            // The transfer fails either way once the control connection is closed.
+        }
+    }
+
+    @Override
+    protected Socket _openDataConnection_(String command, String arg) throws IOException {
+
+        Socket socket = super._openDataConnection_(command, arg);
+
+        dataSocket = socket;
+
+        if (null == socket || socket instanceof SSLSocket || !dataProtected || !sessionReuse)
+            return socket;
+
+        SSLSocket sslSocket = (SSLSocket) context.getSocketFactory().createSocket(
+                new ControlPortSocket(socket, getRemotePort()), getRemoteAddress().getHostAddress(), getRemotePort(), true);
+
+        sslSocket.setUseClientMode(true);
+
+        if (null != protocols)
+            sslSocket.setEnabledProtocols(protocols);
+
+        if (null != cipherSuites)
+            sslSocket.setEnabledCipherSuites(cipherSuites);
+
+        try {
+
+            sslSocket.startHandshake();
+
+        } catch (IOException e) {
+
+            sslSocket.close();
+
+            throw e;
+        }
+
+        return sslSocket;
+    }
+
+    /**
+     * A connected data socket that claims to be connected to the control channel's port, which is
+     * all Java's TLS session cache looks at besides the host. Everything else goes to the real socket.
+     */
+    private static class ControlPortSocket extends DelegatingSocket {
+
+        private int controlPort;
+
+        ControlPortSocket(Socket socket, int controlPort) {
+
+            super(socket);
+
+            this.controlPort = controlPort;
+        }
+
+        @Override
+        public int getPort() {
+            return controlPort;
+        }
+    }
+}
@@ -1,38 +1,88 @@
 package jftp.client;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import jftp.client.auth.KeyCredentials;
 import jftp.connection.Connection;
 import jftp.connection.ConnectionFactory;
 import jftp.exception.FtpException;
+import jftp.util.HappyEyeballsConnector;
 
 import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.IdentityRepository;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
 
 public class SftpClient extends Client {
 
 	private static final String SFTP = "sftp";
 	private static final String CONNECTION_ERROR_MESSAGE = "Unable to connect to host %s on port %d";
+	private static final int ONE_MINUTE = 60000;
+	private static final int SERVER_ALIVE_COUNT_MAX = 3;
 
 	private JSch jsch;
 	private ConnectionFactory connectionFactory;
 
 	private Session session;
 	private Channel channel;
+
+	private int serverAliveInterval = ONE_MINUTE;
+
+	private SftpSessionConfig sessionConfig;
+	private PrivateKeyCache keyCache;
 	
 	public SftpClient() {
 		this.jsch = new JSch();
 		this.connectionFactory = new ConnectionFactory();
 	}
 
+	/**
+	 * How often, in milliseconds, the session sends an SSH keep-alive while it hears nothing from the
+	 * server. After three unanswered keep-alives the session is closed. Zero turns keep-alives off.
+	 */
+	public void setServerAliveInterval(int serverAliveInterval) {
+		this.serverAliveInterval = serverAliveInterval;
+	}
+
+	/**
+	 * Applies algorithm preferences and trusted host keys to the session, and reuses a cached session
+	 * instead of opening a new one if the config allows it. Configs are meant to be shared between clients.
+	 */
+	public void setSessionConfig(SftpSessionConfig sessionConfig) {
+		this.sessionConfig = sessionConfig;
+	}
+
+	/**
+	 * Where decrypted private keys are kept between connects when using {@link KeyCredentials}. Clients
+	 * share one cache unless given their own.
+	 */
+	public void setKeyCache(PrivateKeyCache keyCache) {
+		this.keyCache = keyCache;
+	}
+
 	public Connection connect() {
 
 		session = null;
 		channel = null;
 
+		IdentityRepository identities = null;
+
+		if (userCredentials instanceof KeyCredentials)
+			identities = keyCache().identities((KeyCredentials) userCredentials);
+
 		try {
 
-			configureSessionAndConnect();
+			if (null != sessionConfig)
+				session = sessionConfig.reuseSession(userCredentials.getUsername(), secret(), host, port);
+
+			if (null == session)
+				configureSessionAndConnect(identities);
+
 			openChannelFromSession();
 
 		} catch (JSchException e) {
@@ -48,16 +98,55 @@ public class SftpClient extends Client {
 	        throw new FtpException("The underlying connection was never initially made.");
 	    
 	    channel.disconnect();
-	    session.disconnect();
+
+	    if (null == sessionConfig || !sessionConfig.releaseSession(session))
+	        session.disconnect();
 	}
 
-    private void configureSessionAndConnect() throws JSchException {
+    private void configureSessionAndConnect(IdentityRepository identities) throws JSchException {
         
         session = jsch.getSession(userCredentials.getUsername(), host, port);
         session.setConfig("StrictHostKeyChecking", "no");
-        session.setPassword(userCredentials.getPassword());
+
+        if (null == identities)
+            session.setPassword(userCredentials.getPassword());
+        else
+            session.setIdentityRepository(identities);
+
+        if (null != hostConnector)
+            session.setSocketFactory(new RacingSocketFactory(hostConnector));
+
+        if (serverAliveInterval > 0) {
+            session.setServerAliveInterval(serverAliveInterval);
+            session.setServerAliveCountMax(SERVER_ALIVE_COUNT_MAX);
+        }
+
+        if (null != sessionConfig)
+            sessionConfig.configure(jsch, session);
 
         session.connect();
+
+        if (null != sessionConfig)
+            sessionConfig.cacheSession(session, userCredentials.getUsername(), secret(), host, port);
+    }
+
+    /**
+     * What a reused session must have been authenticated with: the password, or which private key.
+     */
+    private String secret() {
+
+        if (userCredentials instanceof KeyCredentials)
+            return "key:" + keyCache().nameOf((KeyCredentials) userCredentials);
+
+        return userCredentials.getPassword();
+    }
+
+    private PrivateKeyCache keyCache() {
+
+        if (null == keyCache)
+            keyCache = PrivateKeyCache.sharedCache();
+
+        return keyCache;
     }
 
     private void openChannelFromSession() throws JSchException {
@@ -65,4 +154,31 @@ public class SftpClient extends Client {
         channel = session.openChannel(SFTP);
         channel.connect();
     }
+
+    /**
+     * Hands JSch the socket that won the race, so the session runs over it directly.
+     */
+    private static class RacingSocketFactory implements SocketFactory {
+
+        private HappyEyeballsConnector hostConnector;
+
+        RacingSocketFactory(HappyEyeballsConnector hostConnector) {
+            this.hostConnector = hostConnector;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return hostConnector.connect(host, port);
+        }
+
+        @Override
+        public InputStream getInputStream(Socket socket) throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream(Socket socket) throws IOException {
+            return socket.getOutputStream();
+        }
+    }
 }
@@ -0,0 +1,310 @@
+package jftp.client;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import jftp.exception.FtpException;
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.UserInfo;
+
+/**
+ * Settings for the SSH sessions under SFTP clients, meant to be shared by every client connecting
+ * to the same servers: algorithm preferences, the host keys to trust and, optionally, a cache of
+ * authenticated sessions that later connects reuse instead of running a fresh handshake.
+ */
+public class SftpSessionConfig {
+
+    private static final String FAST_CIPHERS = "aes128-ctr,aes192-ctr,aes256-ctr";
+    private static final String FAST_MACS = "hmac-sha1,hmac-sha2-256";
+    private static final String FAST_KEY_EXCHANGES = "diffie-hellman-group14-sha1,diffie-hellman-group-exchange-sha256,diffie-hellman-group-exchange-sha1";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int SSH_PORT = 22;
+
+    private static final String INVALID_HOST_KEY_MESSAGE = "Invalid host key for %s";
+    private static final String KNOWN_HOSTS_FAILURE_MESSAGE = "Unable to read known hosts from %s";
+
+    private HostKeyStore hostKeyStore = new HostKeyStore();
+
+    private String ciphers;
+    private String macs;
+    private String keyExchanges;
+
+    private boolean sessionReuse;
+    private Map<String, CachedSession> sessions = new HashMap<String, CachedSession>();
+
+    /**
+     * Prefers the algorithms cheapest to negotiate and run: AES-128 in CTR mode, HMAC-SHA1, and a
+     * fixed 2048 bit Diffie-Hellman group that saves the extra round trip of group exchange, with
+     * the other AES key sizes, HMAC-SHA2 and group exchange after them for servers that don't offer
+     * these. Weak algorithms such as 3DES, HMAC-MD5 and the 1024 bit group are left out; a server
+     * that only offers those has to be named in {@link #setCiphers}, {@link #setMacs} or
+     * {@link #setKeyExchanges}.
+     */
+    public void useFastAlgorithms() {
+
+        ciphers = FAST_CIPHERS;
+        macs = FAST_MACS;
+        keyExchanges = FAST_KEY_EXCHANGES;
+    }
+
+    /**
+     * @param ciphers
+     * Comma separated, most preferred first, e.g. "aes128-ctr,aes256-ctr". Used in both directions.
+     */
+    public void setCiphers(String ciphers) {
+        this.ciphers = ciphers;
+    }
+
+    public void setMacs(String macs) {
+        this.macs = macs;
+    }
+
+    public void setKeyExchanges(String keyExchanges) {
+        this.keyExchanges = keyExchanges;
+    }
+
+    /**
+     * Trusts the given key for the host, and only that key. Once any host key is known, hosts with no
+     * known key are refused; until then every host is accepted the first time and its key remembered
+     * in memory, and refused if it later presents a different key.
+     *
+     * @param host
+     * The host name, or "[host]:port" for a port other than 22.
+     */
+    public void addHostKey(String host, byte[] key) throws FtpException {
+
+        try {
+
+            hostKeyStore.pin(new HostKey(host, key));
+
+        } catch (JSchException e) {
+
+            throw new FtpException(String.format(INVALID_HOST_KEY_MESSAGE, host), e);
+        }
+    }
+
+    /**
+     * Trusts the host keys in an OpenSSH known_hosts file, read once now rather than on every connect.
+     */
+    public void addKnownHosts(String knownHostsFile) throws FtpException {
+
+        JSch reader = new JSch();
+
+        try {
+
+            reader.setKnownHosts(knownHostsFile);
+
+        } catch (JSchException e) {
+
+            throw new FtpException(String.format(KNOWN_HOSTS_FAILURE_MESSAGE, knownHostsFile), e);
+        }
+
+        hostKeyStore.addKnownHosts(reader.getHostKeyRepository());
+    }
+
+    /**
+     * With reuse on, a client's disconnect only closes its SFTP channel and leaves the session open
+     * for the next client connecting to the same host as the same user, which then skips the key
+     * exchange and authentication.
+     */
+    public void setSessionReuse(boolean sessionReuse) {
+        this.sessionReuse = sessionReuse;
+    }
+
+    /**
+     * Disconnects the cached sessions no client is using.
+     */
+    public synchronized void closeIdleSessions() {
+
+        for (Iterator<CachedSession> cached = sessions.values().iterator(); cached.hasNext();) {
+
+            CachedSession cachedSession = cached.next();
+
+            if (cachedSession.users == 0) {
+                cachedSession.session.disconnect();
+                cached.remove();
+            }
+        }
+    }
+
+    void configure(JSch jsch, Session session) {
+
+        jsch.setHostKeyRepository(hostKeyStore);
+
+        if (hostKeyStore.hasTrustedKeys()) {
+
+            session.setConfig("StrictHostKeyChecking", "yes");
+
+        } else {
+
+            session.setConfig("StrictHostKeyChecking", "ask");
+            session.setUserInfo(new TrustOnFirstUse(hostKeyStore, hostKeyName(session)));
+        }
+
+        if (null != ciphers) {
+            session.setConfig("cipher.c2s", ciphers);
+            session.setConfig("cipher.s2c", ciphers);
+            session.setConfig("CheckCiphers", ciphers);
+        }
+
+        if (null != macs) {
+            session.setConfig("mac.c2s", macs);
+            session.setConfig("mac.s2c", macs);
+        }
+
+        if (null != keyExchanges)
+            session.setConfig("kex", keyExchanges);
+    }
+
+    /**
+     * @return
+     * A connected session for the user on the host, or null if there is none to reuse.
+     */
+    synchronized Session reuseSession(String username, String password, String host, int port) {
+
+        if (!sessionReuse)
+            return null;
+
+        String key = sessionKey(username, password, host, port);
+        CachedSession cachedSession = sessions.get(key);
+
+        if (null == cachedSession)
+            return null;
+
+        if (!cachedSession.session.isConnected()) {
+
+            if (cachedSession.users == 0)
+                sessions.remove(key);
+
+            return null;
+        }
+
+        cachedSession.users++;
+
+        return cachedSession.session;
+    }
+
+    /**
+     * Offers a newly connected session for reuse. The first session for a user, password and host is kept;
+     * others are left to their client.
+     */
+    synchronized void cacheSession(Session session, String username, String password, String host, int port) {
+
+        String key = sessionKey(username, password, host, port);
+
+        if (!sessionReuse || sessions.containsKey(key))
+            return;
+
+        sessions.put(key, new CachedSession(session));
+    }
+
+    /**
+     * @return
+     * True if the session is cached and so must be left open, false if the client should disconnect it.
+     */
+    synchronized boolean releaseSession(Session session) {
+
+        for (CachedSession cachedSession : sessions.values()) {
+
+            if (cachedSession.session == session) {
+
+                cachedSession.users--;
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * A digest of the user, password, host and port, so the cache finds a session only for the same
+     * password without holding on to the password itself.
+     */
+    private String sessionKey(String username, String password, String host, int port) {
+
+        String key = username + "\0" + (null == password ? "" : password) + "\0" + host + "\0" + port;
+
+        try {
+
+            return new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF8))).toString(16);
+
+        } catch (NoSuchAlgorithmException e) {
+
+            throw new IllegalStateException("Every JVM has SHA-256.", e);
+        }
+    }
+
+    /**
+     * The name JSch checks the host's key under.
+     */
+    private String hostKeyName(Session session) {
+        return session.getPort() == SSH_PORT ? session.getHost() : "[" + session.getHost() + "]:" + session.getPort();
+    }
+
+    /**
+     * Answers JSch's prompts when no keys are trusted up front: a host seen for the first time is
+     * accepted and its key remembered, but a host that turns up with a different key is refused.
+     */
+    private static class TrustOnFirstUse implements UserInfo {
+
+        private HostKeyStore hostKeyStore;
+        private String host;
+
+        TrustOnFirstUse(HostKeyStore hostKeyStore, String host) {
+
+            this.hostKeyStore = hostKeyStore;
+            this.host = host;
+        }
+
+        @Override
+        public boolean promptYesNo(String message) {
+            return !hostKeyStore.knows(host);
+        }
+
+        @Override
+        public String getPassphrase() {
+            return null;
+        }
+
+        @Override
+        public String getPassword() {
+            return null;
+        }
+
+        @Override
+        public boolean promptPassword(String message) {
+            return false;
+        }
+
+        @Override
+        public boolean promptPassphrase(String message) {
+            return false;
+        }
+
+        @Override
+        public void showMessage(String message) {
+        }
+    }
+
+    private static class CachedSession {
+
+        private Session session;
+        private int users = 1;
+
+        CachedSession(Session session) {
+            this.session = session;
+        }
+    }
+}
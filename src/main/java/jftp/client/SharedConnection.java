@@ -0,0 +1,650 @@
+package jftp.client;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import jftp.connection.Connection;
+import jftp.connection.FtpFile;
+import jftp.connection.FtpFileFilter;
+import jftp.exception.FtpException;
+
+/**
+ * A connection that any number of threads can use at once. Each call runs on a connection borrowed
+ * from the pool for just that call, so calls from different threads go out over different sessions
+ * and never interleave on one, and calls beyond the pool's size wait their turn.
+ *
+ * The working directory is kept here rather than on any session: relative paths are resolved
+ * against it before a call is handed to a session, and changing it doesn't affect calls already
+ * running. It starts wherever the pool's connections start.
+ */
+public class SharedConnection implements Connection {
+
+    private static final String FILE_SEPARATOR = "/";
+    private static final String ABORTED_MESSAGE = "The call was aborted.";
+
+    private ConnectionPool connectionPool;
+
+    private volatile String workingDirectory;
+    private long callTimeout;
+
+    private final Set<Connection> inUse = Collections.newSetFromMap(new IdentityHashMap<Connection, Boolean>());
+    private final Set<Connection> aborted = Collections.newSetFromMap(new IdentityHashMap<Connection, Boolean>());
+    private long aborts;
+
+    public SharedConnection(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * How long, in milliseconds, each call may keep its session before the session is aborted and
+     * closed, failing only that call. Zero, the default, lets calls run for as long as they take.
+     */
+    public void setCallTimeout(long callTimeout) {
+        this.callTimeout = callTimeout;
+    }
+
+    /**
+     * Aborts every call running through this connection, including those still waiting for a
+     * session. Their sessions are closed rather than returned to the pool.
+     */
+    @Override
+    public void abort() {
+
+        List<Connection> connections;
+
+        synchronized (inUse) {
+
+            aborts++;
+            aborted.addAll(inUse);
+            connections = new ArrayList<Connection>(inUse);
+        }
+
+        for (Connection connection : connections)
+            connection.abort();
+    }
+
+    @Override
+    public void append(final InputStream source, String remoteFilePath) throws FtpException {
+
+        final String resolved = resolve(remoteFilePath);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                CountingInputStream counted = new CountingInputStream(source);
+
+                try {
+
+                    connection.append(counted, resolved);
+
+                } finally {
+
+                    bytesMoved = counted.count;
+                }
+
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Checks the directory exists on a session and takes the path the server reports for it. The
+     * session is moved back afterwards, or closed if it can't be.
+     */
+    @Override
+    public void changeDirectory(String directory) throws FtpException {
+
+        final String resolved = resolve(directory);
+
+        workingDirectory = onAnyConnection(new Operation<String>() {
+
+            @Override
+            public String run(Connection connection) {
+
+                String previous = connection.printWorkingDirectory();
+
+                connection.changeDirectory(resolved);
+
+                try {
+
+                    return connection.printWorkingDirectory();
+
+                } finally {
+
+                    try {
+
+                        connection.changeDirectory(previous);
+
+                    } catch (FtpException e) {
+
+                        spoiled = true;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void delete(String remoteFilePath) throws FtpException {
+
+        final String resolved = resolve(remoteFilePath);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                connection.delete(resolved);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void download(String remoteFilePath, final String localDirectory) throws FtpException {
+
+        final String resolved = resolve(remoteFilePath);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                connection.download(resolved, localDirectory);
+
+                bytesMoved = new File(localDirectory, resolved.substring(resolved.lastIndexOf(FILE_SEPARATOR) + 1)).length();
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void download(String remoteFilePath, final OutputStream destination) throws FtpException {
+
+        final String resolved = resolve(remoteFilePath);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                CountingOutputStream counted = new CountingOutputStream(destination);
+
+                try {
+
+                    connection.download(resolved, counted);
+
+                } finally {
+
+                    bytesMoved = counted.count;
+                }
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void download(String remoteFilePath, final OutputStream destination, final long offset) throws FtpException {
+
+        final String resolved = resolve(remoteFilePath);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                CountingOutputStream counted = new CountingOutputStream(destination);
+
+                try {
+
+                    connection.download(resolved, counted, offset);
+
+                } finally {
+
+                    bytesMoved = counted.count;
+                }
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void download(String remoteFilePath, final ByteBuffer destination) throws FtpException {
+
+        final String resolved = resolve(remoteFilePath);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                int start = destination.position();
+
+                connection.download(resolved, destination);
+
+                bytesMoved = destination.position() - start;
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public ByteBuffer download(String remoteFilePath) throws FtpException {
+
+        final String resolved = resolve(remoteFilePath);
+
+        return onAnyConnection(new Operation<ByteBuffer>() {
+
+            @Override
+            public ByteBuffer run(Connection connection) {
+
+                ByteBuffer downloaded = connection.download(resolved);
+
+                bytesMoved = downloaded.remaining();
+
+                return downloaded;
+            }
+        });
+    }
+
+    /**
+     * Checks one of the pool's sessions, closing it if it turns out to be dead.
+     */
+    @Override
+    public void keepAlive() throws FtpException {
+
+        Connection connection = connectionPool.borrow();
+
+        try {
+
+            connection.keepAlive();
+
+        } catch (FtpException e) {
+
+            connectionPool.invalidate(connection);
+
+            throw e;
+        }
+
+        connectionPool.release(connection);
+    }
+
+    @Override
+    public List<FtpFile> listFiles() throws FtpException {
+        return listFiles(printWorkingDirectory());
+    }
+
+    @Override
+    public List<FtpFile> listFiles(String path) throws FtpException {
+
+        final String resolved = resolve(path);
+
+        return onAnyConnection(new Operation<List<FtpFile>>() {
+
+            @Override
+            public List<FtpFile> run(Connection connection) {
+                return connection.listFiles(resolved);
+            }
+        });
+    }
+
+    @Override
+    public List<FtpFile> listFiles(String path, final FtpFileFilter filter) throws FtpException {
+
+        final String resolved = resolve(path);
+
+        return onAnyConnection(new Operation<List<FtpFile>>() {
+
+            @Override
+            public List<FtpFile> run(Connection connection) {
+                return connection.listFiles(resolved, filter);
+            }
+        });
+    }
+
+    @Override
+    public void makeDirectories(String remoteDirectory) throws FtpException {
+
+        final String resolved = resolve(remoteDirectory);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                connection.makeDirectories(resolved);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public String printWorkingDirectory() throws FtpException {
+
+        if (null == workingDirectory) {
+
+            String initialDirectory = onAnyConnection(new Operation<String>() {
+
+                @Override
+                public String run(Connection connection) {
+                    return connection.printWorkingDirectory();
+                }
+            });
+
+            synchronized (this) {
+
+                if (null == workingDirectory)
+                    workingDirectory = initialDirectory;
+            }
+        }
+
+        return workingDirectory;
+    }
+
+    @Override
+    public void removeDirectory(String remoteDirectory) throws FtpException {
+
+        final String resolved = resolve(remoteDirectory);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                connection.removeDirectory(resolved);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void rename(String fromRemotePath, String toRemotePath) throws FtpException {
+
+        final String from = resolve(fromRemotePath);
+        final String to = resolve(toRemotePath);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                connection.rename(from, to);
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public FtpFile stat(String remotePath) throws FtpException {
+
+        final String resolved = resolve(remotePath);
+
+        return onAnyConnection(new Operation<FtpFile>() {
+
+            @Override
+            public FtpFile run(Connection connection) {
+                return connection.stat(resolved);
+            }
+        });
+    }
+
+    @Override
+    public void upload(final String localFilePath, String remoteDirectory) throws FtpException {
+
+        final String resolved = resolve(remoteDirectory);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                connection.upload(localFilePath, resolved);
+
+                bytesMoved = new File(localFilePath).length();
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void upload(final InputStream source, String remoteFilePath) throws FtpException {
+
+        final String resolved = resolve(remoteFilePath);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                CountingInputStream counted = new CountingInputStream(source);
+
+                try {
+
+                    connection.upload(counted, resolved);
+
+                } finally {
+
+                    bytesMoved = counted.count;
+                }
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void upload(final InputStream source, String remoteFilePath, final long offset) throws FtpException {
+
+        final String resolved = resolve(remoteFilePath);
+
+        onAnyConnection(new Operation<Void>() {
+
+            @Override
+            public Void run(Connection connection) {
+
+                CountingInputStream counted = new CountingInputStream(source);
+
+                try {
+
+                    connection.upload(counted, resolved, offset);
+
+                } finally {
+
+                    bytesMoved = counted.count;
+                }
+
+                return null;
+            }
+        });
+    }
+
+    private <T> T onAnyConnection(Operation<T> operation) {
+
+        long abortsBefore;
+
+        synchronized (inUse) {
+            abortsBefore = aborts;
+        }
+
+        Connection connection = connectionPool.borrow();
+
+        boolean abortedWhileBorrowing;
+
+        // An abort between borrowing and registering the session would miss it, so it's caught here.
+        synchronized (inUse) {
+
+            abortedWhileBorrowing = aborts != abortsBefore;
+
+            if (!abortedWhileBorrowing)
+                inUse.add(connection);
+        }
+
+        if (abortedWhileBorrowing) {
+
+            connectionPool.release(connection);
+
+            throw new FtpException(ABORTED_MESSAGE);
+        }
+
+        GuardedConnection guarded = null;
+
+        try {
+
+            if (callTimeout <= 0)
+                return operation.run(connection);
+
+            guarded = new GuardedConnection(connection);
+            guarded.setCallTimeout(callTimeout);
+
+            return operation.run(guarded);
+
+        } catch (RuntimeException e) {
+
+            if (!answeredByServer(e))
+                operation.spoiled = true;
+
+            throw e;
+
+        } finally {
+
+            boolean wasAborted;
+
+            synchronized (inUse) {
+                inUse.remove(connection);
+                wasAborted = aborted.remove(connection) || (null != guarded && guarded.isAborted());
+            }
+
+            if (wasAborted || operation.spoiled)
+                connectionPool.invalidate(connection);
+            else
+                connectionPool.release(connection, operation.bytesMoved);
+        }
+    }
+
+    /**
+     * Whether the call failed because the server turned it down, which leaves the session ready for
+     * the next call. A failure caused by I/O may have left a command or transfer half done, as may
+     * anything other than an FtpException. A local file that couldn't be opened never reached the
+     * session.
+     */
+    private static boolean answeredByServer(RuntimeException failure) {
+
+        if (!(failure instanceof FtpException))
+            return false;
+
+        for (Throwable cause = failure.getCause(); null != cause; cause = cause.getCause()) {
+
+            if (cause instanceof IOException && !(cause instanceof FileNotFoundException))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Resolving before borrowing a session keeps the working directory lookup, which may itself need
+     * a session, from holding two sessions at once.
+     */
+    private String resolve(String path) {
+
+        if (path.startsWith(FILE_SEPARATOR))
+            return path;
+
+        String directory = printWorkingDirectory();
+
+        return directory.endsWith(FILE_SEPARATOR) ? directory + path : directory + FILE_SEPARATOR + path;
+    }
+
+    private abstract static class Operation<T> {
+
+        /**
+         * How much data the call moved, which the pool's concurrency limit judges transfers by.
+         */
+        long bytesMoved;
+
+        /**
+         * Set when the call left its session in a state the next call couldn't use.
+         */
+        boolean spoiled;
+
+        abstract T run(Connection connection);
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            int read = super.read();
+
+            if (read >= 0)
+                count++;
+
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+
+            int read = super.read(bytes, offset, length);
+
+            if (read > 0)
+                count += read;
+
+            return read;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+
+            out.write(b);
+
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+
+            out.write(bytes, offset, length);
+
+            count += length;
+        }
+    }
+}
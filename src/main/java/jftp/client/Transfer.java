@@ -0,0 +1,87 @@
+package jftp.client;
+
+/**
+ * A download or upload waiting in, or run by, a {@link TransferQueue}. Transfers with a higher
+ * priority run first; those with the same priority run in the order they were added.
+ */
+public class Transfer {
+
+    public enum Direction {
+        DOWNLOAD, UPLOAD
+    }
+
+    public enum State {
+        PENDING, IN_FLIGHT, DONE, FAILED
+    }
+
+    private long id;
+    private Direction direction;
+    private String remoteFilePath;
+    private String localFilePath;
+    private int priority;
+
+    private volatile State state = State.PENDING;
+    private volatile boolean interrupted;
+    private volatile RuntimeException failure;
+
+    Transfer(long id, Direction direction, String remoteFilePath, String localFilePath, int priority) {
+
+        this.id = id;
+        this.direction = direction;
+        this.remoteFilePath = remoteFilePath;
+        this.localFilePath = localFilePath;
+        this.priority = priority;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    public String getRemoteFilePath() {
+        return remoteFilePath;
+    }
+
+    public String getLocalFilePath() {
+        return localFilePath;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return
+     * Why the transfer failed, or null if it hasn't. Only known to the queue that ran it.
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return
+     * True if the transfer was in flight when the queue last stopped, so it resumes where it got to.
+     */
+    boolean wasInterrupted() {
+        return interrupted;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    void setInterrupted(boolean interrupted) {
+        this.interrupted = interrupted;
+    }
+
+    void setFailure(RuntimeException failure) {
+        this.failure = failure;
+    }
+}
@@ -0,0 +1,449 @@
+package jftp.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jftp.client.Transfer.Direction;
+import jftp.client.Transfer.State;
+
+/**
+ * An append-only log of what happened to each transfer in a {@link TransferQueue}, replayed to
+ * rebuild the queue after a restart.
+ *
+ * Records are buffered in memory and made durable with group commit: the first caller of
+ * {@link #sync(long)} writes and forces everything buffered so far, and callers arriving meanwhile
+ * wait for the next such write rather than forcing their own. However many threads record
+ * transfers, at most one fsync is running at a time and each covers every record before it.
+ *
+ * A write that fails is cut back off the file, and the journal refuses everything from then on: the
+ * records it lost can't be told apart from ones that were never made.
+ */
+class TransferJournal {
+
+    private static final byte ADDED = 'A';
+    private static final byte STARTED = 'S';
+    private static final byte DONE = 'D';
+    private static final byte FAILED = 'F';
+
+    private static final String COMPACTING_SUFFIX = ".compacting";
+    private static final String BROKEN_MESSAGE = "An earlier write to the journal failed, so it can no longer be used.";
+
+    private final File file;
+    private FileChannel channel;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition syncDone = lock.newCondition();
+
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private DataOutputStream records = new DataOutputStream(buffer);
+
+    private long appendedSequence;
+    private long syncedSequence;
+    private boolean syncing;
+    private int size;
+    private long syncedLength;
+    private IOException failure;
+
+    TransferJournal(File file) throws IOException {
+
+        this.file = file;
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    /**
+     * Replays the journal, dropping any record cut short by a crash.
+     *
+     * @return
+     * The transfers that were not done, in the order they were added, as they last stood.
+     */
+    List<Transfer> recover() throws IOException {
+
+        byte[] contents = Files.readAllBytes(file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+
+        Map<Long, Transfer> transfers = new LinkedHashMap<Long, Transfer>();
+        long complete = 0;
+        int replayed = 0;
+
+        try {
+
+            while (complete < contents.length) {
+
+                replay(in, transfers);
+
+                complete = contents.length - in.available();
+                replayed++;
+            }
+
+        } catch (EOFException e) {
+
+            // The last record was only partly written before the process died.
+        }
+
+        lock.lock();
+
+        try {
+
+            channel.truncate(complete);
+            channel.position(complete);
+
+            syncedLength = complete;
+            size = replayed;
+
+        } finally {
+
+            lock.unlock();
+        }
+
+        return new ArrayList<Transfer>(transfers.values());
+    }
+
+    long added(Transfer transfer) throws IOException {
+
+        lock.lock();
+
+        try {
+
+            checkUsable();
+
+            records.writeByte(ADDED);
+            records.writeLong(transfer.getId());
+            records.writeByte(transfer.getDirection().ordinal());
+            records.writeInt(transfer.getPriority());
+            records.writeUTF(transfer.getRemoteFilePath());
+            records.writeUTF(transfer.getLocalFilePath());
+
+            return appended();
+
+        } finally {
+
+            lock.unlock();
+        }
+    }
+
+    long started(Transfer transfer) throws IOException {
+        return append(STARTED, transfer.getId());
+    }
+
+    long done(Transfer transfer) throws IOException {
+        return append(DONE, transfer.getId());
+    }
+
+    long failed(Transfer transfer) throws IOException {
+        return append(FAILED, transfer.getId());
+    }
+
+    /**
+     * Returns once the record with the given sequence number, and every one before it, is on disk.
+     */
+    void sync(long sequence) throws IOException {
+
+        lock.lock();
+
+        try {
+
+            while (syncedSequence < sequence) {
+
+                if (syncing) {
+                    syncDone.awaitUninterruptibly();
+                    continue;
+                }
+
+                checkUsable();
+
+                writeBuffered();
+            }
+
+        } finally {
+
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return
+     * The number of records in the journal, including those not yet synced.
+     */
+    int size() {
+
+        lock.lock();
+
+        try {
+
+            return size;
+
+        } finally {
+
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the journal with the fewest records that describe the given transfers, then swaps it
+     * in atomically. Records buffered but not synced are dropped, so the transfers given must already
+     * reflect them.
+     */
+    void rewrite(Collection<Transfer> transfers) throws IOException {
+
+        lock.lock();
+
+        try {
+
+            while (syncing)
+                syncDone.awaitUninterruptibly();
+
+            checkUsable();
+
+            File compacting = new File(file.getPath() + COMPACTING_SUFFIX);
+
+            buffer.reset();
+
+            for (Transfer transfer : transfers)
+                describe(transfer);
+
+            FileChannel compacted = new RandomAccessFile(compacting, "rw").getChannel();
+
+            try {
+
+                compacted.truncate(0);
+                write(compacted, buffer.toByteArray());
+                compacted.force(true);
+
+            } finally {
+
+                compacted.close();
+            }
+
+            channel.close();
+
+            Files.move(compacting.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.position(channel.size());
+
+            buffer.reset();
+            syncedLength = channel.size();
+            size = countRecords(transfers);
+            syncedSequence = appendedSequence;
+
+            syncDone.signalAll();
+
+        } finally {
+
+            lock.unlock();
+        }
+    }
+
+    void close() throws IOException {
+
+        lock.lock();
+
+        try {
+
+            while (syncing)
+                syncDone.awaitUninterruptibly();
+
+            if (buffer.size() > 0 && null == failure)
+                writeBuffered();
+
+            channel.close();
+
+        } finally {
+
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes and forces the buffered records with the lock released, so that other threads can keep
+     * buffering records for the next write meanwhile. Must be called holding the lock.
+     */
+    private void writeBuffered() throws IOException {
+
+        byte[] batch = buffer.toByteArray();
+        long batchSequence = appendedSequence;
+
+        buffer.reset();
+        syncing = true;
+
+        lock.unlock();
+
+        boolean written = false;
+        IOException writeFailure = null;
+
+        try {
+
+            write(channel, batch);
+            channel.force(false);
+
+            written = true;
+
+        } catch (IOException e) {
+
+            writeFailure = e;
+
+            throw e;
+
+        } finally {
+
+            lock.lock();
+
+            syncing = false;
+
+            if (written) {
+                syncedSequence = batchSequence;
+                syncedLength += batch.length;
+            } else {
+                fail(writeFailure);
+            }
+
+            syncDone.signalAll();
+        }
+    }
+
+    /**
+     * Cuts off whatever part of the failed batch reached the file, so that the records already synced
+     * can still be recovered, and stops the journal being used again.
+     */
+    private void fail(IOException cause) {
+
+        failure = null == cause ? new IOException(BROKEN_MESSAGE) : cause;
+
+        try {
+
+            channel.truncate(syncedLength);
+
+        } catch (IOException e) {
+
+            // A partly written record is dropped on recovery anyway, as long as nothing follows it.
+        }
+    }
+
+    private void checkUsable() throws IOException {
+
+        if (null != failure)
+            throw new IOException(BROKEN_MESSAGE, failure);
+    }
+
+    private long append(byte type, long id) throws IOException {
+
+        lock.lock();
+
+        try {
+
+            checkUsable();
+
+            records.writeByte(type);
+            records.writeLong(id);
+
+            return appended();
+
+        } finally {
+
+            lock.unlock();
+        }
+    }
+
+    private long appended() {
+
+        size++;
+
+        return ++appendedSequence;
+    }
+
+    private void describe(Transfer transfer) throws IOException {
+
+        added(transfer);
+
+        if (transfer.getState() == State.IN_FLIGHT || transfer.wasInterrupted())
+            started(transfer);
+
+        if (transfer.getState() == State.FAILED)
+            failed(transfer);
+    }
+
+    private int countRecords(Collection<Transfer> transfers) {
+
+        int count = 0;
+
+        for (Transfer transfer : transfers) {
+
+            count++;
+
+            if (transfer.getState() == State.IN_FLIGHT || transfer.wasInterrupted())
+                count++;
+
+            if (transfer.getState() == State.FAILED)
+                count++;
+        }
+
+        return count;
+    }
+
+    private void replay(DataInputStream in, Map<Long, Transfer> transfers) throws IOException {
+
+        byte type = in.readByte();
+
+        // A crash can also leave zeroes or junk where a record was being written.
+        if (type != ADDED && type != STARTED && type != DONE && type != FAILED)
+            throw new EOFException();
+
+        long id = in.readLong();
+
+        if (type == ADDED) {
+
+            int directionOrdinal = in.readByte();
+
+            if (directionOrdinal < 0 || directionOrdinal >= Direction.values().length)
+                throw new EOFException();
+
+            Direction direction = Direction.values()[directionOrdinal];
+            int priority = in.readInt();
+            String remoteFilePath = in.readUTF();
+            String localFilePath = in.readUTF();
+
+            if (!transfers.containsKey(id))
+                transfers.put(id, new Transfer(id, direction, remoteFilePath, localFilePath, priority));
+
+            return;
+        }
+
+        Transfer transfer = transfers.get(id);
+
+        if (null == transfer)
+            return;
+
+        if (type == STARTED)
+            transfer.setState(State.IN_FLIGHT);
+        else if (type == FAILED)
+            transfer.setState(State.FAILED);
+        else if (type == DONE)
+            transfers.remove(id);
+    }
+
+    private static void write(FileChannel channel, byte[] bytes) throws IOException {
+
+        ByteBuffer source = ByteBuffer.wrap(bytes);
+
+        while (source.hasRemaining())
+            channel.write(source);
+    }
+}
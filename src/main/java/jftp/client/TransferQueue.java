@@ -0,0 +1,440 @@
+package jftp.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import jftp.client.Transfer.Direction;
+import jftp.client.Transfer.State;
+import jftp.connection.Connection;
+import jftp.exception.FtpException;
+
+/**
+ * A queue of downloads and uploads that survives the JVM. Every transfer added, started, finished
+ * or failed is recorded in a journal on local disk before the queue moves on, so a queue opened on
+ * the same journal after a crash carries on with what was pending. Transfers that were in flight
+ * resume from where they stopped: downloads from the length of the local file and uploads from the
+ * length of the remote one.
+ *
+ * Any number of threads may run transfers from the same queue, each on its own connection. Their
+ * journal writes are committed together, so running more of them doesn't mean more disk syncs.
+ */
+public class TransferQueue {
+
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 10000;
+
+    private static final String JOURNAL_FAILURE_MESSAGE = "Unable to write to the transfer journal %s";
+    private static final String JOURNAL_OPEN_FAILURE_MESSAGE = "Unable to open the transfer journal %s";
+    private static final String FILE_STREAM_OPEN_FAIL_MESSAGE = "Unable to write to local file %s";
+    private static final String COULD_NOT_FIND_FILE_MESSAGE = "Could not find file: %s";
+    private static final String LOCAL_FILE_FAILURE_MESSAGE = "Unable to transfer local file %s";
+
+    private final String journalFile;
+    private final TransferJournal journal;
+
+    private final PriorityQueue<Transfer> pending = new PriorityQueue<Transfer>(11, new Comparator<Transfer>() {
+
+        @Override
+        public int compare(Transfer first, Transfer second) {
+
+            if (first.getPriority() != second.getPriority())
+                return first.getPriority() > second.getPriority() ? -1 : 1;
+
+            return first.getId() < second.getId() ? -1 : first.getId() == second.getId() ? 0 : 1;
+        }
+    });
+
+    private final Map<Long, Transfer> transfers = new LinkedHashMap<Long, Transfer>();
+
+    private long nextId = 1;
+    private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    /**
+     * Opens the queue recorded in the journal, creating the journal if it doesn't exist yet.
+     */
+    public TransferQueue(String journalFile) throws FtpException {
+
+        this.journalFile = journalFile;
+
+        try {
+
+            journal = new TransferJournal(new File(journalFile));
+
+            for (Transfer transfer : journal.recover())
+                restore(transfer);
+
+            journal.rewrite(transfers.values());
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(JOURNAL_OPEN_FAILURE_MESSAGE, journalFile), e);
+        }
+    }
+
+    /**
+     * How many records the journal may hold before it is rewritten to just the unfinished transfers,
+     * which happens once it also holds over twice as many records as there are unfinished transfers.
+     */
+    public void setCompactionThreshold(int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public Transfer addDownload(String remoteFilePath, String localFilePath, int priority) throws FtpException {
+        return add(Direction.DOWNLOAD, Collections.singletonList(remoteFilePath), Collections.singletonList(localFilePath), priority).get(0);
+    }
+
+    public Transfer addUpload(String localFilePath, String remoteFilePath, int priority) throws FtpException {
+        return add(Direction.UPLOAD, Collections.singletonList(remoteFilePath), Collections.singletonList(localFilePath), priority).get(0);
+    }
+
+    /**
+     * Queues a download of each file into the local directory, with one journal sync for them all.
+     */
+    public List<Transfer> addDownloads(List<String> remoteFilePaths, String localDirectory, int priority) throws FtpException {
+
+        List<String> localFilePaths = new ArrayList<String>();
+
+        for (String remoteFilePath : remoteFilePaths)
+            localFilePaths.add(localDirectory + "/" + new File(remoteFilePath).getName());
+
+        return add(Direction.DOWNLOAD, remoteFilePaths, localFilePaths, priority);
+    }
+
+    /**
+     * Queues an upload of each file into the remote directory, with one journal sync for them all.
+     */
+    public List<Transfer> addUploads(List<String> localFilePaths, String remoteDirectory, int priority) throws FtpException {
+
+        List<String> remoteFilePaths = new ArrayList<String>();
+
+        for (String localFilePath : localFilePaths)
+            remoteFilePaths.add(remoteDirectory + "/" + new File(localFilePath).getName());
+
+        return add(Direction.UPLOAD, remoteFilePaths, localFilePaths, priority);
+    }
+
+    /**
+     * Runs the pending transfer with the highest priority on the given connection. A transfer that
+     * fails is marked as failed rather than throwing, and stays failed when the queue is reopened.
+     *
+     * @return
+     * The transfer that was run, or null if none was pending.
+     */
+    public Transfer runNext(Connection connection) throws FtpException {
+
+        Transfer transfer;
+        long sequence;
+
+        synchronized (this) {
+
+            transfer = pending.poll();
+
+            if (null == transfer)
+                return null;
+
+            transfer.setState(State.IN_FLIGHT);
+
+            sequence = record(transfer, State.IN_FLIGHT);
+        }
+
+        sync(sequence);
+
+        try {
+
+            if (transfer.getDirection() == Direction.DOWNLOAD)
+                download(connection, transfer);
+            else
+                upload(connection, transfer);
+
+            finish(transfer, State.DONE);
+
+        } catch (FtpException e) {
+
+            transfer.setFailure(e);
+
+            finish(transfer, State.FAILED);
+        }
+
+        return transfer;
+    }
+
+    /**
+     * Runs pending transfers on the given connection until there are none left.
+     */
+    public void runAll(Connection connection) throws FtpException {
+
+        while (null != runNext(connection)) {
+            // Each transfer's outcome is on the transfer itself.
+        }
+    }
+
+    public synchronized List<Transfer> getPending() {
+
+        List<Transfer> pendingTransfers = new ArrayList<Transfer>(pending);
+
+        Collections.sort(pendingTransfers, pending.comparator());
+
+        return pendingTransfers;
+    }
+
+    public synchronized List<Transfer> getFailed() {
+
+        List<Transfer> failed = new ArrayList<Transfer>();
+
+        for (Transfer transfer : transfers.values())
+            if (transfer.getState() == State.FAILED)
+                failed.add(transfer);
+
+        return failed;
+    }
+
+    /**
+     * Rewrites the journal to just the transfers that are not done.
+     */
+    public synchronized void compact() throws FtpException {
+
+        try {
+
+            journal.rewrite(transfers.values());
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(JOURNAL_FAILURE_MESSAGE, journalFile), e);
+        }
+    }
+
+    public void close() throws FtpException {
+
+        try {
+
+            journal.close();
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(JOURNAL_FAILURE_MESSAGE, journalFile), e);
+        }
+    }
+
+    private List<Transfer> add(Direction direction, List<String> remoteFilePaths, List<String> localFilePaths, int priority) {
+
+        List<Transfer> added = new ArrayList<Transfer>();
+        long sequence = 0;
+
+        synchronized (this) {
+
+            for (int i = 0; i < remoteFilePaths.size(); i++) {
+
+                Transfer transfer = new Transfer(nextId++, direction, remoteFilePaths.get(i), localFilePaths.get(i), priority);
+
+                sequence = record(transfer, State.PENDING);
+
+                transfers.put(transfer.getId(), transfer);
+                pending.add(transfer);
+                added.add(transfer);
+            }
+        }
+
+        sync(sequence);
+
+        return added;
+    }
+
+    private void restore(Transfer transfer) {
+
+        transfers.put(transfer.getId(), transfer);
+        nextId = Math.max(nextId, transfer.getId() + 1);
+
+        if (transfer.getState() == State.FAILED)
+            return;
+
+        if (transfer.getState() == State.IN_FLIGHT) {
+            transfer.setInterrupted(true);
+            transfer.setState(State.PENDING);
+        }
+
+        pending.add(transfer);
+    }
+
+    private void finish(Transfer transfer, State state) {
+
+        long sequence;
+
+        synchronized (this) {
+
+            transfer.setState(state);
+
+            if (state == State.DONE)
+                transfers.remove(transfer.getId());
+
+            sequence = record(transfer, state);
+        }
+
+        sync(sequence);
+
+        compactIfNeeded();
+    }
+
+    private synchronized void compactIfNeeded() {
+
+        int size = journal.size();
+
+        if (size > compactionThreshold && size > 2 * transfers.size())
+            compact();
+    }
+
+    /**
+     * Buffers the journal record for a change of state. Called holding the queue's lock, so the
+     * journal is never compacted between a change and its record.
+     */
+    private long record(Transfer transfer, State state) {
+
+        try {
+
+            switch (state) {
+            case PENDING:
+                return journal.added(transfer);
+            case IN_FLIGHT:
+                return journal.started(transfer);
+            case DONE:
+                return journal.done(transfer);
+            default:
+                return journal.failed(transfer);
+            }
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(JOURNAL_FAILURE_MESSAGE, journalFile), e);
+        }
+    }
+
+    private void sync(long sequence) {
+
+        try {
+
+            journal.sync(sequence);
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(JOURNAL_FAILURE_MESSAGE, journalFile), e);
+        }
+    }
+
+    private void download(Connection connection, Transfer transfer) {
+
+        File localFile = new File(transfer.getLocalFilePath());
+        long offset = transfer.wasInterrupted() && localFile.exists() ? localFile.length() : 0;
+
+        OutputStream destination;
+
+        try {
+
+            destination = new FileOutputStream(localFile, offset > 0);
+
+        } catch (FileNotFoundException e) {
+
+            throw new FtpException(String.format(FILE_STREAM_OPEN_FAIL_MESSAGE, localFile.getPath()), e);
+        }
+
+        try {
+
+            if (offset > 0)
+                connection.download(transfer.getRemoteFilePath(), destination, offset);
+            else
+                connection.download(transfer.getRemoteFilePath(), destination);
+
+        } finally {
+
+            close(destination, localFile);
+        }
+    }
+
+    private void upload(Connection connection, Transfer transfer) {
+
+        File localFile = new File(transfer.getLocalFilePath());
+        long offset = transfer.wasInterrupted() ? remoteLength(connection, transfer.getRemoteFilePath()) : 0;
+
+        if (offset > localFile.length())
+            offset = 0;
+
+        InputStream source;
+
+        try {
+
+            source = new FileInputStream(localFile);
+
+            skipFully(source, offset);
+
+        } catch (FileNotFoundException e) {
+
+            throw new FtpException(String.format(COULD_NOT_FIND_FILE_MESSAGE, localFile.getPath()), e);
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(LOCAL_FILE_FAILURE_MESSAGE, localFile.getPath()), e);
+        }
+
+        try {
+
+            if (offset > 0)
+                connection.append(source, transfer.getRemoteFilePath());
+            else
+                connection.upload(source, transfer.getRemoteFilePath());
+
+        } finally {
+
+            close(source, localFile);
+        }
+    }
+
+    private long remoteLength(Connection connection, String remoteFilePath) {
+
+        try {
+
+            return connection.stat(remoteFilePath).getSize();
+
+        } catch (FtpException e) {
+
+            // Nothing of the file reached the server, so the upload starts over.
+            return 0;
+        }
+    }
+
+    private void skipFully(InputStream source, long offset) throws IOException {
+
+        long remaining = offset;
+
+        while (remaining > 0) {
+
+            long skipped = source.skip(remaining);
+
+            if (skipped <= 0)
+                throw new IOException("Unable to skip to offset " + offset);
+
+            remaining -= skipped;
+        }
+    }
+
+    private void close(Closeable stream, File localFile) {
+
+        try {
+
+            stream.close();
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(LOCAL_FILE_FAILURE_MESSAGE, localFile.getPath()), e);
+        }
+    }
+}
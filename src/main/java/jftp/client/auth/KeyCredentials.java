@@ -0,0 +1,57 @@
+package jftp.client.auth;
+
+import java.nio.charset.Charset;
+
+/**
+ * Credentials for public key authentication, with the private key either in a file or in memory.
+ * Only SFTP clients use the key; other clients see a user with no password.
+ */
+public class KeyCredentials extends UserCredentials {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private String privateKeyFile;
+    private byte[] privateKey;
+    private byte[] passphrase;
+
+    /**
+     * @param passphrase
+     * The passphrase the key file is encrypted with, or null if it isn't. It is encoded as UTF-8, as
+     * OpenSSH does, whatever the platform's default charset.
+     */
+    public KeyCredentials(String username, String privateKeyFile, String passphrase) {
+
+        super(username, null);
+
+        this.privateKeyFile = privateKeyFile;
+        this.passphrase = null == passphrase ? null : passphrase.getBytes(UTF8);
+    }
+
+    /**
+     * @param privateKey
+     * The contents of a private key file, e.g. in OpenSSH's PEM format.
+     */
+    public KeyCredentials(String username, byte[] privateKey, byte[] passphrase) {
+
+        super(username, null);
+
+        this.privateKey = privateKey.clone();
+        this.passphrase = null == passphrase ? null : passphrase.clone();
+    }
+
+    /**
+     * @return
+     * The path of the private key, or null if the key was given in memory.
+     */
+    public String getPrivateKeyFile() {
+        return privateKeyFile;
+    }
+
+    public byte[] getPrivateKey() {
+        return null == privateKey ? null : privateKey.clone();
+    }
+
+    public byte[] getPassphrase() {
+        return null == passphrase ? null : passphrase.clone();
+    }
+}
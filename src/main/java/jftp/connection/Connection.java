@@ -1,5 +1,8 @@
 package jftp.connection;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import jftp.exception.FtpException;
@@ -7,15 +10,92 @@ import jftp.exception.FtpException;
 
 public interface Connection {
 
+	/**
+	 * Reads the stream to its end onto the end of the remote file, creating it if need be and leaving
+	 * the stream open. Used to finish an upload from where the remote file stops.
+	 */
+	void append(InputStream source, String remoteFilePath) throws FtpException;
+
+	/**
+	 * Stops the call in progress from another thread, failing it with an FtpException. Unlike a
+	 * polite ABOR this works on a server that has stopped answering, but the connection can't be used
+	 * afterwards.
+	 */
+	void abort();
+
 	void changeDirectory(String directory) throws FtpException;
 
+	void delete(String remoteFilePath) throws FtpException;
+
 	void download(String remoteFilePath, String localDirectory) throws FtpException;
+
+	/**
+	 * Writes the remote file to the given stream, which is left open.
+	 */
+	void download(String remoteFilePath, OutputStream destination) throws FtpException;
+
+	/**
+	 * Writes the remote file from the given offset onwards to the stream, which is left open. Used to
+	 * finish a download that was interrupted after offset bytes.
+	 */
+	void download(String remoteFilePath, OutputStream destination, long offset) throws FtpException;
+
+	/**
+	 * Reads the remote file into the buffer, from its position onwards, leaving the position after
+	 * the last byte read. Suits direct and memory mapped buffers sized from {@link #stat}. Throws if
+	 * the file is larger than the space left in the buffer.
+	 */
+	void download(String remoteFilePath, ByteBuffer destination) throws FtpException;
+
+	/**
+	 * Reads the remote file into a new direct buffer sized from {@link #stat}, flipped ready to be read
+	 * from. Throws if the file grows past that size meanwhile, or is too large for a buffer.
+	 */
+	ByteBuffer download(String remoteFilePath) throws FtpException;
+
+	/**
+	 * Makes a cheap round trip to the server so an idle connection isn't dropped, throwing if the
+	 * connection turns out to be dead.
+	 */
+	void keepAlive() throws FtpException;
 	
 	List<FtpFile> listFiles() throws FtpException;
 
 	List<FtpFile> listFiles(String path) throws FtpException;
+
+	/**
+	 * Lists only the entries the filter accepts, checking each as the listing is parsed.
+	 */
+	List<FtpFile> listFiles(String path, FtpFileFilter filter) throws FtpException;
+
+	/**
+	 * Creates the directory along with any missing parent directories, succeeding if it already exists.
+	 */
+	void makeDirectories(String remoteDirectory) throws FtpException;
 	
 	String printWorkingDirectory() throws FtpException;
 
+	/**
+	 * Removes a directory, which must already be empty.
+	 */
+	void removeDirectory(String remoteDirectory) throws FtpException;
+
+	void rename(String fromRemotePath, String toRemotePath) throws FtpException;
+
+	FtpFile stat(String remotePath) throws FtpException;
+
 	void upload(String localFilePath, String remoteDirectory) throws FtpException;
+
+	/**
+	 * Reads the stream to its end into the remote file, leaving the stream open.
+	 */
+	void upload(InputStream source, String remoteFilePath) throws FtpException;
+
+	/**
+	 * Reads the stream to its end into the remote file from the given offset onwards, creating the
+	 * file if need be and leaving the stream open. Used to upload one file in segments over several
+	 * connections at once. At offset zero FTP servers truncate the file as for a plain upload, and
+	 * some truncate at any offset; SFTP never does.
+	 */
+	void upload(InputStream source, String remoteFilePath, long offset) throws FtpException;
 }
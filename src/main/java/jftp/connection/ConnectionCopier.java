@@ -0,0 +1,135 @@
+package jftp.connection;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jftp.exception.FtpException;
+import jftp.util.RingBufferPipe;
+
+/**
+ * Copies a file from one connection to another, whatever their protocols, without staging it on
+ * local disk. The download from the source and the upload to the target run at the same time,
+ * joined by a small ring of reusable buffers, so a copy runs at roughly the speed of the slower of
+ * the two and uses the same memory whatever the file size.
+ *
+ * The source and target must be different connections, as each is busy for the whole copy.
+ */
+public class ConnectionCopier {
+
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+    private static final int DEFAULT_BUFFER_COUNT = 8;
+
+    private static final String COPY_FAILURE_MESSAGE = "Unable to copy %s to %s";
+
+    private ExecutorService executor;
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int bufferCount = DEFAULT_BUFFER_COUNT;
+
+    public ConnectionCopier() {
+        this(Executors.newCachedThreadPool());
+    }
+
+    public ConnectionCopier(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public void setBufferCount(int bufferCount) {
+        this.bufferCount = bufferCount;
+    }
+
+    public void copy(final Connection source, final String sourcePath, Connection target, String targetPath) throws FtpException {
+
+        final RingBufferPipe pipe = new RingBufferPipe(bufferSize, bufferCount);
+        final AtomicReference<RuntimeException> downloadFailure = new AtomicReference<RuntimeException>();
+
+        Future<Void> download = executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws IOException {
+
+                try {
+
+                    source.download(sourcePath, pipe.getOutputStream());
+
+                } catch (RuntimeException e) {
+
+                    downloadFailure.set(e);
+                    pipe.abort();
+
+                    throw e;
+                }
+
+                pipe.getOutputStream().close();
+
+                return null;
+            }
+        });
+
+        try {
+
+            target.upload(pipe.getInputStream(), targetPath);
+
+        } catch (RuntimeException e) {
+
+            pipe.abort();
+
+            awaitQuietly(download);
+
+            // A failed download aborts the pipe under the upload, so the download's failure is the real one.
+            throw null == downloadFailure.get() ? e : downloadFailure.get();
+        }
+
+        await(download, sourcePath, targetPath);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void await(Future<Void> download, String sourcePath, String targetPath) {
+
+        try {
+
+            download.get();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+            throw new FtpException(String.format(COPY_FAILURE_MESSAGE, sourcePath, targetPath), e);
+
+        } catch (ExecutionException e) {
+
+            if (e.getCause() instanceof FtpException)
+                throw (FtpException) e.getCause();
+
+            throw new FtpException(String.format(COPY_FAILURE_MESSAGE, sourcePath, targetPath), e);
+        }
+    }
+
+    private void awaitQuietly(Future<Void> download) {
+
+        try {
+
+            download.get();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+        } catch (ExecutionException e) {
+
+            // Any download failure has already been recorded before the pipe was aborted.
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package jftp.connection;
+
+/**
+ * An FTP client that can close the data connection of a transfer running on another thread. A
+ * transfer Commons Net copies itself only notices its connection is gone once the data socket is
+ * closed, so this is what lets {@link FtpConnection#abort()} stop it.
+ */
+public interface DataConnectionCloser {
+
+    /**
+     * Closes the data connection of the transfer or listing running now, if there is one.
+     */
+    void closeDataConnection();
+}
@@ -0,0 +1,348 @@
+package jftp.connection;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jftp.exception.FtpException;
+
+/**
+ * Brings a local copy of a large remote file up to date by only downloading the blocks that changed.
+ *
+ * The server digests each block of its file with stock tools over an exec channel (see
+ * {@link SftpConnection#blockDigests}) and every block of the local copy is digested the same way.
+ * Remote blocks found anywhere in the local copy at a block boundary are copied locally; runs of the
+ * rest are fetched with ranged reads, and the result replaces the local copy in one move. Unlike
+ * rsync, the server can't compute rolling checksums, so data shifted by other than whole blocks is
+ * downloaded again. If the remote file changed while this ran, which shows as a different size or
+ * modification time or as a result that doesn't match the digests, the whole file is downloaded.
+ *
+ * If the server can't digest the file, the whole file is downloaded, unless the file is known to
+ * only ever grow, in which case the local copy's last block is checked with a ranged read and only
+ * what follows it is fetched.
+ */
+public class DeltaSync {
+
+    private static final int DEFAULT_BLOCK_SIZE = 1048576;
+    private static final String PARTIAL_SUFFIX = ".delta";
+    private static final String SYNC_FAILURE_MESSAGE = "Unable to update %s from %s";
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private boolean appendOnly;
+
+    /**
+     * The size of the blocks compared, which is the least that is downloaded for any change. Defaults
+     * to 1 MiB.
+     */
+    public void setBlockSize(int blockSize) {
+
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Block size must be at least 1.");
+
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Whether remote files only ever have data added to their end, like logs, which lets a server
+     * that can't digest files still be synced incrementally. Off by default.
+     */
+    public void setAppendOnly(boolean appendOnly) {
+        this.appendOnly = appendOnly;
+    }
+
+    /**
+     * @return
+     * How many bytes were read from the server.
+     */
+    public long download(SftpConnection connection, String remoteFilePath, String localFilePath) throws FtpException {
+
+        File localFile = new File(localFilePath);
+        FtpFile remoteFile = connection.stat(remoteFilePath);
+        long remoteSize = remoteFile.getSize();
+
+        try {
+
+            if (!localFile.isFile())
+                return replace(connection, remoteFilePath, localFile, remoteSize);
+
+            List<String> remoteDigests = remoteDigests(connection, remoteFilePath);
+
+            if (null != remoteDigests && remoteDigests.size() == blockCount(remoteSize))
+                return patch(connection, remoteFilePath, remoteFile, localFile, remoteDigests);
+
+            if (appendOnly && localFile.length() < remoteSize && tailMatches(connection, remoteFilePath, localFile))
+                return Math.min(blockSize, localFile.length()) + append(connection, remoteFilePath, localFile, remoteSize);
+
+            return replace(connection, remoteFilePath, localFile, remoteSize);
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(SYNC_FAILURE_MESSAGE, localFilePath, remoteFilePath), e);
+
+        } finally {
+
+            // Only left behind if something failed before it was moved over the local copy.
+            partialFileFor(localFile).delete();
+        }
+    }
+
+    private List<String> remoteDigests(SftpConnection connection, String remoteFilePath) {
+
+        try {
+
+            return connection.blockDigests(remoteFilePath, blockSize);
+
+        } catch (FtpException e) {
+
+            return null;
+        }
+    }
+
+    /**
+     * Writes the new file block by block from local blocks where it can and remote reads where it
+     * can't, then moves it over the local copy once it checks out against the remote file.
+     */
+    private long patch(SftpConnection connection, String remoteFilePath, FtpFile remoteFile, File localFile, List<String> remoteDigests)
+            throws IOException {
+
+        long remoteSize = remoteFile.getSize();
+
+        Map<String, Long> localBlocks = localBlockOffsets(localFile);
+
+        File partialFile = partialFileFor(localFile);
+        RandomAccessFile local = new RandomAccessFile(localFile, "r");
+        OutputStream patched = new BufferedOutputStream(new FileOutputStream(partialFile), blockSize);
+
+        long fetched = 0;
+
+        try {
+
+            byte[] block = new byte[blockSize];
+
+            for (int index = 0; index < remoteDigests.size(); ) {
+
+                Long localOffset = localBlocks.get(remoteDigests.get(index));
+
+                if (null != localOffset) {
+
+                    int length = blockLength(index, remoteSize);
+
+                    local.seek(localOffset);
+                    local.readFully(block, 0, length);
+                    patched.write(block, 0, length);
+
+                    index++;
+                    continue;
+                }
+
+                int end = index + 1;
+
+                while (end < remoteDigests.size() && !localBlocks.containsKey(remoteDigests.get(end)))
+                    end++;
+
+                long offset = (long) index * blockSize;
+                long length = Math.min(remoteSize, (long) end * blockSize) - offset;
+
+                connection.downloadRange(remoteFilePath, patched, offset, length);
+
+                fetched += length;
+                index = end;
+            }
+
+        } finally {
+
+            patched.close();
+            local.close();
+        }
+
+        if (!unchanged(connection, remoteFilePath, remoteFile) || !blockDigests(partialFile).equals(remoteDigests)) {
+
+            partialFile.delete();
+
+            return fetched + replace(connection, remoteFilePath, localFile, connection.stat(remoteFilePath).getSize());
+        }
+
+        moveInto(partialFile, localFile);
+
+        return fetched;
+    }
+
+    private boolean unchanged(SftpConnection connection, String remoteFilePath, FtpFile remoteFile) {
+
+        FtpFile now = connection.stat(remoteFilePath);
+
+        return now.getSize() == remoteFile.getSize() && now.getLastModified().equals(remoteFile.getLastModified());
+    }
+
+    private boolean tailMatches(SftpConnection connection, String remoteFilePath, File localFile) throws IOException {
+
+        long localLength = localFile.length();
+        int length = (int) Math.min(blockSize, localLength);
+
+        byte[] localTail = new byte[length];
+
+        RandomAccessFile local = new RandomAccessFile(localFile, "r");
+
+        try {
+
+            local.seek(localLength - length);
+            local.readFully(localTail);
+
+        } finally {
+
+            local.close();
+        }
+
+        ByteArrayOutputStream remoteTail = new ByteArrayOutputStream(length);
+
+        connection.downloadRange(remoteFilePath, remoteTail, localLength - length, length);
+
+        return Arrays.equals(localTail, remoteTail.toByteArray());
+    }
+
+    private long append(SftpConnection connection, String remoteFilePath, File localFile, long remoteSize) throws IOException {
+
+        long localLength = localFile.length();
+
+        OutputStream local = new BufferedOutputStream(new FileOutputStream(localFile, true), blockSize);
+
+        try {
+
+            connection.downloadRange(remoteFilePath, local, localLength, remoteSize - localLength);
+
+        } finally {
+
+            local.close();
+        }
+
+        return remoteSize - localLength;
+    }
+
+    private long replace(SftpConnection connection, String remoteFilePath, File localFile, long remoteSize) throws IOException {
+
+        File partialFile = partialFileFor(localFile);
+        OutputStream partial = new BufferedOutputStream(new FileOutputStream(partialFile), blockSize);
+
+        try {
+
+            connection.download(remoteFilePath, partial);
+
+        } finally {
+
+            partial.close();
+        }
+
+        moveInto(partialFile, localFile);
+
+        return remoteSize;
+    }
+
+    /**
+     * @return
+     * The offset of the first local block with each digest.
+     */
+    private Map<String, Long> localBlockOffsets(File localFile) throws IOException {
+
+        Map<String, Long> offsets = new HashMap<String, Long>();
+
+        List<String> digests = blockDigests(localFile);
+
+        for (int index = 0; index < digests.size(); index++)
+            if (!offsets.containsKey(digests.get(index)))
+                offsets.put(digests.get(index), (long) index * blockSize);
+
+        return offsets;
+    }
+
+    private List<String> blockDigests(File file) throws IOException {
+
+        List<String> digests = new ArrayList<String>();
+
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+
+        InputStream in = new FileInputStream(file);
+
+        try {
+
+            int length;
+
+            while ((length = readBlock(in, block)) > 0) {
+
+                md5.update(block, 0, length);
+
+                digests.add(toHex(md5.digest()));
+            }
+
+        } finally {
+
+            in.close();
+        }
+
+        return digests;
+    }
+
+    private int readBlock(InputStream in, byte[] block) throws IOException {
+
+        int filled = 0;
+        int read;
+
+        while (filled < block.length && (read = in.read(block, filled, block.length - filled)) >= 0)
+            filled += read;
+
+        return filled;
+    }
+
+    private long blockCount(long size) {
+        return (size + blockSize - 1) / blockSize;
+    }
+
+    private int blockLength(int index, long size) {
+        return (int) Math.min(blockSize, size - (long) index * blockSize);
+    }
+
+    private File partialFileFor(File localFile) {
+        return new File(localFile.getPath() + PARTIAL_SUFFIX);
+    }
+
+    private void moveInto(File partialFile, File localFile) throws IOException {
+        Files.move(partialFile.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static MessageDigest md5() {
+
+        try {
+
+            return MessageDigest.getInstance("MD5");
+
+        } catch (NoSuchAlgorithmException e) {
+
+            throw new IllegalStateException("Every JVM has MD5.", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte each : bytes)
+            hex.append(Character.forDigit((each >> 4) & 0xf, 16)).append(Character.forDigit(each & 0xf, 16));
+
+        return hex.toString();
+    }
+}
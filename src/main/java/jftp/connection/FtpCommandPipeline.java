@@ -0,0 +1,164 @@
+package jftp.connection;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+/**
+ * Sends control-channel commands in windows without waiting for each reply, then reads the
+ * replies back in the order the commands were sent. Whether the server copes with pipelined
+ * input is probed once, and servers that don't are sent one command at a time instead.
+ */
+class FtpCommandPipeline {
+
+    private static final String NOOP = "NOOP";
+    private static final String PWD = "PWD";
+    private static final String LINE_SEPARATOR = "\r\n";
+
+    private static final int DEFAULT_WINDOW_SIZE = 32;
+    private static final int PROBE_TIMEOUT = 5000;
+    private static final int PROBE_REPLIES = 2;
+
+    private static final String OUT_OF_STEP_MESSAGE = "The server's replies fell out of step with the commands sent to it.";
+
+    private FTPClient client;
+
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private boolean enabled = true;
+    private Boolean supportedByServer;
+
+    FtpCommandPipeline(FTPClient client) {
+        this.client = client;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void setWindowSize(int windowSize) {
+
+        if (windowSize < 1)
+            throw new IllegalArgumentException("Window size must be at least 1.");
+
+        this.windowSize = windowSize;
+    }
+
+    boolean isPipelining() throws IOException {
+
+        if (!enabled)
+            return false;
+
+        if (null == supportedByServer)
+            supportedByServer = probeServer();
+
+        return supportedByServer;
+    }
+
+    List<FtpReply> execute(List<String> commands) throws IOException {
+
+        List<FtpReply> replies = new ArrayList<FtpReply>(commands.size());
+
+        if (!isPipelining()) {
+
+            for (String command : commands)
+                replies.add(sendAndRead(command));
+
+            return replies;
+        }
+
+        for (int start = 0; start < commands.size(); start += windowSize) {
+
+            List<String> window = commands.subList(start, Math.min(start + windowSize, commands.size()));
+
+            replies.add(sendAndRead(join(window)));
+
+            for (int i = 1; i < window.size(); i++)
+                replies.add(readReply());
+        }
+
+        return replies;
+    }
+
+    private boolean probeServer() throws IOException {
+
+        int originalTimeout = client.getSoTimeout();
+
+        client.setSoTimeout(PROBE_TIMEOUT);
+
+        try {
+
+            client.sendCommand(NOOP + LINE_SEPARATOR + NOOP);
+            client.getReply();
+
+            return true;
+
+        } catch (SocketTimeoutException e) {
+
+            resynchronize();
+
+            return false;
+
+        } finally {
+
+            client.setSoTimeout(originalTimeout);
+        }
+    }
+
+    /**
+     * Replies to the probe may still turn up after it timed out, so they are read and dropped until
+     * the reply to a PWD arrives. A connection that can't be brought back into step is closed.
+     */
+    private void resynchronize() throws IOException {
+
+        try {
+
+            int code = client.sendCommand(PWD);
+
+            for (int stray = 0; FTPReply.PATHNAME_CREATED != code && stray < PROBE_REPLIES; stray++)
+                code = client.getReply();
+
+            if (FTPReply.PATHNAME_CREATED == code)
+                return;
+
+        } catch (SocketTimeoutException e) {
+            // Still out of step; fall through to closing the connection.
+        }
+
+        client.disconnect();
+
+        throw new IOException(OUT_OF_STEP_MESSAGE);
+    }
+
+    private FtpReply sendAndRead(String command) throws IOException {
+
+        int code = client.sendCommand(command);
+
+        return new FtpReply(code, client.getReplyString());
+    }
+
+    private FtpReply readReply() throws IOException {
+
+        int code = client.getReply();
+
+        return new FtpReply(code, client.getReplyString());
+    }
+
+    private String join(List<String> commands) {
+
+        StringBuilder builder = new StringBuilder();
+
+        for (String command : commands) {
+
+            if (builder.length() > 0)
+                builder.append(LINE_SEPARATOR);
+
+            builder.append(command);
+        }
+
+        return builder.toString();
+    }
+}
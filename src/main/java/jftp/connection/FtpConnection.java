@@ -1,19 +1,30 @@
 package jftp.connection;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import jftp.exception.FtpException;
+import jftp.util.BufferPool;
+import jftp.util.ByteBufferOutputStream;
 import jftp.util.FileStreamFactory;
 
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPFileFilter;
+import org.apache.commons.net.io.CopyStreamException;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 
 public class FtpConnection implements Connection {
 
@@ -23,14 +34,91 @@ public class FtpConnection implements Connection {
     private static final String FILE_LISTING_ERROR_MESSAGE = "Unable to list files in directory %s";
     private static final String NO_SUCH_DIRECTORY_MESSAGE = "The directory %s doesn't exist on the remote server.";
     private static final String UNABLE_TO_CD_MESSAGE = "Remote server was unable to change directory.";
+    private static final String DELETE_FAILURE_MESSAGE = "Unable to delete %s";
+    private static final String REMOVE_DIRECTORY_FAILURE_MESSAGE = "Unable to remove directory %s";
+    private static final String RENAME_FAILURE_MESSAGE = "Unable to rename %s to %s";
+    private static final String MAKE_DIRECTORIES_FAILURE_MESSAGE = "Unable to create directory %s";
+    private static final String STAT_FAILURE_MESSAGE = "Unable to find %s";
+    private static final String KEEP_ALIVE_FAILURE_MESSAGE = "The server did not answer the keep-alive.";
+    private static final String BATCH_COMMAND_ERROR_MESSAGE = "Unable to complete batch of %s commands";
+    private static final String BATCH_DELETE_FAILURE_MESSAGE = "Unable to delete files: %s";
+    private static final String BATCH_RENAME_FAILURE_MESSAGE = "Unable to rename files: %s";
+    private static final String INVALID_MODIFICATION_TIME_MESSAGE = "The server sent an invalid modification time: %s";
+    private static final String BUFFER_TOO_SMALL_MESSAGE = "The file %s is %d bytes, more than the %d left in the buffer.";
+    private static final String TOO_LARGE_FOR_BUFFER_MESSAGE = "The file %s is %d bytes, too large for a buffer.";
+
+    private static final String SIZE = "SIZE";
+    private static final String MDTM = "MDTM";
+    private static final String DELE = "DELE";
+    private static final String RNFR = "RNFR";
+    private static final String RNTO = "RNTO";
+
+    private static final int MDTM_TIMESTAMP_LENGTH = 14;
+    private static final DateTimeFormatter MDTM_FORMAT = DateTimeFormat.forPattern("yyyyMMddHHmmss").withZoneUTC();
 
     private static final String FILE_SEPARATOR = "/";
 
     private FTPClient client;
     private FileStreamFactory fileStreamFactory = new FileStreamFactory();
+    private FtpCommandPipeline commandPipeline;
+
+    private boolean serverSideGlobbing;
+    private BufferPool bufferPool;
+    private volatile Closeable dataStream;
 
     public FtpConnection(FTPClient client) {
         this.client = client;
+        this.commandPipeline = new FtpCommandPipeline(client);
+    }
+
+    @Override
+    public void append(InputStream source, String remoteFilePath) throws FtpException {
+
+        try {
+
+            ensureFileHasSuccessfullyUploaded(store(remoteFilePath, source, true));
+
+        } catch (IOException e) {
+
+            throw new FtpException("Upload may not have completed.", e);
+        }
+    }
+
+    /**
+     * Closes the control connection and the data connection of a running transfer or listing, if
+     * there is one. ABOR isn't sent: a hung server wouldn't answer it, and Commons Net can't wait on a
+     * reply while another thread waits on the same connection. The data connection of a transfer
+     * Commons Net copies itself can only be closed when the client is a {@link DataConnectionCloser},
+     * as the ones the FTP and FTPS clients create are; with any other client it only stops once the
+     * server drops it or the client's data timeout passes.
+     */
+    @Override
+    public void abort() {
+
+        // The control connection goes first, so the transfer doesn't then wait on its reply.
+        try {
+
+            client.disconnect();
+
+        } catch (IOException e) {
+
+            // The data connection is closed regardless.
+        }
+
+        Closeable stream = dataStream;
+
+        try {
+
+            if (null != stream)
+                stream.close();
+
+        } catch (IOException e) {
+
+            // Nothing more can be done with a stream that won't close.
+        }
+
+        if (client instanceof DataConnectionCloser)
+            ((DataConnectionCloser) client).closeDataConnection();
     }
 
     @Override
@@ -49,6 +137,20 @@ public class FtpConnection implements Connection {
         }
     }
 
+    @Override
+    public void delete(String remoteFilePath) throws FtpException {
+
+        try {
+
+            if (!client.deleteFile(remoteFilePath))
+                throw new FtpException(String.format(DELETE_FAILURE_MESSAGE, remoteFilePath));
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(DELETE_FAILURE_MESSAGE, remoteFilePath), e);
+        }
+    }
+
     @Override
     public void download(String remoteFilePath, String localDirectory) throws FtpException {
 
@@ -58,7 +160,7 @@ public class FtpConnection implements Connection {
 
             OutputStream outputStream = fileStreamFactory.createOutputStream(localDestination);
 
-            boolean hasDownloaded = client.retrieveFile(remoteFilePath, outputStream);
+            boolean hasDownloaded = retrieve(remoteFilePath, outputStream);
 
             outputStream.close();
 
@@ -74,6 +176,77 @@ public class FtpConnection implements Connection {
         }
     }
 
+    @Override
+    public void download(String remoteFilePath, OutputStream destination) throws FtpException {
+
+        try {
+
+            ensureFileHasSuccessfullyDownloaded(retrieve(remoteFilePath, destination));
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(FILE_DOWNLOAD_FAILURE_MESSAGE, remoteFilePath), e);
+        }
+    }
+
+    /**
+     * Checks the file fits before sending RETR, as Commons Net doesn't read the reply to a transfer
+     * that fails partway. A file that grows past the buffer meanwhile still fails, after the reply is
+     * read.
+     */
+    @Override
+    public void download(String remoteFilePath, ByteBuffer destination) throws FtpException {
+
+        long size = stat(remoteFilePath).getSize();
+
+        if (size > destination.remaining())
+            throw new FtpException(String.format(BUFFER_TOO_SMALL_MESSAGE, remoteFilePath, size, destination.remaining()));
+
+        download(remoteFilePath, new ByteBufferOutputStream(destination));
+    }
+
+    @Override
+    public ByteBuffer download(String remoteFilePath) throws FtpException {
+
+        long size = stat(remoteFilePath).getSize();
+
+        if (size > Integer.MAX_VALUE)
+            throw new FtpException(String.format(TOO_LARGE_FOR_BUFFER_MESSAGE, remoteFilePath, size));
+
+        ByteBuffer destination = ByteBuffer.allocateDirect((int) size);
+
+        download(remoteFilePath, new ByteBufferOutputStream(destination));
+
+        destination.flip();
+
+        return destination;
+    }
+
+    /**
+     * Sends REST before RETR. Commons Net clears the offset once the transfer has started.
+     */
+    @Override
+    public void download(String remoteFilePath, OutputStream destination, long offset) throws FtpException {
+
+        client.setRestartOffset(offset);
+
+        download(remoteFilePath, destination);
+    }
+
+    @Override
+    public void keepAlive() throws FtpException {
+
+        try {
+
+            if (!client.sendNoOp())
+                throw new FtpException(KEEP_ALIVE_FAILURE_MESSAGE);
+
+        } catch (IOException e) {
+
+            throw new FtpException(KEEP_ALIVE_FAILURE_MESSAGE, e);
+        }
+    }
+
     @Override
     public List<FtpFile> listFiles() throws FtpException {
 
@@ -82,6 +255,11 @@ public class FtpConnection implements Connection {
 
     @Override
     public List<FtpFile> listFiles(String remotePath) throws FtpException {
+        return listFiles(remotePath, FtpFileFilter.ANY);
+    }
+
+    @Override
+    public List<FtpFile> listFiles(String remotePath, FtpFileFilter filter) throws FtpException {
 
         List<FtpFile> files = new ArrayList<FtpFile>();
 
@@ -91,14 +269,23 @@ public class FtpConnection implements Connection {
 
             changeDirectory(remotePath);
 
-            String newWorkingDirectory = printWorkingDirectory();
+            // A failed listing mustn't leave later relative paths resolving against the listed directory.
+            try {
+
+                String newWorkingDirectory = printWorkingDirectory();
+
+                String listingPath = listingPath(newWorkingDirectory, filter);
 
-            FTPFile[] ftpFiles = client.listFiles(newWorkingDirectory);
+                FTPFile[] ftpFiles = FtpFileFilter.ANY == filter ? client.listFiles(newWorkingDirectory)
+                        : client.listFiles(listingPath, listingPath.equals(newWorkingDirectory) ? adapt(filter) : adaptGlobbed(filter));
 
-            for (FTPFile file : ftpFiles)
-                files.add(toFtpFile(file, newWorkingDirectory));
+                for (FTPFile file : ftpFiles)
+                    files.add(toFtpFile(file, newWorkingDirectory));
 
-            changeDirectory(originalWorkingDirectory);
+            } finally {
+
+                changeDirectory(originalWorkingDirectory);
+            }
 
         } catch (IOException e) {
 
@@ -108,6 +295,32 @@ public class FtpConnection implements Connection {
         return files;
     }
 
+    @Override
+    public void makeDirectories(String remoteDirectory) throws FtpException {
+
+        try {
+
+            String path = remoteDirectory.startsWith(FILE_SEPARATOR) ? FILE_SEPARATOR : "";
+
+            for (String segment : remoteDirectory.split(FILE_SEPARATOR)) {
+
+                if (segment.isEmpty())
+                    continue;
+
+                path = path.isEmpty() || path.endsWith(FILE_SEPARATOR) ? path + segment : path + FILE_SEPARATOR + segment;
+
+                client.makeDirectory(path);
+            }
+
+            if (!isDirectory(remoteDirectory))
+                throw new FtpException(String.format(MAKE_DIRECTORIES_FAILURE_MESSAGE, remoteDirectory));
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(MAKE_DIRECTORIES_FAILURE_MESSAGE, remoteDirectory), e);
+        }
+    }
+
     @Override
     public String printWorkingDirectory() throws FtpException {
 
@@ -121,6 +334,67 @@ public class FtpConnection implements Connection {
         }
     }
 
+    @Override
+    public void removeDirectory(String remoteDirectory) throws FtpException {
+
+        try {
+
+            if (!client.removeDirectory(remoteDirectory))
+                throw new FtpException(String.format(REMOVE_DIRECTORY_FAILURE_MESSAGE, remoteDirectory));
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(REMOVE_DIRECTORY_FAILURE_MESSAGE, remoteDirectory), e);
+        }
+    }
+
+    @Override
+    public void rename(String fromRemotePath, String toRemotePath) throws FtpException {
+
+        try {
+
+            if (!client.rename(fromRemotePath, toRemotePath))
+                throw new FtpException(String.format(RENAME_FAILURE_MESSAGE, fromRemotePath, toRemotePath));
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(RENAME_FAILURE_MESSAGE, fromRemotePath, toRemotePath), e);
+        }
+    }
+
+    /**
+     * Uses MLST where the server supports it. Otherwise falls back to listing the path, which most servers
+     * answer with the single entry for a file, and finally to checking whether the path is a directory.
+     */
+    @Override
+    public FtpFile stat(String remotePath) throws FtpException {
+
+        try {
+
+            FTPFile file = client.mlistFile(remotePath);
+
+            if (null == file) {
+
+                FTPFile[] listing = client.listFiles(remotePath);
+
+                if (listing.length == 1 && !listing[0].isDirectory() && remotePath.endsWith(listing[0].getName()))
+                    file = listing[0];
+            }
+
+            if (null != file)
+                return toFtpFileAtPath(file, remotePath);
+
+            if (isDirectory(remotePath))
+                return new FtpFile(nameOf(remotePath), 0, remotePath, 0, true);
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(STAT_FAILURE_MESSAGE, remotePath), e);
+        }
+
+        throw new FtpException(String.format(STAT_FAILURE_MESSAGE, remotePath));
+    }
+
     @Override
     public void upload(String localFilePath, String remoteDirectory) throws FtpException {
 
@@ -128,7 +402,7 @@ public class FtpConnection implements Connection {
 
             InputStream localFileInputStream = fileStreamFactory.createInputStream(localFilePath);
 
-            boolean hasUploaded = client.storeFile(determinePath(localFilePath, remoteDirectory), localFileInputStream);
+            boolean hasUploaded = store(determinePath(localFilePath, remoteDirectory), localFileInputStream, false);
 
             localFileInputStream.close();
 
@@ -143,6 +417,225 @@ public class FtpConnection implements Connection {
         }
     }
 
+    @Override
+    public void upload(InputStream source, String remoteFilePath) throws FtpException {
+
+        try {
+
+            ensureFileHasSuccessfullyUploaded(store(remoteFilePath, source, false));
+
+        } catch (IOException e) {
+
+            throw new FtpException("Upload may not have completed.", e);
+        }
+    }
+
+    /**
+     * Sends REST before STOR, which most servers honour by writing from the offset without
+     * truncating. Commons Net clears the offset once the transfer has started.
+     */
+    @Override
+    public void upload(InputStream source, String remoteFilePath, long offset) throws FtpException {
+
+        client.setRestartOffset(offset);
+
+        upload(source, remoteFilePath);
+    }
+
+    /**
+     * Copies transfers through buffers from the pool rather than through the ones Commons Net
+     * allocates for each transfer. Commons Net only sends control connection keep alives from its own
+     * copies, so none are sent during pooled transfers; leave this unset for transfers that may take
+     * longer than a firewall lets an idle control connection live.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * When enabled, a filtered listing whose filter has a glob sends it with LIST so that servers
+     * which expand wildcards only send back the matching entries. The filter is still checked
+     * afterwards. Off by default, as some servers treat the glob as a literal name.
+     *
+     * Like ls, such servers list the contents of any directory the glob matches. Those entries are
+     * dropped when they come after the matching files under a header of their own, but a glob that
+     * matches nothing but directories can't be told apart from a listing of them, so only use globs
+     * that can't match a directory's name.
+     */
+    public void setServerSideGlobbing(boolean serverSideGlobbing) {
+        this.serverSideGlobbing = serverSideGlobbing;
+    }
+
+    /**
+     * Pipelining sends batched metadata commands without waiting on each reply. It is on by default
+     * and only used once the server has been seen to accept it; switch it off to force one round
+     * trip per command.
+     */
+    public void setCommandPipelining(boolean enabled) {
+        commandPipeline.setEnabled(enabled);
+    }
+
+    public void setCommandPipelineWindow(int windowSize) {
+        commandPipeline.setWindowSize(windowSize);
+    }
+
+    /**
+     * @return
+     * The size of each remote file keyed by path. Files the server couldn't report on are left out.
+     */
+    public Map<String, Long> getFileSizes(List<String> remoteFilePaths) throws FtpException {
+
+        List<FtpReply> replies = executeBatch(SIZE, withCommand(SIZE, remoteFilePaths));
+
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+
+        for (int i = 0; i < remoteFilePaths.size(); i++) {
+
+            FtpReply reply = replies.get(i);
+
+            if (reply.isPositiveCompletion())
+                sizes.put(remoteFilePaths.get(i), Long.parseLong(reply.getArgument()));
+        }
+
+        return sizes;
+    }
+
+    /**
+     * @return
+     * The last modified time of each remote file keyed by path. Files the server couldn't report
+     * on are left out.
+     */
+    public Map<String, DateTime> getModificationTimes(List<String> remoteFilePaths) throws FtpException {
+
+        List<FtpReply> replies = executeBatch(MDTM, withCommand(MDTM, remoteFilePaths));
+
+        Map<String, DateTime> modificationTimes = new LinkedHashMap<String, DateTime>();
+
+        for (int i = 0; i < remoteFilePaths.size(); i++) {
+
+            FtpReply reply = replies.get(i);
+
+            if (reply.isPositiveCompletion())
+                modificationTimes.put(remoteFilePaths.get(i), toDateTime(reply.getArgument()));
+        }
+
+        return modificationTimes;
+    }
+
+    public void deleteFiles(List<String> remoteFilePaths) throws FtpException {
+
+        List<FtpReply> replies = executeBatch(DELE, withCommand(DELE, remoteFilePaths));
+
+        List<String> failures = new ArrayList<String>();
+
+        for (int i = 0; i < remoteFilePaths.size(); i++)
+            if (!replies.get(i).isPositiveCompletion())
+                failures.add(remoteFilePaths.get(i));
+
+        if (!failures.isEmpty())
+            throw new FtpException(String.format(BATCH_DELETE_FAILURE_MESSAGE, failures));
+    }
+
+    /**
+     * @param remoteFilePaths
+     * Existing remote paths mapped to the paths they should be renamed to.
+     */
+    public void renameFiles(Map<String, String> remoteFilePaths) throws FtpException {
+
+        List<String> commands = new ArrayList<String>();
+
+        for (Map.Entry<String, String> rename : remoteFilePaths.entrySet()) {
+            commands.add(RNFR + " " + rename.getKey());
+            commands.add(RNTO + " " + rename.getValue());
+        }
+
+        List<FtpReply> replies = executeBatch(RNFR, commands);
+
+        List<String> failures = new ArrayList<String>();
+
+        int i = 0;
+
+        for (String from : remoteFilePaths.keySet()) {
+
+            boolean renamed = replies.get(i).isPositiveIntermediate() && replies.get(i + 1).isPositiveCompletion();
+
+            if (!renamed)
+                failures.add(from);
+
+            i += 2;
+        }
+
+        if (!failures.isEmpty())
+            throw new FtpException(String.format(BATCH_RENAME_FAILURE_MESSAGE, failures));
+    }
+
+    FTPClient getClient() {
+        return client;
+    }
+
+    private List<FtpReply> executeBatch(String commandName, List<String> commands) {
+
+        try {
+
+            return commandPipeline.execute(commands);
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(BATCH_COMMAND_ERROR_MESSAGE, commandName), e);
+        }
+    }
+
+    private List<String> withCommand(String command, List<String> arguments) {
+
+        List<String> commands = new ArrayList<String>(arguments.size());
+
+        for (String argument : arguments)
+            commands.add(command + " " + argument);
+
+        return commands;
+    }
+
+    private boolean isDirectory(String remotePath) throws IOException {
+
+        String originalWorkingDirectory = client.printWorkingDirectory();
+
+        boolean isDirectory = client.changeWorkingDirectory(remotePath);
+
+        if (isDirectory)
+            client.changeWorkingDirectory(originalWorkingDirectory);
+
+        return isDirectory;
+    }
+
+    private String nameOf(String remotePath) {
+
+        Path fileName = Paths.get(remotePath).getFileName();
+
+        return null == fileName ? remotePath : fileName.toString();
+    }
+
+    private FtpFile toFtpFileAtPath(FTPFile ftpFile, String fullPath) {
+
+        long mTime = null == ftpFile.getTimestamp() ? 0 : ftpFile.getTimestamp().getTimeInMillis();
+
+        return new FtpFile(nameOf(fullPath), ftpFile.getSize(), fullPath, mTime, ftpFile.isDirectory());
+    }
+
+    private DateTime toDateTime(String mdtmTimestamp) {
+
+        if (mdtmTimestamp.length() < MDTM_TIMESTAMP_LENGTH)
+            throw new FtpException(String.format(INVALID_MODIFICATION_TIME_MESSAGE, mdtmTimestamp));
+
+        try {
+
+            return MDTM_FORMAT.parseDateTime(mdtmTimestamp.substring(0, MDTM_TIMESTAMP_LENGTH));
+
+        } catch (IllegalArgumentException e) {
+
+            throw new FtpException(String.format(INVALID_MODIFICATION_TIME_MESSAGE, mdtmTimestamp), e);
+        }
+    }
+
     private String determinePath(String sourcePathWithName, String targetPathWithoutName) {
 
         Path targetPath = Paths.get(targetPathWithoutName);
@@ -153,6 +646,117 @@ public class FtpConnection implements Connection {
         return safePath + FILE_SEPARATOR + fileName;
     }
 
+    private boolean retrieve(String remoteFilePath, OutputStream destination) throws IOException {
+
+        if (null == bufferPool) {
+
+            try {
+
+                return client.retrieveFile(remoteFilePath, destination);
+
+            } catch (CopyStreamException e) {
+
+                finishAbandonedTransfer();
+
+                throw e;
+            }
+        }
+
+        InputStream source = client.retrieveFileStream(remoteFilePath);
+
+        if (null == source)
+            return false;
+
+        dataStream = source;
+        boolean copied = false;
+
+        try {
+
+            bufferPool.copy(source, destination);
+
+            copied = true;
+
+        } finally {
+
+            dataStream = null;
+            source.close();
+
+            if (!copied)
+                finishAbandonedTransfer();
+        }
+
+        return client.completePendingCommand();
+    }
+
+    private boolean store(String remoteFilePath, InputStream source, boolean append) throws IOException {
+
+        if (null == bufferPool) {
+
+            try {
+
+                return append ? client.appendFile(remoteFilePath, source) : client.storeFile(remoteFilePath, source);
+
+            } catch (CopyStreamException e) {
+
+                finishAbandonedTransfer();
+
+                throw e;
+            }
+        }
+
+        OutputStream destination = append ? client.appendFileStream(remoteFilePath) : client.storeFileStream(remoteFilePath);
+
+        if (null == destination)
+            return false;
+
+        dataStream = destination;
+        boolean copied = false;
+
+        try {
+
+            bufferPool.copy(source, destination);
+
+            copied = true;
+
+        } finally {
+
+            dataStream = null;
+            destination.close();
+
+            if (!copied)
+                finishAbandonedTransfer();
+        }
+
+        return client.completePendingCommand();
+    }
+
+    /**
+     * Reads the reply to a transfer that failed while copying, which Commons Net leaves unread and
+     * would otherwise be taken as the reply to the next command. The data connection is closed by
+     * now, so the server sends it straight away; if it can't be read the connection is closed.
+     */
+    private void finishAbandonedTransfer() {
+
+        if (!client.isConnected())
+            return;
+
+        try {
+
+            client.completePendingCommand();
+
+        } catch (IOException e) {
+
+            try {
+
+                client.disconnect();
+
+            } catch (IOException disconnectFailure) {
+
+                // Nothing more can be done with a connection that won't close.
+            }
+        }
+    }
+
     private void ensureFileHasSuccessfullyDownloaded(boolean hasDownloaded) {
 
         if (!hasDownloaded)
@@ -165,6 +769,60 @@ public class FtpConnection implements Connection {
             throw new FtpException("Upload failed.");
     }
 
+    private String listingPath(String directory, FtpFileFilter filter) {
+
+        if (!serverSideGlobbing || null == filter.getGlob())
+            return directory;
+
+        return directory.endsWith(FILE_SEPARATOR) ? directory + filter.getGlob() : directory + FILE_SEPARATOR + filter.getGlob();
+    }
+
+    private FTPFileFilter adapt(final FtpFileFilter filter) {
+
+        return new FTPFileFilter() {
+
+            @Override
+            public boolean accept(FTPFile file) {
+
+                if (null == file)
+                    return false;
+
+                long mTime = null == file.getTimestamp() ? 0 : file.getTimestamp().getTimeInMillis();
+
+                return filter.accept(file.getName(), file.getSize(), mTime, file.isDirectory());
+            }
+        };
+    }
+
+    /**
+     * A server expanding the glob lists each directory it matched after the files, behind a blank
+     * line and a "name:" header, neither of which parse. Everything from there on is inside those
+     * directories rather than the one being listed.
+     */
+    private FTPFileFilter adaptGlobbed(FtpFileFilter filter) {
+
+        final FTPFileFilter adapted = adapt(filter);
+
+        return new FTPFileFilter() {
+
+            private boolean parsedAny;
+            private boolean inSubdirectory;
+
+            @Override
+            public boolean accept(FTPFile file) {
+
+                if (null == file) {
+                    inSubdirectory |= parsedAny;
+                    return false;
+                }
+
+                parsedAny = true;
+
+                return !inSubdirectory && adapted.accept(file);
+            }
+        };
+    }
+
     private FtpFile toFtpFile(FTPFile ftpFile, String filePath) throws IOException {
 
         String name = ftpFile.getName();
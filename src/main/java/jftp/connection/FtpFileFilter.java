@@ -0,0 +1,204 @@
+package jftp.connection;
+
+import java.util.regex.Pattern;
+
+/**
+ * Decides which entries a listing returns. Filters are applied to each entry as the listing is
+ * parsed, so entries that don't match are never turned into {@link FtpFile}s.
+ */
+public abstract class FtpFileFilter {
+
+    static final FtpFileFilter ANY = new FtpFileFilter() {
+
+        @Override
+        public boolean accept(String name, long size, long mTime, boolean directory) {
+            return true;
+        }
+    };
+
+    /**
+     * @param mTime
+     * The entry's last modified time in milliseconds since the epoch, or 0 if the server didn't say.
+     */
+    public abstract boolean accept(String name, long size, long mTime, boolean directory);
+
+    /**
+     * Matches names against a shell style pattern, where * is any run of characters, ? is any one
+     * character and [abc] or [!abc] is any one character from or not from the set.
+     */
+    public static FtpFileFilter glob(String glob) {
+        return new NameFilter(Pattern.compile(toRegex(glob)), glob);
+    }
+
+    /**
+     * Matches the whole name against a regular expression.
+     */
+    public static FtpFileFilter regex(String regex) {
+        return new NameFilter(Pattern.compile(regex), null);
+    }
+
+    public static FtpFileFilter filesOnly() {
+
+        return new FtpFileFilter() {
+
+            @Override
+            public boolean accept(String name, long size, long mTime, boolean directory) {
+                return !directory;
+            }
+        };
+    }
+
+    /**
+     * Matches entries of at least the given size in bytes.
+     */
+    public static FtpFileFilter largerThan(final long size) {
+
+        return new FtpFileFilter() {
+
+            @Override
+            public boolean accept(String name, long entrySize, long mTime, boolean directory) {
+                return entrySize >= size;
+            }
+        };
+    }
+
+    /**
+     * Matches entries smaller than the given size in bytes.
+     */
+    public static FtpFileFilter smallerThan(final long size) {
+
+        return new FtpFileFilter() {
+
+            @Override
+            public boolean accept(String name, long entrySize, long mTime, boolean directory) {
+                return entrySize < size;
+            }
+        };
+    }
+
+    /**
+     * Matches entries last modified at or after the given time, in milliseconds since the epoch.
+     */
+    public static FtpFileFilter modifiedSince(final long time) {
+
+        return new FtpFileFilter() {
+
+            @Override
+            public boolean accept(String name, long size, long mTime, boolean directory) {
+                return mTime >= time;
+            }
+        };
+    }
+
+    /**
+     * Matches entries last modified before the given time, in milliseconds since the epoch.
+     */
+    public static FtpFileFilter modifiedBefore(final long time) {
+
+        return new FtpFileFilter() {
+
+            @Override
+            public boolean accept(String name, long size, long mTime, boolean directory) {
+                return mTime < time;
+            }
+        };
+    }
+
+    /**
+     * @return
+     * A filter matching only entries that both this filter and the other match.
+     */
+    public FtpFileFilter and(final FtpFileFilter other) {
+
+        final FtpFileFilter self = this;
+
+        return new FtpFileFilter() {
+
+            @Override
+            public boolean accept(String name, long size, long mTime, boolean directory) {
+                return self.accept(name, size, mTime, directory) && other.accept(name, size, mTime, directory);
+            }
+
+            @Override
+            String getGlob() {
+                return null != self.getGlob() ? self.getGlob() : other.getGlob();
+            }
+        };
+    }
+
+    /**
+     * The glob every match must satisfy, which can be handed to servers that expand wildcards in
+     * LIST, or null if there isn't one.
+     */
+    String getGlob() {
+        return null;
+    }
+
+    private static String toRegex(String glob) {
+
+        StringBuilder regex = new StringBuilder();
+
+        boolean inSet = false;
+
+        for (int i = 0; i < glob.length(); i++) {
+
+            char each = glob.charAt(i);
+
+            if (inSet) {
+
+                if (each == ']')
+                    inSet = false;
+                else if ("\\^[&".indexOf(each) >= 0)
+                    regex.append('\\');
+
+                regex.append(each);
+
+            } else if (each == '*') {
+
+                regex.append(".*");
+
+            } else if (each == '?') {
+
+                regex.append('.');
+
+            } else if (each == '[' && glob.indexOf(']', i + 2) > 0) {
+
+                inSet = true;
+                regex.append('[');
+
+                if (glob.charAt(i + 1) == '!') {
+                    regex.append('^');
+                    i++;
+                }
+
+            } else {
+
+                regex.append(Pattern.quote(String.valueOf(each)));
+            }
+        }
+
+        return regex.toString();
+    }
+
+    private static class NameFilter extends FtpFileFilter {
+
+        private Pattern pattern;
+        private String glob;
+
+        NameFilter(Pattern pattern, String glob) {
+
+            this.pattern = pattern;
+            this.glob = glob;
+        }
+
+        @Override
+        public boolean accept(String name, long size, long mTime, boolean directory) {
+            return pattern.matcher(name).matches();
+        }
+
+        @Override
+        String getGlob() {
+            return glob;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package jftp.connection;
+
+import org.apache.commons.net.ftp.FTPReply;
+
+class FtpReply {
+
+    private static final int REPLY_CODE_LENGTH = 3;
+
+    private int code;
+    private String text;
+
+    FtpReply(int code, String text) {
+
+        this.code = code;
+        this.text = null == text ? "" : text.trim();
+    }
+
+    int getCode() {
+        return code;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    /**
+     * @return
+     * The reply text without its leading status code, e.g. "1024" for "213 1024".
+     */
+    String getArgument() {
+
+        if (text.length() <= REPLY_CODE_LENGTH)
+            return "";
+
+        return text.substring(REPLY_CODE_LENGTH).trim();
+    }
+
+    boolean isPositiveCompletion() {
+        return FTPReply.isPositiveCompletion(code);
+    }
+
+    boolean isPositiveIntermediate() {
+        return FTPReply.isPositiveIntermediate(code);
+    }
+}
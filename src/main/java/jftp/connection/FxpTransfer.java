@@ -0,0 +1,256 @@
+package jftp.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jftp.exception.FtpException;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.io.CopyStreamException;
+
+/**
+ * Copies files directly between two FTP servers (FXP). The source server is put in passive mode and
+ * the target is told to connect to it with PORT, so the file travels from server to server and
+ * never through this host.
+ *
+ * Many servers refuse PORT addresses other than the client's own, or refuse data connections from a
+ * host other than the client. When that happens the file is relayed through this host instead,
+ * streamed straight from the source's data connection into the target's without a temporary file,
+ * and the pair of servers is remembered so later copies go straight to the relay.
+ */
+public class FxpTransfer {
+
+    private static final Pattern PASV_ADDRESS = Pattern.compile("(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3})");
+
+    private static final String TRANSFER_FAILURE_MESSAGE = "Unable to copy %s to %s";
+    private static final String RELAY_FAILURE_MESSAGE = "Unable to relay %s to %s";
+
+    private Set<String> serversRefusingFxp = Collections.synchronizedSet(new HashSet<String>());
+    private boolean fxpEnabled = true;
+
+    /**
+     * With FXP disabled every copy is relayed through this host.
+     */
+    public void setFxpEnabled(boolean fxpEnabled) {
+        this.fxpEnabled = fxpEnabled;
+    }
+
+    public void transfer(FtpConnection source, String sourcePath, FtpConnection target, String targetPath) throws FtpException {
+
+        FTPClient sourceClient = source.getClient();
+        FTPClient targetClient = target.getClient();
+
+        String serverPair = serverPair(sourceClient, targetClient);
+
+        try {
+
+            if (fxpEnabled && !serversRefusingFxp.contains(serverPair)) {
+
+                if (serverToServer(sourceClient, sourcePath, targetClient, targetPath))
+                    return;
+
+                serversRefusingFxp.add(serverPair);
+            }
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(TRANSFER_FAILURE_MESSAGE, sourcePath, targetPath), e);
+        }
+
+        relay(sourceClient, sourcePath, targetClient, targetPath);
+    }
+
+    /**
+     * @return
+     * False if either server refused its part before any data was sent, in which case both control
+     * connections are left ready for the relay.
+     */
+    private boolean serverToServer(FTPClient source, String sourcePath, FTPClient target, String targetPath) throws IOException {
+
+        if (source.pasv() != FTPReply.ENTERING_PASSIVE_MODE)
+            return false;
+
+        Matcher address = PASV_ADDRESS.matcher(source.getReplyString());
+
+        if (!address.find())
+            return false;
+
+        InetAddress passiveHost = passiveHost(source, address);
+        int passivePort = (Integer.parseInt(address.group(5)) << 8) | Integer.parseInt(address.group(6));
+
+        if (!FTPReply.isPositiveCompletion(target.port(passiveHost, passivePort)))
+            return false;
+
+        if (!FTPReply.isPositivePreliminary(target.stor(targetPath)))
+            return false;
+
+        if (!FTPReply.isPositivePreliminary(source.retr(sourcePath))) {
+
+            abortTransfer(target, sourcePath, targetPath);
+
+            return false;
+        }
+
+        int received = target.getReply();
+
+        // A target that accepted STOR but then couldn't reach the source, which is what NAT and
+        // firewalls usually cause, leaves the source waiting for a data connection that won't come.
+        if (received == FTPReply.CANNOT_OPEN_DATA_CONNECTION || received == FTPReply.TRANSFER_ABORTED) {
+
+            abortTransfer(source, sourcePath, targetPath);
+
+            return false;
+        }
+
+        boolean sent = FTPReply.isPositiveCompletion(source.getReply());
+
+        if (!sent || !FTPReply.isPositiveCompletion(received))
+            throw new FtpException(String.format(TRANSFER_FAILURE_MESSAGE, sourcePath, targetPath));
+
+        return true;
+    }
+
+    /**
+     * Servers usually fail the waiting transfer with a 426 before answering the ABOR itself, and both
+     * replies have to be read before the control connection can be used for the relay.
+     */
+    private void abortTransfer(FTPClient client, String sourcePath, String targetPath) throws IOException {
+
+        int reply = client.abor();
+
+        if (FTPReply.isNegativeTransient(reply))
+            reply = client.getReply();
+
+        if (!FTPReply.isPositiveCompletion(reply)) {
+
+            client.disconnect();
+
+            throw new FtpException(String.format(TRANSFER_FAILURE_MESSAGE, sourcePath, targetPath));
+        }
+    }
+
+    /**
+     * Whether it succeeds or not, both control connections are left with no reply outstanding, or
+     * closed if that can't be done, so they are ready for whoever uses them next.
+     */
+    private void relay(FTPClient source, String sourcePath, FTPClient target, String targetPath) {
+
+        String failureMessage = String.format(RELAY_FAILURE_MESSAGE, sourcePath, targetPath);
+        InputStream sourceStream;
+
+        try {
+
+            sourceStream = source.retrieveFileStream(sourcePath);
+
+        } catch (IOException e) {
+
+            throw new FtpException(failureMessage, e);
+        }
+
+        if (null == sourceStream)
+            throw new FtpException(failureMessage);
+
+        boolean stored;
+
+        try {
+
+            stored = target.storeFile(targetPath, sourceStream);
+
+        } catch (IOException e) {
+
+            // Commons Net leaves the STOR reply unread when the copy fails; otherwise where the
+            // target's control connection stands is unknown.
+            if (e instanceof CopyStreamException)
+                completeTransfer(target);
+            else
+                disconnectQuietly(target);
+
+            closeQuietly(sourceStream);
+            completeTransfer(source);
+
+            throw new FtpException(failureMessage, e);
+        }
+
+        closeQuietly(sourceStream);
+
+        boolean retrieved = completeTransfer(source);
+
+        if (!stored || !retrieved)
+            throw new FtpException(failureMessage);
+    }
+
+    /**
+     * Reads the reply to a transfer whose data connection is closed, disconnecting if it can't be read.
+     *
+     * @return
+     * Whether the server reported the transfer complete.
+     */
+    private boolean completeTransfer(FTPClient client) {
+
+        if (!client.isConnected())
+            return false;
+
+        try {
+
+            return client.completePendingCommand();
+
+        } catch (IOException e) {
+
+            disconnectQuietly(client);
+
+            return false;
+        }
+    }
+
+    private void disconnectQuietly(FTPClient client) {
+
+        try {
+
+            client.disconnect();
+
+        } catch (IOException e) {
+
+            // Nothing more can be done with a connection that won't close.
+        }
+    }
+
+    private void closeQuietly(InputStream stream) {
+
+        try {
+
+            stream.close();
+
+        } catch (IOException e) {
+
+            // The server fails the transfer once the data connection goes, closed or not.
+        }
+    }
+
+    /**
+     * Servers behind NAT often advertise their private address in the PASV reply. The target can't
+     * reach that, so the address this host reached the source on is used instead.
+     */
+    private InetAddress passiveHost(FTPClient source, Matcher address) throws IOException {
+
+        String host = address.group(1) + "." + address.group(2) + "." + address.group(3) + "." + address.group(4);
+
+        InetAddress passiveHost = InetAddress.getByName(host);
+        InetAddress controlHost = source.getRemoteAddress();
+
+        if (passiveHost.isSiteLocalAddress() && null != controlHost && !controlHost.isSiteLocalAddress())
+            return controlHost;
+
+        return passiveHost;
+    }
+
+    private String serverPair(FTPClient source, FTPClient target) {
+        return source.getRemoteAddress() + ">" + target.getRemoteAddress();
+    }
+}
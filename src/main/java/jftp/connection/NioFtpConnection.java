@@ -0,0 +1,688 @@
+package jftp.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import jftp.exception.FtpException;
+import jftp.util.FileStreamFactory;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
+import org.apache.commons.net.ftp.parser.DefaultFTPFileEntryParserFactory;
+import org.apache.commons.net.ftp.parser.MLSxEntryParser;
+import org.apache.commons.net.ftp.parser.ParserInitializationException;
+
+/**
+ * A connection whose I/O is done by the selector threads of an {@link NioFtpEngine} rather than by
+ * the calling thread. The methods of {@link Connection} wait for their result as usual; the
+ * {@code Async} variants return straight away, so one thread can keep transfers running on many
+ * connections at once.
+ *
+ * Like the other connections, one connection should only be used by one thread at a time.
+ */
+public class NioFtpConnection implements Connection {
+
+    private static final int FIVE_MINUTES = 300000;
+
+    private static final String COULD_NOT_FIND_FILE_MESSAGE = "Could not find file: %s";
+    private static final String FILE_DOWNLOAD_FAILURE_MESSAGE = "Unable to download file %s";
+    private static final String FILE_UPLOAD_FAILURE_MESSAGE = "Upload may not have completed.";
+    private static final String FILE_STREAM_OPEN_FAIL_MESSAGE = "Unable to write to local directory %s";
+    private static final String FILE_LISTING_ERROR_MESSAGE = "Unable to list files in directory %s";
+    private static final String NO_SUCH_DIRECTORY_MESSAGE = "The directory %s doesn't exist on the remote server.";
+    private static final String DELETE_FAILURE_MESSAGE = "Unable to delete %s";
+    private static final String REMOVE_DIRECTORY_FAILURE_MESSAGE = "Unable to remove directory %s";
+    private static final String RENAME_FAILURE_MESSAGE = "Unable to rename %s to %s";
+    private static final String MAKE_DIRECTORIES_FAILURE_MESSAGE = "Unable to create directory %s";
+    private static final String STAT_FAILURE_MESSAGE = "Unable to find %s";
+    private static final String BUFFER_TOO_SMALL_MESSAGE = "The file %s is %d bytes, more than the %d left in the buffer.";
+    private static final String TOO_LARGE_FOR_BUFFER_MESSAGE = "The file %s is %d bytes, too large for a buffer.";
+    private static final String KEEP_ALIVE_FAILURE_MESSAGE = "The server did not answer the keep-alive.";
+    private static final String PIPE_OPEN_FAILURE_MESSAGE = "Unable to open a pipe to the transfer";
+
+    private static final String FILE_SEPARATOR = "/";
+    private static final String FALLBACK_SYSTEM_TYPE = "UNIX";
+
+    private static ExecutorService fileThreads;
+
+    private NioFtpSession session;
+    private FileStreamFactory fileStreamFactory = new FileStreamFactory();
+
+    private long timeoutMillis = FIVE_MINUTES;
+    private boolean serverSideGlobbing;
+
+    NioFtpConnection(NioFtpSession session) {
+        this.session = session;
+    }
+
+    /**
+     * How long the blocking methods wait on the server before giving up. Defaults to five minutes.
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sends a filter's glob along with LIST, as {@link FtpConnection#setServerSideGlobbing} does.
+     */
+    public void setServerSideGlobbing(boolean serverSideGlobbing) {
+        this.serverSideGlobbing = serverSideGlobbing;
+    }
+
+    @Override
+    public void append(InputStream source, String remoteFilePath) throws FtpException {
+        upload(source, remoteFilePath, true, 0);
+    }
+
+    @Override
+    public void abort() {
+        session.abort();
+    }
+
+    @Override
+    public void changeDirectory(String directory) throws FtpException {
+
+        if (!command("CWD " + directory).isPositiveCompletion())
+            throw new FtpException(String.format(NO_SUCH_DIRECTORY_MESSAGE, directory));
+    }
+
+    @Override
+    public void delete(String remoteFilePath) throws FtpException {
+
+        if (!command("DELE " + remoteFilePath).isPositiveCompletion())
+            throw new FtpException(String.format(DELETE_FAILURE_MESSAGE, remoteFilePath));
+    }
+
+    @Override
+    public void download(String remoteFilePath, String localDirectory) throws FtpException {
+        await(downloadAsync(remoteFilePath, localDirectory));
+    }
+
+    /**
+     * Starts downloading a remote file into a local directory and returns without waiting for it.
+     *
+     * @return
+     * A future that completes once the file is fully written, or fails with an FtpException.
+     */
+    public Future<Void> downloadAsync(String remoteFilePath, String localDirectory) throws FtpException {
+
+        String localDestination = determinePath(remoteFilePath, localDirectory);
+
+        FileOutputStream outputStream;
+
+        try {
+
+            outputStream = fileStreamFactory.createOutputStream(localDestination);
+
+        } catch (FileNotFoundException e) {
+
+            throw new FtpException(String.format(FILE_STREAM_OPEN_FAIL_MESSAGE, localDestination), e);
+        }
+
+        String failureMessage = String.format(FILE_DOWNLOAD_FAILURE_MESSAGE, remoteFilePath);
+
+        Pipe pipe = openPipe(outputStream);
+
+        NioFtpFuture<Void> transfer = session.retrieve(remoteFilePath, pipe.sink(), failureMessage);
+
+        return copyOffReactor(Channels.newInputStream(pipe.source()), outputStream, transfer, failureMessage);
+    }
+
+    /**
+     * The selector thread hands the data over through a pipe so that a slow stream only ever holds up
+     * the calling thread. The transfer owns the pipe's sink and closes it when done; the calling thread
+     * owns the source.
+     */
+    @Override
+    public void download(String remoteFilePath, OutputStream destination) throws FtpException {
+        download(remoteFilePath, destination, 0);
+    }
+
+    @Override
+    public void download(String remoteFilePath, OutputStream destination, long offset) throws FtpException {
+
+        String failureMessage = String.format(FILE_DOWNLOAD_FAILURE_MESSAGE, remoteFilePath);
+
+        Pipe pipe = openPipe();
+
+        try {
+
+            pipe.sink().configureBlocking(false);
+
+        } catch (IOException e) {
+
+            closeQuietly(pipe);
+
+            throw new FtpException(PIPE_OPEN_FAILURE_MESSAGE, e);
+        }
+
+        NioFtpFuture<Void> transfer = session.retrieve(remoteFilePath, offset, pipe.sink(), failureMessage);
+
+        IOException copyFailure = null;
+
+        try {
+
+            session.getBufferPool().copy(Channels.newInputStream(pipe.source()), destination);
+
+        } catch (IOException e) {
+
+            copyFailure = e;
+
+        } finally {
+
+            closeQuietly(pipe.source());
+        }
+
+        await(transfer);
+
+        if (null != copyFailure)
+            throw new FtpException(failureMessage, copyFailure);
+    }
+
+    /**
+     * The data connection is read straight into the buffer, without passing through any other. The
+     * file is checked to fit before RETR is sent.
+     */
+    @Override
+    public void download(String remoteFilePath, ByteBuffer destination) throws FtpException {
+
+        long size = stat(remoteFilePath).getSize();
+
+        if (size > destination.remaining())
+            throw new FtpException(String.format(BUFFER_TOO_SMALL_MESSAGE, remoteFilePath, size, destination.remaining()));
+
+        await(session.retrieve(remoteFilePath, destination, String.format(FILE_DOWNLOAD_FAILURE_MESSAGE, remoteFilePath)));
+    }
+
+    @Override
+    public ByteBuffer download(String remoteFilePath) throws FtpException {
+
+        long size = stat(remoteFilePath).getSize();
+
+        if (size > Integer.MAX_VALUE)
+            throw new FtpException(String.format(TOO_LARGE_FOR_BUFFER_MESSAGE, remoteFilePath, size));
+
+        ByteBuffer destination = ByteBuffer.allocateDirect((int) size);
+
+        download(remoteFilePath, destination);
+
+        destination.flip();
+
+        return destination;
+    }
+
+    @Override
+    public void keepAlive() throws FtpException {
+
+        if (!command("NOOP").isPositiveCompletion())
+            throw new FtpException(KEEP_ALIVE_FAILURE_MESSAGE);
+    }
+
+    @Override
+    public List<FtpFile> listFiles() throws FtpException {
+
+        return listFiles(printWorkingDirectory());
+    }
+
+    @Override
+    public List<FtpFile> listFiles(String remotePath) throws FtpException {
+        return listFiles(remotePath, FtpFileFilter.ANY);
+    }
+
+    @Override
+    public List<FtpFile> listFiles(String remotePath, FtpFileFilter filter) throws FtpException {
+
+        String originalWorkingDirectory = printWorkingDirectory();
+
+        changeDirectory(remotePath);
+
+        String newWorkingDirectory = printWorkingDirectory();
+
+        String glob = serverSideGlobbing ? filter.getGlob() : null;
+
+        ByteArrayOutputStream listing = new ByteArrayOutputStream();
+
+        try {
+
+            await(session.list(glob, Channels.newChannel(listing), String.format(FILE_LISTING_ERROR_MESSAGE, remotePath)));
+
+        } finally {
+
+            changeDirectory(originalWorkingDirectory);
+        }
+
+        List<FtpFile> files = new ArrayList<FtpFile>();
+
+        for (FTPFile file : parseListing(listing)) {
+
+            long mTime = null == file.getTimestamp() ? 0 : file.getTimestamp().getTimeInMillis();
+
+            if (filter.accept(file.getName(), file.getSize(), mTime, file.isDirectory()))
+                files.add(toFtpFile(file, newWorkingDirectory));
+        }
+
+        return files;
+    }
+
+    @Override
+    public void makeDirectories(String remoteDirectory) throws FtpException {
+
+        String path = remoteDirectory.startsWith(FILE_SEPARATOR) ? FILE_SEPARATOR : "";
+
+        for (String segment : remoteDirectory.split(FILE_SEPARATOR)) {
+
+            if (segment.isEmpty())
+                continue;
+
+            path = path.isEmpty() || path.endsWith(FILE_SEPARATOR) ? path + segment : path + FILE_SEPARATOR + segment;
+
+            command("MKD " + path);
+        }
+
+        if (!isDirectory(remoteDirectory))
+            throw new FtpException(String.format(MAKE_DIRECTORIES_FAILURE_MESSAGE, remoteDirectory));
+    }
+
+    @Override
+    public String printWorkingDirectory() throws FtpException {
+
+        FtpReply reply = command("PWD");
+
+        String text = reply.getText();
+
+        int start = text.indexOf('"');
+        int end = text.lastIndexOf('"');
+
+        if (!reply.isPositiveCompletion() || start < 0 || end <= start)
+            throw new FtpException("Unable to print the working directory");
+
+        return text.substring(start + 1, end).replace("\"\"", "\"");
+    }
+
+    @Override
+    public void removeDirectory(String remoteDirectory) throws FtpException {
+
+        if (!command("RMD " + remoteDirectory).isPositiveCompletion())
+            throw new FtpException(String.format(REMOVE_DIRECTORY_FAILURE_MESSAGE, remoteDirectory));
+    }
+
+    @Override
+    public void rename(String fromRemotePath, String toRemotePath) throws FtpException {
+
+        if (!command("RNFR " + fromRemotePath).isPositiveIntermediate() || !command("RNTO " + toRemotePath).isPositiveCompletion())
+            throw new FtpException(String.format(RENAME_FAILURE_MESSAGE, fromRemotePath, toRemotePath));
+    }
+
+    /**
+     * Uses MLST where the server supports it. Otherwise falls back to checking whether the path is a
+     * directory, and finally to listing the path, which most servers answer with the single entry for a file.
+     */
+    @Override
+    public FtpFile stat(String remotePath) throws FtpException {
+
+        FtpReply reply = command("MLST " + remotePath);
+
+        String[] lines = reply.getText().split("\n");
+
+        if (reply.isPositiveCompletion() && lines.length > 1) {
+
+            FTPFile file = MLSxEntryParser.parseEntry(lines[1].trim());
+
+            if (null != file)
+                return toFtpFileAtPath(file, remotePath);
+        }
+
+        if (isDirectory(remotePath))
+            return new FtpFile(nameOf(remotePath), 0, remotePath, 0, true);
+
+        ByteArrayOutputStream listing = new ByteArrayOutputStream();
+
+        try {
+
+            await(session.list(remotePath, Channels.newChannel(listing), String.format(STAT_FAILURE_MESSAGE, remotePath)));
+
+        } catch (FtpException e) {
+
+            throw new FtpException(String.format(STAT_FAILURE_MESSAGE, remotePath), e);
+        }
+
+        List<FTPFile> entries = parseListing(listing);
+
+        if (entries.size() == 1 && !entries.get(0).isDirectory() && remotePath.endsWith(entries.get(0).getName()))
+            return toFtpFileAtPath(entries.get(0), remotePath);
+
+        throw new FtpException(String.format(STAT_FAILURE_MESSAGE, remotePath));
+    }
+
+    @Override
+    public void upload(String localFilePath, String remoteDirectory) throws FtpException {
+        await(uploadAsync(localFilePath, remoteDirectory));
+    }
+
+    /**
+     * Starts uploading a local file into a remote directory and returns without waiting for it.
+     *
+     * @return
+     * A future that completes once the server has confirmed the upload, or fails with an FtpException.
+     */
+    public Future<Void> uploadAsync(String localFilePath, String remoteDirectory) throws FtpException {
+
+        FileInputStream inputStream;
+
+        try {
+
+            inputStream = fileStreamFactory.createInputStream(localFilePath);
+
+        } catch (FileNotFoundException e) {
+
+            throw new FtpException(String.format(COULD_NOT_FIND_FILE_MESSAGE, localFilePath), e);
+        }
+
+        Pipe pipe = openPipe(inputStream);
+
+        NioFtpFuture<Void> transfer = session.store(determinePath(localFilePath, remoteDirectory), pipe.source(), FILE_UPLOAD_FAILURE_MESSAGE);
+
+        return copyOffReactor(inputStream, Channels.newOutputStream(pipe.sink()), transfer, FILE_UPLOAD_FAILURE_MESSAGE);
+    }
+
+    @Override
+    public void upload(InputStream source, String remoteFilePath) throws FtpException {
+        upload(source, remoteFilePath, false, 0);
+    }
+
+    @Override
+    public void upload(InputStream source, String remoteFilePath, long offset) throws FtpException {
+        upload(source, remoteFilePath, false, offset);
+    }
+
+    /**
+     * Sends QUIT and closes the session once any queued work is done.
+     */
+    public void close() throws FtpException {
+        await(session.close());
+    }
+
+    private void upload(InputStream source, String remoteFilePath, boolean append, long offset) {
+
+        Pipe pipe = openPipe();
+
+        try {
+
+            pipe.source().configureBlocking(false);
+
+        } catch (IOException e) {
+
+            closeQuietly(pipe);
+
+            throw new FtpException(PIPE_OPEN_FAILURE_MESSAGE, e);
+        }
+
+        NioFtpFuture<Void> transfer = append ? session.append(remoteFilePath, pipe.source(), FILE_UPLOAD_FAILURE_MESSAGE)
+                : session.store(remoteFilePath, offset, pipe.source(), FILE_UPLOAD_FAILURE_MESSAGE);
+
+        IOException copyFailure = null;
+
+        try {
+
+            session.getBufferPool().copy(source, Channels.newOutputStream(pipe.sink()));
+
+        } catch (IOException e) {
+
+            copyFailure = e;
+
+        } finally {
+
+            closeQuietly(pipe.sink());
+        }
+
+        await(transfer);
+
+        if (null != copyFailure)
+            throw new FtpException(FILE_UPLOAD_FAILURE_MESSAGE, copyFailure);
+    }
+
+    private FtpReply command(String command) {
+        return await(session.command(command));
+    }
+
+    private <T> T await(Future<T> result) {
+        return ((NioFtpFuture<T>) result).await(timeoutMillis);
+    }
+
+    private boolean isDirectory(String remotePath) {
+
+        String originalWorkingDirectory = printWorkingDirectory();
+
+        boolean isDirectory = command("CWD " + remotePath).isPositiveCompletion();
+
+        if (isDirectory)
+            changeDirectory(originalWorkingDirectory);
+
+        return isDirectory;
+    }
+
+    private List<FTPFile> parseListing(ByteArrayOutputStream listing) {
+
+        FTPFileEntryParser parser = listingParser();
+
+        List<String> lines = new ArrayList<String>(Arrays.asList(listing.toString().split("\r?\n")));
+
+        lines = parser.preParse(lines);
+
+        List<FTPFile> files = new ArrayList<FTPFile>();
+
+        for (String line : lines) {
+
+            FTPFile file = parser.parseFTPEntry(line);
+
+            if (null != file)
+                files.add(file);
+        }
+
+        return files;
+    }
+
+    private FTPFileEntryParser listingParser() {
+
+        DefaultFTPFileEntryParserFactory parserFactory = new DefaultFTPFileEntryParserFactory();
+
+        try {
+
+            return parserFactory.createFileEntryParser(session.getSystemType());
+
+        } catch (ParserInitializationException e) {
+
+            return parserFactory.createFileEntryParser(FALLBACK_SYSTEM_TYPE);
+        }
+    }
+
+    /**
+     * A pipe for an async transfer, whose side the reactor uses is non-blocking and whose other side
+     * is left to the file thread. The local file is closed if the pipe can't be set up.
+     */
+    private Pipe openPipe(Closeable localFile) {
+
+        Pipe pipe;
+
+        try {
+
+            pipe = Pipe.open();
+
+        } catch (IOException e) {
+
+            closeQuietly(localFile);
+
+            throw new FtpException(PIPE_OPEN_FAILURE_MESSAGE, e);
+        }
+
+        try {
+
+            if (localFile instanceof InputStream)
+                pipe.source().configureBlocking(false);
+            else
+                pipe.sink().configureBlocking(false);
+
+        } catch (IOException e) {
+
+            closeQuietly(pipe);
+            closeQuietly(localFile);
+
+            throw new FtpException(PIPE_OPEN_FAILURE_MESSAGE, e);
+        }
+
+        return pipe;
+    }
+
+    /**
+     * Reading and writing local files can block on the disk, so the async transfers leave it to a
+     * thread of their own and the reactor only ever touches the pipe.
+     *
+     * @return
+     * A future that completes once both the copy and the transfer have.
+     */
+    private Future<Void> copyOffReactor(final InputStream from, final OutputStream to, final NioFtpFuture<Void> transfer,
+            final String failureMessage) {
+
+        final NioFtpFuture<Void> result = new NioFtpFuture<Void>();
+
+        fileThreads().execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                IOException copyFailure = null;
+
+                try {
+
+                    session.getBufferPool().copy(from, to);
+
+                } catch (IOException e) {
+
+                    copyFailure = e;
+
+                } finally {
+
+                    closeQuietly(from);
+                    closeQuietly(to);
+                }
+
+                try {
+
+                    transfer.await(timeoutMillis);
+
+                } catch (FtpException e) {
+
+                    result.fail(e);
+                    return;
+                }
+
+                if (null != copyFailure)
+                    result.fail(new FtpException(failureMessage, copyFailure));
+                else
+                    result.complete(null);
+            }
+        });
+
+        return result;
+    }
+
+    private static synchronized ExecutorService fileThreads() {
+
+        if (null == fileThreads)
+            fileThreads = Executors.newCachedThreadPool(new FileThreadFactory());
+
+        return fileThreads;
+    }
+
+    private Pipe openPipe() {
+
+        try {
+
+            return Pipe.open();
+
+        } catch (IOException e) {
+
+            throw new FtpException(PIPE_OPEN_FAILURE_MESSAGE, e);
+        }
+    }
+
+    private void closeQuietly(Pipe pipe) {
+
+        closeQuietly(pipe.sink());
+        closeQuietly(pipe.source());
+    }
+
+    private void closeQuietly(Closeable closeable) {
+
+        try {
+
+            closeable.close();
+
+        } catch (IOException e) {
+
+            // Nothing more can be done with a channel that won't close.
+        }
+    }
+
+    private String nameOf(String remotePath) {
+
+        Path fileName = Paths.get(remotePath).getFileName();
+
+        return null == fileName ? remotePath : fileName.toString();
+    }
+
+    private FtpFile toFtpFileAtPath(FTPFile ftpFile, String fullPath) {
+
+        long mTime = null == ftpFile.getTimestamp() ? 0 : ftpFile.getTimestamp().getTimeInMillis();
+
+        return new FtpFile(nameOf(fullPath), ftpFile.getSize(), fullPath, mTime, ftpFile.isDirectory());
+    }
+
+    private FtpFile toFtpFile(FTPFile ftpFile, String filePath) {
+
+        long mTime = null == ftpFile.getTimestamp() ? 0 : ftpFile.getTimestamp().getTimeInMillis();
+        String fullPath = filePath.endsWith(FILE_SEPARATOR) ? filePath + ftpFile.getName() : filePath + FILE_SEPARATOR + ftpFile.getName();
+
+        return new FtpFile(ftpFile.getName(), ftpFile.getSize(), fullPath, mTime, ftpFile.isDirectory());
+    }
+
+    private String determinePath(String sourcePathWithName, String targetPathWithoutName) {
+
+        Path targetPath = Paths.get(targetPathWithoutName);
+
+        String safePath = targetPath.toString();
+        String fileName = Paths.get(sourcePathWithName).getFileName().toString();
+
+        return safePath + FILE_SEPARATOR + fileName;
+    }
+
+    private static class FileThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "jftp-nio-files");
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
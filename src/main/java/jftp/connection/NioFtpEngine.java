@@ -0,0 +1,249 @@
+package jftp.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jftp.exception.FtpException;
+import jftp.util.BufferPool;
+
+/**
+ * Drives any number of FTP sessions from a small, fixed set of selector threads. Each session is
+ * pinned to one thread, which does all of its control and data channel I/O without ever blocking,
+ * so thousands of sessions need no more threads than the engine was created with.
+ *
+ * The engine's threads are daemons and run until {@link #shutdown()} is called.
+ */
+public class NioFtpEngine {
+
+    private static final String ENGINE_START_FAILURE_MESSAGE = "Unable to open a selector for the NIO FTP engine.";
+    private static final String ENGINE_SHUT_DOWN_MESSAGE = "The NIO FTP engine has been shut down.";
+
+    private final List<Reactor> reactors = new ArrayList<Reactor>();
+    private final AtomicInteger nextReactor = new AtomicInteger();
+
+    private volatile BufferPool bufferPool;
+    private volatile boolean useEpsv = true;
+    private volatile boolean shutDown;
+
+    public NioFtpEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public NioFtpEngine(int selectorThreads) throws FtpException {
+
+        if (selectorThreads < 1)
+            throw new IllegalArgumentException("The engine needs at least one selector thread.");
+
+        try {
+
+            for (int i = 0; i < selectorThreads; i++)
+                reactors.add(new Reactor("jftp-nio-" + i));
+
+        } catch (IOException e) {
+
+            shutdown();
+
+            throw new FtpException(ENGINE_START_FAILURE_MESSAGE, e);
+        }
+
+        for (Reactor reactor : reactors)
+            reactor.start();
+    }
+
+    /**
+     * Where sessions connected from now on take their data transfer buffers. Defaults to
+     * {@link BufferPool#sharedPool()}.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Whether sessions connected from now on ask for data ports with EPSV, falling back to PASV for
+     * good on servers that refuse it. On by default.
+     */
+    public void setUseEpsv(boolean useEpsv) {
+        this.useEpsv = useEpsv;
+    }
+
+    /**
+     * Connects and logs in without blocking the calling thread.
+     *
+     * @return
+     * A future connection, which fails with an FtpException if the server can't be reached or
+     * refuses the login.
+     */
+    public Future<NioFtpConnection> connect(String host, int port, String username, String password) throws FtpException {
+
+        if (shutDown)
+            throw new FtpException(ENGINE_SHUT_DOWN_MESSAGE);
+
+        Reactor reactor = reactors.get((nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.size());
+
+        NioFtpSession session = new NioFtpSession(reactor, new InetSocketAddress(host, port), bufferPool());
+        session.setUseEpsv(useEpsv);
+
+        return session.open(username, password);
+    }
+
+    private BufferPool bufferPool() {
+
+        if (null == bufferPool)
+            bufferPool = BufferPool.sharedPool();
+
+        return bufferPool;
+    }
+
+    public void shutdown() {
+
+        shutDown = true;
+
+        for (Reactor reactor : reactors)
+            reactor.stop();
+    }
+
+    /**
+     * Receives readiness events for a channel registered with a reactor.
+     */
+    interface ReadyHandler {
+
+        void ready(SelectionKey key) throws IOException;
+
+        void failed(IOException e);
+    }
+
+    /**
+     * One selector and the thread that loops over it. Work for the channels it owns is handed to it
+     * with {@link #execute(Runnable)} so that all of their state is only ever touched by its thread.
+     */
+    static class Reactor implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+        private final Thread thread;
+
+        private volatile boolean running = true;
+
+        Reactor(String name) throws IOException {
+
+            selector = Selector.open();
+
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void stop() {
+
+            running = false;
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inReactorThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Sets the events a channel is waited on for, registering it on first use. Must be called from
+         * the reactor's thread.
+         */
+        void interest(SelectableChannel channel, int operations, ReadyHandler handler) throws IOException {
+
+            SelectionKey key = channel.keyFor(selector);
+
+            if (null == key)
+                channel.register(selector, operations, handler);
+            else if (key.isValid())
+                key.interestOps(operations);
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                while (running) {
+
+                    runPendingTasks();
+
+                    selector.select();
+
+                    for (SelectionKey key : selector.selectedKeys())
+                        dispatch(key);
+
+                    selector.selectedKeys().clear();
+                }
+
+            } catch (IOException e) {
+
+                failAll(e);
+
+            } finally {
+
+                closeSelector();
+            }
+        }
+
+        private void runPendingTasks() {
+
+            Runnable task;
+
+            while (null != (task = pendingTasks.poll()))
+                task.run();
+        }
+
+        private void dispatch(SelectionKey key) {
+
+            ReadyHandler handler = (ReadyHandler) key.attachment();
+
+            try {
+
+                if (key.isValid())
+                    handler.ready(key);
+
+            } catch (IOException e) {
+
+                handler.failed(e);
+            }
+        }
+
+        private void failAll(IOException e) {
+
+            for (SelectionKey key : selector.keys())
+                ((ReadyHandler) key.attachment()).failed(e);
+        }
+
+        private void closeSelector() {
+
+            if (!running)
+                failAll(new IOException(ENGINE_SHUT_DOWN_MESSAGE));
+
+            try {
+
+                selector.close();
+
+            } catch (IOException e) {
+
+                // Nothing more can be done with a selector that won't close.
+            }
+        }
+    }
+}
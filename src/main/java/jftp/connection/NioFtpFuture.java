@@ -0,0 +1,105 @@
+package jftp.connection;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jftp.exception.FtpException;
+
+/**
+ * The result of an operation queued on an NIO FTP session. It is completed by the selector thread
+ * driving the session.
+ */
+class NioFtpFuture<T> implements Future<T> {
+
+    private static final String TIMEOUT_MESSAGE = "Timed out after %d ms waiting for the server.";
+    private static final String INTERRUPTED_MESSAGE = "Interrupted while waiting for the server.";
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile T result;
+    private volatile FtpException failure;
+
+    void complete(T result) {
+
+        if (isDone())
+            return;
+
+        this.result = result;
+        done.countDown();
+    }
+
+    void fail(FtpException failure) {
+
+        if (isDone())
+            return;
+
+        this.failure = failure;
+        done.countDown();
+    }
+
+    /**
+     * Blocks until the operation finishes, rethrowing its failure as is.
+     */
+    T await(long timeoutMillis) throws FtpException {
+
+        try {
+
+            if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS))
+                throw new FtpException(String.format(TIMEOUT_MESSAGE, timeoutMillis));
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+            throw new FtpException(INTERRUPTED_MESSAGE, e);
+        }
+
+        if (null != failure)
+            throw failure;
+
+        return result;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+
+        done.await();
+
+        return resultOrFailure();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+
+        if (!done.await(timeout, unit))
+            throw new TimeoutException();
+
+        return resultOrFailure();
+    }
+
+    private T resultOrFailure() throws ExecutionException {
+
+        if (null != failure)
+            throw new ExecutionException(failure);
+
+        return result;
+    }
+}
@@ -0,0 +1,972 @@
+package jftp.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jftp.connection.NioFtpEngine.ReadyHandler;
+import jftp.connection.NioFtpEngine.Reactor;
+import jftp.exception.FtpException;
+import jftp.util.BufferPool;
+
+import org.apache.commons.net.ftp.FTPReply;
+
+/**
+ * One FTP session driven by a reactor thread. Work is queued as tasks, each a small state machine
+ * that sends its commands and moves on as the replies come in, and the tasks run one at a time in
+ * the order they were queued. Transfers open their passive data channel on the same reactor and
+ * pump it alongside the control channel.
+ *
+ * All fields are only touched on the reactor's thread; other threads hand work over through
+ * {@link #submit(Task)}.
+ */
+class NioFtpSession implements ReadyHandler {
+
+    private static final Charset CONTROL_ENCODING = Charset.forName("ISO-8859-1");
+    private static final String CRLF = "\r\n";
+
+    private static final int CONTROL_BUFFER_SIZE = 4096;
+    private static final int REPLY_CODE_LENGTH = 3;
+
+    private static final String DEFAULT_SYSTEM_TYPE = "UNIX";
+
+    private static final Pattern PASV_ADDRESS = Pattern.compile("(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3})");
+    private static final Pattern EPSV_PORT = Pattern.compile("\\((.)\\1\\1(\\d{1,5})\\1\\)");
+
+    private static final String PASV = "PASV";
+    private static final String EPSV = "EPSV";
+
+    private static final String CONNECTION_ERROR_MESSAGE = "Unable to connect to host %s on port %d";
+    private static final String CONNECTION_LOST_MESSAGE = "Lost the control connection to host %s on port %d";
+    private static final String STATUS_ERROR_MESSAGE = "The host %s on port %d returned a bad status code.";
+    private static final String UNABLE_TO_LOGIN_MESSAGE = "Unable to login for user %s";
+    private static final String SESSION_CLOSED_MESSAGE = "The session has been closed.";
+    private static final String SESSION_ABORTED_MESSAGE = "The session was aborted.";
+
+    private final Reactor reactor;
+    private final InetSocketAddress address;
+    private final BufferPool bufferPool;
+
+    private SocketChannel control;
+    private boolean connected;
+
+    private final ByteBuffer controlBuffer = ByteBuffer.allocate(CONTROL_BUFFER_SIZE);
+    private final StringBuilder currentLine = new StringBuilder();
+    private final List<String> replyLines = new ArrayList<String>();
+    private final Deque<ByteBuffer> pendingWrites = new ArrayDeque<ByteBuffer>();
+
+    private final Deque<Task<?>> tasks = new ArrayDeque<Task<?>>();
+    private Task<?> currentTask;
+
+    private volatile boolean closed;
+    private volatile FtpException closeReason;
+
+    private String systemType = DEFAULT_SYSTEM_TYPE;
+    private boolean useEpsv = true;
+
+    NioFtpSession(Reactor reactor, InetSocketAddress address, BufferPool bufferPool) {
+
+        this.reactor = reactor;
+        this.address = address;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Whether transfers ask for their data port with EPSV before PASV. Must be set before the session
+     * is opened.
+     */
+    void setUseEpsv(boolean useEpsv) {
+        this.useEpsv = useEpsv;
+    }
+
+    /**
+     * Connects the control channel and logs in.
+     */
+    Future<NioFtpConnection> open(String username, String password) {
+        return submit(new LoginTask(username, password));
+    }
+
+    NioFtpFuture<FtpReply> command(String command) {
+        return submit(new CommandTask(command));
+    }
+
+    /**
+     * Downloads a remote file into the given channel, which the transfer takes over and closes once
+     * it is done. A selectable channel must be in non-blocking mode.
+     */
+    NioFtpFuture<Void> retrieve(String remoteFilePath, WritableByteChannel destination, String failureMessage) {
+        return retrieve(remoteFilePath, 0, destination, failureMessage);
+    }
+
+    /**
+     * Downloads a remote file from the given offset onwards, sending REST first if it isn't zero.
+     */
+    NioFtpFuture<Void> retrieve(String remoteFilePath, long offset, WritableByteChannel destination, String failureMessage) {
+        return submit(new TransferTask("RETR " + remoteFilePath, offset, destination, null, failureMessage));
+    }
+
+    /**
+     * Downloads a remote file by reading the data connection straight into the buffer, from its
+     * position onwards. Fails if the file is larger than the space left in the buffer.
+     */
+    NioFtpFuture<Void> retrieve(String remoteFilePath, ByteBuffer destination, String failureMessage) {
+        return submit(new TransferTask("RETR " + remoteFilePath, destination, failureMessage));
+    }
+
+    /**
+     * Uploads the given channel's contents to a remote file. The transfer takes over the channel and
+     * closes it once it is done. A selectable channel must be in non-blocking mode.
+     */
+    NioFtpFuture<Void> store(String remoteFilePath, ReadableByteChannel source, String failureMessage) {
+        return store(remoteFilePath, 0, source, failureMessage);
+    }
+
+    /**
+     * Uploads into a remote file from the given offset onwards, sending REST first if it isn't zero.
+     */
+    NioFtpFuture<Void> store(String remoteFilePath, long offset, ReadableByteChannel source, String failureMessage) {
+        return submit(new TransferTask("STOR " + remoteFilePath, offset, null, source, failureMessage));
+    }
+
+    /**
+     * As {@link #store}, but appends to the remote file with APPE.
+     */
+    NioFtpFuture<Void> append(String remoteFilePath, ReadableByteChannel source, String failureMessage) {
+        return submit(new TransferTask("APPE " + remoteFilePath, 0, null, source, failureMessage));
+    }
+
+    /**
+     * Lists a remote path, or the working directory if it is null, in the server's own format.
+     */
+    NioFtpFuture<Void> list(String remotePath, WritableByteChannel destination, String failureMessage) {
+        return submit(new TransferTask(null == remotePath ? "LIST" : "LIST " + remotePath, 0, destination, null, failureMessage));
+    }
+
+    /**
+     * Sends QUIT once the queued tasks are done, then closes the control channel.
+     */
+    NioFtpFuture<Void> close() {
+        return submit(new QuitTask());
+    }
+
+    /**
+     * Closes the session straight away, without QUIT, failing the task in progress and any queued.
+     */
+    void abort() {
+
+        reactor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                closeWith(new FtpException(SESSION_ABORTED_MESSAGE));
+            }
+        });
+    }
+
+    /**
+     * @return
+     * The server's reply to SYST, used to pick a parser for its listings.
+     */
+    String getSystemType() {
+        return systemType;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    private <T> NioFtpFuture<T> submit(final Task<T> task) {
+
+        if (closed) {
+            task.abort(closeReason);
+            return task.future;
+        }
+
+        reactor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (closed) {
+                    task.abort(closeReason);
+                    return;
+                }
+
+                tasks.add(task);
+
+                startNextTask();
+            }
+        });
+
+        return task.future;
+    }
+
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+
+        if (!connected) {
+
+            if (key.isConnectable() && control.finishConnect())
+                onConnected();
+
+            return;
+        }
+
+        if (key.isReadable())
+            readReplies();
+
+        if (!closed && key.isWritable())
+            flushWrites();
+    }
+
+    @Override
+    public void failed(IOException e) {
+
+        String message = connected ? CONNECTION_LOST_MESSAGE : CONNECTION_ERROR_MESSAGE;
+
+        closeWith(new FtpException(String.format(message, address.getHostString(), address.getPort()), e));
+    }
+
+    private void onConnected() throws IOException {
+
+        connected = true;
+
+        flushWrites();
+    }
+
+    private void startNextTask() {
+
+        if (null != currentTask || tasks.isEmpty())
+            return;
+
+        currentTask = tasks.poll();
+
+        try {
+
+            currentTask.start();
+
+        } catch (IOException e) {
+
+            currentTask.fail(e);
+        }
+    }
+
+    private void taskDone(Task<?> task) {
+
+        if (currentTask != task)
+            return;
+
+        currentTask = null;
+
+        startNextTask();
+    }
+
+    private void send(String command) {
+
+        pendingWrites.add(ByteBuffer.wrap((command + CRLF).getBytes(CONTROL_ENCODING)));
+
+        if (!connected)
+            return;
+
+        try {
+
+            flushWrites();
+
+        } catch (IOException e) {
+
+            failed(e);
+        }
+    }
+
+    private void flushWrites() throws IOException {
+
+        while (!pendingWrites.isEmpty()) {
+
+            ByteBuffer head = pendingWrites.peek();
+
+            control.write(head);
+
+            if (head.hasRemaining())
+                break;
+
+            pendingWrites.poll();
+        }
+
+        int operations = pendingWrites.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+
+        reactor.interest(control, operations, this);
+    }
+
+    private void readReplies() throws IOException {
+
+        if (control.read(controlBuffer) < 0)
+            throw new IOException("The server closed the control connection.");
+
+        controlBuffer.flip();
+
+        while (controlBuffer.hasRemaining() && !closed) {
+
+            char next = (char) (controlBuffer.get() & 0xff);
+
+            if (next != '\n') {
+                currentLine.append(next);
+                continue;
+            }
+
+            int end = currentLine.length();
+
+            if (end > 0 && currentLine.charAt(end - 1) == '\r')
+                end--;
+
+            String line = currentLine.substring(0, end);
+            currentLine.setLength(0);
+
+            onLine(line);
+        }
+
+        controlBuffer.clear();
+    }
+
+    /**
+     * A reply is either a single "123 text" line, or starts with "123-text" and runs until a line
+     * starting with "123 ".
+     */
+    private void onLine(String line) throws IOException {
+
+        replyLines.add(line);
+
+        String first = replyLines.get(0);
+
+        if (first.length() < REPLY_CODE_LENGTH)
+            throw new IOException("Malformed reply from the server: " + first);
+
+        boolean multiLine = first.length() > REPLY_CODE_LENGTH && first.charAt(REPLY_CODE_LENGTH) == '-';
+
+        if (multiLine && (replyLines.size() == 1 || !isLastLineOf(first, line)))
+            return;
+
+        StringBuilder text = new StringBuilder();
+
+        for (String replyLine : replyLines) {
+
+            if (text.length() > 0)
+                text.append('\n');
+
+            text.append(replyLine);
+        }
+
+        replyLines.clear();
+
+        try {
+
+            onReply(new FtpReply(Integer.parseInt(first.substring(0, REPLY_CODE_LENGTH)), text.toString()));
+
+        } catch (NumberFormatException e) {
+
+            throw new IOException("Malformed reply from the server: " + first, e);
+        }
+    }
+
+    private boolean isLastLineOf(String first, String line) {
+        return line.length() > REPLY_CODE_LENGTH && line.startsWith(first.substring(0, REPLY_CODE_LENGTH)) && line.charAt(REPLY_CODE_LENGTH) == ' ';
+    }
+
+    private void onReply(FtpReply reply) {
+
+        if (null == currentTask) {
+
+            if (reply.getCode() == FTPReply.SERVICE_NOT_AVAILABLE)
+                closeWith(new FtpException(reply.getText()));
+
+            return;
+        }
+
+        Task<?> task = currentTask;
+
+        try {
+
+            task.onReply(reply);
+
+        } catch (IOException e) {
+
+            task.fail(e);
+        }
+    }
+
+    private void closeWith(FtpException reason) {
+
+        if (closed)
+            return;
+
+        closeReason = reason;
+        closed = true;
+
+        closeQuietly(control);
+
+        if (null != currentTask)
+            currentTask.abort(reason);
+
+        currentTask = null;
+
+        while (!tasks.isEmpty())
+            tasks.poll().abort(reason);
+    }
+
+    private static void closeQuietly(Channel channel) {
+
+        if (null == channel)
+            return;
+
+        try {
+
+            channel.close();
+
+        } catch (IOException e) {
+
+            // Nothing more can be done with a channel that won't close.
+        }
+    }
+
+    abstract class Task<T> {
+
+        final NioFtpFuture<T> future = new NioFtpFuture<T>();
+
+        abstract void start() throws IOException;
+
+        abstract void onReply(FtpReply reply) throws IOException;
+
+        /**
+         * Releases anything the task holds and fails it, without moving on to the next task.
+         */
+        void abort(FtpException reason) {
+            future.fail(reason);
+        }
+
+        final void finish(T result) {
+
+            future.complete(result);
+
+            taskDone(this);
+        }
+
+        final void fail(FtpException failure) {
+
+            abort(failure);
+
+            taskDone(this);
+        }
+
+        void fail(IOException e) {
+            fail(new FtpException(e.getMessage(), e));
+        }
+    }
+
+    private class CommandTask extends Task<FtpReply> {
+
+        private final String command;
+
+        CommandTask(String command) {
+            this.command = command;
+        }
+
+        @Override
+        void start() {
+            send(command);
+        }
+
+        @Override
+        void onReply(FtpReply reply) {
+
+            if (FTPReply.isPositivePreliminary(reply.getCode()))
+                return;
+
+            finish(reply);
+        }
+    }
+
+    private class LoginTask extends Task<NioFtpConnection> {
+
+        private final String username;
+        private final String password;
+
+        private String awaiting = "greeting";
+
+        LoginTask(String username, String password) {
+
+            this.username = username;
+            this.password = password;
+        }
+
+        /**
+         * Connecting only once the task is current makes sure it is there to receive the greeting.
+         */
+        @Override
+        void start() throws IOException {
+
+            control = SocketChannel.open();
+            control.configureBlocking(false);
+
+            if (control.connect(address))
+                onConnected();
+            else
+                reactor.interest(control, SelectionKey.OP_CONNECT, NioFtpSession.this);
+        }
+
+        @Override
+        void fail(IOException e) {
+            failed(e);
+        }
+
+        @Override
+        void onReply(FtpReply reply) {
+
+            if (FTPReply.isPositivePreliminary(reply.getCode()))
+                return;
+
+            if ("greeting".equals(awaiting)) {
+
+                if (!reply.isPositiveCompletion())
+                    refuse(String.format(STATUS_ERROR_MESSAGE, address.getHostString(), address.getPort()));
+                else
+                    sendNext("USER", "USER " + username);
+
+            } else if ("USER".equals(awaiting) && reply.isPositiveIntermediate()) {
+
+                sendNext("PASS", "PASS " + password);
+
+            } else if ("USER".equals(awaiting) || "PASS".equals(awaiting)) {
+
+                if (!reply.isPositiveCompletion())
+                    refuse(String.format(UNABLE_TO_LOGIN_MESSAGE, username));
+                else
+                    sendNext("TYPE", "TYPE I");
+
+            } else if ("TYPE".equals(awaiting)) {
+
+                if (!reply.isPositiveCompletion())
+                    refuse("Unable to switch to binary mode.");
+                else
+                    sendNext("SYST", "SYST");
+
+            } else {
+
+                if (reply.isPositiveCompletion() && !reply.getArgument().isEmpty())
+                    systemType = reply.getArgument();
+
+                finish(new NioFtpConnection(NioFtpSession.this));
+            }
+        }
+
+        private void sendNext(String command, String line) {
+
+            awaiting = command;
+            send(line);
+        }
+
+        /**
+         * A session that never logged in is of no use to anyone, so it is closed along with the task.
+         */
+        private void refuse(String message) {
+            closeWith(new FtpException(message));
+        }
+    }
+
+    private class QuitTask extends Task<Void> {
+
+        @Override
+        void start() {
+            send("QUIT");
+        }
+
+        @Override
+        void onReply(FtpReply reply) {
+
+            closeWith(new FtpException(SESSION_CLOSED_MESSAGE));
+
+            future.complete(null);
+        }
+
+        @Override
+        void abort(FtpException reason) {
+
+            // The session ending is exactly what was asked for.
+            future.complete(null);
+        }
+    }
+
+    /**
+     * Sends EPSV or PASV, connects the data channel, sends the transfer command and then pumps data between
+     * the data channel and a local channel. The task is done once the data has all been moved and the
+     * server has confirmed the transfer, whichever comes last.
+     *
+     * A transfer that fails locally once its command is sent still waits for the server's final reply
+     * before the next task starts, as that reply would otherwise be taken as the next command's.
+     */
+    private class TransferTask extends Task<Void> implements ReadyHandler {
+
+        private final String command;
+        private final long restartOffset;
+        private final String failureMessage;
+
+        private final ReadableByteChannel input;
+        private final WritableByteChannel output;
+        private final Channel localChannel;
+        private final ByteBuffer target;
+
+        private ByteBuffer buffer;
+
+        private String passiveCommand;
+        private SocketChannel dataChannel;
+        private boolean restartPending;
+        private boolean dataConnected;
+        private boolean endOfInput;
+        private boolean dataComplete;
+        private boolean replyComplete;
+        private boolean commandSent;
+        private boolean abandoned;
+
+        TransferTask(String command, long restartOffset, WritableByteChannel destination, ReadableByteChannel source,
+                String failureMessage) {
+
+            this.command = command;
+            this.restartOffset = restartOffset;
+            this.failureMessage = failureMessage;
+            this.localChannel = null == destination ? source : destination;
+
+            if (null == destination) {
+                input = source;
+                output = null;
+            } else {
+                input = null;
+                output = destination;
+            }
+
+            target = null;
+        }
+
+        TransferTask(String command, ByteBuffer target, String failureMessage) {
+
+            this.command = command;
+            this.restartOffset = 0;
+            this.failureMessage = failureMessage;
+            this.localChannel = null;
+            this.input = null;
+            this.output = null;
+            this.target = target;
+
+            // Only ever used to find out whether more data follows once the target is full.
+            buffer = ByteBuffer.allocate(1);
+        }
+
+        @Override
+        void start() {
+
+            restartPending = restartOffset > 0;
+
+            send(restartPending ? "REST " + restartOffset : passiveCommand());
+        }
+
+        @Override
+        void onReply(FtpReply reply) throws IOException {
+
+            if (abandoned) {
+
+                if (!FTPReply.isPositivePreliminary(reply.getCode()))
+                    taskDone(this);
+
+                return;
+            }
+
+            if (restartPending) {
+
+                restartPending = false;
+
+                if (reply.getCode() != FTPReply.FILE_ACTION_PENDING)
+                    fail(new FtpException(failureMessage));
+                else
+                    send(passiveCommand());
+
+                return;
+            }
+
+            if (null == dataChannel) {
+
+                if (EPSV.equals(passiveCommand))
+                    onExtendedPassiveReply(reply);
+                else
+                    onPassiveReply(reply);
+
+                return;
+            }
+
+            if (FTPReply.isPositivePreliminary(reply.getCode()))
+                return;
+
+            if (!reply.isPositiveCompletion()) {
+                fail(new FtpException(failureMessage));
+                return;
+            }
+
+            replyComplete = true;
+
+            finishIfDone();
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+
+            if (!dataConnected) {
+
+                if (key.isConnectable() && dataChannel.finishConnect())
+                    onDataConnected();
+
+                return;
+            }
+
+            pump();
+        }
+
+        @Override
+        public void failed(IOException e) {
+
+            if (currentTask == this)
+                fail(e);
+        }
+
+        @Override
+        void fail(IOException e) {
+
+            if (abandoned)
+                return;
+
+            FtpException failure = new FtpException(failureMessage, e);
+
+            if (!commandSent || replyComplete) {
+                fail(failure);
+                return;
+            }
+
+            // Closing the data channel makes the server send its final reply straight away.
+            abandoned = true;
+
+            abort(failure);
+        }
+
+        @Override
+        void abort(FtpException reason) {
+
+            closeQuietly(dataChannel);
+            closeQuietly(localChannel);
+            releaseBuffer();
+
+            super.abort(reason);
+        }
+
+        private String passiveCommand() {
+
+            passiveCommand = useEpsv ? EPSV : PASV;
+
+            return passiveCommand;
+        }
+
+        /**
+         * EPSV only gives a port, on the host the control channel is connected to, so unlike PASV it
+         * can't be given a wrong address by a server behind NAT. A server that doesn't implement it is
+         * asked for PASV from then on, sparing later transfers the extra round trip.
+         */
+        private void onExtendedPassiveReply(FtpReply reply) throws IOException {
+
+            Matcher passivePort = EPSV_PORT.matcher(reply.getText());
+
+            if (reply.getCode() == FTPReply.ENTERING_EPSV_MODE && passivePort.find()) {
+                connectDataChannel(new InetSocketAddress(controlHost(), Integer.parseInt(passivePort.group(2))));
+                return;
+            }
+
+            if (FTPReply.isNegativePermanent(reply.getCode()))
+                useEpsv = false;
+
+            passiveCommand = PASV;
+
+            send(PASV);
+        }
+
+        private void onPassiveReply(FtpReply reply) throws IOException {
+
+            Matcher passiveAddress = PASV_ADDRESS.matcher(reply.getText());
+
+            if (reply.getCode() != FTPReply.ENTERING_PASSIVE_MODE || !passiveAddress.find()) {
+                fail(new FtpException(failureMessage));
+                return;
+            }
+
+            String host = passiveAddress.group(1) + "." + passiveAddress.group(2) + "." + passiveAddress.group(3) + "."
+                    + passiveAddress.group(4);
+            int port = (Integer.parseInt(passiveAddress.group(5)) << 8) | Integer.parseInt(passiveAddress.group(6));
+
+            connectDataChannel(new InetSocketAddress(passiveHost(host), port));
+        }
+
+        /**
+         * A server behind NAT often advertises its private address in the PASV reply, which only
+         * works from inside its network, so the control channel's host is used instead.
+         */
+        private InetAddress passiveHost(String host) throws IOException {
+
+            InetAddress passiveHost = InetAddress.getByName(host);
+            InetAddress controlHost = controlHost();
+
+            if (passiveHost.isSiteLocalAddress() && !controlHost.isSiteLocalAddress() && !controlHost.isLoopbackAddress())
+                return controlHost;
+
+            return passiveHost;
+        }
+
+        private InetAddress controlHost() {
+            return control.socket().getInetAddress();
+        }
+
+        private void connectDataChannel(InetSocketAddress passiveAddress) throws IOException {
+
+            dataChannel = SocketChannel.open();
+            dataChannel.configureBlocking(false);
+
+            if (dataChannel.connect(passiveAddress))
+                onDataConnected();
+            else
+                reactor.interest(dataChannel, SelectionKey.OP_CONNECT, this);
+        }
+
+        private void onDataConnected() throws IOException {
+
+            dataConnected = true;
+
+            // Taken only now so that tasks queued behind a long transfer don't hold buffers.
+            if (null == buffer)
+                buffer = bufferPool.acquireDirect();
+
+            send(command);
+
+            commandSent = true;
+
+            pump();
+        }
+
+        /**
+         * Moves as much data as the channels will take without blocking, then waits on whichever side
+         * held things up.
+         */
+        private void pump() throws IOException {
+
+            if (null != target) {
+                fill();
+                return;
+            }
+
+            ReadableByteChannel from = null == input ? dataChannel : input;
+            WritableByteChannel to = null == output ? dataChannel : output;
+
+            boolean progress = true;
+
+            while (progress) {
+
+                progress = false;
+
+                if (!endOfInput && buffer.hasRemaining()) {
+
+                    int read = from.read(buffer);
+
+                    if (read < 0)
+                        endOfInput = true;
+
+                    progress = read != 0;
+                }
+
+                buffer.flip();
+
+                if (buffer.hasRemaining() && to.write(buffer) > 0)
+                    progress = true;
+
+                buffer.compact();
+
+                if (endOfInput && buffer.position() == 0) {
+                    onDataComplete();
+                    return;
+                }
+            }
+
+            waitOn(from, !endOfInput && buffer.hasRemaining() ? SelectionKey.OP_READ : 0);
+            waitOn(to, buffer.position() > 0 ? SelectionKey.OP_WRITE : 0);
+        }
+
+        private void fill() throws IOException {
+
+            int read;
+
+            while ((read = dataChannel.read(target.hasRemaining() ? target : buffer)) > 0) {
+
+                if (buffer.position() > 0) {
+                    fail(new IOException("The file is larger than the space left in the buffer."));
+                    return;
+                }
+            }
+
+            if (read < 0)
+                onDataComplete();
+            else
+                waitOn(dataChannel, SelectionKey.OP_READ);
+        }
+
+        private void waitOn(Channel channel, int operations) throws IOException {
+
+            if (channel instanceof SelectableChannel)
+                reactor.interest((SelectableChannel) channel, operations, this);
+        }
+
+        /**
+         * Closing the data channel is what tells the server an upload is complete.
+         */
+        private void onDataComplete() throws IOException {
+
+            dataComplete = true;
+
+            dataChannel.close();
+
+            if (null != localChannel)
+                localChannel.close();
+
+            releaseBuffer();
+
+            finishIfDone();
+        }
+
+        private void releaseBuffer() {
+
+            if (null != buffer && null == target)
+                bufferPool.release(buffer);
+
+            buffer = null;
+        }
+
+        private void finishIfDone() {
+
+            if (dataComplete && replyComplete)
+                finish(null);
+        }
+    }
+}
@@ -1,19 +1,49 @@
 package jftp.connection;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import jftp.connection.SftpRequestPipeline.OffsetWriteOperation;
+import jftp.connection.SftpRequestPipeline.Operation;
+import jftp.connection.SftpRequestPipeline.ParallelReadOperation;
+import jftp.connection.SftpRequestPipeline.ParallelWriteOperation;
+import jftp.connection.SftpRequestPipeline.ReadFileOperation;
+import jftp.connection.SftpRequestPipeline.StatOperation;
+import jftp.connection.SftpRequestPipeline.StatusOperation;
 import jftp.exception.FtpException;
+import jftp.util.BufferPool;
+import jftp.util.ByteBufferOutputStream;
 import jftp.util.FileStreamFactory;
+import jftp.util.TarReader;
+import jftp.util.TarWriter;
 
+import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.ChannelSftp.LsEntrySelector;
+import com.jcraft.jsch.ChannelSubsystem;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
 
 public class SftpConnection implements Connection {
@@ -21,18 +51,84 @@ public class SftpConnection implements Connection {
     private static final String COULD_NOT_FIND_FILE_MESSAGE = "Could not find file: %s";
     private static final String DIRECTORY_DOES_NOT_EXIST_MESSAGE = "Directory %s does not exist.";
     private static final String FILE_LISTING_ERROR_MESSAGE = "Unable to list files in directory %s";
+    private static final String DELETE_FAILURE_MESSAGE = "Unable to delete %s";
+    private static final String REMOVE_DIRECTORY_FAILURE_MESSAGE = "Unable to remove directory %s";
+    private static final String RENAME_FAILURE_MESSAGE = "Unable to rename %s to %s";
+    private static final String MAKE_DIRECTORIES_FAILURE_MESSAGE = "Unable to create directory %s";
+    private static final String STAT_FAILURE_MESSAGE = "Unable to find %s";
+    private static final String TOO_LARGE_FOR_BUFFER_MESSAGE = "The file %s is %d bytes, too large for a buffer.";
+    private static final String KEEP_ALIVE_FAILURE_MESSAGE = "The server did not answer the keep-alive.";
+    private static final String PIPELINE_OPEN_ERROR_MESSAGE = "Unable to open a pipelined SFTP channel";
+    private static final String BATCH_ERROR_MESSAGE = "Unable to complete batch %s";
+    private static final String BATCH_FAILURE_MESSAGE = "Unable to %s files: %s";
+    private static final String ARCHIVE_FAILURE_MESSAGE = "Unable to %s files through a remote tar";
+    private static final String DIGEST_FAILURE_MESSAGE = "Unable to checksum %s on the server";
+    private static final String EXEC_FAILURE_MESSAGE = "%s: %s";
     private static final String FILE_SEPARATOR = "/";
+    private static final String SUBSYSTEM = "subsystem";
+    private static final String EXEC = "exec";
+    private static final String SFTP = "sftp";
 
     private static final int MILLIS = 1000;
+    private static final int DEFAULT_TRANSFER_REQUEST_SIZE = 32768;
+    private static final int DEFAULT_TRANSFER_REQUESTS_IN_FLIGHT = 64;
+    private static final int ARCHIVE_COMMAND_LIMIT = 65536;
+    private static final int ARCHIVE_POLL_MILLIS = 10;
+    private static final int DEFAULT_EXIT_TIMEOUT_MILLIS = 60000;
+    private static final int ERROR_OUTPUT_LIMIT = 4096;
+    private static final int MD5_HEX_LENGTH = 32;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
 
     private ChannelSftp channel;
+    private volatile ChannelSubsystem pipelineChannel;
+    private volatile ChannelExec execChannel;
+    private ErrorOutput execErrors;
+    private SftpRequestPipeline requestPipeline;
+    private int requestWindow;
+
+    private boolean pipelinedTransfers;
+    private int transferRequestSize = DEFAULT_TRANSFER_REQUEST_SIZE;
+    private int transferRequestsInFlight = DEFAULT_TRANSFER_REQUESTS_IN_FLIGHT;
 
     private FileStreamFactory fileStreamFactory = new FileStreamFactory();
+    private BufferPool bufferPool;
 
     public SftpConnection(ChannelSftp channel) {
         this.channel = channel;
     }
 
+    @Override
+    public void append(InputStream source, String remoteFilePath) throws FtpException {
+
+        try {
+
+            channel.put(source, remoteFilePath, ChannelSftp.APPEND);
+
+        } catch (SftpException e) {
+
+            throw new FtpException("Upload failed to complete.", e);
+        }
+    }
+
+    /**
+     * Disconnects the SFTP channel, along with any pipeline or exec channel in use, which wakes JSch
+     * calls waiting on the server.
+     */
+    @Override
+    public void abort() {
+
+        channel.disconnect();
+
+        ChannelSubsystem pipeline = pipelineChannel;
+        ChannelExec exec = execChannel;
+
+        if (null != pipeline)
+            pipeline.disconnect();
+
+        if (null != exec)
+            exec.disconnect();
+    }
+
     @Override
     public void changeDirectory(String directory) throws FtpException {
 
@@ -46,9 +142,27 @@ public class SftpConnection implements Connection {
         }
     }
 
+    @Override
+    public void delete(String remoteFilePath) throws FtpException {
+
+        try {
+
+            channel.rm(remoteFilePath);
+
+        } catch (SftpException e) {
+
+            throw new FtpException(String.format(DELETE_FAILURE_MESSAGE, remoteFilePath), e);
+        }
+    }
+
     @Override
     public void download(String remoteFilePath, String localDirectory)  throws FtpException {
 
+        if (pipelinedTransfers) {
+            pipelinedDownload(remoteFilePath, localDirectory);
+            return;
+        }
+
         try {
 
             channel.get(remoteFilePath, localDirectory);
@@ -59,6 +173,73 @@ public class SftpConnection implements Connection {
         }
     }
     
+    @Override
+    public void download(String remoteFilePath, OutputStream destination) throws FtpException {
+
+        try {
+
+            channel.get(remoteFilePath, destination);
+
+        } catch (SftpException e) {
+
+            throw new FtpException("Unable to download file " + remoteFilePath, e);
+        }
+    }
+
+    @Override
+    public void download(String remoteFilePath, OutputStream destination, long offset) throws FtpException {
+
+        try {
+
+            channel.get(remoteFilePath, destination, null, ChannelSftp.RESUME, offset);
+
+        } catch (SftpException e) {
+
+            throw new FtpException("Unable to download file " + remoteFilePath, e);
+        }
+    }
+
+    @Override
+    public void download(String remoteFilePath, ByteBuffer destination) throws FtpException {
+        download(remoteFilePath, new ByteBufferOutputStream(destination));
+    }
+
+    @Override
+    public ByteBuffer download(String remoteFilePath) throws FtpException {
+
+        long size = stat(remoteFilePath).getSize();
+
+        if (size > Integer.MAX_VALUE)
+            throw new FtpException(String.format(TOO_LARGE_FOR_BUFFER_MESSAGE, remoteFilePath, size));
+
+        ByteBuffer destination = ByteBuffer.allocateDirect((int) size);
+
+        download(remoteFilePath, new ByteBufferOutputStream(destination));
+
+        destination.flip();
+
+        return destination;
+    }
+
+    /**
+     * Resolves the working directory on the server, as pwd alone is answered from JSch's own state.
+     */
+    @Override
+    public void keepAlive() throws FtpException {
+
+        if (!channel.isConnected())
+            throw new FtpException(KEEP_ALIVE_FAILURE_MESSAGE);
+
+        try {
+
+            channel.realpath(".");
+
+        } catch (SftpException e) {
+
+            throw new FtpException(KEEP_ALIVE_FAILURE_MESSAGE, e);
+        }
+    }
+
     @Override
     public List<FtpFile> listFiles() throws FtpException {
 
@@ -94,6 +275,72 @@ public class SftpConnection implements Connection {
         }
     }
 
+    /**
+     * Entries are offered to the filter as JSch reads them, so only matching ones are kept.
+     */
+    @Override
+    public List<FtpFile> listFiles(String remotePath, final FtpFileFilter filter) throws FtpException {
+
+        final List<FtpFile> files = new ArrayList<FtpFile>();
+
+        String originalWorkingDirectory = printWorkingDirectory();
+
+        changeDirectory(remotePath);
+
+        final String newWorkingDirectory = printWorkingDirectory();
+
+        try {
+
+            channel.ls(newWorkingDirectory, new LsEntrySelector() {
+
+                @Override
+                public int select(LsEntry entry) {
+
+                    SftpATTRS attributes = entry.getAttrs();
+
+                    if (filter.accept(entry.getFilename(), attributes.getSize(), (long) attributes.getMTime() * MILLIS, attributes.isDir()))
+                        files.add(toFtpFile(entry, newWorkingDirectory));
+
+                    return CONTINUE;
+                }
+            });
+
+        } catch (SftpException e) {
+
+            throw new FtpException(String.format(FILE_LISTING_ERROR_MESSAGE, remotePath), e);
+
+        } finally {
+
+            changeDirectory(originalWorkingDirectory);
+        }
+
+        return files;
+    }
+
+    @Override
+    public void makeDirectories(String remoteDirectory) throws FtpException {
+
+        String path = remoteDirectory.startsWith(FILE_SEPARATOR) ? FILE_SEPARATOR : "";
+
+        try {
+
+            for (String segment : remoteDirectory.split(FILE_SEPARATOR)) {
+
+                if (segment.isEmpty())
+                    continue;
+
+                path = path.isEmpty() || path.endsWith(FILE_SEPARATOR) ? path + segment : path + FILE_SEPARATOR + segment;
+
+                if (!exists(path))
+                    channel.mkdir(path);
+            }
+
+        } catch (SftpException e) {
+
+            throw new FtpException(String.format(MAKE_DIRECTORIES_FAILURE_MESSAGE, path), e);
+        }
+    }
+
     @Override
     public String printWorkingDirectory() throws FtpException {
         
@@ -107,9 +354,58 @@ public class SftpConnection implements Connection {
         }
     }
 
+    @Override
+    public void removeDirectory(String remoteDirectory) throws FtpException {
+
+        try {
+
+            channel.rmdir(remoteDirectory);
+
+        } catch (SftpException e) {
+
+            throw new FtpException(String.format(REMOVE_DIRECTORY_FAILURE_MESSAGE, remoteDirectory), e);
+        }
+    }
+
+    @Override
+    public void rename(String fromRemotePath, String toRemotePath) throws FtpException {
+
+        try {
+
+            channel.rename(fromRemotePath, toRemotePath);
+
+        } catch (SftpException e) {
+
+            throw new FtpException(String.format(RENAME_FAILURE_MESSAGE, fromRemotePath, toRemotePath), e);
+        }
+    }
+
+    @Override
+    public FtpFile stat(String remotePath) throws FtpException {
+
+        try {
+
+            SftpATTRS attributes = channel.stat(remotePath);
+
+            String name = SftpRequestPipeline.nameOf(remotePath);
+            long mTime = (long) attributes.getMTime() * MILLIS;
+
+            return new FtpFile(name, attributes.getSize(), remotePath, mTime, attributes.isDir());
+
+        } catch (SftpException e) {
+
+            throw new FtpException(String.format(STAT_FAILURE_MESSAGE, remotePath), e);
+        }
+    }
+
     @Override
     public void upload(String localFilePath, String remoteDirectory) throws FtpException {
 
+        if (pipelinedTransfers) {
+            pipelinedUpload(localFilePath, remoteDirectory);
+            return;
+        }
+
         try {
 
             FileInputStream localFileInputStream = fileStreamFactory.createInputStream(localFilePath);
@@ -130,24 +426,733 @@ public class SftpConnection implements Connection {
         }
     }
 
-    private String determineRemotePath(String localFilePath, String remoteDirectory) {
-        
-        Path remotePath = Paths.get(remoteDirectory);
+    @Override
+    public void upload(InputStream source, String remoteFilePath) throws FtpException {
 
-        String safeRemotePath = remotePath.toString();
-        String uploadAs = Paths.get(localFilePath).getFileName().toString();
+        try {
 
-        return safeRemotePath + FILE_SEPARATOR + uploadAs;
+            channel.put(source, remoteFilePath);
+
+        } catch (SftpException e) {
+
+            throw new FtpException("Upload failed to complete.", e);
+        }
     }
 
-    private FtpFile toFtpFile(LsEntry lsEntry, String filePath) throws SftpException {
+    /**
+     * Writes through the request pipeline, as JSch can only write at an offset in append mode, which
+     * OpenSSH takes to mean every write goes to the end of the file.
+     */
+    @Override
+    public void upload(InputStream source, String remoteFilePath, long offset) throws FtpException {
 
-        String name = lsEntry.getFilename();
-        long fileSize = lsEntry.getAttrs().getSize();
-        String fullPath = String.format("%s%s%s", filePath, FILE_SEPARATOR, lsEntry.getFilename());
-        int mTime = lsEntry.getAttrs().getMTime();
-        boolean directory = lsEntry.getAttrs().isDir();
+        OffsetWriteOperation write = new OffsetWriteOperation(source, toAbsolutePath(remoteFilePath), offset, transferRequestSize);
 
-        return new FtpFile(name, fileSize, fullPath, (long) mTime * MILLIS, directory);
+        try {
+
+            requestPipeline().execute(Arrays.asList(write), transferRequestsInFlight);
+
+        } catch (IOException e) {
+
+            closeRequestPipeline();
+
+            throw new FtpException("Upload may not have completed.", e);
+        }
+
+        if (write.hasFailed())
+            throw new FtpException("Upload failed to complete: " + write.getFailure());
+    }
+
+    /**
+     * When enabled, download and upload keep many read or write requests outstanding for a single
+     * file instead of relying on JSch's get and put, which is what lets one transfer fill a
+     * high-latency link. Off by default.
+     */
+    public void setPipelinedTransfers(boolean pipelinedTransfers) {
+        this.pipelinedTransfers = pipelinedTransfers;
+    }
+
+    /**
+     * Bytes asked for by each read or write request of a pipelined transfer, like OpenSSH's -B.
+     */
+    public void setTransferRequestSize(int transferRequestSize) {
+
+        if (transferRequestSize < 1)
+            throw new IllegalArgumentException("Request size must be at least 1.");
+
+        this.transferRequestSize = transferRequestSize;
+    }
+
+    /**
+     * Requests a pipelined transfer keeps outstanding at once, like OpenSSH's -R.
+     */
+    public void setTransferRequestsInFlight(int transferRequestsInFlight) {
+
+        if (transferRequestsInFlight < 1)
+            throw new IllegalArgumentException("Requests in flight must be at least 1.");
+
+        this.transferRequestsInFlight = transferRequestsInFlight;
+    }
+
+    /**
+     * Where pipelined transfers and ranged downloads take their buffers. Defaults to
+     * {@link BufferPool#sharedPool()}. JSch's own get and put reuse the channel's buffers.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Sets how many requests the bulk operations keep outstanding at once.
+     */
+    public void setRequestWindow(int requestWindow) {
+
+        if (requestWindow < 1)
+            throw new IllegalArgumentException("Request window must be at least 1.");
+
+        this.requestWindow = requestWindow;
+
+        if (null != requestPipeline)
+            requestPipeline.setWindowSize(requestWindow);
+    }
+
+    /**
+     * @return
+     * The attributes of each remote file keyed by path. Files that couldn't be found are left out.
+     */
+    public Map<String, FtpFile> statFiles(List<String> remoteFilePaths) throws FtpException {
+
+        List<StatOperation> operations = new ArrayList<StatOperation>();
+
+        for (String remoteFilePath : remoteFilePaths)
+            operations.add(new StatOperation(toAbsolutePath(remoteFilePath)));
+
+        executeBatch("stat", operations);
+
+        Map<String, FtpFile> files = new LinkedHashMap<String, FtpFile>();
+
+        for (int i = 0; i < operations.size(); i++)
+            if (!operations.get(i).hasFailed())
+                files.put(remoteFilePaths.get(i), operations.get(i).getFile());
+
+        return files;
+    }
+
+    /**
+     * Downloads many (typically small) files into the same local directory, keeping the open, read and
+     * close requests for several files in flight at once.
+     */
+    public void downloadFiles(List<String> remoteFilePaths, String localDirectory) throws FtpException {
+
+        List<ReadFileOperation> operations = new ArrayList<ReadFileOperation>();
+
+        for (String remoteFilePath : remoteFilePaths) {
+
+            String localPath = determineRemotePath(remoteFilePath, localDirectory);
+
+            operations.add(new ReadFileOperation(toAbsolutePath(remoteFilePath), localPath, fileStreamFactory));
+        }
+
+        try {
+
+            throwIfAnyFailed("download", executeBatch("download", operations));
+
+        } finally {
+
+            closeDestinations(operations);
+        }
+    }
+
+    public void deleteFiles(List<String> remoteFilePaths) throws FtpException {
+
+        List<StatusOperation> operations = new ArrayList<StatusOperation>();
+
+        try {
+
+            for (String remoteFilePath : remoteFilePaths)
+                operations.add(StatusOperation.remove(toAbsolutePath(remoteFilePath)));
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(BATCH_ERROR_MESSAGE, "delete"), e);
+        }
+
+        throwIfAnyFailed("delete", executeBatch("delete", operations));
+    }
+
+    /**
+     * @param remoteFilePaths
+     * Existing remote paths mapped to the paths they should be renamed to.
+     */
+    public void renameFiles(Map<String, String> remoteFilePaths) throws FtpException {
+
+        List<StatusOperation> operations = new ArrayList<StatusOperation>();
+
+        try {
+
+            for (Map.Entry<String, String> rename : remoteFilePaths.entrySet())
+                operations.add(StatusOperation.rename(toAbsolutePath(rename.getKey()), toAbsolutePath(rename.getValue())));
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(BATCH_ERROR_MESSAGE, "rename"), e);
+        }
+
+        throwIfAnyFailed("rename", executeBatch("rename", operations));
+    }
+
+    /**
+     * Uploads many (typically small) files into one remote directory as a single tar stream, which
+     * the server unpacks with tar run over an exec channel. This saves the commands and round trips
+     * of opening and closing each file, but needs a server that allows exec and has tar installed.
+     *
+     * @param compress
+     * Whether to gzip the stream, which only pays off on slow links.
+     */
+    public void uploadArchive(List<String> localFilePaths, String remoteDirectory, boolean compress) throws FtpException {
+
+        String command = String.format("tar -x%sf - -C %s", compress ? "z" : "", quote(toAbsolutePath(remoteDirectory)));
+
+        String failure = String.format(ARCHIVE_FAILURE_MESSAGE, "upload");
+
+        ChannelExec exec = openExec(command, failure);
+
+        try {
+
+            OutputStream remoteInput = exec.getOutputStream();
+
+            connect(exec, failure);
+
+            TarWriter archive = new TarWriter(compress ? new GZIPOutputStream(remoteInput, DEFAULT_TRANSFER_REQUEST_SIZE) : remoteInput);
+
+            for (String localFilePath : localFilePaths)
+                putFile(archive, localFilePath);
+
+            // Closing the stream sends the end of file that lets tar finish and exit.
+            archive.close();
+
+            awaitSuccess(exec, failure, "tar");
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(EXEC_FAILURE_MESSAGE, failure, e.getMessage()), e);
+
+        } finally {
+
+            exec.disconnect();
+        }
+    }
+
+    /**
+     * Downloads many (typically small) files into the same local directory by having the server tar
+     * them up and stream the archive back over an exec channel. Like {@link #uploadArchive} this needs
+     * a server that allows exec and has tar installed.
+     *
+     * @param compress
+     * Whether to gzip the stream, which only pays off on slow links.
+     */
+    public void downloadArchive(List<String> remoteFilePaths, String localDirectory, boolean compress) throws FtpException {
+
+        String tar = String.format("tar -c%sf - -C / --", compress ? "z" : "");
+        StringBuilder command = new StringBuilder(tar);
+
+        for (String remoteFilePath : remoteFilePaths) {
+
+            String argument = " " + quote(toAbsolutePath(remoteFilePath).substring(1));
+
+            // The paths are passed on the command line, so they are split up to keep well within its limit.
+            if (command.length() > tar.length() && command.length() + argument.length() > ARCHIVE_COMMAND_LIMIT) {
+
+                downloadArchiveBatch(command.toString(), localDirectory, compress);
+
+                command = new StringBuilder(tar);
+            }
+
+            command.append(argument);
+        }
+
+        if (command.length() > tar.length())
+            downloadArchiveBatch(command.toString(), localDirectory, compress);
+    }
+
+    /**
+     * Has the server work out the MD5 digest of each consecutive block of a file, using GNU split over
+     * an exec channel, so the file can be compared with a local copy without reading it over the wire.
+     *
+     * @return
+     * The digests in hex, one per block, the last of which may be short.
+     */
+    public List<String> blockDigests(String remoteFilePath, int blockSize) throws FtpException {
+
+        String failure = String.format(DIGEST_FAILURE_MESSAGE, remoteFilePath);
+        String command = String.format("split -b %d --filter=md5sum -- %s", blockSize, quote(toAbsolutePath(remoteFilePath)));
+
+        ChannelExec exec = openExec(command, failure);
+
+        try {
+
+            BufferedReader output = new BufferedReader(new InputStreamReader(exec.getInputStream(), US_ASCII));
+
+            connect(exec, failure);
+
+            List<String> digests = new ArrayList<String>();
+
+            String line;
+
+            while (null != (line = output.readLine())) {
+
+                if (line.length() < MD5_HEX_LENGTH)
+                    throw new FtpException(String.format(EXEC_FAILURE_MESSAGE, failure, "unexpected output " + line));
+
+                digests.add(line.substring(0, MD5_HEX_LENGTH));
+            }
+
+            awaitSuccess(exec, failure, "split");
+
+            return digests;
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(EXEC_FAILURE_MESSAGE, failure, e.getMessage()), e);
+
+        } finally {
+
+            exec.disconnect();
+        }
+    }
+
+    /**
+     * Writes length bytes of the remote file, starting at the offset, to the stream, which is left open.
+     */
+    public void downloadRange(String remoteFilePath, OutputStream destination, long offset, long length) throws FtpException {
+
+        try {
+
+            InputStream source = channel.get(remoteFilePath, null, offset);
+            byte[] buffer = bufferPool().acquireArray();
+
+            try {
+
+                for (long remaining = length; remaining > 0; ) {
+
+                    int read = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+                    if (read < 0)
+                        throw new FtpException("Unable to download file " + remoteFilePath + ": it ended before the range did.");
+
+                    destination.write(buffer, 0, read);
+                    remaining -= read;
+                }
+
+            } finally {
+
+                // Closing early tells JSch to drop the read ahead it still has outstanding.
+                source.close();
+                bufferPool().release(buffer);
+            }
+
+        } catch (SftpException e) {
+
+            throw new FtpException("Unable to download file " + remoteFilePath, e);
+
+        } catch (IOException e) {
+
+            throw new FtpException("Unable to download file " + remoteFilePath, e);
+        }
+    }
+
+    private BufferPool bufferPool() {
+
+        if (null == bufferPool)
+            bufferPool = BufferPool.sharedPool();
+
+        return bufferPool;
+    }
+
+    private void downloadArchiveBatch(String command, String localDirectory, boolean compress) {
+
+        String failure = String.format(ARCHIVE_FAILURE_MESSAGE, "download");
+
+        ChannelExec exec = openExec(command, failure);
+
+        try {
+
+            InputStream remoteOutput = exec.getInputStream();
+
+            connect(exec, failure);
+
+            TarReader archive = new TarReader(compress ? new GZIPInputStream(remoteOutput, DEFAULT_TRANSFER_REQUEST_SIZE) : remoteOutput);
+
+            String name;
+
+            while (null != (name = archive.nextFile()))
+                copyFile(archive, determineRemotePath(name, localDirectory));
+
+            awaitSuccess(exec, failure, "tar");
+
+        } catch (IOException e) {
+
+            throw new FtpException(String.format(EXEC_FAILURE_MESSAGE, failure, e.getMessage()), e);
+
+        } finally {
+
+            exec.disconnect();
+        }
+    }
+
+    private void putFile(TarWriter archive, String localFilePath) throws IOException {
+
+        File localFile = new File(localFilePath);
+
+        FileInputStream localFileInputStream;
+
+        try {
+
+            localFileInputStream = fileStreamFactory.createInputStream(localFilePath);
+
+        } catch (FileNotFoundException e) {
+
+            throw new FtpException(String.format(COULD_NOT_FIND_FILE_MESSAGE, localFilePath), e);
+        }
+
+        try {
+
+            archive.putFile(localFile.getName(), localFile.length(), localFile.lastModified(), localFileInputStream);
+
+        } finally {
+
+            localFileInputStream.close();
+        }
+    }
+
+    private void copyFile(TarReader archive, String localPath) throws IOException {
+
+        FileOutputStream localFileOutputStream;
+
+        try {
+
+            localFileOutputStream = fileStreamFactory.createOutputStream(localPath);
+
+        } catch (FileNotFoundException e) {
+
+            throw new FtpException("Unable to write to local directory " + localPath, e);
+        }
+
+        try {
+
+            archive.copyFileTo(localFileOutputStream);
+
+        } finally {
+
+            localFileOutputStream.close();
+        }
+    }
+
+    private ChannelExec openExec(String command, String failure) {
+
+        try {
+
+            ChannelExec exec = (ChannelExec) channel.getSession().openChannel(EXEC);
+            exec.setCommand(command);
+
+            execErrors = new ErrorOutput();
+            exec.setErrStream(execErrors);
+
+            execChannel = exec;
+
+            return exec;
+
+        } catch (JSchException e) {
+
+            throw new FtpException(String.format(EXEC_FAILURE_MESSAGE, failure, "exec is not available"), e);
+        }
+    }
+
+    private void connect(ChannelExec exec, String failure) {
+
+        try {
+
+            exec.connect();
+
+        } catch (JSchException e) {
+
+            throw new FtpException(String.format(EXEC_FAILURE_MESSAGE, failure, "exec is not available"), e);
+        }
+    }
+
+    /**
+     * Waits for the remote command to exit, as JSch only reports the exit status once the channel
+     * closes. Its input and output are done with by now, so it gets as long as the session allows a
+     * read to take, or a minute if that is unbounded.
+     */
+    private void awaitSuccess(ChannelExec exec, String failure, String program) {
+
+        long timeout = exitTimeout();
+        long deadline = System.currentTimeMillis() + timeout;
+
+        try {
+
+            while (!exec.isClosed()) {
+
+                if (System.currentTimeMillis() >= deadline)
+                    throw new FtpException(String.format(EXEC_FAILURE_MESSAGE, failure, program + " did not exit within " + timeout + " ms"));
+
+                Thread.sleep(ARCHIVE_POLL_MILLIS);
+            }
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+            throw new FtpException(String.format(EXEC_FAILURE_MESSAGE, failure, "interrupted"), e);
+        }
+
+        if (exec.getExitStatus() == 0)
+            return;
+
+        String reason = program + " exited with status " + exec.getExitStatus();
+        String errors = new String(execErrors.toByteArray(), US_ASCII).trim();
+
+        throw new FtpException(String.format(EXEC_FAILURE_MESSAGE, failure, errors.isEmpty() ? reason : reason + ": " + errors));
+    }
+
+    private long exitTimeout() {
+
+        try {
+
+            int sessionTimeout = channel.getSession().getTimeout();
+
+            return sessionTimeout > 0 ? sessionTimeout : DEFAULT_EXIT_TIMEOUT_MILLIS;
+
+        } catch (JSchException e) {
+
+            return DEFAULT_EXIT_TIMEOUT_MILLIS;
+        }
+    }
+
+    /**
+     * Quotes a path for the remote shell.
+     */
+    private String quote(String path) {
+        return "'" + path.replace("'", "'\\''") + "'";
+    }
+
+    private void pipelinedDownload(String remoteFilePath, String localDirectory) {
+
+        String localPath = determineRemotePath(remoteFilePath, localDirectory);
+
+        try {
+
+            FileOutputStream localFileOutputStream = fileStreamFactory.createOutputStream(localPath);
+
+            ParallelReadOperation read = new ParallelReadOperation(toAbsolutePath(remoteFilePath),
+                    localFileOutputStream.getChannel(), transferRequestSize);
+
+            try {
+
+                requestPipeline().execute(Arrays.asList(read), transferRequestsInFlight);
+
+            } finally {
+
+                localFileOutputStream.close();
+            }
+
+            if (read.hasFailed())
+                throw new FtpException("Unable to download file " + read.getFailure());
+
+        } catch (FileNotFoundException e) {
+
+            throw new FtpException("Unable to write to local directory " + localPath, e);
+
+        } catch (IOException e) {
+
+            closeRequestPipeline();
+
+            throw new FtpException("Unable to download file " + remoteFilePath, e);
+        }
+    }
+
+    private void pipelinedUpload(String localFilePath, String remoteDirectory) {
+
+        try {
+
+            FileInputStream localFileInputStream = fileStreamFactory.createInputStream(localFilePath);
+
+            ParallelWriteOperation write = new ParallelWriteOperation(localFileInputStream.getChannel(),
+                    toAbsolutePath(determineRemotePath(localFilePath, remoteDirectory)), transferRequestSize);
+
+            try {
+
+                requestPipeline().execute(Arrays.asList(write), transferRequestsInFlight);
+
+            } finally {
+
+                localFileInputStream.close();
+            }
+
+            if (write.hasFailed())
+                throw new FtpException("Upload failed to complete: " + write.getFailure());
+
+        } catch (FileNotFoundException e) {
+
+            throw new FtpException(String.format(COULD_NOT_FIND_FILE_MESSAGE, localFilePath), e);
+
+        } catch (IOException e) {
+
+            closeRequestPipeline();
+
+            throw new FtpException("Upload may not have completed.", e);
+        }
+    }
+
+    private <T extends Operation> List<T> executeBatch(String batchName, List<T> operations) {
+
+        try {
+
+            requestPipeline().execute(operations);
+
+            return operations;
+
+        } catch (IOException e) {
+
+            closeRequestPipeline();
+
+            throw new FtpException(String.format(BATCH_ERROR_MESSAGE, batchName), e);
+        }
+    }
+
+    private void closeDestinations(List<ReadFileOperation> operations) {
+
+        for (ReadFileOperation operation : operations) {
+
+            try {
+
+                operation.closeDestination();
+
+            } catch (IOException e) {
+                // The batch has already failed; one file that won't close shouldn't keep the rest open.
+            }
+        }
+    }
+
+    private void throwIfAnyFailed(String action, List<? extends Operation> operations) {
+
+        List<String> failures = new ArrayList<String>();
+
+        for (Operation operation : operations)
+            if (operation.hasFailed())
+                failures.add(operation.getFailure());
+
+        if (!failures.isEmpty())
+            throw new FtpException(String.format(BATCH_FAILURE_MESSAGE, action, failures));
+    }
+
+    private SftpRequestPipeline requestPipeline() throws IOException {
+
+        if (null != requestPipeline)
+            return requestPipeline;
+
+        try {
+
+            pipelineChannel = (ChannelSubsystem) channel.getSession().openChannel(SUBSYSTEM);
+            pipelineChannel.setSubsystem(SFTP);
+
+            SftpRequestPipeline pipeline = new SftpRequestPipeline(pipelineChannel.getInputStream(), pipelineChannel.getOutputStream(),
+                    bufferPool());
+
+            pipelineChannel.connect();
+            pipeline.init();
+
+            if (requestWindow > 0)
+                pipeline.setWindowSize(requestWindow);
+
+            requestPipeline = pipeline;
+
+            return requestPipeline;
+
+        } catch (JSchException e) {
+
+            closeRequestPipeline();
+
+            throw new FtpException(PIPELINE_OPEN_ERROR_MESSAGE, e);
+        }
+    }
+
+    private void closeRequestPipeline() {
+
+        if (null != pipelineChannel)
+            pipelineChannel.disconnect();
+
+        pipelineChannel = null;
+        requestPipeline = null;
+    }
+
+    private boolean exists(String remotePath) throws SftpException {
+
+        try {
+
+            channel.stat(remotePath);
+
+            return true;
+
+        } catch (SftpException e) {
+
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE)
+                return false;
+
+            throw e;
+        }
+    }
+
+    private String toAbsolutePath(String remotePath) {
+
+        if (remotePath.startsWith(FILE_SEPARATOR))
+            return remotePath;
+
+        String workingDirectory = printWorkingDirectory();
+
+        if (workingDirectory.endsWith(FILE_SEPARATOR))
+            return workingDirectory + remotePath;
+
+        return workingDirectory + FILE_SEPARATOR + remotePath;
+    }
+
+    private String determineRemotePath(String localFilePath, String remoteDirectory) {
+        
+        Path remotePath = Paths.get(remoteDirectory);
+
+        String safeRemotePath = remotePath.toString();
+        String uploadAs = Paths.get(localFilePath).getFileName().toString();
+
+        return safeRemotePath + FILE_SEPARATOR + uploadAs;
+    }
+
+    private FtpFile toFtpFile(LsEntry lsEntry, String filePath) {
+
+        String name = lsEntry.getFilename();
+        long fileSize = lsEntry.getAttrs().getSize();
+        String fullPath = String.format("%s%s%s", filePath, FILE_SEPARATOR, lsEntry.getFilename());
+        int mTime = lsEntry.getAttrs().getMTime();
+        boolean directory = lsEntry.getAttrs().isDir();
+
+        return new FtpFile(name, fileSize, fullPath, (long) mTime * MILLIS, directory);
+    }
+
+    /**
+     * Keeps the start of a remote command's error output, which is what explains why it failed.
+     */
+    private static class ErrorOutput extends ByteArrayOutputStream {
+
+        @Override
+        public synchronized void write(int b) {
+
+            if (count < ERROR_OUTPUT_LIMIT)
+                super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            super.write(bytes, offset, Math.max(0, Math.min(length, ERROR_OUTPUT_LIMIT - count)));
+        }
     }
 }
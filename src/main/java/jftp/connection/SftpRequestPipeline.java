@@ -0,0 +1,882 @@
+package jftp.connection;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import jftp.util.BufferPool;
+import jftp.util.FileStreamFactory;
+
+/**
+ * Speaks SFTP (version 3) directly over an "sftp" subsystem stream so that many requests can be in
+ * flight at once. JSch's ChannelSftp waits for the reply to every request before sending the next,
+ * which makes batches of small operations pay one round trip each; here requests from a batch of
+ * operations are written up to the window size before any replies are read, and replies are matched
+ * back to their operation by request id.
+ */
+class SftpRequestPipeline {
+
+    static final int SSH_FXP_INIT = 1;
+    static final int SSH_FXP_VERSION = 2;
+    static final int SSH_FXP_OPEN = 3;
+    static final int SSH_FXP_CLOSE = 4;
+    static final int SSH_FXP_READ = 5;
+    static final int SSH_FXP_WRITE = 6;
+    static final int SSH_FXP_REMOVE = 13;
+    static final int SSH_FXP_STAT = 17;
+    static final int SSH_FXP_RENAME = 18;
+    static final int SSH_FXP_STATUS = 101;
+    static final int SSH_FXP_HANDLE = 102;
+    static final int SSH_FXP_DATA = 103;
+    static final int SSH_FXP_ATTRS = 105;
+
+    static final int SSH_FX_OK = 0;
+    static final int SSH_FX_EOF = 1;
+
+    static final int SSH_FXF_READ = 0x01;
+    static final int SSH_FXF_WRITE = 0x02;
+    static final int SSH_FXF_CREAT = 0x08;
+    static final int SSH_FXF_TRUNC = 0x10;
+
+    private static final int SSH_FILEXFER_ATTR_SIZE = 0x01;
+    private static final int SSH_FILEXFER_ATTR_UIDGID = 0x02;
+    private static final int SSH_FILEXFER_ATTR_PERMISSIONS = 0x04;
+    private static final int SSH_FILEXFER_ATTR_ACMODTIME = 0x08;
+    private static final int SSH_FILEXFER_ATTR_EXTENDED = 0x80000000;
+
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFDIR = 0040000;
+
+    private static final int SFTP_VERSION = 3;
+    private static final int DEFAULT_WINDOW_SIZE = 64;
+    private static final int READ_LENGTH = 32768;
+    private static final int MILLIS = 1000;
+    private static final int OUTPUT_BUFFER_SIZE = 65536;
+
+    // OpenSSH's own limit; a data reply also carries its type, request id and length.
+    private static final int MAX_PACKET_LENGTH = 256 * 1024;
+    private static final int DATA_HEADER_LENGTH = 1 + 4 + 4;
+
+    private static final String FILE_SEPARATOR = "/";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private DataInputStream in;
+    private OutputStream out;
+    private BufferPool bufferPool;
+    private byte[] packet;
+    private int maxPacketLength = MAX_PACKET_LENGTH;
+
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int activeWindowSize = DEFAULT_WINDOW_SIZE;
+    private int nextRequestId = 1;
+
+    private Map<Integer, Operation> outstanding = new HashMap<Integer, Operation>();
+
+    SftpRequestPipeline(InputStream in, OutputStream out) {
+        this(in, out, BufferPool.sharedPool());
+    }
+
+    SftpRequestPipeline(InputStream in, OutputStream out, BufferPool bufferPool) {
+
+        this.in = new DataInputStream(in);
+        this.out = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+        this.bufferPool = bufferPool;
+    }
+
+    void setWindowSize(int windowSize) {
+
+        if (windowSize < 1)
+            throw new IllegalArgumentException("Window size must be at least 1.");
+
+        this.windowSize = windowSize;
+    }
+
+    int getWindowSize() {
+        return windowSize;
+    }
+
+    void init() throws IOException {
+
+        new Request(SSH_FXP_INIT).writeInt(SFTP_VERSION).writeTo(out);
+        out.flush();
+
+        int length = readPacketLength();
+        int type = in.readUnsignedByte();
+
+        byte[] payload = new byte[length - 1];
+        in.readFully(payload);
+
+        if (type != SSH_FXP_VERSION)
+            throw new IOException("Server did not answer the SFTP version negotiation.");
+    }
+
+    /**
+     * Runs every operation to completion, starting new ones while fewer than the window size of
+     * requests are outstanding. Failures are recorded on the individual operations.
+     */
+    void execute(List<? extends Operation> operations) throws IOException {
+        execute(operations, windowSize);
+    }
+
+    /**
+     * As {@link #execute(List)}, but with a window size for this call only.
+     */
+    void execute(List<? extends Operation> operations, int requestsInFlight) throws IOException {
+
+        activeWindowSize = requestsInFlight;
+
+        Iterator<? extends Operation> pending = operations.iterator();
+
+        // Every response is read into the same pooled packet, as none outlives its onResponse.
+        packet = bufferPool.acquireArray();
+
+        try {
+
+            while (true) {
+
+                while (hasCapacity() && pending.hasNext())
+                    pending.next().start(this);
+
+                if (outstanding.isEmpty())
+                    return;
+
+                out.flush();
+
+                Response response = readResponse();
+                Operation operation = outstanding.remove(response.id);
+
+                if (null == operation)
+                    throw new IOException("Server replied to unknown request " + response.id);
+
+                operation.onResponse(this, response);
+            }
+
+        } finally {
+
+            bufferPool.release(packet);
+            packet = null;
+        }
+    }
+
+    boolean hasCapacity() {
+        return outstanding.size() < activeWindowSize;
+    }
+
+    int send(Operation operation, Request request) throws IOException {
+
+        int id = nextRequestId++;
+
+        request.writeTo(out, id);
+        outstanding.put(id, operation);
+
+        return id;
+    }
+
+    /**
+     * Lets replies to reads larger than usual through {@link #readResponse()}.
+     */
+    void expectReadsOf(long length) {
+        maxPacketLength = (int) Math.max(maxPacketLength, Math.min(Integer.MAX_VALUE, length + DATA_HEADER_LENGTH));
+    }
+
+    private Response readResponse() throws IOException {
+
+        int length = readPacketLength();
+
+        if (length > packet.length) {
+            bufferPool.release(packet);
+            packet = new byte[length];
+        }
+
+        in.readFully(packet, 0, length);
+
+        return new Response(packet, length);
+    }
+
+    /**
+     * Refuses lengths no sane server sends rather than allocating whatever a broken or hostile one asks for.
+     */
+    private int readPacketLength() throws IOException {
+
+        int length = in.readInt();
+
+        if (length < 1 || length > maxPacketLength)
+            throw new IOException("Server sent an SFTP packet length of " + length + ", outside 1 to " + maxPacketLength + ".");
+
+        return length;
+    }
+
+    static FtpFile toFtpFile(String path, Response attrs) {
+
+        int flags = attrs.readInt();
+
+        long size = 0;
+        long mTime = 0;
+        boolean directory = false;
+
+        if ((flags & SSH_FILEXFER_ATTR_SIZE) != 0)
+            size = attrs.readLong();
+
+        if ((flags & SSH_FILEXFER_ATTR_UIDGID) != 0) {
+            attrs.readInt();
+            attrs.readInt();
+        }
+
+        if ((flags & SSH_FILEXFER_ATTR_PERMISSIONS) != 0)
+            directory = (attrs.readInt() & S_IFMT) == S_IFDIR;
+
+        if ((flags & SSH_FILEXFER_ATTR_ACMODTIME) != 0) {
+            attrs.readInt();
+            mTime = (attrs.readInt() & 0xffffffffL) * MILLIS;
+        }
+
+        if ((flags & SSH_FILEXFER_ATTR_EXTENDED) != 0) {
+
+            int count = attrs.readInt();
+
+            for (int i = 0; i < count * 2; i++)
+                attrs.readBytes();
+        }
+
+        return new FtpFile(nameOf(path), size, path, mTime, directory);
+    }
+
+    static String nameOf(String path) {
+
+        String trimmed = path.endsWith(FILE_SEPARATOR) && path.length() > 1 ? path.substring(0, path.length() - 1) : path;
+
+        return trimmed.substring(trimmed.lastIndexOf(FILE_SEPARATOR) + 1);
+    }
+
+    static class Request {
+
+        private int type;
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private DataOutputStream data = new DataOutputStream(bytes);
+
+        Request(int type) {
+            this.type = type;
+        }
+
+        Request writeString(String value) throws IOException {
+
+            byte[] bytes = value.getBytes(UTF8);
+
+            return writeBytes(bytes, 0, bytes.length);
+        }
+
+        Request writeBytes(byte[] value, int offset, int length) throws IOException {
+
+            data.writeInt(length);
+            data.write(value, offset, length);
+
+            return this;
+        }
+
+        Request writeInt(int value) throws IOException {
+
+            data.writeInt(value);
+
+            return this;
+        }
+
+        Request writeLong(long value) throws IOException {
+
+            data.writeLong(value);
+
+            return this;
+        }
+
+        private void writeTo(OutputStream out) throws IOException {
+
+            DataOutputStream packet = new DataOutputStream(out);
+
+            packet.writeInt(1 + bytes.size());
+            packet.writeByte(type);
+            bytes.writeTo(packet);
+        }
+
+        private void writeTo(OutputStream out, int id) throws IOException {
+
+            DataOutputStream packet = new DataOutputStream(out);
+
+            packet.writeInt(1 + 4 + bytes.size());
+            packet.writeByte(type);
+            packet.writeInt(id);
+            bytes.writeTo(packet);
+        }
+    }
+
+    static class Response {
+
+        private int type;
+        private int id;
+        private ByteBuffer buffer;
+
+        private Response(byte[] packet, int length) {
+
+            buffer = ByteBuffer.wrap(packet, 0, length);
+            type = buffer.get() & 0xff;
+            id = buffer.getInt();
+        }
+
+        int getType() {
+            return type;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        int readInt() {
+            return buffer.getInt();
+        }
+
+        long readLong() {
+            return buffer.getLong();
+        }
+
+        byte[] readBytes() {
+
+            byte[] value = new byte[buffer.getInt()];
+            buffer.get(value);
+
+            return value;
+        }
+
+        /**
+         * Reads a length-prefixed block of data without copying it out of the packet.
+         */
+        ByteBuffer readData() {
+
+            int length = buffer.getInt();
+
+            ByteBuffer data = buffer.slice();
+            data.limit(length);
+
+            buffer.position(buffer.position() + length);
+
+            return data;
+        }
+
+        String readString() {
+            return new String(readBytes(), UTF8);
+        }
+
+        int statusCode() {
+            return type == SSH_FXP_STATUS ? buffer.getInt(5) : -1;
+        }
+
+        String statusMessage() {
+
+            buffer.position(9);
+
+            return readString();
+        }
+    }
+
+    abstract static class Operation {
+
+        private String failure;
+
+        abstract void start(SftpRequestPipeline pipeline) throws IOException;
+
+        abstract void onResponse(SftpRequestPipeline pipeline, Response response) throws IOException;
+
+        void fail(String failure) {
+            this.failure = failure;
+        }
+
+        /**
+         * Records an unexpected response as the failure of this operation.
+         */
+        void fail(String path, Response response) {
+
+            if (response.getType() == SSH_FXP_STATUS)
+                fail(path + ": " + response.statusMessage());
+            else
+                fail(path + ": unexpected response type " + response.getType());
+        }
+
+        boolean hasFailed() {
+            return null != failure;
+        }
+
+        String getFailure() {
+            return failure;
+        }
+    }
+
+    static class StatOperation extends Operation {
+
+        private String path;
+        private FtpFile file;
+
+        StatOperation(String path) {
+            this.path = path;
+        }
+
+        @Override
+        void start(SftpRequestPipeline pipeline) throws IOException {
+            pipeline.send(this, new Request(SSH_FXP_STAT).writeString(path));
+        }
+
+        @Override
+        void onResponse(SftpRequestPipeline pipeline, Response response) {
+
+            if (response.getType() == SSH_FXP_ATTRS)
+                file = toFtpFile(path, response);
+            else
+                fail(path, response);
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        FtpFile getFile() {
+            return file;
+        }
+    }
+
+    static class StatusOperation extends Operation {
+
+        private String path;
+        private Request request;
+
+        StatusOperation(String path, Request request) {
+
+            this.path = path;
+            this.request = request;
+        }
+
+        static StatusOperation remove(String path) throws IOException {
+            return new StatusOperation(path, new Request(SSH_FXP_REMOVE).writeString(path));
+        }
+
+        static StatusOperation rename(String from, String to) throws IOException {
+            return new StatusOperation(from, new Request(SSH_FXP_RENAME).writeString(from).writeString(to));
+        }
+
+        @Override
+        void start(SftpRequestPipeline pipeline) throws IOException {
+            pipeline.send(this, request);
+        }
+
+        @Override
+        void onResponse(SftpRequestPipeline pipeline, Response response) {
+
+            if (response.statusCode() != SSH_FX_OK)
+                fail(path, response);
+        }
+
+        String getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * Opens, reads and closes a remote file in sequence, writing it to a local file. Meant for
+     * batches of small files, where the pipelining comes from many of these running side by side.
+     */
+    static class ReadFileOperation extends Operation {
+
+        private String remotePath;
+        private String localPath;
+        private FileStreamFactory fileStreamFactory;
+
+        private byte[] handle;
+        private long offset;
+        private OutputStream destination;
+
+        ReadFileOperation(String remotePath, String localPath, FileStreamFactory fileStreamFactory) {
+
+            this.remotePath = remotePath;
+            this.localPath = localPath;
+            this.fileStreamFactory = fileStreamFactory;
+        }
+
+        @Override
+        void start(SftpRequestPipeline pipeline) throws IOException {
+
+            pipeline.send(this, new Request(SSH_FXP_OPEN).writeString(remotePath).writeInt(SSH_FXF_READ).writeInt(0));
+        }
+
+        @Override
+        void onResponse(SftpRequestPipeline pipeline, Response response) throws IOException {
+
+            if (null == handle) {
+
+                if (response.getType() != SSH_FXP_HANDLE) {
+                    fail(remotePath, response);
+                    return;
+                }
+
+                handle = response.readBytes();
+
+                try {
+
+                    destination = fileStreamFactory.createOutputStream(localPath);
+
+                } catch (IOException e) {
+
+                    fail(remotePath + ": unable to write to " + localPath);
+                    sendClose(pipeline);
+                    return;
+                }
+
+                requestNextBlock(pipeline);
+
+            } else if (null != destination) {
+
+                if (response.getType() == SSH_FXP_DATA) {
+
+                    ByteBuffer data = response.readData();
+
+                    destination.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    offset += data.remaining();
+
+                    requestNextBlock(pipeline);
+
+                } else {
+
+                    if (response.statusCode() != SSH_FX_EOF)
+                        fail(remotePath, response);
+
+                    destination.close();
+                    destination = null;
+
+                    sendClose(pipeline);
+                }
+            }
+        }
+
+        private void sendClose(SftpRequestPipeline pipeline) throws IOException {
+            pipeline.send(this, new Request(SSH_FXP_CLOSE).writeBytes(handle, 0, handle.length));
+        }
+
+        private void requestNextBlock(SftpRequestPipeline pipeline) throws IOException {
+
+            Request read = new Request(SSH_FXP_READ).writeBytes(handle, 0, handle.length).writeLong(offset).writeInt(READ_LENGTH);
+
+            pipeline.send(this, read);
+        }
+
+        String getRemotePath() {
+            return remotePath;
+        }
+
+        /**
+         * Closes the local file of a read that didn't finish, which is left open when the batch fails.
+         */
+        void closeDestination() throws IOException {
+
+            if (null == destination)
+                return;
+
+            OutputStream unfinished = destination;
+            destination = null;
+
+            unfinished.close();
+        }
+    }
+
+    /**
+     * Downloads one file with many READ requests outstanding at once (OpenSSH's -R), each asking for
+     * up to the request size (OpenSSH's -B). Replies may complete in any order, so data is written
+     * to the destination at the offset it was read from.
+     */
+    static class ParallelReadOperation extends Operation {
+
+        private String remotePath;
+        private FileChannel destination;
+        private int requestSize;
+
+        private byte[] handle;
+        private long nextOffset;
+        private long endOfFile = Long.MAX_VALUE;
+        private boolean closing;
+
+        private Map<Integer, long[]> pendingReads = new HashMap<Integer, long[]>();
+
+        ParallelReadOperation(String remotePath, FileChannel destination, int requestSize) {
+
+            this.remotePath = remotePath;
+            this.destination = destination;
+            this.requestSize = requestSize;
+        }
+
+        @Override
+        void start(SftpRequestPipeline pipeline) throws IOException {
+            pipeline.send(this, new Request(SSH_FXP_OPEN).writeString(remotePath).writeInt(SSH_FXF_READ).writeInt(0));
+        }
+
+        @Override
+        void onResponse(SftpRequestPipeline pipeline, Response response) throws IOException {
+
+            if (closing)
+                return;
+
+            if (null == handle) {
+
+                if (response.getType() != SSH_FXP_HANDLE) {
+                    fail(remotePath, response);
+                    return;
+                }
+
+                handle = response.readBytes();
+
+            } else {
+
+                long[] read = pendingReads.remove(response.getId());
+
+                if (response.getType() == SSH_FXP_DATA)
+                    writeData(pipeline, read, response.readData());
+                else if (response.statusCode() == SSH_FX_EOF)
+                    endOfFile = Math.min(endOfFile, read[0]);
+                else if (!hasFailed())
+                    fail(remotePath, response);
+            }
+
+            requestMoreData(pipeline);
+
+            if (pendingReads.isEmpty()) {
+
+                closing = true;
+                pipeline.send(this, new Request(SSH_FXP_CLOSE).writeBytes(handle, 0, handle.length));
+            }
+        }
+
+        private void writeData(SftpRequestPipeline pipeline, long[] read, ByteBuffer data) throws IOException {
+
+            long offset = read[0];
+            int length = data.remaining();
+
+            while (data.hasRemaining())
+                offset += destination.write(data, offset);
+
+            if (length < read[1] && offset < endOfFile)
+                requestRange(pipeline, offset, read[1] - length);
+        }
+
+        private void requestMoreData(SftpRequestPipeline pipeline) throws IOException {
+
+            while (!hasFailed() && nextOffset < endOfFile && pipeline.hasCapacity()) {
+
+                requestRange(pipeline, nextOffset, requestSize);
+                nextOffset += requestSize;
+            }
+        }
+
+        private void requestRange(SftpRequestPipeline pipeline, long offset, long length) throws IOException {
+
+            Request read = new Request(SSH_FXP_READ).writeBytes(handle, 0, handle.length).writeLong(offset).writeInt((int) length);
+
+            pipeline.expectReadsOf(length);
+            pendingReads.put(pipeline.send(this, read), new long[] { offset, length });
+        }
+    }
+
+    /**
+     * Uploads one file with many WRITE requests outstanding at once, reading each block from the
+     * local file at the offset it is written to.
+     */
+    static class ParallelWriteOperation extends Operation {
+
+        private FileChannel source;
+        private String remotePath;
+        private int requestSize;
+
+        private byte[] handle;
+        private byte[] block;
+        private long nextOffset;
+        private long size;
+        private int pendingWrites;
+        private boolean closing;
+
+        ParallelWriteOperation(FileChannel source, String remotePath, int requestSize) {
+
+            this.source = source;
+            this.remotePath = remotePath;
+            this.requestSize = requestSize;
+            this.block = new byte[requestSize];
+        }
+
+        @Override
+        void start(SftpRequestPipeline pipeline) throws IOException {
+
+            size = source.size();
+
+            int flags = SSH_FXF_WRITE | SSH_FXF_CREAT | SSH_FXF_TRUNC;
+
+            pipeline.send(this, new Request(SSH_FXP_OPEN).writeString(remotePath).writeInt(flags).writeInt(0));
+        }
+
+        @Override
+        void onResponse(SftpRequestPipeline pipeline, Response response) throws IOException {
+
+            if (closing) {
+
+                // The server may only flush the file on CLOSE, so its status counts as much as the writes'.
+                if (response.statusCode() != SSH_FX_OK && !hasFailed())
+                    fail(remotePath, response);
+
+                return;
+            }
+
+            if (null == handle) {
+
+                if (response.getType() != SSH_FXP_HANDLE) {
+                    fail(remotePath, response);
+                    return;
+                }
+
+                handle = response.readBytes();
+
+            } else {
+
+                pendingWrites--;
+
+                if (response.statusCode() != SSH_FX_OK && !hasFailed())
+                    fail(remotePath, response);
+            }
+
+            while (!hasFailed() && nextOffset < size && pipeline.hasCapacity())
+                writeNextBlock(pipeline);
+
+            if (pendingWrites == 0) {
+
+                closing = true;
+                pipeline.send(this, new Request(SSH_FXP_CLOSE).writeBytes(handle, 0, handle.length));
+            }
+        }
+
+        private void writeNextBlock(SftpRequestPipeline pipeline) throws IOException {
+
+            ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(requestSize, size - nextOffset));
+
+            while (buffer.hasRemaining())
+                if (source.read(buffer, nextOffset + buffer.position()) < 0)
+                    throw new IOException("Local file shrank while it was being uploaded.");
+
+            Request write = new Request(SSH_FXP_WRITE).writeBytes(handle, 0, handle.length).writeLong(nextOffset);
+            write.writeBytes(block, 0, buffer.position());
+
+            pipeline.send(this, write);
+
+            pendingWrites++;
+            nextOffset += buffer.position();
+        }
+    }
+
+    /**
+     * Writes a stream into a remote file from an offset onwards with many WRITE requests outstanding.
+     * The file is opened without truncating, so other segments of it can be written at the same time
+     * over other sessions.
+     */
+    static class OffsetWriteOperation extends Operation {
+
+        private InputStream source;
+        private String remotePath;
+        private int requestSize;
+
+        private byte[] handle;
+        private byte[] block;
+        private long nextOffset;
+        private boolean endOfInput;
+        private int pendingWrites;
+        private boolean closing;
+
+        OffsetWriteOperation(InputStream source, String remotePath, long offset, int requestSize) {
+
+            this.source = source;
+            this.remotePath = remotePath;
+            this.nextOffset = offset;
+            this.requestSize = requestSize;
+            this.block = new byte[requestSize];
+        }
+
+        @Override
+        void start(SftpRequestPipeline pipeline) throws IOException {
+            pipeline.send(this, new Request(SSH_FXP_OPEN).writeString(remotePath).writeInt(SSH_FXF_WRITE | SSH_FXF_CREAT).writeInt(0));
+        }
+
+        @Override
+        void onResponse(SftpRequestPipeline pipeline, Response response) throws IOException {
+
+            if (closing) {
+
+                // As with ParallelWriteOperation, a failed CLOSE fails the write.
+                if (response.statusCode() != SSH_FX_OK && !hasFailed())
+                    fail(remotePath, response);
+
+                return;
+            }
+
+            if (null == handle) {
+
+                if (response.getType() != SSH_FXP_HANDLE) {
+                    fail(remotePath, response);
+                    return;
+                }
+
+                handle = response.readBytes();
+
+            } else {
+
+                pendingWrites--;
+
+                if (response.statusCode() != SSH_FX_OK && !hasFailed())
+                    fail(remotePath, response);
+            }
+
+            while (!hasFailed() && !endOfInput && pipeline.hasCapacity())
+                writeNextBlock(pipeline);
+
+            if (pendingWrites == 0) {
+
+                closing = true;
+                pipeline.send(this, new Request(SSH_FXP_CLOSE).writeBytes(handle, 0, handle.length));
+            }
+        }
+
+        private void writeNextBlock(SftpRequestPipeline pipeline) throws IOException {
+
+            int filled = 0;
+
+            while (filled < requestSize) {
+
+                int read = source.read(block, filled, requestSize - filled);
+
+                if (read < 0) {
+                    endOfInput = true;
+                    break;
+                }
+
+                filled += read;
+            }
+
+            if (0 == filled)
+                return;
+
+            Request write = new Request(SSH_FXP_WRITE).writeBytes(handle, 0, handle.length).writeLong(nextOffset);
+            write.writeBytes(block, 0, filled);
+
+            pipeline.send(this, write);
+
+            pendingWrites++;
+            nextOffset += filled;
+        }
+    }
+}
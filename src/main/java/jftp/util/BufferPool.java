@@ -0,0 +1,205 @@
+package jftp.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfer buffers that are handed back once a transfer is done and reused by the next, so moving
+ * many files doesn't leave a buffer behind for each one.
+ *
+ * Byte arrays, for copying between streams, are cached by the thread that released them. Direct
+ * buffers, for channel I/O, are slices of one off-heap slab shared by every thread. When a thread's
+ * cache or the slab has nothing left, a new heap buffer is allocated and counted, so the sizes can be
+ * tuned by comparing {@link #getHits()} with {@link #getAllocations()}.
+ */
+public class BufferPool {
+
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+    private static final int DEFAULT_ARRAYS_PER_THREAD = 2;
+    private static final int DEFAULT_SLAB_BUFFERS = 64;
+
+    private static BufferPool sharedPool;
+
+    private final int bufferSize;
+    private final int arraysPerThread;
+
+    private final ThreadLocal<Deque<byte[]>> threadArrays = new ThreadLocal<Deque<byte[]>>() {
+
+        @Override
+        protected Deque<byte[]> initialValue() {
+            return new ArrayDeque<byte[]>();
+        }
+    };
+
+    private final Queue<ByteBuffer> slab = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    // By identity, as buffers compare equal by their contents.
+    private final Set<ByteBuffer> lent = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * A pool of 64 KiB buffers, keeping two arrays per thread and a 4 MiB slab.
+     */
+    public BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_ARRAYS_PER_THREAD, DEFAULT_SLAB_BUFFERS);
+    }
+
+    /**
+     * @param arraysPerThread
+     * How many released arrays each thread keeps. Arrays released beyond that are left to the GC.
+     * @param slabBuffers
+     * How many direct buffers the slab is cut into, allocated up front.
+     */
+    public BufferPool(int bufferSize, int arraysPerThread, int slabBuffers) {
+
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("Buffer size must be at least 1.");
+
+        if ((long) bufferSize * slabBuffers > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The slab can't be larger than 2 GiB.");
+
+        this.bufferSize = bufferSize;
+        this.arraysPerThread = arraysPerThread;
+
+        if (slabBuffers > 0)
+            cutSlab(ByteBuffer.allocateDirect(bufferSize * slabBuffers), slabBuffers);
+    }
+
+    /**
+     * The pool connections use unless given their own, created with the default sizes when first
+     * asked for.
+     */
+    public static synchronized BufferPool sharedPool() {
+
+        if (null == sharedPool)
+            sharedPool = new BufferPool();
+
+        return sharedPool;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * How many buffers were handed out from a thread's cache or the slab.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * How many buffers had to be allocated because none were free.
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    public byte[] acquireArray() {
+
+        byte[] array = threadArrays.get().poll();
+
+        if (null != array) {
+            hits.incrementAndGet();
+            return array;
+        }
+
+        allocations.incrementAndGet();
+
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Keeps the array for the calling thread's next transfer. Arrays of another size are ignored.
+     */
+    public void release(byte[] array) {
+
+        Deque<byte[]> arrays = threadArrays.get();
+
+        if (array.length == bufferSize && arrays.size() < arraysPerThread)
+            arrays.push(array);
+    }
+
+    /**
+     * @return
+     * A cleared direct buffer from the slab, or a heap buffer if the slab is all in use.
+     */
+    public ByteBuffer acquireDirect() {
+
+        ByteBuffer buffer = slab.poll();
+
+        if (null != buffer) {
+            lent.add(buffer);
+            hits.incrementAndGet();
+            return buffer;
+        }
+
+        allocations.incrementAndGet();
+
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Returns a buffer handed out from this pool's slab. Anything else, including heap buffers handed
+     * out when the slab was empty and buffers that were already released, is ignored, so the slab
+     * never holds a buffer twice or one it doesn't own.
+     */
+    public void release(ByteBuffer buffer) {
+
+        if (!lent.remove(buffer))
+            return;
+
+        buffer.clear();
+        slab.offer(buffer);
+    }
+
+    /**
+     * Copies the rest of one stream to another through a pooled array, leaving both open.
+     *
+     * @return
+     * The number of bytes copied.
+     */
+    public long copy(InputStream from, OutputStream to) throws IOException {
+
+        byte[] buffer = acquireArray();
+
+        try {
+
+            long copied = 0;
+            int read;
+
+            while ((read = from.read(buffer)) >= 0) {
+                to.write(buffer, 0, read);
+                copied += read;
+            }
+
+            return copied;
+
+        } finally {
+
+            release(buffer);
+        }
+    }
+
+    private void cutSlab(ByteBuffer memory, int slabBuffers) {
+
+        for (int i = 0; i < slabBuffers; i++) {
+
+            memory.limit((i + 1) * bufferSize).position(i * bufferSize);
+
+            slab.offer(memory.slice());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package jftp.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes into a buffer from its position onwards, so libraries that only write to streams can fill
+ * direct and memory mapped buffers with no copy beyond their own.
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+    private static final String OVERFLOW_MESSAGE = "Unable to write %d bytes with only %d left in the buffer.";
+
+    private ByteBuffer buffer;
+
+    public ByteBufferOutputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+
+        ensureRoomFor(1);
+
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+
+        ensureRoomFor(length);
+
+        buffer.put(bytes, offset, length);
+    }
+
+    private void ensureRoomFor(int length) throws IOException {
+
+        if (length > buffer.remaining())
+            throw new IOException(String.format(OVERFLOW_MESSAGE, length, buffer.remaining()));
+    }
+}
@@ -0,0 +1,71 @@
+package jftp.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads one segment of a file with positional reads, which don't move the channel's position, so
+ * any number of segments of one channel can be read from different threads at once. Closing the
+ * stream leaves the channel open.
+ */
+public class FileSegmentInputStream extends InputStream {
+
+    private static final String TRUNCATED_MESSAGE = "The file ended %d bytes before the segment did.";
+
+    private FileChannel channel;
+    private long position;
+    private long remaining;
+
+    public FileSegmentInputStream(FileChannel channel, long offset, long length) {
+
+        this.channel = channel;
+        this.position = offset;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        byte[] single = new byte[1];
+
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+
+        if (0 == remaining)
+            return -1;
+
+        if (0 == length)
+            return 0;
+
+        int read = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, remaining)), position);
+
+        if (read < 0)
+            throw new IOException(String.format(TRUNCATED_MESSAGE, remaining));
+
+        position += read;
+        remaining -= read;
+
+        return read;
+    }
+
+    @Override
+    public long skip(long count) {
+
+        long skipped = Math.max(0, Math.min(count, remaining));
+
+        position += skipped;
+        remaining -= skipped;
+
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, remaining);
+    }
+}
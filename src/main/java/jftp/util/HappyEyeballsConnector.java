@@ -0,0 +1,226 @@
+package jftp.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Connects to a host with several addresses by racing them: the first address is tried at once, and
+ * each further address is tried as soon as the one before it fails or after a short delay, whichever
+ * comes first. The first connection to succeed is used and the rest are abandoned, so one slow or
+ * unreachable address costs a fraction of a second rather than a whole connect timeout.
+ *
+ * A connector may be shared by any number of clients, which then also share its DNS cache.
+ */
+public class HappyEyeballsConnector {
+
+    private static final int DEFAULT_ATTEMPT_DELAY = 250;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+
+    private static final String CONNECT_TIMEOUT_MESSAGE = "Timed out connecting to %s on port %d";
+    private static final String LOST_RACE_MESSAGE = "Another address connected first.";
+
+    private HostResolver hostResolver;
+    private ExecutorService executor;
+
+    private int attemptDelay = DEFAULT_ATTEMPT_DELAY;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    public HappyEyeballsConnector() {
+        this(new HostResolver());
+    }
+
+    public HappyEyeballsConnector(HostResolver hostResolver) {
+        this(hostResolver, Executors.newCachedThreadPool(new DaemonThreadFactory()));
+    }
+
+    public HappyEyeballsConnector(HostResolver hostResolver, ExecutorService executor) {
+
+        this.hostResolver = hostResolver;
+        this.executor = executor;
+    }
+
+    /**
+     * How long, in milliseconds, to wait on one address before also trying the next. Defaults to 250.
+     */
+    public void setAttemptDelay(int attemptDelay) {
+        this.attemptDelay = attemptDelay;
+    }
+
+    /**
+     * The longest, in milliseconds, the whole race may take. Defaults to 30 seconds.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Socket connect(String host, int port) throws IOException {
+
+        List<InetAddress> addresses = hostResolver.resolve(host);
+
+        try {
+
+            if (addresses.size() == 1)
+                return createSocket(addresses.get(0), port, connectTimeout);
+
+            return race(host, addresses, port);
+
+        } catch (IOException e) {
+
+            // The cached addresses may be stale, so the next attempt should look the host up again.
+            hostResolver.evict(host);
+
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    protected Socket createSocket(InetAddress address, int port, int timeout) throws IOException {
+
+        Socket socket = new Socket();
+
+        try {
+
+            socket.connect(new InetSocketAddress(address, port), timeout);
+
+        } catch (IOException e) {
+
+            socket.close();
+
+            throw e;
+        }
+
+        return socket;
+    }
+
+    private Socket race(String host, List<InetAddress> addresses, int port) throws IOException {
+
+        final long deadline = System.currentTimeMillis() + connectTimeout;
+        final AtomicReference<Socket> winner = new AtomicReference<Socket>();
+
+        CompletionService<Socket> attempts = new ExecutorCompletionService<Socket>(executor);
+        List<Future<Socket>> started = new ArrayList<Future<Socket>>();
+
+        IOException lastFailure = null;
+        int failures = 0;
+
+        started.add(attempts.submit(new Attempt(addresses.get(0), port, deadline, winner)));
+
+        try {
+
+            while (failures < addresses.size()) {
+
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0)
+                    throw new SocketTimeoutException(String.format(CONNECT_TIMEOUT_MESSAGE, host, port));
+
+                boolean moreToStart = started.size() < addresses.size();
+
+                Future<Socket> finished = attempts.poll(moreToStart ? Math.min(attemptDelay, remaining) : remaining, TimeUnit.MILLISECONDS);
+
+                if (null == finished) {
+
+                    if (moreToStart)
+                        started.add(attempts.submit(new Attempt(addresses.get(started.size()), port, deadline, winner)));
+
+                    continue;
+                }
+
+                try {
+
+                    return finished.get();
+
+                } catch (ExecutionException e) {
+
+                    failures++;
+                    lastFailure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+
+                    if (started.size() < addresses.size())
+                        started.add(attempts.submit(new Attempt(addresses.get(started.size()), port, deadline, winner)));
+                }
+            }
+
+            throw lastFailure;
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while connecting to " + host, e);
+
+        } finally {
+
+            winner.compareAndSet(null, new Socket());
+
+            for (Future<Socket> attempt : started)
+                attempt.cancel(true);
+        }
+    }
+
+    /**
+     * One connection attempt. An attempt that connects after another has already won closes its socket
+     * again.
+     */
+    private class Attempt implements Callable<Socket> {
+
+        private final InetAddress address;
+        private final int port;
+        private final long deadline;
+        private final AtomicReference<Socket> winner;
+
+        Attempt(InetAddress address, int port, long deadline, AtomicReference<Socket> winner) {
+
+            this.address = address;
+            this.port = port;
+            this.deadline = deadline;
+            this.winner = winner;
+        }
+
+        @Override
+        public Socket call() throws IOException {
+
+            int timeout = (int) Math.max(1, deadline - System.currentTimeMillis());
+
+            Socket socket = createSocket(address, port, timeout);
+
+            if (!winner.compareAndSet(null, socket)) {
+
+                socket.close();
+
+                throw new IOException(LOST_RACE_MESSAGE);
+            }
+
+            return socket;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "jftp-connect");
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
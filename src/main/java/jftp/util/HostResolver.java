@@ -0,0 +1,106 @@
+package jftp.util;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves host names to all of their addresses and keeps the answers for a fixed time, so that
+ * repeated connections to the same host don't each wait on DNS.
+ */
+public class HostResolver {
+
+    private static final long ONE_MINUTE = 60000;
+
+    private final ConcurrentMap<String, CachedAddresses> cache = new ConcurrentHashMap<String, CachedAddresses>();
+
+    private long timeToLive = ONE_MINUTE;
+
+    /**
+     * How long, in milliseconds, a resolved host is remembered. Defaults to one minute.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return
+     * Every address of the host, alternating between IPv6 and IPv4 starting with the family the
+     * resolver put first, so that connecting down the list tries both families early.
+     */
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+
+        CachedAddresses cached = cache.get(host);
+
+        if (null != cached && cached.expires > System.currentTimeMillis())
+            return cached.addresses;
+
+        List<InetAddress> addresses = Collections.unmodifiableList(interleaveFamilies(lookup(host)));
+
+        cache.put(host, new CachedAddresses(addresses, System.currentTimeMillis() + timeToLive));
+
+        return addresses;
+    }
+
+    /**
+     * Forgets a host, e.g. after none of its addresses could be reached.
+     */
+    public void evict(String host) {
+        cache.remove(host);
+    }
+
+    protected InetAddress[] lookup(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    private List<InetAddress> interleaveFamilies(InetAddress[] resolved) {
+
+        if (resolved.length < 2)
+            return Arrays.asList(resolved);
+
+        boolean firstIsIpv6 = resolved[0] instanceof Inet6Address;
+
+        LinkedList<InetAddress> preferred = new LinkedList<InetAddress>();
+        LinkedList<InetAddress> other = new LinkedList<InetAddress>();
+
+        for (InetAddress address : resolved) {
+
+            if ((address instanceof Inet6Address) == firstIsIpv6)
+                preferred.add(address);
+            else
+                other.add(address);
+        }
+
+        List<InetAddress> interleaved = new ArrayList<InetAddress>();
+
+        while (!preferred.isEmpty() || !other.isEmpty()) {
+
+            if (!preferred.isEmpty())
+                interleaved.add(preferred.poll());
+
+            if (!other.isEmpty())
+                interleaved.add(other.poll());
+        }
+
+        return interleaved;
+    }
+
+    private static class CachedAddresses {
+
+        private final List<InetAddress> addresses;
+        private final long expires;
+
+        CachedAddresses(List<InetAddress> addresses, long expires) {
+
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+}
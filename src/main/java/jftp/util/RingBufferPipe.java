@@ -0,0 +1,204 @@
+package jftp.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Connects a writing thread to a reading thread through a fixed ring of reusable buffers. The writer
+ * fills empty buffers and passes them on, the reader drains them and hands them back, so memory use
+ * stays constant however much data flows through.
+ *
+ * Either side can abort the pipe, which wakes up the other side with an IOException instead of
+ * leaving it blocked forever.
+ */
+public class RingBufferPipe {
+
+    private static final String PIPE_ABORTED_MESSAGE = "The other end of the pipe was aborted.";
+
+    private final BlockingQueue<Chunk> emptyChunks;
+    private final BlockingQueue<Chunk> filledChunks;
+
+    private final OutputStream outputStream = new PipeOutputStream();
+    private final InputStream inputStream = new PipeInputStream();
+
+    private volatile boolean aborted;
+
+    public RingBufferPipe(int bufferSize, int bufferCount) {
+
+        if (bufferSize < 1 || bufferCount < 1)
+            throw new IllegalArgumentException("A pipe needs at least one buffer of at least one byte.");
+
+        emptyChunks = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+        filledChunks = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+
+        for (int i = 0; i < bufferCount; i++)
+            emptyChunks.add(new Chunk(new byte[bufferSize]));
+    }
+
+    /**
+     * The writing end. Closing it marks the end of the data for the reader.
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public void abort() {
+
+        aborted = true;
+
+        emptyChunks.offer(Chunk.ABORTED);
+        filledChunks.offer(Chunk.ABORTED);
+    }
+
+    private Chunk take(BlockingQueue<Chunk> chunks) throws IOException {
+
+        if (aborted)
+            throw new IOException(PIPE_ABORTED_MESSAGE);
+
+        try {
+
+            Chunk chunk = chunks.take();
+
+            if (chunk == Chunk.ABORTED)
+                throw new IOException(PIPE_ABORTED_MESSAGE);
+
+            return chunk;
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while waiting on the pipe.");
+        }
+    }
+
+    private static class Chunk {
+
+        private static final Chunk ABORTED = new Chunk(new byte[0]);
+        private static final Chunk END = new Chunk(new byte[0]);
+
+        private final byte[] data;
+        private int position;
+        private int limit;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+
+        private Chunk current;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+
+            if (closed)
+                throw new IOException("The pipe has already been closed for writing.");
+
+            while (length > 0) {
+
+                if (null == current) {
+                    current = take(emptyChunks);
+                    current.limit = 0;
+                }
+
+                int copied = Math.min(length, current.data.length - current.limit);
+
+                System.arraycopy(bytes, offset, current.data, current.limit, copied);
+
+                current.limit += copied;
+                offset += copied;
+                length -= copied;
+
+                if (current.limit == current.data.length)
+                    flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+
+            if (null == current || current.limit == 0)
+                return;
+
+            current.position = 0;
+            filledChunks.add(current);
+            current = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            if (closed)
+                return;
+
+            flush();
+
+            closed = true;
+            filledChunks.add(Chunk.END);
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+
+        private Chunk current;
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+
+            byte[] single = new byte[1];
+
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+
+            if (length == 0)
+                return 0;
+
+            if (ended)
+                return -1;
+
+            if (null == current) {
+
+                current = take(filledChunks);
+
+                if (current == Chunk.END) {
+                    ended = true;
+                    current = null;
+                    return -1;
+                }
+            }
+
+            int copied = Math.min(length, current.limit - current.position);
+
+            System.arraycopy(current.data, current.position, bytes, offset, copied);
+
+            current.position += copied;
+
+            if (current.position == current.limit) {
+                emptyChunks.add(current);
+                current = null;
+            }
+
+            return copied;
+        }
+    }
+}
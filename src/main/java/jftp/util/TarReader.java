@@ -0,0 +1,251 @@
+package jftp.util;
+
+import static jftp.util.TarWriter.BLOCK_SIZE;
+import static jftp.util.TarWriter.CHECKSUM_OFFSET;
+import static jftp.util.TarWriter.GNU_LONG_NAME;
+import static jftp.util.TarWriter.MAGIC_OFFSET;
+import static jftp.util.TarWriter.NAME_LENGTH;
+import static jftp.util.TarWriter.PREFIX_OFFSET;
+import static jftp.util.TarWriter.REGULAR_FILE;
+import static jftp.util.TarWriter.SIZE_OFFSET;
+import static jftp.util.TarWriter.TYPE_OFFSET;
+import static jftp.util.TarWriter.UTF_8;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads the regular files out of a tar archive as it arrives on a stream. Directories, links and
+ * other entries are skipped.
+ */
+public class TarReader {
+
+    private static final byte PAX_HEADER = 'x';
+    private static final String PAX_PATH = "path=";
+
+    private static final int PREFIX_LENGTH = 155;
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    private InputStream in;
+    private byte[] buffer = new byte[COPY_BUFFER_SIZE];
+
+    private long remaining;
+    private long padding;
+
+    public TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Moves to the next regular file, skipping whatever is left of the current one.
+     *
+     * @return
+     * The file's name in the archive, or null at the end of the archive.
+     */
+    public String nextFile() throws IOException {
+
+        skip(remaining + padding);
+
+        String longName = null;
+
+        while (true) {
+
+            byte[] header = new byte[BLOCK_SIZE];
+
+            if (!readBlock(header) || isZeroBlock(header))
+                return null;
+
+            if (TarWriter.checksum(withBlankChecksum(header)) != parseOctal(header, CHECKSUM_OFFSET, 8))
+                throw new IOException("The archive is corrupt: a header's checksum doesn't match.");
+
+            long size = parseSize(header);
+            long entryPadding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+            byte type = header[TYPE_OFFSET];
+
+            if (type == GNU_LONG_NAME) {
+
+                byte[] name = new byte[(int) size];
+                readFully(name);
+                skip(entryPadding);
+
+                longName = trim(name, 0, name.length);
+
+            } else if (type == PAX_HEADER) {
+
+                byte[] records = new byte[(int) size];
+                readFully(records);
+                skip(entryPadding);
+
+                longName = paxPath(new String(records, UTF_8));
+
+            } else if (type == REGULAR_FILE || type == 0) {
+
+                remaining = size;
+                padding = entryPadding;
+
+                return null == longName ? nameOf(header) : longName;
+
+            } else {
+
+                skip(size + entryPadding);
+
+                longName = null;
+            }
+        }
+    }
+
+    /**
+     * Writes the current file to the stream, which is left open.
+     */
+    public void copyFileTo(OutputStream out) throws IOException {
+
+        while (remaining > 0) {
+
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+            if (read < 0)
+                throw new EOFException("The archive ended part way through a file.");
+
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private String nameOf(byte[] header) {
+
+        String name = trim(header, 0, NAME_LENGTH);
+
+        if (!"ustar".equals(trim(header, MAGIC_OFFSET, 6)))
+            return name;
+
+        String prefix = trim(header, PREFIX_OFFSET, PREFIX_LENGTH);
+
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    /**
+     * Finds the path among pax records, each of which is "length key=value" and a newline.
+     */
+    private String paxPath(String records) {
+
+        for (String record : records.split("\n")) {
+
+            String keyValue = record.substring(record.indexOf(' ') + 1);
+
+            if (keyValue.startsWith(PAX_PATH))
+                return keyValue.substring(PAX_PATH.length());
+        }
+
+        return null;
+    }
+
+    private long parseSize(byte[] header) {
+
+        if ((header[SIZE_OFFSET] & 0x80) == 0)
+            return parseOctal(header, SIZE_OFFSET, 12);
+
+        long size = 0;
+
+        for (int i = 1; i < 12; i++)
+            size = (size << 8) | (header[SIZE_OFFSET + i] & 0xff);
+
+        return size;
+    }
+
+    /**
+     * @return
+     * False if the stream was already at its end.
+     */
+    private boolean readBlock(byte[] block) throws IOException {
+
+        int read = 0;
+
+        while (read < block.length) {
+
+            int count = in.read(block, read, block.length - read);
+
+            if (count < 0) {
+
+                if (read == 0)
+                    return false;
+
+                throw new EOFException("The archive ended part way through a header.");
+            }
+
+            read += count;
+        }
+
+        return true;
+    }
+
+    private void readFully(byte[] bytes) throws IOException {
+
+        if (bytes.length > 0 && !readBlock(bytes))
+            throw new EOFException("The archive ended part way through a file name.");
+    }
+
+    private void skip(long count) throws IOException {
+
+        while (count > 0) {
+
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+
+            if (read < 0)
+                throw new EOFException("The archive ended part way through an entry.");
+
+            count -= read;
+        }
+
+        remaining = 0;
+        padding = 0;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+
+        for (byte each : block)
+            if (each != 0)
+                return false;
+
+        return true;
+    }
+
+    private static byte[] withBlankChecksum(byte[] header) {
+
+        byte[] copy = header.clone();
+
+        for (int i = 0; i < 8; i++)
+            copy[CHECKSUM_OFFSET + i] = ' ';
+
+        return copy;
+    }
+
+    private static long parseOctal(byte[] header, int offset, int length) {
+
+        long value = 0;
+
+        for (int i = offset; i < offset + length; i++) {
+
+            byte each = header[i];
+
+            if (each == 0)
+                break;
+
+            if (each >= '0' && each <= '7')
+                value = value * 8 + (each - '0');
+        }
+
+        return value;
+    }
+
+    private static String trim(byte[] bytes, int offset, int length) {
+
+        int end = offset;
+
+        while (end < offset + length && bytes[end] != 0)
+            end++;
+
+        return new String(bytes, offset, end - offset, UTF_8);
+    }
+}
@@ -0,0 +1,169 @@
+package jftp.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes regular files as a ustar archive to a stream as they are read, so an archive of any number
+ * of files can be sent without first being built on disk. Names longer than ustar allows are written
+ * with GNU long name entries and sizes beyond 8 GiB in GNU's binary form, both of which GNU tar,
+ * bsdtar and busybox understand.
+ */
+public class TarWriter {
+
+    static final int BLOCK_SIZE = 512;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int NAME_LENGTH = 100;
+    static final int MODE_OFFSET = 100;
+    static final int SIZE_OFFSET = 124;
+    static final int MTIME_OFFSET = 136;
+    static final int CHECKSUM_OFFSET = 148;
+    static final int TYPE_OFFSET = 156;
+    static final int MAGIC_OFFSET = 257;
+    static final int PREFIX_OFFSET = 345;
+
+    static final byte REGULAR_FILE = '0';
+    static final byte GNU_LONG_NAME = 'L';
+    static final String GNU_LONG_NAME_ENTRY = "././@LongLink";
+
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    private OutputStream out;
+    private byte[] buffer = new byte[COPY_BUFFER_SIZE];
+
+    public TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Adds a file, copying exactly size bytes from the stream, which is left open.
+     *
+     * @param modifiedTime
+     * In milliseconds since the epoch.
+     */
+    public void putFile(String name, long size, long modifiedTime, InputStream contents) throws IOException {
+
+        byte[] nameBytes = name.getBytes(UTF_8);
+
+        if (nameBytes.length > NAME_LENGTH) {
+
+            out.write(header(GNU_LONG_NAME_ENTRY.getBytes(UTF_8), nameBytes.length + 1, 0, GNU_LONG_NAME));
+            out.write(nameBytes);
+            out.write(0);
+            pad(nameBytes.length + 1);
+        }
+
+        out.write(header(nameBytes, size, modifiedTime / 1000, REGULAR_FILE));
+
+        copy(contents, size);
+        pad(size);
+    }
+
+    /**
+     * Ends the archive, leaving the stream open.
+     */
+    public void finish() throws IOException {
+
+        out.write(new byte[BLOCK_SIZE * 2]);
+        out.flush();
+    }
+
+    public void close() throws IOException {
+
+        finish();
+        out.close();
+    }
+
+    private byte[] header(byte[] name, long size, long modifiedSeconds, byte type) {
+
+        byte[] header = new byte[BLOCK_SIZE];
+
+        System.arraycopy(name, 0, header, 0, Math.min(name.length, NAME_LENGTH));
+
+        writeOctal(header, MODE_OFFSET, 8, 0644);
+        writeOctal(header, MODE_OFFSET + 8, 8, 0);
+        writeOctal(header, MODE_OFFSET + 16, 8, 0);
+        writeSize(header, size);
+        writeOctal(header, MTIME_OFFSET, 12, modifiedSeconds);
+
+        header[TYPE_OFFSET] = type;
+
+        System.arraycopy("ustar\00000".getBytes(UTF_8), 0, header, MAGIC_OFFSET, 8);
+
+        // The checksum is summed with its own field as spaces, then written as six digits, NUL, space.
+        for (int i = 0; i < 8; i++)
+            header[CHECKSUM_OFFSET + i] = ' ';
+
+        writeOctal(header, CHECKSUM_OFFSET, 7, checksum(header));
+
+        return header;
+    }
+
+    private void writeSize(byte[] header, long size) {
+
+        if (size <= MAX_OCTAL_SIZE) {
+            writeOctal(header, SIZE_OFFSET, 12, size);
+            return;
+        }
+
+        header[SIZE_OFFSET] = (byte) 0x80;
+
+        for (int i = 11; i > 0; i--, size >>>= 8)
+            header[SIZE_OFFSET + i] = (byte) size;
+    }
+
+    private void copy(InputStream contents, long size) throws IOException {
+
+        long remaining = size;
+
+        while (remaining > 0) {
+
+            int read = contents.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+            if (read < 0)
+                throw new EOFException("The file ended " + remaining + " bytes short of its size.");
+
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private void pad(long written) throws IOException {
+
+        int padding = (int) ((BLOCK_SIZE - written % BLOCK_SIZE) % BLOCK_SIZE);
+
+        out.write(new byte[padding]);
+    }
+
+    static long checksum(byte[] header) {
+
+        long sum = 0;
+
+        for (byte each : header)
+            sum += each & 0xff;
+
+        return sum;
+    }
+
+    /**
+     * Writes the value as zero padded octal digits followed by a NUL, filling the field.
+     */
+    private static void writeOctal(byte[] header, int offset, int length, long value) {
+
+        String digits = Long.toOctalString(value);
+
+        for (int i = 0; i < length - 1; i++) {
+
+            int digit = i - (length - 1 - digits.length());
+
+            header[offset + i] = digit < 0 ? (byte) '0' : (byte) digits.charAt(digit);
+        }
+
+        header[offset + length - 1] = 0;
+    }
+}
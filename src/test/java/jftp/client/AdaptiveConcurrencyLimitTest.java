@@ -0,0 +1,144 @@
+package jftp.client;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    private static final long MILLISECOND = 1000000;
+
+    private long now;
+
+    private AdaptiveConcurrencyLimit limit;
+
+    @Before
+    public void setUp() {
+
+        limit = new AdaptiveConcurrencyLimit(2, 10) {
+
+            @Override
+            long nanoTime() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void theLimitShouldGrowByOneForEachWindowThatKeptEveryConnectionBusy() {
+
+        commands(2, 2, 10);
+
+        assertThat(limit.getLimit(), is(equalTo(3)));
+
+        commands(3, 3, 10);
+
+        assertThat(limit.getLimit(), is(equalTo(4)));
+    }
+
+    @Test
+    public void theLimitShouldNotGrowWhileConnectionsAreLeftUnused() {
+
+        commands(2, 1, 10);
+
+        assertThat(limit.getLimit(), is(equalTo(2)));
+    }
+
+    @Test
+    public void theLimitShouldNotGrowBeyondTheMaximum() {
+
+        for (int window = 0; window < 20; window++)
+            commands(limit.getLimit(), limit.getLimit(), 10);
+
+        assertThat(limit.getLimit(), is(equalTo(10)));
+    }
+
+    @Test
+    public void aCapShouldLowerTheMaximumAndALimitAlreadyAboveIt() {
+
+        for (int window = 0; window < 4; window++)
+            commands(limit.getLimit(), limit.getLimit(), 10);
+
+        limit.capAt(4);
+
+        assertThat(limit.getLimit(), is(equalTo(4)));
+
+        commands(4, 4, 10);
+
+        assertThat(limit.getLimit(), is(equalTo(4)));
+    }
+
+    @Test
+    public void aRefusedConnectionShouldCutTheLimitBelowWhatTheServerAccepted() {
+
+        for (int window = 0; window < 6; window++)
+            commands(limit.getLimit(), limit.getLimit(), 10);
+
+        limit.onOverload(4);
+
+        assertThat(limit.getLimit(), is(equalTo(3)));
+    }
+
+    @Test
+    public void theLimitShouldNeverDropBelowOne() {
+
+        limit.onOverload(1);
+        limit.onOverload(0);
+
+        assertThat(limit.getLimit(), is(equalTo(1)));
+    }
+
+    @Test
+    public void commandsSlowingDownShouldCutTheLimit() {
+
+        commands(2, 2, 10);
+        commands(3, 3, 10);
+        commands(4, 4, 50);
+
+        assertThat(limit.getLimit(), is(equalTo(3)));
+    }
+
+    @Test
+    public void anIncreaseThatBroughtNoMoreThroughputShouldBeUndone() {
+
+        transfers(2, 2, 1000, 10);
+
+        assertThat(limit.getLimit(), is(equalTo(3)));
+
+        // Three connections move the same data in the same time as two did.
+        transfers(3, 3, 1000, 10);
+
+        assertThat(limit.getLimit(), is(equalTo(2)));
+    }
+
+    @Test
+    public void anIncreaseThatBroughtMoreThroughputShouldBeKept() {
+
+        transfers(2, 2, 1000, 10);
+        transfers(3, 3, 1500, 10);
+
+        assertThat(limit.getLimit(), is(equalTo(4)));
+    }
+
+    private void commands(int operations, int inFlight, long millis) {
+        operations(operations, inFlight, 0, millis);
+    }
+
+    /**
+     * Runs a window of transfers moving the given bytes in total over the given wall clock time.
+     */
+    private void transfers(int operations, int inFlight, long totalBytes, long millis) {
+        operations(operations, inFlight, totalBytes / operations, millis);
+    }
+
+    private void operations(int operations, int inFlight, long bytesEach, long millis) {
+
+        now += millis * MILLISECOND;
+
+        for (int i = 0; i < operations; i++)
+            limit.onSuccess(millis * MILLISECOND, bytesEach, inFlight);
+    }
+}
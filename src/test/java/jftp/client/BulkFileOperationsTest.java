@@ -0,0 +1,348 @@
+package jftp.client;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jftp.connection.Connection;
+import jftp.connection.FtpFile;
+import jftp.connection.SftpConnection;
+import jftp.exception.FtpException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mockito.stubbing.OngoingStubbing;
+
+public class BulkFileOperationsTest {
+
+    private ConnectionPool mockConnectionPool;
+    private Connection mockConnection;
+    private ExecutorService executor;
+
+    private BulkFileOperations bulkFileOperations;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+
+        mockConnectionPool = mock(ConnectionPool.class);
+        mockConnection = mock(Connection.class);
+        executor = Executors.newFixedThreadPool(2);
+
+        when(mockConnectionPool.getMaxConnections()).thenReturn(2);
+        when(mockConnectionPool.borrow()).thenReturn(mockConnection);
+
+        bulkFileOperations = new BulkFileOperations(mockConnectionPool, executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void deletingAllShouldDeleteEveryFileAndReleaseEveryBorrowedConnection() {
+
+        bulkFileOperations.deleteAll(Arrays.asList("a", "b", "c"));
+
+        verify(mockConnection).delete("a");
+        verify(mockConnection).delete("b");
+        verify(mockConnection).delete("c");
+        verify(mockConnectionPool, times(2)).release(mockConnection, 0);
+    }
+
+    @Test
+    public void failuresShouldBeCollectedAndReportedOnceEveryFileHasBeenAttempted() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to delete files: [b]")));
+
+        doThrow(new FtpException("no")).when(mockConnection).delete("b");
+
+        try {
+            bulkFileOperations.deleteAll(Arrays.asList("a", "b", "c"));
+        } finally {
+            verify(mockConnection).delete("c");
+        }
+    }
+
+    @Test
+    public void statAllShouldLeaveOutPathsThatCouldNotBeFound() {
+
+        FtpFile file = new FtpFile("a", 1, "a", 0, false);
+
+        when(mockConnection.stat("a")).thenReturn(file);
+        when(mockConnection.stat("b")).thenThrow(new FtpException("missing"));
+
+        Map<String, FtpFile> files = bulkFileOperations.statAll(Arrays.asList("a", "b"));
+
+        assertThat(files.size(), is(equalTo(1)));
+        assertThat(files.get("a"), is(equalTo(file)));
+    }
+
+    @Test
+    public void makingDirectoriesShouldCreateTheCommonParentBeforeEachSubtree() {
+
+        bulkFileOperations.makeDirectories(Arrays.asList("/data/in/x", "/data/in/y/z"));
+
+        InOrder inOrder = inOrder(mockConnection);
+
+        inOrder.verify(mockConnection).makeDirectories("/data/in");
+
+        verify(mockConnection).makeDirectories("/data/in/x");
+        verify(mockConnection).makeDirectories("/data/in/y/z");
+    }
+
+    @Test
+    public void deletingRecursivelyShouldDeleteFilesThenRemoveDirectoriesDeepestFirst() {
+
+        when(mockConnection.listFiles("/top")).thenReturn(Arrays.asList(
+                new FtpFile(".", 0, "/top/.", 0, true),
+                new FtpFile("file", 1, "/top/file", 0, false),
+                new FtpFile("sub", 0, "/top/sub", 0, true)));
+
+        when(mockConnection.listFiles("/top/sub")).thenReturn(Arrays.asList(
+                new FtpFile("nested", 1, "/top/sub/nested", 0, false)));
+
+        bulkFileOperations.deleteRecursively("/top");
+
+        InOrder inOrder = inOrder(mockConnection);
+
+        inOrder.verify(mockConnection).removeDirectory("/top/sub");
+        inOrder.verify(mockConnection).removeDirectory("/top");
+
+        verify(mockConnection).delete("/top/file");
+        verify(mockConnection).delete("/top/sub/nested");
+    }
+
+    @Test
+    public void uploadingAllOverSftpShouldSendOneArchive() {
+
+        SftpConnection sftpConnection = mock(SftpConnection.class);
+        when(mockConnectionPool.borrow()).thenReturn(sftpConnection);
+
+        List<String> localFilePaths = Arrays.asList("a", "b", "c");
+
+        bulkFileOperations.uploadAll(localFilePaths, "/remote");
+
+        verify(sftpConnection).uploadArchive(localFilePaths, "/remote", false);
+        verify(sftpConnection, never()).upload("a", "/remote");
+        verify(mockConnectionPool).release(sftpConnection, 0);
+    }
+
+    @Test
+    public void downloadingAllShouldFallBackToEachFileWhenTheServerCannotRunTar() {
+
+        SftpConnection sftpConnection = mock(SftpConnection.class);
+        when(mockConnectionPool.borrow()).thenReturn(sftpConnection);
+
+        List<String> remoteFilePaths = Arrays.asList("a", "b", "c");
+
+        doThrow(new FtpException("no tar")).when(sftpConnection).downloadArchive(remoteFilePaths, "local", true);
+
+        bulkFileOperations.setCompressArchives(true);
+        bulkFileOperations.downloadAll(remoteFilePaths, "local");
+
+        verify(sftpConnection).download("a", "local");
+        verify(sftpConnection).download("b", "local");
+        verify(sftpConnection).download("c", "local");
+    }
+
+    @Test
+    public void uploadingAllOverFtpShouldUploadEachFile() {
+
+        bulkFileOperations.uploadAll(Arrays.asList("a", "b"), "/remote");
+
+        verify(mockConnection).upload("a", "/remote");
+        verify(mockConnection).upload("b", "/remote");
+    }
+
+    @Test
+    public void uploadingInSegmentsShouldWriteTheFirstSegmentThenTheRestAtTheirOffsets() throws IOException {
+
+        Map<Long, String> written = recordUploads();
+        whenRemoteSizeIs(5, 10);
+
+        bulkFileOperations.setMinSegmentSize(4);
+        bulkFileOperations.uploadInSegments(localFile("abcdefghij"), "/remote/big.bin");
+
+        assertThat(written, is(equalTo(segments(0L, "abcde", 1L, "b", 5L, "fghij"))));
+        verify(mockConnectionPool, times(2)).release(mockConnection, 5);
+        verify(mockConnectionPool).release(mockConnection, 0);
+    }
+
+    @Test
+    public void filesSmallerThanTwoSegmentsShouldBeUploadedInOnePiece() throws IOException {
+
+        Map<Long, String> written = recordUploads();
+
+        bulkFileOperations.setMinSegmentSize(16);
+        bulkFileOperations.uploadInSegments(localFile("abcdefghij"), "/remote/big.bin");
+
+        assertThat(written, is(equalTo(segments(0L, "abcdefghij"))));
+        verify(mockConnection, never()).stat(anyString());
+    }
+
+    @Test
+    public void aServerTruncatingAtTheOffsetShouldHaveTheFileUploadedInOnePieceWithoutWritingTheOtherSegments() throws IOException {
+
+        Map<Long, String> written = recordUploads();
+        whenRemoteSizeIs(2);
+
+        bulkFileOperations.setMinSegmentSize(4);
+        bulkFileOperations.uploadInSegments(localFile("abcdefghij"), "/remote/big.bin");
+
+        assertThat(written, is(equalTo(segments(0L, "abcdefghij", 1L, "b"))));
+        verify(mockConnection, never()).upload(any(InputStream.class), anyString(), eq(5L));
+    }
+
+    @Test
+    public void overSftpEverySegmentShouldBeWrittenAtItsOffsetWithoutProbing() throws IOException {
+
+        mockConnection = mock(SftpConnection.class);
+        when(mockConnectionPool.borrow()).thenReturn(mockConnection);
+
+        Map<Long, String> written = recordUploads();
+        whenRemoteSizeIs(10);
+
+        bulkFileOperations.setMinSegmentSize(4);
+        bulkFileOperations.uploadInSegments(localFile("abcdefghij"), "/remote/big.bin");
+
+        assertThat(written, is(equalTo(segments(0L, "abcde", 5L, "fghij"))));
+        verify(mockConnection, never()).upload(any(InputStream.class), anyString());
+        verify(mockConnection, times(1)).stat("/remote/big.bin");
+    }
+
+    @Test
+    public void aFailedSegmentShouldHaveTheFileUploadedAgainInOnePiece() throws IOException {
+
+        Map<Long, String> written = recordUploads();
+        whenRemoteSizeIs(10);
+
+        doThrow(new FtpException("REST not implemented.")).when(mockConnection).upload(any(InputStream.class), anyString(), anyLong());
+
+        bulkFileOperations.setMinSegmentSize(4);
+        bulkFileOperations.uploadInSegments(localFile("abcdefghij"), "/remote/big.bin");
+
+        assertThat(written, is(equalTo(segments(0L, "abcdefghij"))));
+    }
+
+    /**
+     * @return
+     * What each upload to the mock connection wrote, by offset. Later uploads at an offset replace
+     * earlier ones.
+     */
+    private Map<Long, String> recordUploads() {
+
+        final Map<Long, String> written = Collections.synchronizedMap(new TreeMap<Long, String>());
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+
+                written.put(0L, read((InputStream) invocation.getArguments()[0]));
+
+                return null;
+            }
+
+        }).when(mockConnection).upload(any(InputStream.class), anyString());
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+
+                written.put((Long) invocation.getArguments()[2], read((InputStream) invocation.getArguments()[0]));
+
+                return null;
+            }
+
+        }).when(mockConnection).upload(any(InputStream.class), anyString(), anyLong());
+
+        return written;
+    }
+
+    /**
+     * @param sizes
+     * The size each stat reports in turn, the last one from then on.
+     */
+    private void whenRemoteSizeIs(long... sizes) {
+
+        FtpFile remoteFile = mock(FtpFile.class);
+        OngoingStubbing<Long> size = when(remoteFile.getSize());
+
+        for (long each : sizes)
+            size = size.thenReturn(each);
+
+        when(mockConnection.stat("/remote/big.bin")).thenReturn(remoteFile);
+    }
+
+    private Map<Long, String> segments(Object... offsetsAndContents) {
+
+        Map<Long, String> segments = new TreeMap<Long, String>();
+
+        for (int i = 0; i < offsetsAndContents.length; i += 2)
+            segments.put((Long) offsetsAndContents[i], (String) offsetsAndContents[i + 1]);
+
+        return segments;
+    }
+
+    private String localFile(String contents) throws IOException {
+
+        File file = temporaryFolder.newFile("big.bin");
+        Files.write(file.toPath(), contents.getBytes("US-ASCII"));
+
+        return file.getPath();
+    }
+
+    private static String read(InputStream in) throws IOException {
+
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4];
+
+        int read;
+
+        while ((read = in.read(buffer)) >= 0)
+            contents.write(buffer, 0, read);
+
+        return contents.toString("US-ASCII");
+    }
+}
@@ -0,0 +1,64 @@
+package jftp.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+
+public class CancellationTokenTest {
+
+    @Test
+    public void aNewTokenShouldNotBeCancelledOrHaveADeadline() {
+
+        CancellationToken token = new CancellationToken();
+
+        assertThat(token.isCancelled(), is(false));
+        assertThat(token.remainingMillis(), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void aTokenShouldCountAsCancelledOnceItsTimeoutPasses() {
+
+        CancellationToken token = CancellationToken.withTimeout(0);
+
+        assertThat(token.isCancelled(), is(true));
+        assertThat(token.remainingMillis(), is(0L));
+    }
+
+    @Test
+    public void cancellingShouldRunEachRegisteredWatcherOnce() {
+
+        Runnable watcher = mock(Runnable.class);
+        Runnable unregistered = mock(Runnable.class);
+
+        CancellationToken token = new CancellationToken();
+
+        token.register(watcher);
+        token.register(unregistered);
+        token.unregister(unregistered);
+
+        token.cancel();
+        token.cancel();
+
+        verify(watcher, times(1)).run();
+        verify(unregistered, never()).run();
+        assertThat(token.isCancelled(), is(true));
+    }
+
+    @Test
+    public void watchersRegisteredAfterCancellingShouldRunStraightAway() {
+
+        Runnable watcher = mock(Runnable.class);
+
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+
+        token.register(watcher);
+
+        verify(watcher).run();
+    }
+}
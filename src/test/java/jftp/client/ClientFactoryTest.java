@@ -29,4 +29,9 @@ public class ClientFactoryTest {
 	public void factoryShouldReturnNewFtpsClientWhenSwitchedToFtps() {
 	    assertThat(factory.createClient(Protocol.FTPS), is(instanceOf(FtpsClient.class)));
 	}
+
+	@Test
+	public void factoryShouldReturnNewNioFtpClientWhenSwitchedToNioFtp() {
+	    assertThat(factory.createClient(Protocol.NIO_FTP), is(instanceOf(NioFtpClient.class)));
+	}
 }
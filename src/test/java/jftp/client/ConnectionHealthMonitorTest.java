@@ -0,0 +1,65 @@
+package jftp.client;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jftp.exception.FtpException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionHealthMonitorTest {
+
+    private ConnectionPool mockConnectionPool;
+    private ScheduledExecutorService mockScheduler;
+
+    private ConnectionHealthMonitor healthMonitor;
+
+    @Before
+    public void setUp() {
+
+        mockConnectionPool = mock(ConnectionPool.class);
+        mockScheduler = mock(ScheduledExecutorService.class);
+
+        healthMonitor = new ConnectionHealthMonitor(mockConnectionPool, mockScheduler);
+        healthMonitor.setKeepAliveInterval(30000);
+    }
+
+    @Test
+    public void startingShouldScheduleChecksEveryHalfInterval() {
+
+        healthMonitor.start();
+
+        verify(mockScheduler).scheduleWithFixedDelay(any(Runnable.class), eq(15000L), eq(15000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void checkShouldMaintainConnectionsIdleForTheWholeInterval() {
+
+        healthMonitor.check();
+
+        verify(mockConnectionPool).maintainIdleConnections(30000);
+    }
+
+    @Test
+    public void failedCheckShouldNotBeRethrownSoTheScheduleCarriesOn() {
+
+        doThrow(new FtpException("The connection pool has been closed.")).when(mockConnectionPool).maintainIdleConnections(30000);
+
+        healthMonitor.check();
+    }
+
+    @Test
+    public void stoppingShouldShutDownTheScheduler() {
+
+        healthMonitor.stop();
+
+        verify(mockScheduler).shutdownNow();
+    }
+}
@@ -0,0 +1,425 @@
+package jftp.client;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.net.ConnectException;
+import java.util.concurrent.CountDownLatch;
+
+import jftp.client.ClientFactory.Protocol;
+import jftp.client.auth.UserCredentials;
+import jftp.connection.Connection;
+import jftp.exception.FtpException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ConnectionPoolTest {
+
+    private UserCredentials userCredentials = new UserCredentials("user", "password");
+
+    @InjectMocks
+    private ConnectionPool connectionPool = new ConnectionPool(Protocol.SFTP, "host", 22, userCredentials, 2);
+
+    @InjectMocks
+    private ConnectionPool largePool = new ConnectionPool(Protocol.SFTP, "host", 22, userCredentials, 4);
+
+    @Mock
+    private ClientFactory mockClientFactory;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private Client firstClient;
+    private Client secondClient;
+
+    @Before
+    public void setUp() {
+
+        initMocks(this);
+
+        firstClient = mockClient();
+        secondClient = mockClient();
+
+        when(mockClientFactory.createClient(Protocol.SFTP)).thenReturn(firstClient, secondClient);
+    }
+
+    @Test
+    public void borrowingShouldCreateAndConnectAClientForTheConfiguredHost() {
+
+        connectionPool.borrow();
+
+        verify(firstClient).setHost("host");
+        verify(firstClient).setPort(22);
+        verify(firstClient).setCredentials(userCredentials);
+        verify(firstClient).connect();
+    }
+
+    @Test
+    public void releasedConnectionShouldBeHandedOutAgainInsteadOfConnectingAnotherClient() {
+
+        Connection connection = connectionPool.borrow();
+        connectionPool.release(connection);
+
+        assertThat(connectionPool.borrow(), is(sameInstance(connection)));
+        verify(mockClientFactory, times(1)).createClient(Protocol.SFTP);
+    }
+
+    @Test
+    public void connectionsBorrowedAtTheSameTimeShouldBeDifferent() {
+
+        Connection first = connectionPool.borrow();
+        Connection second = connectionPool.borrow();
+
+        assertThat(first, is(not(sameInstance(second))));
+    }
+
+    @Test
+    public void borrowingWhenThePoolIsFullShouldWaitForARelease() throws InterruptedException {
+
+        final Connection first = connectionPool.borrow();
+        connectionPool.borrow();
+
+        Thread releaser = new Thread() {
+
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                connectionPool.release(first);
+            }
+        };
+
+        releaser.start();
+
+        assertThat(connectionPool.borrow(), is(sameInstance(first)));
+
+        releaser.join();
+    }
+
+    @Test
+    public void invalidatedConnectionShouldBeDisconnectedAndFreeItsSlot() {
+
+        Connection connection = connectionPool.borrow();
+        connectionPool.borrow();
+
+        connectionPool.invalidate(connection);
+
+        verify(firstClient).disconnect();
+        assertThat(connectionPool.borrow(), is(not(sameInstance(connection))));
+    }
+
+    @Test
+    public void aSlowDisconnectShouldNotHoldUpOtherBorrowers() throws InterruptedException {
+
+        final CountDownLatch disconnecting = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+
+                disconnecting.countDown();
+                disconnected.await();
+
+                return null;
+            }
+        }).when(firstClient).disconnect();
+
+        final Connection connection = connectionPool.borrow();
+
+        Thread invalidator = new Thread() {
+
+            @Override
+            public void run() {
+                connectionPool.invalidate(connection);
+            }
+        };
+
+        Thread borrower = new Thread() {
+
+            @Override
+            public void run() {
+                connectionPool.release(connectionPool.borrow());
+            }
+        };
+
+        try {
+
+            invalidator.start();
+            disconnecting.await();
+
+            borrower.start();
+            borrower.join(1000);
+
+            assertThat(borrower.isAlive(), is(false));
+
+        } finally {
+
+            disconnected.countDown();
+            invalidator.join();
+            borrower.join();
+        }
+
+        verify(secondClient).connect();
+    }
+
+    @Test
+    public void failureToConnectShouldFreeTheSlotAndBeRethrown() {
+
+        when(firstClient.connect()).thenThrow(new FtpException("refused"));
+
+        try {
+            connectionPool.borrow();
+        } catch (FtpException e) {
+            assertThat(e.getMessage(), is(equalTo("refused")));
+        }
+
+        connectionPool.borrow();
+        connectionPool.borrow();
+
+        verify(secondClient, times(2)).connect();
+    }
+
+    @Test
+    public void borrowingAtTheConcurrencyLimitShouldWaitForARelease() throws InterruptedException {
+
+        connectionPool.setConcurrencyLimit(new AdaptiveConcurrencyLimit(1, 2));
+
+        final Connection first = connectionPool.borrow();
+
+        Thread releaser = new Thread() {
+
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                connectionPool.release(first);
+            }
+        };
+
+        releaser.start();
+
+        assertThat(connectionPool.borrow(), is(sameInstance(first)));
+        verify(mockClientFactory, times(1)).createClient(Protocol.SFTP);
+
+        releaser.join();
+    }
+
+    @Test
+    public void busyReleasesShouldRaiseTheConcurrencyLimit() {
+
+        AdaptiveConcurrencyLimit concurrencyLimit = new AdaptiveConcurrencyLimit(1, 2);
+        connectionPool.setConcurrencyLimit(concurrencyLimit);
+
+        connectionPool.release(connectionPool.borrow(), 1024);
+
+        assertThat(concurrencyLimit.getLimit(), is(equalTo(2)));
+    }
+
+    @Test
+    public void theConcurrencyLimitShouldNotRiseBeyondThePoolsMaximum() {
+
+        AdaptiveConcurrencyLimit concurrencyLimit = new AdaptiveConcurrencyLimit(2, 10);
+        connectionPool.setConcurrencyLimit(concurrencyLimit);
+
+        Connection first = connectionPool.borrow();
+        Connection second = connectionPool.borrow();
+
+        // Every connection the pool can open stays busy for a whole window.
+        connectionPool.release(first, 1024);
+        connectionPool.borrow();
+        connectionPool.release(second, 1024);
+
+        assertThat(concurrencyLimit.getLimit(), is(equalTo(2)));
+    }
+
+    @Test
+    public void aRefusedConnectionWhileOthersAreOpenShouldLowerTheLimitAndCloseConnectionsBeyondIt() {
+
+        AdaptiveConcurrencyLimit concurrencyLimit = new AdaptiveConcurrencyLimit(4, 4);
+        largePool.setConcurrencyLimit(concurrencyLimit);
+
+        Client thirdClient = mockClient();
+        Client refusedClient = mockClient();
+        when(refusedClient.connect()).thenThrow(new FtpException("421 Too many connections"));
+        when(mockClientFactory.createClient(Protocol.SFTP)).thenReturn(firstClient, secondClient, thirdClient, refusedClient);
+
+        Connection first = largePool.borrow();
+        Connection second = largePool.borrow();
+        largePool.borrow();
+
+        try {
+            largePool.borrow();
+        } catch (FtpException e) {
+            assertThat(e.getMessage(), is(equalTo("421 Too many connections")));
+        }
+
+        assertThat(concurrencyLimit.getLimit(), is(equalTo(2)));
+
+        largePool.release(first);
+        largePool.release(second);
+
+        verify(firstClient).disconnect();
+        verify(secondClient, never()).disconnect();
+    }
+
+    @Test
+    public void aFailureToLogInShouldNotCountAsTheServerBeingOverloaded() {
+
+        AdaptiveConcurrencyLimit concurrencyLimit = new AdaptiveConcurrencyLimit(4, 4);
+        largePool.setConcurrencyLimit(concurrencyLimit);
+
+        when(secondClient.connect()).thenThrow(new FtpException("Unable to login for user user"));
+
+        largePool.borrow();
+
+        try {
+            largePool.borrow();
+        } catch (FtpException e) {
+            assertThat(e.getMessage(), is(equalTo("Unable to login for user user")));
+        }
+
+        assertThat(concurrencyLimit.getLimit(), is(equalTo(4)));
+    }
+
+    @Test
+    public void aConnectionRefusedBySocketWhileOthersAreOpenShouldLowerTheLimit() {
+
+        AdaptiveConcurrencyLimit concurrencyLimit = new AdaptiveConcurrencyLimit(4, 4);
+        largePool.setConcurrencyLimit(concurrencyLimit);
+
+        when(secondClient.connect()).thenThrow(new FtpException("Unable to connect to host", new ConnectException("Connection refused")));
+
+        largePool.borrow();
+
+        try {
+            largePool.borrow();
+        } catch (FtpException e) {
+            assertThat(e.getCause(), is(instanceOf(ConnectException.class)));
+        }
+
+        assertThat(concurrencyLimit.getLimit(), is(equalTo(1)));
+    }
+
+    @Test
+    public void closingThePoolShouldDisconnectIdleClientsAndRefuseFurtherBorrowing() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("The connection pool has been closed.")));
+
+        connectionPool.release(connectionPool.borrow());
+        connectionPool.close();
+
+        verify(firstClient).disconnect();
+
+        connectionPool.borrow();
+    }
+
+    @Test
+    public void releasingAConnectionThatWasNotBorrowedShouldThrowException() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("The connection was not borrowed from this pool.")));
+
+        connectionPool.release(mock(Connection.class));
+    }
+
+    @Test
+    public void failureToDisconnectADiscardedClientShouldNotBeRethrown() {
+
+        doThrow(new FtpException("already closed")).when(firstClient).disconnect();
+
+        connectionPool.invalidate(connectionPool.borrow());
+    }
+
+    @Test
+    public void maintenanceShouldSendKeepAlivesOverIdleConnectionsAndKeepThemPooled() {
+
+        Connection connection = connectionPool.borrow();
+        connectionPool.release(connection);
+
+        connectionPool.maintainIdleConnections(0);
+
+        verify(connection).keepAlive();
+        assertThat(connectionPool.borrow(), is(sameInstance(connection)));
+    }
+
+    @Test
+    public void maintenanceShouldLeaveRecentlyUsedConnectionsAlone() {
+
+        Connection connection = connectionPool.borrow();
+        connectionPool.release(connection);
+
+        connectionPool.maintainIdleConnections(60000);
+
+        verify(connection, never()).keepAlive();
+    }
+
+    @Test
+    public void maintenanceShouldNotTouchBorrowedConnections() {
+
+        Connection connection = connectionPool.borrow();
+
+        connectionPool.maintainIdleConnections(0);
+
+        verify(connection, never()).keepAlive();
+    }
+
+    @Test
+    public void deadIdleConnectionShouldBeDisconnectedAndReplacedWithAFreshOne() {
+
+        Connection dead = connectionPool.borrow();
+        connectionPool.release(dead);
+
+        doThrow(new FtpException("The server did not answer the keep-alive.")).when(dead).keepAlive();
+
+        connectionPool.maintainIdleConnections(0);
+
+        verify(firstClient).disconnect();
+        verify(secondClient).connect();
+
+        Connection replacement = connectionPool.borrow();
+
+        assertThat(replacement, is(not(sameInstance(dead))));
+        verify(mockClientFactory, times(2)).createClient(Protocol.SFTP);
+    }
+
+    private Client mockClient() {
+
+        Client client = mock(Client.class);
+
+        when(client.connect()).thenReturn(mock(Connection.class));
+
+        return client;
+    }
+}
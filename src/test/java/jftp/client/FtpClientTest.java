@@ -4,27 +4,46 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
 
 import jftp.client.auth.UserCredentials;
 import jftp.connection.Connection;
 import jftp.connection.ConnectionFactory;
 import jftp.connection.FtpConnection;
 import jftp.exception.FtpException;
+import jftp.util.HappyEyeballsConnector;
 
+import org.apache.commons.net.ProtocolCommandEvent;
+import org.apache.commons.net.ProtocolCommandListener;
 import org.apache.commons.net.ftp.FTPClient;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
@@ -81,6 +100,81 @@ public class FtpClientTest {
         verify(mockFtpClient).connect(hostname, port);
     }
 
+    @Test
+    public void withAHostConnectorTheControlConnectionShouldRunOverTheSocketThatWonTheRace() throws IOException {
+
+        InetAddress winner = InetAddress.getLoopbackAddress();
+
+        ServerSocket server = new ServerSocket(0, 1, winner);
+        Socket socket = new Socket(winner, server.getLocalPort());
+
+        HappyEyeballsConnector mockHostConnector = mock(HappyEyeballsConnector.class);
+        when(mockHostConnector.connect(hostname, port)).thenReturn(socket);
+
+        ftpClient.setHostConnector(mockHostConnector);
+        ftpClient.connect();
+
+        ArgumentCaptor<SocketFactory> socketFactory = ArgumentCaptor.forClass(SocketFactory.class);
+        ArgumentCaptor<InetAddress> address = ArgumentCaptor.forClass(InetAddress.class);
+
+        InOrder inOrder = Mockito.inOrder(mockFtpClient);
+
+        inOrder.verify(mockFtpClient).setSocketFactory(socketFactory.capture());
+        inOrder.verify(mockFtpClient).connect(address.capture(), eq(port));
+        inOrder.verify(mockFtpClient).setSocketFactory(null);
+
+        Socket controlSocket = socketFactory.getValue().createSocket();
+        controlSocket.connect(new InetSocketAddress(address.getValue(), port), 0);
+
+        assertThat(address.getValue().getHostName(), is(equalTo(hostname)));
+        assertThat(controlSocket.getInetAddress(), is(equalTo(winner)));
+        assertThat(controlSocket.getLocalPort(), is(equalTo(socket.getLocalPort())));
+
+        controlSocket.close();
+        server.close();
+
+        assertThat(socket.isClosed(), is(true));
+        verify(mockHostConnector, times(1)).connect(hostname, port);
+    }
+
+    @Test
+    public void optionsSetOnTheControlSocketBeforeTheRaceShouldCarryOverToTheSocketThatWon() throws IOException {
+
+        InetAddress winner = InetAddress.getLoopbackAddress();
+
+        ServerSocket server = new ServerSocket(0, 1, winner);
+        Socket socket = new Socket(winner, server.getLocalPort());
+
+        HappyEyeballsConnector mockHostConnector = mock(HappyEyeballsConnector.class);
+        when(mockHostConnector.connect(hostname, port)).thenReturn(socket);
+
+        ftpClient.setHostConnector(mockHostConnector);
+        ftpClient.connect();
+
+        ArgumentCaptor<SocketFactory> socketFactory = ArgumentCaptor.forClass(SocketFactory.class);
+        verify(mockFtpClient, times(2)).setSocketFactory(socketFactory.capture());
+
+        Socket controlSocket = socketFactory.getAllValues().get(0).createSocket();
+
+        controlSocket.setReceiveBufferSize(65536);
+        controlSocket.setSendBufferSize(65536);
+        controlSocket.setSoTimeout(1234);
+        controlSocket.setTcpNoDelay(true);
+        controlSocket.setKeepAlive(true);
+
+        controlSocket.connect(new InetSocketAddress(winner, port), 0);
+
+        assertThat(socket.getSoTimeout(), is(equalTo(1234)));
+        assertThat(socket.getTcpNoDelay(), is(true));
+        assertThat(socket.getKeepAlive(), is(true));
+        assertThat(controlSocket.isConnected(), is(true));
+
+        controlSocket.close();
+        server.close();
+
+        assertThat(socket.isClosed(), is(true));
+    }
+
     @Test
     public void connectMethodShouldEnterPassiveModeLoginToUnderlyingFtpClient() throws IOException {
 
@@ -100,6 +194,68 @@ public class FtpClientTest {
         verify(mockFtpClient).setControlKeepAliveTimeout(300);
     }
 
+    @Test
+    public void aSocketTimeoutShouldApplyToTheControlConnectionBeforeConnectingAndToDataConnections() throws IOException {
+
+        ftpClient.setSocketTimeout(30000);
+        ftpClient.connect();
+
+        InOrder inOrder = Mockito.inOrder(mockFtpClient);
+
+        inOrder.verify(mockFtpClient).setDefaultTimeout(30000);
+        inOrder.verify(mockFtpClient).connect(hostname, port);
+
+        verify(mockFtpClient).setDataTimeout(30000);
+    }
+
+    @Test
+    public void connectMethodShouldTryEpsvBeforePasv() {
+
+        ftpClient.connect();
+
+        verify(mockFtpClient).setUseEPSVwithIPv4(true);
+    }
+
+    @Test
+    public void aServerRefusingEpsvShouldOnlyBeAskedForPasvFromThenOn() {
+
+        ArgumentCaptor<ProtocolCommandListener> listener = ArgumentCaptor.forClass(ProtocolCommandListener.class);
+
+        ftpClient.connect();
+
+        verify(mockFtpClient).addProtocolCommandListener(listener.capture());
+
+        listener.getValue().protocolCommandSent(new ProtocolCommandEvent(mockFtpClient, "EPSV", "EPSV\r\n"));
+        listener.getValue().protocolReplyReceived(new ProtocolCommandEvent(mockFtpClient, 502, "502 Command not implemented.\r\n"));
+
+        verify(mockFtpClient).setUseEPSVwithIPv4(false);
+    }
+
+    @Test
+    public void otherRefusedCommandsShouldLeaveEpsvOn() {
+
+        ArgumentCaptor<ProtocolCommandListener> listener = ArgumentCaptor.forClass(ProtocolCommandListener.class);
+
+        ftpClient.connect();
+
+        verify(mockFtpClient).addProtocolCommandListener(listener.capture());
+
+        listener.getValue().protocolCommandSent(new ProtocolCommandEvent(mockFtpClient, "MLST", "MLST a.txt\r\n"));
+        listener.getValue().protocolReplyReceived(new ProtocolCommandEvent(mockFtpClient, 502, "502 Command not implemented.\r\n"));
+
+        verify(mockFtpClient, times(0)).setUseEPSVwithIPv4(false);
+    }
+
+    @Test
+    public void withEpsvTurnedOffTheClientShouldOnlyUsePasv() {
+
+        ftpClient.setUseEpsv(false);
+        ftpClient.connect();
+
+        verify(mockFtpClient).setUseEPSVwithIPv4(false);
+        verify(mockFtpClient, times(0)).addProtocolCommandListener(Mockito.any(ProtocolCommandListener.class));
+    }
+
     @Test
     public void onceLoggedInTheClientShouldHaveFileTypeSetToBinary() throws IOException {
         
@@ -210,4 +366,129 @@ public class FtpClientTest {
 
         ftpClient.disconnect();
     }
+
+    @Test
+    public void abortingShouldStopATransferTheServerStoppedSendingData() throws Exception {
+
+        final ServerSocket control = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final ServerSocket data = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final CountDownLatch transferStarted = new CountDownLatch(1);
+        final CountDownLatch testFinished = new CountDownLatch(1);
+
+        Thread server = new Thread() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    Socket session = control.accept();
+                    Socket dataConnection = acceptTransfer(session, data);
+
+                    dataConnection.getOutputStream().write(new byte[1024]);
+
+                    // Hold the data connection open without sending any more, whatever the client does.
+                    testFinished.await(10, TimeUnit.SECONDS);
+
+                    dataConnection.close();
+                    session.close();
+
+                } catch (IOException e) {
+
+                    // The client went away.
+
+                } catch (InterruptedException e) {
+
+                    return;
+                }
+            }
+        };
+
+        server.start();
+
+        final AbortableFtpClient client = new AbortableFtpClient();
+        client.connect(InetAddress.getLoopbackAddress(), control.getLocalPort());
+        client.enterLocalPassiveMode();
+
+        Thread transfer = new Thread() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    client.retrieveFile("big.csv", new OutputStream() {
+
+                        @Override
+                        public void write(int b) {
+                            transferStarted.countDown();
+                        }
+                    });
+
+                } catch (IOException e) {
+
+                    // Expected once aborted.
+                }
+            }
+        };
+
+        transfer.start();
+
+        try {
+
+            assertThat(transferStarted.await(5, TimeUnit.SECONDS), is(true));
+
+            new FtpConnection(client).abort();
+
+            transfer.join(5000);
+
+            assertThat(transfer.isAlive(), is(false));
+
+        } finally {
+
+            testFinished.countDown();
+            control.close();
+            data.close();
+            server.join(5000);
+        }
+    }
+
+    /**
+     * Plays just enough of a server for a passive RETR, returning the accepted data connection.
+     */
+    private static Socket acceptTransfer(Socket session, ServerSocket data) throws IOException {
+
+        BufferedReader commands = new BufferedReader(new InputStreamReader(session.getInputStream(), "US-ASCII"));
+        Writer replies = new OutputStreamWriter(session.getOutputStream(), "US-ASCII");
+
+        replies.write("220 Ready\r\n");
+        replies.flush();
+
+        String command;
+
+        while (null != (command = commands.readLine())) {
+
+            if (command.startsWith("PASV")) {
+
+                int port = data.getLocalPort();
+
+                replies.write(String.format("227 Entering Passive Mode (127,0,0,1,%d,%d)\r\n", port / 256, port % 256));
+
+            } else if (command.startsWith("RETR")) {
+
+                replies.write("150 Opening data connection\r\n");
+                replies.flush();
+
+                return data.accept();
+
+            } else {
+
+                replies.write("200 OK\r\n");
+            }
+
+            replies.flush();
+        }
+
+        throw new IOException("The client hung up before starting a transfer.");
+    }
 }
@@ -1,18 +1,349 @@
 package jftp.client;
 
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import jftp.client.auth.UserCredentials;
+import jftp.exception.FtpException;
 
 import org.apache.commons.net.ftp.FTPSClient;
+import org.hamcrest.Matcher;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
 
 public class FtpsClientTest {
 
-    private FtpClient client = new FtpsClient();
-    
+    private static final char[] KEY_STORE_PASSWORD = "password".toCharArray();
+
+    private FtpsClient client = new FtpsClient();
+
+    private FTPSClient mockFtpsClient;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Before
+    public void setUp() throws IOException {
+
+        mockFtpsClient = mock(FTPSClient.class);
+        when(mockFtpsClient.getReplyCode()).thenReturn(220);
+        when(mockFtpsClient.login(anyString(), anyString())).thenReturn(true);
+
+        client.setHost("host");
+        client.setPort(990);
+        client.setCredentials(new UserCredentials("user", "password"));
+    }
+
     @Test
     public void newFtpsClientShouldCreateFTPSClientInstance() {
         
         assertThat(client.ftpClient, instanceOf(FTPSClient.class));
     }
+
+    @Test
+    public void dataChannelShouldBeProtectedAfterLoginByDefault() throws IOException {
+
+        client.ftpClient = mockFtpsClient;
+        client.connect();
+
+        InOrder inOrder = Mockito.inOrder(mockFtpsClient);
+
+        inOrder.verify(mockFtpsClient).login("user", "password");
+        inOrder.verify(mockFtpsClient).execPBSZ(0);
+        inOrder.verify(mockFtpsClient).execPROT("P");
+    }
+
+    @Test
+    public void anUnprotectedDataChannelShouldBeAskedForWithProtC() throws IOException {
+
+        client.ftpClient = mockFtpsClient;
+        client.setProtectDataChannel(false);
+        client.connect();
+
+        verify(mockFtpsClient).execPROT("C");
+    }
+
+    @Test
+    public void commandChannelShouldOnlyBeClearedOnRequest() throws IOException {
+
+        client.ftpClient = mockFtpsClient;
+        client.connect();
+
+        verify(mockFtpsClient, never()).execCCC();
+    }
+
+    @Test
+    public void clearingTheCommandChannelShouldFollowTheDataChannelProtection() throws IOException {
+
+        client.ftpClient = mockFtpsClient;
+        client.setProtectDataChannel(false);
+        client.setClearCommandChannel(true);
+        client.connect();
+
+        InOrder inOrder = Mockito.inOrder(mockFtpsClient);
+
+        inOrder.verify(mockFtpsClient).execPROT("C");
+        inOrder.verify(mockFtpsClient).execCCC();
+    }
+
+    @Test
+    public void aServerRefusingToClearTheCommandChannelShouldStillConnect() throws IOException {
+
+        when(mockFtpsClient.execCCC()).thenReturn(534);
+
+        client.ftpClient = mockFtpsClient;
+        client.setClearCommandChannel(true);
+
+        assertThat(client.connect(), is(notNullValue()));
+    }
+
+    @Test
+    public void refusedProtectionShouldThrowException() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("The host host on port 990 refused the data channel protection.")));
+
+        doThrow(new SSLException("536 Requested PROT level not supported")).when(mockFtpsClient).execPROT("P");
+
+        client.ftpClient = mockFtpsClient;
+        client.connect();
+    }
+
+    @Test
+    public void protocolsAndCipherSuitesShouldBeSetBeforeConnecting() throws IOException {
+
+        client.ftpClient = mockFtpsClient;
+        client.setProtocols("TLSv1.2");
+        client.setCipherSuites("TLS_RSA_WITH_AES_128_CBC_SHA");
+        client.connect();
+
+        InOrder inOrder = Mockito.inOrder(mockFtpsClient);
+
+        inOrder.verify(mockFtpsClient).setEnabledProtocols(new String[] { "TLSv1.2" });
+        inOrder.verify(mockFtpsClient).setEnabledCipherSuites(new String[] { "TLS_RSA_WITH_AES_128_CBC_SHA" });
+        inOrder.verify(mockFtpsClient).connect("host", 990);
+    }
+
+    @Test
+    public void fastCipherSuitesShouldOnlyIncludeSuitesTheJvmSupports() throws Exception {
+
+        client.ftpClient = mockFtpsClient;
+        client.useFastCipherSuites();
+        client.connect();
+
+        List<String> supported = Arrays.asList(SSLContext.getDefault().getSupportedSSLParameters().getCipherSuites());
+
+        ArgumentCaptor<String[]> cipherSuites = ArgumentCaptor.forClass(String[].class);
+        verify(mockFtpsClient).setEnabledCipherSuites(cipherSuites.capture());
+
+        assertThat(cipherSuites.getValue().length > 0, is(true));
+
+        for (String cipherSuite : cipherSuites.getValue()) {
+            assertThat(supported.contains(cipherSuite), is(true));
+            assertThat(cipherSuite.startsWith("TLS_RSA_"), is(false));
+        }
+    }
+
+    @Test
+    public void aServerWhoseCertificateTheJvmDoesNotTrustShouldBeRefused() throws Exception {
+
+        TlsServer server = new TlsServer();
+        server.start();
+
+        client.setHost("localhost");
+        client.setPort(server.getPort());
+
+        Matcher<Throwable> handshakeFailure = instanceOf(SSLHandshakeException.class);
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectCause(handshakeFailure);
+
+        try {
+
+            client.connect();
+
+        } finally {
+
+            client.disconnect();
+            server.join();
+        }
+    }
+
+    @Test
+    public void settingsMadeBeforeTheContextIsReplacedShouldStillApply() throws Exception {
+
+        TlsServer server = new TlsServer();
+        server.start();
+
+        client.setHost("localhost");
+        client.setPort(server.getPort());
+        client.setProtocols("TLSv1.2");
+        client.setSslContext(selfSignedContext(false));
+
+        client.connect();
+        client.disconnect();
+
+        server.join();
+
+        assertThat(server.protocol, is(equalTo("TLSv1.2")));
+    }
+
+    @Test
+    public void switchingToExplicitModeShouldKeepAnFtpsClient() {
+
+        client.setImplicit(false);
+
+        assertThat(client.ftpClient, instanceOf(ResumingFtpsClient.class));
+    }
+
+    /**
+     * A context holding the self-signed test certificate: its key for a server, or trusting it for a client.
+     */
+    private static SSLContext selfSignedContext(boolean server) throws Exception {
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+
+        InputStream keyStoreFile = FtpsClientTest.class.getResourceAsStream("self-signed.jks");
+
+        try {
+
+            keyStore.load(keyStoreFile, KEY_STORE_PASSWORD);
+
+        } finally {
+
+            keyStoreFile.close();
+        }
+
+        SSLContext context = SSLContext.getInstance("TLS");
+
+        if (server) {
+
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, KEY_STORE_PASSWORD);
+
+            context.init(keyManagers.getKeyManagers(), null, null);
+
+        } else {
+
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(keyStore);
+
+            context.init(null, trustManagers.getTrustManagers(), null);
+        }
+
+        return context;
+    }
+
+    /**
+     * An implicit FTPS server for one connection, answering just enough commands for a login.
+     */
+    private static class TlsServer extends Thread {
+
+        private SSLServerSocket serverSocket;
+        private volatile String protocol;
+
+        TlsServer() throws Exception {
+
+            serverSocket = (SSLServerSocket) selfSignedContext(true).getServerSocketFactory().createServerSocket(0);
+
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                SSLSocket socket = (SSLSocket) serverSocket.accept();
+
+                try {
+
+                    socket.startHandshake();
+                    protocol = socket.getSession().getProtocol();
+
+                    BufferedReader commands = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                    Writer replies = new OutputStreamWriter(socket.getOutputStream(), "US-ASCII");
+
+                    replies.write("220 Ready\r\n");
+                    replies.flush();
+
+                    String command;
+
+                    while (null != (command = commands.readLine())) {
+
+                        replies.write(replyTo(command) + "\r\n");
+                        replies.flush();
+                    }
+
+                } finally {
+
+                    socket.close();
+                }
+
+            } catch (IOException e) {
+
+                // The client hung up, or refused the certificate.
+
+            } finally {
+
+                try {
+
+                    serverSocket.close();
+
+                } catch (IOException e) {
+                    // Nothing more to do with it.
+                }
+            }
+        }
+
+        private String replyTo(String command) {
+
+            if (command.startsWith("USER"))
+                return "331 Password required";
+
+            if (command.startsWith("PASS"))
+                return "230 Logged in";
+
+            if (command.startsWith("QUIT"))
+                return "221 Goodbye";
+
+            return "200 OK";
+        }
+    }
 }
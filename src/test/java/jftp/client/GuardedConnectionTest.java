@@ -0,0 +1,241 @@
+package jftp.client;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jftp.connection.Connection;
+import jftp.connection.FtpFile;
+import jftp.exception.FtpException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class GuardedConnectionTest {
+
+    private Connection mockConnection;
+    private ScheduledExecutorService scheduler;
+
+    private GuardedConnection guardedConnection;
+
+    private CountDownLatch aborted;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Before
+    public void setUp() {
+
+        mockConnection = mock(Connection.class);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        guardedConnection = new GuardedConnection(mockConnection, scheduler);
+
+        aborted = new CountDownLatch(1);
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+
+                aborted.countDown();
+
+                return null;
+            }
+
+        }).when(mockConnection).abort();
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+
+                if (!aborted.await(5, TimeUnit.SECONDS))
+                    return null;
+
+                throw new FtpException("Socket closed");
+            }
+
+        }).when(mockConnection).download(anyString(), any(OutputStream.class));
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void aCallRunningPastItsTimeoutShouldBeAbortedAndFail() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage("The call didn't finish within 50 ms.");
+
+        guardedConnection.setCallTimeout(50);
+
+        try {
+
+            guardedConnection.download("/data/big.csv", mock(OutputStream.class));
+
+        } finally {
+
+            verify(mockConnection).abort();
+            assertThat(guardedConnection.isAborted(), is(true));
+        }
+    }
+
+    @Test
+    public void aCallFinishingInTimeShouldNotBeAborted() throws InterruptedException {
+
+        FtpFile file = mock(FtpFile.class);
+
+        when(mockConnection.listFiles("/data")).thenReturn(Arrays.asList(file));
+
+        guardedConnection.setCallTimeout(50);
+
+        assertThat(guardedConnection.listFiles("/data"), is(equalTo(Arrays.asList(file))));
+
+        Thread.sleep(100);
+
+        verify(mockConnection, never()).abort();
+        assertThat(guardedConnection.isAborted(), is(false));
+    }
+
+    @Test
+    public void cancellingTheTokenFromAnotherThreadShouldAbortTheCall() throws InterruptedException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage("The call was cancelled.");
+
+        final CancellationToken token = new CancellationToken();
+
+        guardedConnection.setCancellationToken(token);
+
+        Thread canceller = new Thread() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    Thread.sleep(50);
+
+                } catch (InterruptedException e) {
+
+                    return;
+                }
+
+                token.cancel();
+            }
+        };
+
+        canceller.start();
+
+        try {
+
+            guardedConnection.download("/data/big.csv", mock(OutputStream.class));
+
+        } finally {
+
+            canceller.join();
+            verify(mockConnection).abort();
+        }
+    }
+
+    @Test
+    public void aCallAbortedJustAsItReturnedShouldFailRatherThanHandBackADeadConnection() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage("The call was cancelled.");
+
+        final CancellationToken token = new CancellationToken();
+
+        guardedConnection.setCancellationToken(token);
+
+        when(mockConnection.printWorkingDirectory()).thenAnswer(new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) {
+
+                token.cancel();
+
+                return "/home";
+            }
+        });
+
+        try {
+
+            guardedConnection.printWorkingDirectory();
+
+        } finally {
+
+            verify(mockConnection).abort();
+            assertThat(guardedConnection.isAborted(), is(true));
+        }
+    }
+
+    @Test
+    public void aTokenDeadlineBeforeTheCallTimeoutShouldCancelTheCall() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage("The call was cancelled.");
+
+        guardedConnection.setCallTimeout(60000);
+        guardedConnection.setCancellationToken(CancellationToken.withTimeout(50));
+
+        guardedConnection.download("/data/big.csv", mock(OutputStream.class));
+    }
+
+    @Test
+    public void callsUnderACancelledTokenShouldFailWithoutReachingTheConnection() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage("The call was cancelled.");
+
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+
+        guardedConnection.setCancellationToken(token);
+
+        try {
+
+            guardedConnection.delete("/data/a.csv");
+
+        } finally {
+
+            verify(mockConnection, never()).delete(anyString());
+            verify(mockConnection, never()).abort();
+        }
+    }
+
+    @Test
+    public void failuresOfCallsThatWereNotAbortedShouldPassThroughUnchanged() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage("No such file");
+
+        when(mockConnection.stat("/data/a.csv")).thenThrow(new FtpException("No such file"));
+
+        guardedConnection.setCallTimeout(60000);
+
+        guardedConnection.stat("/data/a.csv");
+    }
+}
@@ -0,0 +1,138 @@
+package jftp.client;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+
+import jftp.client.auth.KeyCredentials;
+import jftp.exception.FtpException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.IdentityRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.KeyPair;
+
+public class PrivateKeyCacheTest {
+
+    private static final String PASSPHRASE = "passphrase";
+
+    private PrivateKeyCache keyCache = new PrivateKeyCache();
+
+    private KeyPair keyPair;
+    private File keyFile;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+
+        keyPair = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 1024);
+
+        keyFile = temporaryFolder.newFile("id_rsa");
+        Files.write(keyFile.toPath(), privateKey(PASSPHRASE));
+    }
+
+    @Test
+    public void anEncryptedKeyFileShouldBeDecryptedWithItsPassphrase() {
+
+        Identity identity = identityOf(keyCache.identities(new KeyCredentials("user", keyFile.getPath(), PASSPHRASE)));
+
+        assertThat(identity.isEncrypted(), is(false));
+        assertThat(identity.getPublicKeyBlob(), is(equalTo(keyPair.getPublicKeyBlob())));
+    }
+
+    @Test
+    public void aKeyFileShouldOnlyBeLoadedOnceWhileUnchanged() {
+
+        Identity first = identityOf(keyCache.identities(new KeyCredentials("user", keyFile.getPath(), PASSPHRASE)));
+        Identity second = identityOf(keyCache.identities(new KeyCredentials("other", keyFile.getPath(), PASSPHRASE)));
+
+        assertThat(second, is(sameInstance(first)));
+    }
+
+    @Test
+    public void aModifiedKeyFileShouldBeLoadedAgain() throws Exception {
+
+        Identity first = identityOf(keyCache.identities(new KeyCredentials("user", keyFile.getPath(), PASSPHRASE)));
+
+        Files.write(keyFile.toPath(), privateKey(PASSPHRASE));
+        keyFile.setLastModified(keyFile.lastModified() + 2000);
+
+        Identity second = identityOf(keyCache.identities(new KeyCredentials("user", keyFile.getPath(), PASSPHRASE)));
+
+        assertThat(second, is(not(sameInstance(first))));
+    }
+
+    @Test
+    public void aKeyInMemoryShouldBeCachedByItsContents() throws Exception {
+
+        byte[] privateKey = privateKey(null);
+
+        Identity first = identityOf(keyCache.identities(new KeyCredentials("user", privateKey, null)));
+        Identity second = identityOf(keyCache.identities(new KeyCredentials("user", privateKey.clone(), null)));
+
+        assertThat(first.isEncrypted(), is(false));
+        assertThat(second, is(sameInstance(first)));
+    }
+
+    @Test
+    public void theWrongPassphraseShouldBeRefused() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to decrypt the private key " + keyFile.getPath())));
+
+        keyCache.identities(new KeyCredentials("user", keyFile.getPath(), "wrong"));
+    }
+
+    @Test
+    public void theWrongPassphraseShouldBeRefusedEvenOnceTheKeyIsCached() {
+
+        keyCache.identities(new KeyCredentials("user", keyFile.getPath(), PASSPHRASE));
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to decrypt the private key " + keyFile.getPath())));
+
+        keyCache.identities(new KeyCredentials("user", keyFile.getPath(), "wrong"));
+    }
+
+    @Test
+    public void aMissingKeyFileShouldThrowException() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to load the private key missing")));
+
+        keyCache.identities(new KeyCredentials("user", "missing", null));
+    }
+
+    private Identity identityOf(IdentityRepository identities) {
+        return (Identity) identities.getIdentities().firstElement();
+    }
+
+    private byte[] privateKey(String passphrase) {
+
+        ByteArrayOutputStream privateKey = new ByteArrayOutputStream();
+
+        if (null == passphrase)
+            keyPair.writePrivateKey(privateKey);
+        else
+            keyPair.writePrivateKey(privateKey, passphrase.getBytes());
+
+        return privateKey.toByteArray();
+    }
+}
@@ -0,0 +1,178 @@
+package jftp.client;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jftp.client.RemoteWatcher.Listener;
+import jftp.client.RemoteWatcher.Watch;
+import jftp.connection.Connection;
+import jftp.connection.FtpFile;
+import jftp.exception.FtpException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteWatcherTest {
+
+    private static final String DIRECTORY = "/drop";
+
+    private ConnectionPool mockConnectionPool;
+    private Connection mockConnection;
+    private ScheduledExecutorService mockScheduler;
+    private Listener mockListener;
+
+    private RemoteWatcher remoteWatcher;
+
+    @Before
+    public void setUp() {
+
+        mockConnectionPool = mock(ConnectionPool.class);
+        mockConnection = mock(Connection.class);
+        mockScheduler = mock(ScheduledExecutorService.class);
+        mockListener = mock(Listener.class);
+
+        when(mockConnectionPool.borrow()).thenReturn(mockConnection);
+
+        remoteWatcher = new RemoteWatcher(mockScheduler);
+        remoteWatcher.setMinInterval(1000);
+        remoteWatcher.setMaxInterval(4000);
+    }
+
+    @Test
+    public void watchingShouldScheduleTheFirstPollStraightAway() {
+
+        remoteWatcher.watch(mockConnectionPool, DIRECTORY, mockListener);
+
+        verify(mockScheduler).schedule(any(Runnable.class), eq(0L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void filesPresentAtTheFirstPollShouldNotBeReported() {
+
+        Watch watch = remoteWatcher.watch(mockConnectionPool, DIRECTORY, mockListener);
+
+        poll(watch, file("a.csv", 10, 1000));
+        poll(watch, file("a.csv", 10, 1000));
+
+        verifyZeroInteractions(mockListener);
+        verify(mockConnectionPool, times(2)).release(mockConnection);
+    }
+
+    @Test
+    public void aNewFileShouldOnlyBeReportedOnceItsSizeHasStoppedChanging() {
+
+        Watch watch = remoteWatcher.watch(mockConnectionPool, DIRECTORY, mockListener);
+
+        poll(watch);
+        poll(watch, file("a.csv", 10, 1000));
+        poll(watch, file("a.csv", 20, 1000));
+
+        verify(mockListener, never()).created(any(FtpFile.class));
+
+        FtpFile written = file("a.csv", 20, 1000);
+        poll(watch, written);
+
+        verify(mockListener).created(written);
+    }
+
+    @Test
+    public void changedAndRemovedFilesShouldBeReportedAsModifiedAndDeleted() {
+
+        Watch watch = remoteWatcher.watch(mockConnectionPool, DIRECTORY, mockListener);
+
+        poll(watch, file("a.csv", 10, 1000), file("b.csv", 10, 1000));
+        poll(watch, file("a.csv", 15, 2000));
+
+        verify(mockListener).deleted(DIRECTORY + "/b.csv");
+
+        FtpFile changed = file("a.csv", 15, 2000);
+        poll(watch, changed);
+
+        verify(mockListener).modified(changed);
+    }
+
+    @Test
+    public void aQuietDirectoryShouldBePolledLessOftenUntilSomethingChanges() {
+
+        Watch watch = remoteWatcher.watch(mockConnectionPool, DIRECTORY, mockListener);
+
+        poll(watch);
+        assertThat(watch.getInterval(), is(equalTo(2000L)));
+
+        poll(watch);
+        poll(watch);
+        assertThat(watch.getInterval(), is(equalTo(4000L)));
+
+        poll(watch, file("a.csv", 10, 1000));
+        assertThat(watch.getInterval(), is(equalTo(1000L)));
+
+        verify(mockScheduler, times(2)).schedule(any(Runnable.class), eq(4000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void aFailedListingShouldNotStopTheWatch() {
+
+        Watch watch = remoteWatcher.watch(mockConnectionPool, DIRECTORY, mockListener);
+
+        when(mockConnectionPool.borrow()).thenThrow(new FtpException("Unable to connect to host host on port 21"));
+
+        watch.poll();
+
+        verify(mockScheduler).schedule(any(Runnable.class), eq(1000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void aConnectionWhoseListingFailedShouldBeClosedRatherThanReturnedToThePool() {
+
+        Watch watch = remoteWatcher.watch(mockConnectionPool, DIRECTORY, mockListener);
+
+        when(mockConnection.listFiles(DIRECTORY)).thenThrow(new FtpException("Connection reset"));
+
+        watch.poll();
+
+        verify(mockConnectionPool).invalidate(mockConnection);
+        verify(mockConnectionPool, never()).release(mockConnection);
+        verify(mockScheduler).schedule(any(Runnable.class), eq(1000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void aCancelledWatchShouldNotBePolledAgain() {
+
+        Watch watch = remoteWatcher.watch(mockConnectionPool, DIRECTORY, mockListener);
+
+        watch.cancel();
+        poll(watch);
+
+        verify(mockScheduler, times(1)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+    }
+
+    private void poll(Watch watch, FtpFile... files) {
+
+        List<FtpFile> listing = new ArrayList<FtpFile>(Arrays.asList(files));
+        listing.add(new FtpFile(".", 0, DIRECTORY + "/.", 0, true));
+
+        when(mockConnection.listFiles(DIRECTORY)).thenReturn(listing);
+
+        watch.poll();
+    }
+
+    private FtpFile file(String name, long size, long mTime) {
+        return new FtpFile(name, size, DIRECTORY + "/" + name, mTime, false);
+    }
+}
@@ -6,20 +6,27 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.net.Socket;
+
+import jftp.client.auth.KeyCredentials;
 import jftp.client.auth.UserCredentials;
 import jftp.connection.Connection;
 import jftp.connection.ConnectionFactory;
 import jftp.connection.SftpConnection;
 import jftp.exception.FtpException;
+import jftp.util.HappyEyeballsConnector;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
@@ -27,9 +34,11 @@ import org.mockito.Mockito;
 
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.IdentityRepository;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
 
 public class SftpClientTest {
 
@@ -86,6 +95,49 @@ public class SftpClientTest {
 		inOrder.verify(mockSession).connect();
 	}
 
+	@Test
+	public void sessionShouldSendKeepAlivesEveryMinuteByDefault() throws JSchException {
+
+		Session mockSession = mockJsch.getSession("user", "host", 999);
+
+		InOrder inOrder = Mockito.inOrder(mockSession);
+
+		sftpClient.connect();
+
+		inOrder.verify(mockSession).setServerAliveInterval(60000);
+		inOrder.verify(mockSession).setServerAliveCountMax(3);
+		inOrder.verify(mockSession).connect();
+	}
+
+	@Test
+	public void keepAlivesShouldNotBeSentWhenTheIntervalIsZero() throws JSchException {
+
+		Session mockSession = mockJsch.getSession("user", "host", 999);
+
+		sftpClient.setServerAliveInterval(0);
+		sftpClient.connect();
+
+		verify(mockSession, Mockito.never()).setServerAliveInterval(Mockito.anyInt());
+	}
+
+	@Test
+	public void withAHostConnectorTheSessionShouldRunOverTheSocketThatWonTheRace() throws Exception {
+
+		Session mockSession = mockJsch.getSession("user", "host", 999);
+		HappyEyeballsConnector mockHostConnector = Mockito.mock(HappyEyeballsConnector.class);
+		Socket socket = new Socket();
+
+		when(mockHostConnector.connect("host", 999)).thenReturn(socket);
+
+		sftpClient.setHostConnector(mockHostConnector);
+		sftpClient.connect();
+
+		ArgumentCaptor<SocketFactory> socketFactory = ArgumentCaptor.forClass(SocketFactory.class);
+		verify(mockSession).setSocketFactory(socketFactory.capture());
+
+		assertThat(socketFactory.getValue().createSocket("host", 999), is(equalTo(socket)));
+	}
+
 	@Test
 	public void returnedSessionObjectShouldSetChannelToSftpAndOpen() throws JSchException {
 
@@ -140,6 +192,68 @@ public class SftpClientTest {
 		verify(mockChannel).disconnect();
 	}
 	
+	@Test
+	public void sessionConfigShouldSetAlgorithmPreferencesBeforeConnecting() throws JSchException {
+
+		Session mockSession = mockJsch.getSession("user", "host", 999);
+
+		SftpSessionConfig sessionConfig = new SftpSessionConfig();
+		sessionConfig.setCiphers("aes128-ctr");
+		sessionConfig.setKeyExchanges("diffie-hellman-group14-sha1");
+
+		sftpClient.setSessionConfig(sessionConfig);
+		sftpClient.connect();
+
+		InOrder inOrder = Mockito.inOrder(mockSession);
+
+		inOrder.verify(mockSession).setConfig("cipher.c2s", "aes128-ctr");
+		inOrder.verify(mockSession).setConfig("kex", "diffie-hellman-group14-sha1");
+		inOrder.verify(mockSession).connect();
+	}
+
+	@Test
+	public void withSessionReuseDisconnectShouldKeepTheSessionForTheNextConnect() throws JSchException {
+
+		Session mockSession = mockJsch.getSession("user", "host", 999);
+		Channel mockChannel = mockSession.openChannel(SFTP);
+		when(mockSession.isConnected()).thenReturn(true);
+
+		SftpSessionConfig sessionConfig = new SftpSessionConfig();
+		sessionConfig.setSessionReuse(true);
+
+		sftpClient.setSessionConfig(sessionConfig);
+		sftpClient.connect();
+		sftpClient.disconnect();
+		sftpClient.connect();
+		sftpClient.disconnect();
+
+		verify(mockSession, Mockito.times(1)).connect();
+		verify(mockSession, Mockito.never()).disconnect();
+		verify(mockChannel, Mockito.times(2)).disconnect();
+	}
+
+	@Test
+	public void keyCredentialsShouldAuthenticateWithTheCachedKeyInsteadOfAPassword() throws Exception {
+
+		Session mockSession = mockJsch.getSession("user", "host", 999);
+
+		KeyCredentials keyCredentials = new KeyCredentials("user", "id_rsa", null);
+		IdentityRepository identities = mock(IdentityRepository.class);
+
+		PrivateKeyCache keyCache = mock(PrivateKeyCache.class);
+		when(keyCache.identities(keyCredentials)).thenReturn(identities);
+
+		sftpClient.setCredentials(keyCredentials);
+		sftpClient.setKeyCache(keyCache);
+		sftpClient.connect();
+
+		InOrder inOrder = Mockito.inOrder(mockSession);
+
+		inOrder.verify(mockSession).setIdentityRepository(identities);
+		inOrder.verify(mockSession).connect();
+		verify(mockSession, Mockito.never()).setPassword(Mockito.anyString());
+	}
+
 	@Test
 	public void disconnectMethodShouldThrowExceptionWhenNotInitiallyConnected() {
 		
@@ -0,0 +1,252 @@
+package jftp.client;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import jftp.exception.FtpException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.HostKeyRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.UserInfo;
+
+public class SftpSessionConfigTest {
+
+    private static final byte[] HOST_KEY = rsaKey((byte) 1);
+    private static final byte[] OTHER_HOST_KEY = rsaKey((byte) 2);
+    private static final String HOST_KEY_BASE64 = "AAAAB3NzaC1yc2EAAAABAwAAAAEB";
+
+    private SftpSessionConfig sessionConfig;
+
+    private JSch mockJsch;
+    private Session mockSession;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+
+        sessionConfig = new SftpSessionConfig();
+
+        mockJsch = mock(JSch.class);
+        mockSession = mock(Session.class);
+        when(mockSession.isConnected()).thenReturn(true);
+        when(mockSession.getHost()).thenReturn("host");
+        when(mockSession.getPort()).thenReturn(22);
+    }
+
+    @Test
+    public void fastAlgorithmsShouldPreferAesCtrAndAFixedDiffieHellmanGroup() {
+
+        sessionConfig.useFastAlgorithms();
+        sessionConfig.configure(mockJsch, mockSession);
+
+        verify(mockSession).setConfig("cipher.c2s", "aes128-ctr,aes192-ctr,aes256-ctr");
+        verify(mockSession).setConfig("cipher.s2c", "aes128-ctr,aes192-ctr,aes256-ctr");
+        verify(mockSession).setConfig("mac.c2s", "hmac-sha1,hmac-sha2-256");
+        verify(mockSession).setConfig("kex", "diffie-hellman-group14-sha1,diffie-hellman-group-exchange-sha256,diffie-hellman-group-exchange-sha1");
+    }
+
+    @Test
+    public void weakAlgorithmsShouldOnlyBeUsedWhenNamedExplicitly() {
+
+        sessionConfig.useFastAlgorithms();
+        sessionConfig.setCiphers("aes128-ctr,3des-cbc");
+        sessionConfig.configure(mockJsch, mockSession);
+
+        verify(mockSession).setConfig("cipher.c2s", "aes128-ctr,3des-cbc");
+        verify(mockSession).setConfig("mac.c2s", "hmac-sha1,hmac-sha2-256");
+    }
+
+    @Test
+    public void withoutTrustedKeysHostsShouldBeAcceptedAndRemembered() throws Exception {
+
+        sessionConfig.configure(mockJsch, mockSession);
+
+        verify(mockSession).setConfig("StrictHostKeyChecking", "ask");
+        assertThat(configuredUserInfo().promptYesNo("The authenticity of host 'host' can't be established."), is(true));
+
+        configuredRepository().add(new HostKey("host", HOST_KEY), null);
+
+        assertThat(configuredRepository().check("host", HOST_KEY), is(equalTo(HostKeyRepository.OK)));
+    }
+
+    @Test
+    public void aHostPresentingADifferentKeyThanOnFirstUseShouldBeRefused() throws Exception {
+
+        sessionConfig.configure(mockJsch, mockSession);
+
+        configuredRepository().add(new HostKey("host", HOST_KEY), null);
+
+        Session nextSession = mock(Session.class);
+        when(nextSession.getHost()).thenReturn("host");
+        when(nextSession.getPort()).thenReturn(22);
+
+        sessionConfig.configure(mockJsch, nextSession);
+
+        ArgumentCaptor<UserInfo> userInfo = ArgumentCaptor.forClass(UserInfo.class);
+        verify(nextSession).setUserInfo(userInfo.capture());
+
+        assertThat(configuredRepository().check("host", OTHER_HOST_KEY), is(equalTo(HostKeyRepository.CHANGED)));
+        assertThat(userInfo.getValue().promptYesNo("WARNING: REMOTE HOST IDENTIFICATION HAS CHANGED!"), is(false));
+    }
+
+    @Test
+    public void hostsOnOtherPortsShouldBeRememberedUnderTheirKnownHostsName() throws Exception {
+
+        when(mockSession.getPort()).thenReturn(2222);
+
+        sessionConfig.configure(mockJsch, mockSession);
+
+        configuredRepository().add(new HostKey("host", HOST_KEY), null);
+
+        assertThat(configuredUserInfo().promptYesNo("The authenticity of host '[host]:2222' can't be established."), is(true));
+    }
+
+    @Test
+    public void pinnedHostKeysShouldBeCheckedStrictly() {
+
+        sessionConfig.addHostKey("host", HOST_KEY);
+        sessionConfig.configure(mockJsch, mockSession);
+
+        HostKeyRepository repository = configuredRepository();
+
+        verify(mockSession).setConfig("StrictHostKeyChecking", "yes");
+        assertThat(repository.check("host", HOST_KEY), is(equalTo(HostKeyRepository.OK)));
+        assertThat(repository.check("host", OTHER_HOST_KEY), is(equalTo(HostKeyRepository.CHANGED)));
+        assertThat(repository.check("other", HOST_KEY), is(equalTo(HostKeyRepository.NOT_INCLUDED)));
+    }
+
+    @Test
+    public void keysFromAKnownHostsFileShouldBeTrusted() throws Exception {
+
+        File knownHosts = temporaryFolder.newFile("known_hosts");
+        Files.write(knownHosts.toPath(), ("host ssh-rsa " + HOST_KEY_BASE64 + "\n").getBytes());
+
+        sessionConfig.addKnownHosts(knownHosts.getAbsolutePath());
+        sessionConfig.configure(mockJsch, mockSession);
+
+        HostKeyRepository repository = configuredRepository();
+
+        assertThat(repository.check("host", HOST_KEY), is(equalTo(HostKeyRepository.OK)));
+        assertThat(repository.check("host", OTHER_HOST_KEY), is(equalTo(HostKeyRepository.CHANGED)));
+    }
+
+    @Test
+    public void aKeyOfUnknownTypeShouldBeRefused() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Invalid host key for host")));
+
+        byte[] key = rsaKey((byte) 1);
+        key[8] = 'x';
+
+        sessionConfig.addHostKey("host", key);
+    }
+
+    @Test
+    public void sessionsShouldOnlyBeReusedWhenReuseIsOn() {
+
+        sessionConfig.cacheSession(mockSession, "user", "password", "host", 22);
+
+        assertThat(sessionConfig.reuseSession("user", "password", "host", 22), is(nullValue()));
+        assertThat(sessionConfig.releaseSession(mockSession), is(false));
+    }
+
+    @Test
+    public void aCachedSessionShouldBeReusedForTheSameUserHostAndPassword() {
+
+        sessionConfig.setSessionReuse(true);
+        sessionConfig.cacheSession(mockSession, "user", "password", "host", 22);
+
+        assertThat(sessionConfig.reuseSession("user", "password", "host", 22), is(sameInstance(mockSession)));
+        assertThat(sessionConfig.reuseSession("user", "wrong", "host", 22), is(nullValue()));
+        assertThat(sessionConfig.reuseSession("user", "password", "host", 2222), is(nullValue()));
+        assertThat(sessionConfig.reuseSession("other", "password", "host", 22), is(nullValue()));
+    }
+
+    @Test
+    public void aSessionCachedWithoutAPasswordShouldBeReusedWithoutOne() {
+
+        sessionConfig.setSessionReuse(true);
+        sessionConfig.cacheSession(mockSession, "user", null, "host", 22);
+
+        assertThat(sessionConfig.reuseSession("user", null, "host", 22), is(sameInstance(mockSession)));
+        assertThat(sessionConfig.reuseSession("user", "password", "host", 22), is(nullValue()));
+    }
+
+    @Test
+    public void aDisconnectedSessionShouldNotBeReused() {
+
+        sessionConfig.setSessionReuse(true);
+        sessionConfig.cacheSession(mockSession, "user", "password", "host", 22);
+        sessionConfig.releaseSession(mockSession);
+
+        when(mockSession.isConnected()).thenReturn(false);
+
+        assertThat(sessionConfig.reuseSession("user", "password", "host", 22), is(nullValue()));
+        assertThat(sessionConfig.releaseSession(mockSession), is(false));
+    }
+
+    @Test
+    public void closingIdleSessionsShouldLeaveSessionsInUseOpen() {
+
+        Session idleSession = mock(Session.class);
+
+        sessionConfig.setSessionReuse(true);
+        sessionConfig.cacheSession(mockSession, "user", "password", "host", 22);
+        sessionConfig.cacheSession(idleSession, "user", "password", "other", 22);
+        sessionConfig.releaseSession(idleSession);
+
+        sessionConfig.closeIdleSessions();
+
+        verify(idleSession).disconnect();
+        verify(mockSession, never()).disconnect();
+    }
+
+    private HostKeyRepository configuredRepository() {
+
+        ArgumentCaptor<HostKeyRepository> repository = ArgumentCaptor.forClass(HostKeyRepository.class);
+        verify(mockJsch, atLeastOnce()).setHostKeyRepository(repository.capture());
+
+        return repository.getValue();
+    }
+
+    private UserInfo configuredUserInfo() {
+
+        ArgumentCaptor<UserInfo> userInfo = ArgumentCaptor.forClass(UserInfo.class);
+        verify(mockSession).setUserInfo(userInfo.capture());
+
+        return userInfo.getValue();
+    }
+
+    /**
+     * An ssh-rsa public key blob: the type name, a one byte exponent and a one byte modulus.
+     */
+    private static byte[] rsaKey(byte modulus) {
+        return new byte[] { 0, 0, 0, 7, 's', 's', 'h', '-', 'r', 's', 'a', 0, 0, 0, 1, 3, 0, 0, 0, 1, modulus };
+    }
+}
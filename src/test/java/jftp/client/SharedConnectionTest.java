@@ -0,0 +1,356 @@
+package jftp.client;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jftp.connection.Connection;
+import jftp.exception.FtpException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class SharedConnectionTest {
+
+    private static final String HOME = "/home/user";
+
+    private ConnectionPool mockConnectionPool;
+    private Connection mockConnection;
+
+    private SharedConnection sharedConnection;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Before
+    public void setUp() {
+
+        mockConnectionPool = mock(ConnectionPool.class);
+        mockConnection = mock(Connection.class);
+
+        when(mockConnectionPool.borrow()).thenReturn(mockConnection);
+        when(mockConnection.printWorkingDirectory()).thenReturn(HOME);
+
+        sharedConnection = new SharedConnection(mockConnectionPool);
+    }
+
+    @Test
+    public void relativePathsShouldBeResolvedAgainstTheDirectoryTheSessionsStartIn() {
+
+        sharedConnection.delete("old.csv");
+        sharedConnection.rename("a.csv", "archive/a.csv");
+
+        verify(mockConnection).delete(HOME + "/old.csv");
+        verify(mockConnection).rename(HOME + "/a.csv", HOME + "/archive/a.csv");
+        verify(mockConnection, times(1)).printWorkingDirectory();
+    }
+
+    @Test
+    public void absolutePathsShouldBePassedOnWithoutLookingUpTheWorkingDirectory() {
+
+        sharedConnection.stat("/data/a.csv");
+
+        verify(mockConnection).stat("/data/a.csv");
+        verify(mockConnection, never()).printWorkingDirectory();
+    }
+
+    @Test
+    public void changingDirectoryShouldTakeThePathTheServerReports() {
+
+        when(mockConnection.printWorkingDirectory()).thenReturn(HOME, HOME, "/data");
+
+        sharedConnection.changeDirectory("../../data");
+        sharedConnection.listFiles();
+
+        verify(mockConnection).changeDirectory(HOME + "/../../data");
+        verify(mockConnection).listFiles("/data");
+        assertThat(sharedConnection.printWorkingDirectory(), is(equalTo("/data")));
+    }
+
+    @Test
+    public void changingDirectoryShouldMoveTheSessionBackToWhereItWas() {
+
+        when(mockConnection.printWorkingDirectory()).thenReturn(HOME, HOME, "/data");
+
+        sharedConnection.changeDirectory("/data");
+
+        InOrder inOrder = Mockito.inOrder(mockConnection);
+
+        inOrder.verify(mockConnection).changeDirectory("/data");
+        inOrder.verify(mockConnection).changeDirectory(HOME);
+        verify(mockConnectionPool).release(mockConnection, 0);
+    }
+
+    @Test
+    public void aSessionThatCannotBeMovedBackShouldBeClosed() {
+
+        when(mockConnection.printWorkingDirectory()).thenReturn(HOME, "/data");
+        doThrow(new FtpException("No such directory")).when(mockConnection).changeDirectory(HOME);
+
+        sharedConnection.changeDirectory("/data");
+
+        assertThat(sharedConnection.printWorkingDirectory(), is(equalTo("/data")));
+        verify(mockConnectionPool).invalidate(mockConnection);
+        verify(mockConnectionPool, never()).release(eq(mockConnection), anyLong());
+    }
+
+    @Test
+    public void theSessionShouldBeReleasedWhenACallFails() {
+
+        expectedException.expect(FtpException.class);
+
+        doThrow(new FtpException("Unable to delete")).when(mockConnection).delete(anyString());
+
+        try {
+
+            sharedConnection.delete("/data/a.csv");
+
+        } finally {
+
+            verify(mockConnectionPool).release(mockConnection, 0);
+        }
+    }
+
+    @Test
+    public void aSessionLeftMidTransferByAnIOFailureShouldBeClosed() {
+
+        expectedException.expect(FtpException.class);
+
+        doThrow(new FtpException("Unable to download file /data/a.csv", new SocketException("Connection reset"))).when(mockConnection).download(anyString(), any(OutputStream.class));
+
+        try {
+
+            sharedConnection.download("/data/a.csv", new ByteArrayOutputStream());
+
+        } finally {
+
+            verify(mockConnectionPool).invalidate(mockConnection);
+            verify(mockConnectionPool, never()).release(eq(mockConnection), anyLong());
+        }
+    }
+
+    @Test
+    public void transfersShouldTellThePoolHowMuchDataTheyMoved() {
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+
+                ((OutputStream) invocation.getArguments()[1]).write(new byte[1024], 0, 1024);
+
+                return null;
+            }
+
+        }).when(mockConnection).download(anyString(), any(OutputStream.class));
+
+        sharedConnection.download("/data/a.csv", new ByteArrayOutputStream());
+
+        verify(mockConnectionPool).release(mockConnection, 1024);
+    }
+
+    @Test
+    public void aSessionFailingItsKeepAliveShouldBeClosed() {
+
+        expectedException.expect(FtpException.class);
+
+        doThrow(new FtpException("Dead")).when(mockConnection).keepAlive();
+
+        try {
+
+            sharedConnection.keepAlive();
+
+        } finally {
+
+            verify(mockConnectionPool).invalidate(mockConnection);
+            verify(mockConnectionPool, never()).release(eq(mockConnection), anyLong());
+        }
+    }
+
+    @Test
+    public void aSlowCallShouldNotHoldUpCallsFromOtherThreads() throws Exception {
+
+        Connection busyConnection = mock(Connection.class);
+        Connection idleConnection = mock(Connection.class);
+
+        when(mockConnectionPool.borrow()).thenReturn(busyConnection, idleConnection);
+
+        final CountDownLatch downloading = new CountDownLatch(1);
+        final CountDownLatch finishDownload = new CountDownLatch(1);
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+
+                downloading.countDown();
+                finishDownload.await(5, TimeUnit.SECONDS);
+
+                return null;
+            }
+
+        }).when(busyConnection).download(anyString(), any(OutputStream.class));
+
+        Thread downloader = new Thread() {
+
+            @Override
+            public void run() {
+                sharedConnection.download("/data/big.csv", mock(OutputStream.class));
+            }
+        };
+
+        downloader.start();
+        downloading.await(5, TimeUnit.SECONDS);
+
+        sharedConnection.delete("/data/a.csv");
+
+        verify(idleConnection).delete("/data/a.csv");
+        verify(mockConnectionPool).release(idleConnection, 0);
+        verify(mockConnectionPool, never()).release(eq(busyConnection), anyLong());
+
+        finishDownload.countDown();
+        downloader.join();
+
+        verify(mockConnectionPool).release(busyConnection, 0);
+    }
+
+    @Test
+    public void abortingShouldCloseTheSessionsOfRunningCallsInsteadOfReleasingThem() throws Exception {
+
+        final CountDownLatch downloading = new CountDownLatch(1);
+        final CountDownLatch aborted = new CountDownLatch(1);
+
+        blockDownloadsUntil(mockConnection, downloading, aborted);
+
+        Thread downloader = new Thread() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    sharedConnection.download("/data/big.csv", mock(OutputStream.class));
+
+                } catch (FtpException e) {
+
+                    // Expected once aborted.
+                }
+            }
+        };
+
+        downloader.start();
+        downloading.await(5, TimeUnit.SECONDS);
+
+        sharedConnection.abort();
+
+        downloader.join();
+
+        verify(mockConnection).abort();
+        verify(mockConnectionPool).invalidate(mockConnection);
+        verify(mockConnectionPool, never()).release(eq(mockConnection), anyLong());
+    }
+
+    @Test
+    public void aCallAbortedWhileBorrowingItsSessionShouldFailWithoutUsingIt() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage("The call was aborted.");
+
+        when(mockConnectionPool.borrow()).thenAnswer(new Answer<Connection>() {
+
+            @Override
+            public Connection answer(InvocationOnMock invocation) {
+
+                sharedConnection.abort();
+
+                return mockConnection;
+            }
+        });
+
+        try {
+
+            sharedConnection.delete("/data/a.csv");
+
+        } finally {
+
+            verify(mockConnection, never()).delete(anyString());
+            verify(mockConnectionPool).release(mockConnection);
+        }
+    }
+
+    @Test
+    public void aCallRunningPastTheCallTimeoutShouldOnlyCostItsOwnSession() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage("The call didn't finish within 50 ms.");
+
+        blockDownloadsUntil(mockConnection, new CountDownLatch(1), new CountDownLatch(1));
+
+        sharedConnection.setCallTimeout(50);
+
+        try {
+
+            sharedConnection.download("/data/big.csv", mock(OutputStream.class));
+
+        } finally {
+
+            verify(mockConnection).abort();
+            verify(mockConnectionPool).invalidate(mockConnection);
+            verify(mockConnectionPool, never()).release(eq(mockConnection), anyLong());
+        }
+    }
+
+    /**
+     * Has downloads on the connection hang until it is aborted, like they would on a dead server.
+     */
+    private void blockDownloadsUntil(Connection connection, final CountDownLatch downloading, final CountDownLatch aborted) {
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+
+                aborted.countDown();
+
+                return null;
+            }
+
+        }).when(connection).abort();
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+
+                downloading.countDown();
+                aborted.await(5, TimeUnit.SECONDS);
+
+                throw new FtpException("Socket closed");
+            }
+
+        }).when(connection).download(anyString(), any(OutputStream.class));
+    }
+}
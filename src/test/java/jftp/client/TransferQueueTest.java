@@ -0,0 +1,382 @@
+package jftp.client;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jftp.client.Transfer.State;
+import jftp.connection.Connection;
+import jftp.connection.FtpFile;
+import jftp.exception.FtpException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TransferQueueTest {
+
+    private static final String CONTENTS = "The quick brown fox jumps over the lazy dog.";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String journalFile;
+    private Connection mockConnection;
+
+    @Before
+    public void setUp() throws IOException {
+
+        journalFile = new File(temporaryFolder.getRoot(), "transfers.journal").getPath();
+        mockConnection = mock(Connection.class);
+    }
+
+    @Test
+    public void higherPrioritiesShouldRunFirstThenTheOrderAdded() {
+
+        TransferQueue queue = new TransferQueue(journalFile);
+
+        queue.addDownload("low", localPath("low"), 1);
+        queue.addDownload("high", localPath("high"), 5);
+        queue.addDownload("high-later", localPath("high-later"), 5);
+
+        queue.runAll(mockConnection);
+
+        InOrder inOrder = Mockito.inOrder(mockConnection);
+
+        inOrder.verify(mockConnection).download(eq("high"), any(OutputStream.class));
+        inOrder.verify(mockConnection).download(eq("high-later"), any(OutputStream.class));
+        inOrder.verify(mockConnection).download(eq("low"), any(OutputStream.class));
+    }
+
+    @Test
+    public void aDownloadShouldWriteTheRemoteFileToTheLocalPath() throws IOException {
+
+        doAnswer(writing(CONTENTS)).when(mockConnection).download(eq("remote.txt"), any(OutputStream.class));
+
+        TransferQueue queue = new TransferQueue(journalFile);
+        Transfer transfer = queue.addDownload("remote.txt", localPath("local.txt"), 0);
+
+        assertThat(queue.runNext(mockConnection).getId(), is(equalTo(transfer.getId())));
+        assertThat(transfer.getState(), is(equalTo(State.DONE)));
+        assertThat(contentsOf(localPath("local.txt")), is(equalTo(CONTENTS)));
+        assertThat(queue.runNext(mockConnection), is(nullValue()));
+    }
+
+    @Test
+    public void pendingTransfersShouldSurviveReopeningTheQueue() {
+
+        TransferQueue queue = new TransferQueue(journalFile);
+        queue.addDownloads(Arrays.asList("/a.txt", "/b.txt"), temporaryFolder.getRoot().getPath(), 0);
+        queue.addUpload(localPath("c.txt"), "/c.txt", 3);
+        queue.close();
+
+        TransferQueue reopened = new TransferQueue(journalFile);
+        List<Transfer> pending = reopened.getPending();
+
+        assertThat(pending.size(), is(equalTo(3)));
+        assertThat(pending.get(0).getRemoteFilePath(), is(equalTo("/c.txt")));
+        assertThat(pending.get(1).getLocalFilePath(), is(equalTo(localPath("a.txt"))));
+        assertThat(reopened.addDownload("/d.txt", localPath("d.txt"), 0).getId(), is(equalTo(4L)));
+    }
+
+    @Test
+    public void failedTransfersShouldStayFailedAfterReopening() {
+
+        doThrow(new FtpException("Unable to download file missing.txt")).when(mockConnection).download(eq("missing.txt"),
+                any(OutputStream.class));
+
+        TransferQueue queue = new TransferQueue(journalFile);
+        Transfer transfer = queue.addDownload("missing.txt", localPath("missing.txt"), 0);
+
+        queue.runNext(mockConnection);
+
+        assertThat(transfer.getState(), is(equalTo(State.FAILED)));
+        assertThat(transfer.getFailure().getMessage(), is(equalTo("Unable to download file missing.txt")));
+
+        queue.close();
+
+        TransferQueue reopened = new TransferQueue(journalFile);
+
+        assertThat(reopened.getPending().isEmpty(), is(true));
+        assertThat(reopened.getFailed().get(0).getRemoteFilePath(), is(equalTo("missing.txt")));
+    }
+
+    @Test
+    public void aDownloadInterruptedByACrashShouldResumeFromTheLocalFilesLength() throws IOException {
+
+        doAnswer(crashingAfterWriting(CONTENTS.substring(0, 10))).when(mockConnection).download(eq("remote.txt"),
+                any(OutputStream.class));
+
+        TransferQueue queue = new TransferQueue(journalFile);
+        queue.addDownload("remote.txt", localPath("local.txt"), 0);
+
+        runUntilCrash(queue);
+
+        Connection restartedConnection = mock(Connection.class);
+        doAnswer(writing(CONTENTS.substring(10))).when(restartedConnection).download(eq("remote.txt"),
+                any(OutputStream.class), eq(10L));
+
+        new TransferQueue(journalFile).runAll(restartedConnection);
+
+        assertThat(contentsOf(localPath("local.txt")), is(equalTo(CONTENTS)));
+    }
+
+    @Test
+    public void anUploadInterruptedByACrashShouldAppendFromTheRemoteFilesLength() throws IOException {
+
+        Files.write(new File(localPath("local.txt")).toPath(), CONTENTS.getBytes());
+
+        doAnswer(crashingAfterWriting("")).when(mockConnection).upload(any(InputStream.class), eq("/remote.txt"));
+
+        TransferQueue queue = new TransferQueue(journalFile);
+        queue.addUpload(localPath("local.txt"), "/remote.txt", 0);
+
+        runUntilCrash(queue);
+
+        final ByteArrayOutputStream appended = new ByteArrayOutputStream();
+
+        Connection restartedConnection = mock(Connection.class);
+        when(restartedConnection.stat("/remote.txt")).thenReturn(new FtpFile("remote.txt", 4, "/remote.txt", 0, false));
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+
+                InputStream source = (InputStream) invocation.getArguments()[0];
+
+                int read;
+
+                while ((read = source.read()) >= 0)
+                    appended.write(read);
+
+                return null;
+            }
+        }).when(restartedConnection).append(any(InputStream.class), eq("/remote.txt"));
+
+        new TransferQueue(journalFile).runAll(restartedConnection);
+
+        assertThat(appended.toString(), is(equalTo(CONTENTS.substring(4))));
+        verify(restartedConnection, never()).upload(any(InputStream.class), anyString());
+    }
+
+    @Test
+    public void aTransferNeverStartedShouldNotResumeFromAStaleLocalFile() throws IOException {
+
+        Files.write(new File(localPath("local.txt")).toPath(), "stale".getBytes());
+
+        new TransferQueue(journalFile).addDownload("remote.txt", localPath("local.txt"), 0);
+
+        new TransferQueue(journalFile).runAll(mockConnection);
+
+        verify(mockConnection).download(eq("remote.txt"), any(OutputStream.class));
+        verify(mockConnection, never()).download(anyString(), any(OutputStream.class), anyLong());
+    }
+
+    @Test
+    public void aRecordCutShortByACrashShouldBeDropped() throws IOException {
+
+        TransferQueue queue = new TransferQueue(journalFile);
+        queue.addDownload("a.txt", localPath("a.txt"), 0);
+        queue.addDownload("b.txt", localPath("b.txt"), 0);
+        queue.close();
+
+        FileOutputStream journal = new FileOutputStream(journalFile, true);
+        journal.write(new byte[] { 'A', 0, 0, 0 });
+        journal.close();
+
+        TransferQueue reopened = new TransferQueue(journalFile);
+        reopened.addDownload("c.txt", localPath("c.txt"), 0);
+        reopened.close();
+
+        assertThat(new TransferQueue(journalFile).getPending().size(), is(equalTo(3)));
+    }
+
+    @Test
+    public void aJournalThatFailedToWriteShouldRefuseLaterRecords() {
+
+        TransferQueue queue = new TransferQueue(journalFile);
+        queue.addDownload("a.txt", localPath("a.txt"), 0);
+
+        // Interrupting a write closes the journal's channel under it.
+        Thread.currentThread().interrupt();
+
+        try {
+
+            queue.addDownload("b.txt", localPath("b.txt"), 0);
+
+            throw new AssertionError("The interrupted write should have failed.");
+
+        } catch (FtpException e) {
+
+            assertThat(Thread.interrupted(), is(true));
+        }
+
+        try {
+
+            queue.addDownload("c.txt", localPath("c.txt"), 0);
+
+            throw new AssertionError("The journal should refuse records after a failed write.");
+
+        } catch (FtpException e) {
+
+            assertThat(e.getCause().getMessage(), is(equalTo("An earlier write to the journal failed, so it can no longer be used.")));
+        }
+
+        queue.close();
+
+        List<Transfer> pending = new TransferQueue(journalFile).getPending();
+
+        assertThat(pending.size(), is(equalTo(1)));
+        assertThat(pending.get(0).getRemoteFilePath(), is(equalTo("a.txt")));
+    }
+
+    @Test
+    public void theJournalShouldBeCompactedOnceMostOfItIsFinishedTransfers() {
+
+        TransferQueue queue = new TransferQueue(journalFile);
+        queue.setCompactionThreshold(10);
+
+        List<String> remoteFilePaths = new ArrayList<String>();
+
+        for (int i = 0; i < 50; i++)
+            remoteFilePaths.add("/file" + i);
+
+        queue.addDownloads(remoteFilePaths, temporaryFolder.getRoot().getPath(), 0);
+        queue.runAll(mockConnection);
+
+        assertThat(new File(journalFile).length() < 200, is(true));
+
+        queue.close();
+
+        assertThat(new TransferQueue(journalFile).getPending().isEmpty(), is(true));
+    }
+
+    @Test
+    public void transfersAddedConcurrentlyShouldAllBeRecorded() throws Exception {
+
+        final TransferQueue queue = new TransferQueue(journalFile);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> adders = new ArrayList<Future<Void>>();
+
+        for (int thread = 0; thread < 8; thread++) {
+
+            final int threadNumber = thread;
+
+            adders.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+
+                    for (int i = 0; i < 25; i++)
+                        queue.addDownload("/" + threadNumber + "-" + i, localPath(threadNumber + "-" + i), i);
+
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<Void> adder : adders)
+            adder.get();
+
+        executor.shutdown();
+        queue.close();
+
+        assertThat(new TransferQueue(journalFile).getPending().size(), is(equalTo(200)));
+    }
+
+    private String localPath(String name) {
+        return new File(temporaryFolder.getRoot(), name).getPath();
+    }
+
+    private String contentsOf(String path) throws IOException {
+        return new String(Files.readAllBytes(new File(path).toPath()));
+    }
+
+    private void runUntilCrash(TransferQueue queue) {
+
+        try {
+
+            queue.runNext(mockConnection);
+
+        } catch (SimulatedCrash e) {
+
+            return;
+        }
+
+        throw new AssertionError("The transfer should have crashed.");
+    }
+
+    private static Answer<Void> writing(final String contents) {
+
+        return new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+
+                ((OutputStream) invocation.getArguments()[1]).write(contents.getBytes());
+
+                return null;
+            }
+        };
+    }
+
+    private static Answer<Void> crashingAfterWriting(final String contents) {
+
+        return new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+
+                if (invocation.getArguments()[1] instanceof OutputStream) {
+
+                    OutputStream destination = (OutputStream) invocation.getArguments()[1];
+
+                    destination.write(contents.getBytes());
+                    destination.flush();
+                }
+
+                throw new SimulatedCrash();
+            }
+        };
+    }
+
+    /**
+     * Stands in for the JVM dying mid-transfer: nothing in the queue catches it.
+     */
+    private static class SimulatedCrash extends Error {
+
+        private static final long serialVersionUID = 1L;
+    }
+}
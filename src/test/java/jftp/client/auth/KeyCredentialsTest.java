@@ -0,0 +1,30 @@
+package jftp.client.auth;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.UnsupportedEncodingException;
+
+import org.junit.Test;
+
+public class KeyCredentialsTest {
+
+    @Test
+    public void aPassphraseGivenAsAStringShouldBeEncodedAsUtf8() throws UnsupportedEncodingException {
+
+        KeyCredentials keyCredentials = new KeyCredentials("testUser", "/home/testUser/.ssh/id_rsa", "p\u00e4ssw\u00f6rd");
+
+        assertThat(keyCredentials.getPassphrase(), is(equalTo("p\u00e4ssw\u00f6rd".getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void aKeyFileWithoutAPassphraseShouldHaveNone() {
+
+        KeyCredentials keyCredentials = new KeyCredentials("testUser", "/home/testUser/.ssh/id_rsa", null);
+
+        assertThat(keyCredentials.getPassphrase(), is(nullValue()));
+        assertThat(keyCredentials.getPrivateKeyFile(), is(equalTo("/home/testUser/.ssh/id_rsa")));
+    }
+}
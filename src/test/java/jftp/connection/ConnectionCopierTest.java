@@ -0,0 +1,138 @@
+package jftp.connection;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import jftp.exception.FtpException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ConnectionCopierTest {
+
+    private Connection mockSource;
+    private Connection mockTarget;
+
+    private ConnectionCopier connectionCopier;
+
+    private byte[] sourceData;
+    private ByteArrayOutputStream targetData;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Before
+    public void setUp() {
+
+        mockSource = mock(Connection.class);
+        mockTarget = mock(Connection.class);
+
+        connectionCopier = new ConnectionCopier();
+        connectionCopier.setBufferSize(64);
+        connectionCopier.setBufferCount(2);
+
+        sourceData = new byte[10000];
+        Arrays.fill(sourceData, (byte) 7);
+
+        targetData = new ByteArrayOutputStream();
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+
+                OutputStream destination = (OutputStream) invocation.getArguments()[1];
+
+                for (int offset = 0; offset < sourceData.length; offset += 100)
+                    destination.write(sourceData, offset, 100);
+
+                return null;
+            }
+        }).when(mockSource).download(eq("source/file.bin"), any(OutputStream.class));
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+
+                InputStream source = (InputStream) invocation.getArguments()[0];
+                byte[] buffer = new byte[33];
+
+                int read;
+
+                while ((read = source.read(buffer)) >= 0)
+                    targetData.write(buffer, 0, read);
+
+                return null;
+            }
+        }).when(mockTarget).upload(any(InputStream.class), eq("target/file.bin"));
+    }
+
+    @After
+    public void tearDown() {
+        connectionCopier.shutdown();
+    }
+
+    @Test
+    public void everythingDownloadedFromTheSourceShouldBeUploadedToTheTarget() {
+
+        connectionCopier.copy(mockSource, "source/file.bin", mockTarget, "target/file.bin");
+
+        assertThat(targetData.toByteArray(), is(equalTo(sourceData)));
+    }
+
+    @Test
+    public void failedDownloadShouldStopTheUploadAndBeRethrown() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to download file source/file.bin")));
+
+        doThrow(new FtpException("Unable to download file source/file.bin")).when(mockSource).download(eq("source/file.bin"),
+                any(OutputStream.class));
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+
+                try {
+                    ((InputStream) invocation.getArguments()[0]).read();
+                } catch (IOException e) {
+                    throw new FtpException("Upload may not have completed.", e);
+                }
+
+                return null;
+            }
+        }).when(mockTarget).upload(any(InputStream.class), eq("target/file.bin"));
+
+        connectionCopier.copy(mockSource, "source/file.bin", mockTarget, "target/file.bin");
+    }
+
+    @Test
+    public void failedUploadShouldStopTheDownloadAndBeRethrown() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Upload failed.")));
+
+        doThrow(new FtpException("Upload failed.")).when(mockTarget).upload(any(InputStream.class), eq("target/file.bin"));
+
+        connectionCopier.copy(mockSource, "source/file.bin", mockTarget, "target/file.bin");
+    }
+}
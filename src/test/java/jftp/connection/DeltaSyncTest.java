@@ -0,0 +1,334 @@
+package jftp.connection;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import jftp.exception.FtpException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class DeltaSyncTest {
+
+    private static final String REMOTE_PATH = "/data/big.bin";
+    private static final int BLOCK_SIZE = 1000;
+
+    private SftpConnection mockConnection;
+    private DeltaSync deltaSync;
+
+    private byte[] remote;
+    private File localFile;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+
+        mockConnection = mock(SftpConnection.class);
+
+        deltaSync = new DeltaSync();
+        deltaSync.setBlockSize(BLOCK_SIZE);
+
+        localFile = new File(temporaryFolder.getRoot(), "big.bin");
+
+        when(mockConnection.stat(REMOTE_PATH)).thenAnswer(new Answer<FtpFile>() {
+
+            @Override
+            public FtpFile answer(InvocationOnMock invocation) {
+                return new FtpFile("big.bin", remote.length, REMOTE_PATH, 0, false);
+            }
+        });
+
+        when(mockConnection.blockDigests(REMOTE_PATH, BLOCK_SIZE)).thenAnswer(new Answer<List<String>>() {
+
+            @Override
+            public List<String> answer(InvocationOnMock invocation) throws Exception {
+                return digestsOf(remote);
+            }
+        });
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+
+                Object[] arguments = invocation.getArguments();
+                int offset = (int) (long) (Long) arguments[2];
+                int length = (int) (long) (Long) arguments[3];
+
+                ((OutputStream) arguments[1]).write(remote, offset, length);
+
+                return null;
+            }
+        }).when(mockConnection).downloadRange(anyString(), any(OutputStream.class), anyLong(), anyLong());
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+
+                ((OutputStream) invocation.getArguments()[1]).write(remote);
+
+                return null;
+            }
+        }).when(mockConnection).download(anyString(), any(OutputStream.class));
+    }
+
+    @Test
+    public void onlyTheChangedBlockShouldBeDownloaded() throws Exception {
+
+        byte[] local = randomBytes(5500);
+        Files.write(localFile.toPath(), local);
+
+        remote = local.clone();
+        remote[2500] ^= 1;
+
+        long fetched = deltaSync.download(mockConnection, REMOTE_PATH, localFile.getPath());
+
+        assertThat(fetched, is(equalTo((long) BLOCK_SIZE)));
+        assertLocalFileMatchesRemote();
+    }
+
+    @Test
+    public void blocksMovedByWholeBlocksShouldBeCopiedFromTheLocalFile() throws Exception {
+
+        byte[] local = randomBytes(3000);
+        Files.write(localFile.toPath(), local);
+
+        remote = concat(randomBytes(BLOCK_SIZE), local, randomBytes(250));
+
+        long fetched = deltaSync.download(mockConnection, REMOTE_PATH, localFile.getPath());
+
+        assertThat(fetched, is(equalTo((long) BLOCK_SIZE + 250)));
+        assertLocalFileMatchesRemote();
+    }
+
+    @Test
+    public void aMissingLocalCopyShouldBeDownloadedWhole() throws Exception {
+
+        remote = randomBytes(2500);
+
+        long fetched = deltaSync.download(mockConnection, REMOTE_PATH, localFile.getPath());
+
+        assertThat(fetched, is(equalTo(2500L)));
+        assertLocalFileMatchesRemote();
+        verify(mockConnection, never()).blockDigests(anyString(), anyInt());
+    }
+
+    @Test
+    public void aServerThatCannotDigestShouldHaveTheWholeFileDownloaded() throws Exception {
+
+        Files.write(localFile.toPath(), randomBytes(3000));
+        remote = randomBytes(3000);
+
+        when(mockConnection.blockDigests(REMOTE_PATH, BLOCK_SIZE)).thenThrow(new FtpException("Unable to checksum /data/big.bin on the server"));
+
+        long fetched = deltaSync.download(mockConnection, REMOTE_PATH, localFile.getPath());
+
+        assertThat(fetched, is(equalTo(3000L)));
+        assertLocalFileMatchesRemote();
+    }
+
+    @Test
+    public void anAppendOnlyFileShouldOnlyHaveItsNewEndDownloadedWhenTheServerCannotDigest() throws Exception {
+
+        byte[] local = randomBytes(2500);
+        Files.write(localFile.toPath(), local);
+
+        remote = concat(local, randomBytes(700));
+
+        when(mockConnection.blockDigests(REMOTE_PATH, BLOCK_SIZE)).thenThrow(new FtpException("Unable to checksum /data/big.bin on the server"));
+
+        deltaSync.setAppendOnly(true);
+
+        long fetched = deltaSync.download(mockConnection, REMOTE_PATH, localFile.getPath());
+
+        assertThat(fetched, is(equalTo((long) BLOCK_SIZE + 700)));
+        assertLocalFileMatchesRemote();
+        verify(mockConnection, never()).download(anyString(), any(OutputStream.class));
+    }
+
+    @Test
+    public void anAppendOnlyFileWhoseEndChangedShouldBeDownloadedWhole() throws Exception {
+
+        byte[] local = randomBytes(2500);
+        Files.write(localFile.toPath(), local);
+
+        remote = concat(local, randomBytes(700));
+        remote[2400] ^= 1;
+
+        when(mockConnection.blockDigests(REMOTE_PATH, BLOCK_SIZE)).thenThrow(new FtpException("Unable to checksum /data/big.bin on the server"));
+
+        deltaSync.setAppendOnly(true);
+        deltaSync.download(mockConnection, REMOTE_PATH, localFile.getPath());
+
+        assertLocalFileMatchesRemote();
+        verify(mockConnection).download(anyString(), any(OutputStream.class));
+    }
+
+    @Test
+    public void aFileThatGrowsDuringThePatchShouldBeDownloadedWhole() throws Exception {
+
+        byte[] local = randomBytes(5500);
+        Files.write(localFile.toPath(), local);
+
+        remote = local.clone();
+        remote[2500] ^= 1;
+
+        final byte[] grown = concat(remote, randomBytes(300));
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+
+                Object[] arguments = invocation.getArguments();
+
+                ((OutputStream) arguments[1]).write(remote, (int) (long) (Long) arguments[2], (int) (long) (Long) arguments[3]);
+
+                remote = grown;
+
+                return null;
+            }
+        }).when(mockConnection).downloadRange(anyString(), any(OutputStream.class), anyLong(), anyLong());
+
+        long fetched = deltaSync.download(mockConnection, REMOTE_PATH, localFile.getPath());
+
+        assertThat(fetched, is(equalTo((long) BLOCK_SIZE + grown.length)));
+        assertLocalFileMatchesRemote();
+    }
+
+    @Test
+    public void aPatchThatDoesNotMatchTheDigestsShouldBeReplacedByTheWholeFile() throws Exception {
+
+        byte[] local = randomBytes(5500);
+        Files.write(localFile.toPath(), local);
+
+        remote = local.clone();
+        remote[2500] ^= 1;
+
+        final byte[] rewritten = remote.clone();
+        rewritten[2600] ^= 1;
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+
+                remote = rewritten;
+
+                Object[] arguments = invocation.getArguments();
+
+                ((OutputStream) arguments[1]).write(remote, (int) (long) (Long) arguments[2], (int) (long) (Long) arguments[3]);
+
+                return null;
+            }
+        }).when(mockConnection).downloadRange(anyString(), any(OutputStream.class), anyLong(), anyLong());
+
+        deltaSync.download(mockConnection, REMOTE_PATH, localFile.getPath());
+
+        assertLocalFileMatchesRemote();
+        verify(mockConnection).download(anyString(), any(OutputStream.class));
+    }
+
+    @Test
+    public void aFailedDownloadShouldNotLeaveAPartialFileBehind() throws Exception {
+
+        byte[] local = randomBytes(3000);
+        Files.write(localFile.toPath(), local);
+
+        remote = randomBytes(3100);
+
+        doThrow(new FtpException("Unable to download file /data/big.bin")).when(mockConnection).downloadRange(anyString(),
+                any(OutputStream.class), anyLong(), anyLong());
+
+        try {
+
+            deltaSync.download(mockConnection, REMOTE_PATH, localFile.getPath());
+
+            throw new AssertionError("The download should have failed.");
+
+        } catch (FtpException e) {
+
+            assertThat(Files.readAllBytes(localFile.toPath()), is(equalTo(local)));
+            assertThat(new File(localFile.getPath() + ".delta").exists(), is(false));
+        }
+    }
+
+    private void assertLocalFileMatchesRemote() throws IOException {
+
+        assertThat(Files.readAllBytes(localFile.toPath()), is(equalTo(remote)));
+        assertThat(new File(localFile.getPath() + ".delta").exists(), is(false));
+    }
+
+    private static List<String> digestsOf(byte[] data) throws Exception {
+
+        List<String> digests = new ArrayList<String>();
+
+        for (int offset = 0; offset < data.length; offset += BLOCK_SIZE) {
+
+            byte[] digest = MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + BLOCK_SIZE)));
+
+            StringBuilder hex = new StringBuilder();
+
+            for (byte each : digest)
+                hex.append(String.format("%02x", each));
+
+            digests.add(hex.toString());
+        }
+
+        return digests;
+    }
+
+    private static byte[] randomBytes(int length) {
+
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+
+        int length = 0;
+
+        for (byte[] part : parts)
+            length += part.length;
+
+        byte[] joined = new byte[length];
+        int offset = 0;
+
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, joined, offset, part.length);
+            offset += part.length;
+        }
+
+        return joined;
+    }
+}
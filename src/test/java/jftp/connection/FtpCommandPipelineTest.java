@@ -0,0 +1,151 @@
+package jftp.connection;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+public class FtpCommandPipelineTest {
+
+    private FTPClient mockFtpClient;
+
+    private FtpCommandPipeline commandPipeline;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Before
+    public void setUp() throws IOException {
+
+        mockFtpClient = mock(FTPClient.class);
+
+        when(mockFtpClient.getSoTimeout()).thenReturn(1234);
+        when(mockFtpClient.sendCommand(anyString())).thenReturn(213);
+        when(mockFtpClient.getReply()).thenReturn(213);
+        when(mockFtpClient.getReplyString()).thenReturn("213 10\r\n", "213 20\r\n", "213 30\r\n");
+
+        commandPipeline = new FtpCommandPipeline(mockFtpClient);
+    }
+
+    @Test
+    public void serverShouldBeProbedWithTwoPipelinedNoopsBeforePipeliningIsUsed() throws IOException {
+
+        commandPipeline.execute(Arrays.asList("SIZE a"));
+
+        InOrder inOrder = Mockito.inOrder(mockFtpClient);
+
+        inOrder.verify(mockFtpClient).setSoTimeout(5000);
+        inOrder.verify(mockFtpClient).sendCommand("NOOP\r\nNOOP");
+        inOrder.verify(mockFtpClient).getReply();
+        inOrder.verify(mockFtpClient).setSoTimeout(1234);
+    }
+
+    @Test
+    public void commandsInTheSameWindowShouldBeSentTogetherAndRepliesReadBackInOrder() throws IOException {
+
+        List<FtpReply> replies = commandPipeline.execute(Arrays.asList("SIZE a", "SIZE b", "SIZE c"));
+
+        verify(mockFtpClient).sendCommand("SIZE a\r\nSIZE b\r\nSIZE c");
+        verify(mockFtpClient, times(1 + 2)).getReply();
+
+        assertThat(replies.size(), is(equalTo(3)));
+        assertThat(replies.get(0).getCode(), is(equalTo(213)));
+    }
+
+    @Test
+    public void commandsShouldBeSplitIntoWindowsOfTheConfiguredSize() throws IOException {
+
+        commandPipeline.setWindowSize(2);
+
+        commandPipeline.execute(Arrays.asList("SIZE a", "SIZE b", "SIZE c"));
+
+        verify(mockFtpClient).sendCommand("SIZE a\r\nSIZE b");
+        verify(mockFtpClient).sendCommand("SIZE c");
+    }
+
+    @Test
+    public void serverThatDoesNotAnswerThePipelinedProbeShouldBeSentCommandsOneAtATime() throws IOException {
+
+        when(mockFtpClient.getReply()).thenThrow(new SocketTimeoutException());
+        when(mockFtpClient.sendCommand("PWD")).thenReturn(257);
+
+        commandPipeline.execute(Arrays.asList("SIZE a", "SIZE b"));
+
+        verify(mockFtpClient).sendCommand("SIZE a");
+        verify(mockFtpClient).sendCommand("SIZE b");
+        verify(mockFtpClient).setSoTimeout(1234);
+    }
+
+    @Test
+    public void lateRepliesToTheProbeShouldBeDroppedBeforeTheNextCommandIsSent() throws IOException {
+
+        when(mockFtpClient.getReply()).thenThrow(new SocketTimeoutException()).thenReturn(257);
+        when(mockFtpClient.sendCommand("PWD")).thenReturn(200);
+
+        commandPipeline.execute(Arrays.asList("SIZE a"));
+
+        InOrder inOrder = Mockito.inOrder(mockFtpClient);
+
+        inOrder.verify(mockFtpClient).sendCommand("PWD");
+        inOrder.verify(mockFtpClient).getReply();
+        inOrder.verify(mockFtpClient).sendCommand("SIZE a");
+        verify(mockFtpClient, never()).disconnect();
+    }
+
+    @Test
+    public void connectionThatCannotBeBroughtBackIntoStepAfterTheProbeShouldBeClosed() throws IOException {
+
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage("The server's replies fell out of step with the commands sent to it.");
+
+        when(mockFtpClient.getReply()).thenThrow(new SocketTimeoutException());
+
+        try {
+
+            commandPipeline.execute(Arrays.asList("SIZE a"));
+
+        } finally {
+
+            verify(mockFtpClient).disconnect();
+            verify(mockFtpClient, never()).sendCommand("SIZE a");
+        }
+    }
+
+    @Test
+    public void disablingPipeliningShouldSkipTheProbeAndSendCommandsOneAtATime() throws IOException {
+
+        commandPipeline.setEnabled(false);
+
+        commandPipeline.execute(Arrays.asList("DELE a", "DELE b"));
+
+        verify(mockFtpClient, never()).sendCommand("NOOP\r\nNOOP");
+        verify(mockFtpClient).sendCommand("DELE a");
+        verify(mockFtpClient).sendCommand("DELE b");
+    }
+
+    @Test
+    public void replyArgumentShouldBeTheReplyTextWithoutItsStatusCode() {
+
+        FtpReply reply = new FtpReply(213, "213 20140319214000\r\n");
+
+        assertThat(reply.getArgument(), is(equalTo("20140319214000")));
+    }
+}
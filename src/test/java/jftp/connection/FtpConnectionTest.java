@@ -6,31 +6,47 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import jftp.exception.FtpException;
+import jftp.util.BufferPool;
 import jftp.util.FileStreamFactory;
 
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPFileFilter;
+import org.apache.commons.net.io.CopyStreamException;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 public class FtpConnectionTest {
 
@@ -77,6 +93,27 @@ public class FtpConnectionTest {
         when(mockFtpClient.storeFile("remote/directory/path.txt", mockFileInputStream)).thenReturn(true);
     }
 
+    @Test
+    public void keepAliveShouldSendANoOp() throws IOException {
+
+        when(mockFtpClient.sendNoOp()).thenReturn(true);
+
+        ftpConnection.keepAlive();
+
+        verify(mockFtpClient).sendNoOp();
+    }
+
+    @Test
+    public void keepAliveShouldThrowExceptionWhenTheConnectionIsDead() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("The server did not answer the keep-alive.")));
+
+        when(mockFtpClient.sendNoOp()).thenThrow(new IOException("Connection reset"));
+
+        ftpConnection.keepAlive();
+    }
+
     @Test
     public void whenSettingDirectoryThenFtpClientShouldBeCalledToChangeDirectory() throws IOException {
 
@@ -170,6 +207,55 @@ public class FtpConnectionTest {
         verify(mockFtpClient).listFiles(DIRECTORY_PATH + "/relativePath");
     }
     
+    @Test
+    public void filteredListingShouldHandTheFilterToTheParserAndKeepTheGlobOffTheCommandByDefault() throws IOException {
+
+        FTPFile[] files = createRemoteFTPFiles();
+
+        ArgumentCaptor<FTPFileFilter> parserFilter = ArgumentCaptor.forClass(FTPFileFilter.class);
+        when(mockFtpClient.listFiles(anyString(), parserFilter.capture())).thenReturn(new FTPFile[] { files[1] });
+
+        List<FtpFile> listed = ftpConnection.listFiles("relativePath", FtpFileFilter.glob("File *").and(FtpFileFilter.largerThan(2000)));
+
+        verify(mockFtpClient).listFiles(Mockito.eq(DIRECTORY_PATH), any(FTPFileFilter.class));
+
+        assertThat(listed.size(), is(equalTo(1)));
+        assertThat(parserFilter.getValue().accept(files[0]), is(false));
+        assertThat(parserFilter.getValue().accept(files[1]), is(true));
+        assertThat(parserFilter.getValue().accept(null), is(false));
+    }
+
+    @Test
+    public void serverSideGlobbingShouldSendTheFiltersGlobWithTheListing() throws IOException {
+
+        when(mockFtpClient.listFiles(anyString(), any(FTPFileFilter.class))).thenReturn(new FTPFile[0]);
+
+        ftpConnection.setServerSideGlobbing(true);
+        ftpConnection.listFiles("relativePath", FtpFileFilter.largerThan(1).and(FtpFileFilter.glob("*.csv")));
+
+        verify(mockFtpClient).listFiles(Mockito.eq(DIRECTORY_PATH + "/*.csv"), any(FTPFileFilter.class));
+    }
+
+    @Test
+    public void entriesOfDirectoriesTheServersGlobMatchedShouldBeLeftOut() throws IOException {
+
+        FTPFile[] files = createRemoteFTPFiles();
+
+        ArgumentCaptor<FTPFileFilter> parserFilter = ArgumentCaptor.forClass(FTPFileFilter.class);
+        when(mockFtpClient.listFiles(anyString(), parserFilter.capture())).thenReturn(new FTPFile[0]);
+
+        ftpConnection.setServerSideGlobbing(true);
+        ftpConnection.listFiles("relativePath", FtpFileFilter.glob("File *"));
+
+        FTPFileFilter filter = parserFilter.getValue();
+
+        assertThat(filter.accept(null), is(false));
+        assertThat(filter.accept(files[0]), is(true));
+        assertThat(filter.accept(null), is(false));
+        assertThat(filter.accept(null), is(false));
+        assertThat(filter.accept(files[1]), is(false));
+    }
+
     @Test
     public void downloadMethodShouldCreateLocalFileStreamFromCorrectPathBasedOnRemoteFileName() throws FileNotFoundException {
 
@@ -186,6 +272,169 @@ public class FtpConnectionTest {
         verify(mockFtpClient).retrieveFile("path/to/remote.file", mockFileOutputStream);
     }
 
+    @Test
+    public void downloadingFromAnOffsetShouldSetTheRestartOffsetBeforeRetrieving() throws IOException {
+
+        when(mockFtpClient.retrieveFile("path/to/remote.file", mockFileOutputStream)).thenReturn(true);
+
+        ftpConnection.download("path/to/remote.file", mockFileOutputStream, 1024);
+
+        InOrder inOrder = Mockito.inOrder(mockFtpClient);
+
+        inOrder.verify(mockFtpClient).setRestartOffset(1024);
+        inOrder.verify(mockFtpClient).retrieveFile("path/to/remote.file", mockFileOutputStream);
+    }
+
+    @Test
+    public void uploadingAtAnOffsetShouldSetTheRestartOffsetBeforeStoring() throws IOException {
+
+        when(mockFtpClient.storeFile("path/to/remote.file", mockFileInputStream)).thenReturn(true);
+
+        ftpConnection.upload(mockFileInputStream, "path/to/remote.file", 1024);
+
+        InOrder inOrder = Mockito.inOrder(mockFtpClient);
+
+        inOrder.verify(mockFtpClient).setRestartOffset(1024);
+        inOrder.verify(mockFtpClient).storeFile("path/to/remote.file", mockFileInputStream);
+    }
+
+    @Test
+    public void downloadingIntoABufferTooSmallForTheFileShouldFailBeforeRetrieving() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("The file path/to/remote.file is 9 bytes, more than the 8 left in the buffer.")));
+
+        when(mockFtpClient.mlistFile("path/to/remote.file")).thenReturn(remoteFileOfSize(9));
+
+        try {
+
+            ftpConnection.download("path/to/remote.file", ByteBuffer.allocate(8));
+
+        } finally {
+
+            verify(mockFtpClient, never()).retrieveFile(anyString(), any(OutputStream.class));
+        }
+    }
+
+    @Test
+    public void aFileGrowingPastTheBufferShouldFailAfterReadingTheTransfersReply() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to download file path/to/remote.file")));
+
+        when(mockFtpClient.mlistFile("path/to/remote.file")).thenReturn(remoteFileOfSize(8));
+        when(mockFtpClient.isConnected()).thenReturn(true);
+        when(mockFtpClient.retrieveFile(anyString(), any(OutputStream.class))).thenAnswer(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+
+                try {
+
+                    ((OutputStream) invocation.getArguments()[1]).write(new byte[9]);
+
+                } catch (IOException e) {
+
+                    throw new CopyStreamException("Overflow", 0, e);
+                }
+
+                return true;
+            }
+        });
+
+        try {
+
+            ftpConnection.download("path/to/remote.file", ByteBuffer.allocate(8));
+
+        } finally {
+
+            verify(mockFtpClient).completePendingCommand();
+        }
+    }
+
+    @Test
+    public void downloadingIntoANewBufferShouldSizeItFromTheFile() throws IOException {
+
+        when(mockFtpClient.mlistFile("path/to/remote.file")).thenReturn(remoteFileOfSize(8));
+        when(mockFtpClient.retrieveFile(anyString(), any(OutputStream.class))).thenAnswer(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+
+                ((OutputStream) invocation.getArguments()[1]).write("contents".getBytes());
+
+                return true;
+            }
+        });
+
+        ByteBuffer downloaded = ftpConnection.download("path/to/remote.file");
+
+        byte[] contents = new byte[downloaded.remaining()];
+        downloaded.get(contents);
+
+        assertThat(new String(contents), is(equalTo("contents")));
+    }
+
+    @Test
+    public void abortingShouldDisconnectWithoutWaitingOnTheServer() throws IOException {
+
+        ftpConnection.abort();
+
+        verify(mockFtpClient).disconnect();
+        verify(mockFtpClient, never()).abort();
+    }
+
+    @Test
+    public void abortingShouldAlsoCloseTheDataConnectionWhenTheClientCan() throws IOException {
+
+        FTPClient closingClient = mock(FTPClient.class, withSettings().extraInterfaces(DataConnectionCloser.class));
+
+        new FtpConnection(closingClient).abort();
+
+        InOrder inOrder = Mockito.inOrder(closingClient);
+
+        inOrder.verify(closingClient).disconnect();
+        inOrder.verify((DataConnectionCloser) closingClient).closeDataConnection();
+    }
+
+    @Test
+    public void withABufferPoolDownloadsShouldCopyFromTheDataStreamAndCompleteTheCommand() throws IOException {
+
+        when(mockFtpClient.retrieveFileStream("path/to/remote.file")).thenReturn(new ByteArrayInputStream("contents".getBytes()));
+        when(mockFtpClient.completePendingCommand()).thenReturn(true);
+
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+
+        ftpConnection.setBufferPool(new BufferPool(1024, 1, 0));
+        ftpConnection.download("path/to/remote.file", destination);
+
+        assertThat(destination.toString(), is(equalTo("contents")));
+        verify(mockFtpClient, never()).retrieveFile(anyString(), any(OutputStream.class));
+    }
+
+    @Test
+    public void withABufferPoolAFailedCompletionShouldFailTheUpload() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Upload failed.")));
+
+        when(mockFtpClient.storeFileStream("remote/file.txt")).thenReturn(new ByteArrayOutputStream());
+        when(mockFtpClient.completePendingCommand()).thenReturn(false);
+
+        ftpConnection.setBufferPool(new BufferPool(1024, 1, 0));
+        ftpConnection.upload(new ByteArrayInputStream("contents".getBytes()), "remote/file.txt");
+    }
+
+    @Test
+    public void appendShouldAppendTheStreamToTheRemoteFile() throws IOException {
+
+        when(mockFtpClient.appendFile("path/to/remote.file", mockFileInputStream)).thenReturn(true);
+
+        ftpConnection.append(mockFileInputStream, "path/to/remote.file");
+
+        verify(mockFtpClient).appendFile("path/to/remote.file", mockFileInputStream);
+    }
+
     @Test
     public void downloadMethodShouldThrowExceptionIfUnableToOpenStreamToLocalFile() throws IOException {
 
@@ -323,6 +572,179 @@ public class FtpConnectionTest {
         inOrder.verify(mockFtpClient).changeWorkingDirectory("initial/directory");
     }
     
+    @Test
+    public void aFailedListingShouldStillCDBackToTheOriginalDirectory() throws IOException {
+
+        expectedException.expect(FtpException.class);
+
+        when(mockFtpClient.printWorkingDirectory()).thenReturn("initial/directory").thenReturn("another/path");
+        when(mockFtpClient.listFiles("another/path")).thenThrow(new IOException());
+
+        try {
+
+            ftpConnection.listFiles("another/path");
+
+        } finally {
+
+            verify(mockFtpClient).changeWorkingDirectory("initial/directory");
+        }
+    }
+
+    @Test
+    public void gettingFileSizesShouldPipelineSizeCommandsAndLeaveOutFilesTheServerCouldNotSize() throws IOException {
+
+        when(mockFtpClient.sendCommand(anyString())).thenReturn(200, 213);
+        when(mockFtpClient.getReply()).thenReturn(200, 550, 213);
+        when(mockFtpClient.getReplyString()).thenReturn("213 1000", "550 No such file", "213 3000");
+
+        Map<String, Long> sizes = ftpConnection.getFileSizes(Arrays.asList("a.txt", "b.txt", "c.txt"));
+
+        verify(mockFtpClient).sendCommand("SIZE a.txt\r\nSIZE b.txt\r\nSIZE c.txt");
+
+        assertThat(sizes.size(), is(equalTo(2)));
+        assertThat(sizes.get("a.txt"), is(equalTo(1000l)));
+        assertThat(sizes.get("c.txt"), is(equalTo(3000l)));
+    }
+
+    @Test
+    public void gettingModificationTimesShouldParseMdtmRepliesAsUtc() throws IOException {
+
+        when(mockFtpClient.sendCommand(anyString())).thenReturn(200, 213);
+        when(mockFtpClient.getReply()).thenReturn(200);
+        when(mockFtpClient.getReplyString()).thenReturn("213 20140319214000.123");
+
+        Map<String, DateTime> times = ftpConnection.getModificationTimes(Arrays.asList("a.txt"));
+
+        assertThat(times.get("a.txt").getMillis(), is(equalTo(new DateTime(2014, 3, 19, 21, 40, DateTimeZone.UTC).getMillis())));
+    }
+
+    @Test
+    public void aTruncatedMdtmReplyShouldFailWithAnFtpException() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("The server sent an invalid modification time: 2014")));
+
+        when(mockFtpClient.sendCommand(anyString())).thenReturn(200, 213);
+        when(mockFtpClient.getReply()).thenReturn(200);
+        when(mockFtpClient.getReplyString()).thenReturn("213 2014");
+
+        ftpConnection.getModificationTimes(Arrays.asList("a.txt"));
+    }
+
+    @Test
+    public void deletingFilesShouldReportEveryFileTheServerRefusedToDelete() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to delete files: [b.txt]")));
+
+        when(mockFtpClient.sendCommand(anyString())).thenReturn(200, 250);
+        when(mockFtpClient.getReply()).thenReturn(200, 550);
+
+        ftpConnection.deleteFiles(Arrays.asList("a.txt", "b.txt"));
+    }
+
+    @Test
+    public void renamingFilesShouldSendRenameFromAndRenameToPairs() throws IOException {
+
+        when(mockFtpClient.sendCommand(anyString())).thenReturn(200, 350);
+        when(mockFtpClient.getReply()).thenReturn(200, 250, 350, 250);
+
+        Map<String, String> renames = new LinkedHashMap<String, String>();
+        renames.put("a.tmp", "a.txt");
+        renames.put("b.tmp", "b.txt");
+
+        ftpConnection.renameFiles(renames);
+
+        verify(mockFtpClient).sendCommand("RNFR a.tmp\r\nRNTO a.txt\r\nRNFR b.tmp\r\nRNTO b.txt");
+    }
+
+    @Test
+    public void withPipeliningDisabledBatchCommandsShouldBeSentOneAtATime() throws IOException {
+
+        when(mockFtpClient.sendCommand(anyString())).thenReturn(250);
+
+        ftpConnection.setCommandPipelining(false);
+        ftpConnection.deleteFiles(Arrays.asList("a.txt", "b.txt"));
+
+        verify(mockFtpClient).sendCommand("DELE a.txt");
+        verify(mockFtpClient).sendCommand("DELE b.txt");
+    }
+
+    @Test
+    public void ifClientCannotDeleteFileThenExceptionShouldBeThrown() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to delete remote/file.txt")));
+
+        when(mockFtpClient.deleteFile("remote/file.txt")).thenReturn(false);
+
+        ftpConnection.delete("remote/file.txt");
+    }
+
+    @Test
+    public void renamingShouldCallOnUnderlyingClientRename() throws IOException {
+
+        when(mockFtpClient.rename("a.tmp", "a.txt")).thenReturn(true);
+
+        ftpConnection.rename("a.tmp", "a.txt");
+
+        verify(mockFtpClient).rename("a.tmp", "a.txt");
+    }
+
+    @Test
+    public void makingDirectoriesShouldCreateEachLevelInTurnThenCheckTheDirectoryExists() throws IOException {
+
+        ftpConnection.makeDirectories("/one/two");
+
+        InOrder inOrder = Mockito.inOrder(mockFtpClient);
+
+        inOrder.verify(mockFtpClient).makeDirectory("/one");
+        inOrder.verify(mockFtpClient).makeDirectory("/one/two");
+        inOrder.verify(mockFtpClient).changeWorkingDirectory("/one/two");
+        inOrder.verify(mockFtpClient).changeWorkingDirectory(DIRECTORY_PATH);
+    }
+
+    @Test
+    public void statShouldUseMlstEntryWhenServerSupportsIt() throws IOException {
+
+        FTPFile file = new FTPFile();
+        file.setSize(42);
+        file.setType(FTPFile.FILE_TYPE);
+
+        when(mockFtpClient.mlistFile("remote/file.txt")).thenReturn(file);
+
+        FtpFile stat = ftpConnection.stat("remote/file.txt");
+
+        assertThat(stat.getName(), is(equalTo("file.txt")));
+        assertThat(stat.getFullPath(), is(equalTo("remote/file.txt")));
+        assertThat(stat.getSize(), is(equalTo(42l)));
+    }
+
+    @Test
+    public void statShouldFallBackToListingWhenServerDoesNotSupportMlst() throws IOException {
+
+        FTPFile file = new FTPFile();
+        file.setName("file.txt");
+        file.setSize(42);
+        file.setType(FTPFile.FILE_TYPE);
+
+        when(mockFtpClient.listFiles("remote/file.txt")).thenReturn(new FTPFile[] { file });
+
+        assertThat(ftpConnection.stat("remote/file.txt").getSize(), is(equalTo(42l)));
+    }
+
+    @Test
+    public void statOfPathThatIsNeitherFileNorDirectoryShouldThrowException() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to find remote/missing")));
+
+        when(mockFtpClient.listFiles("remote/missing")).thenReturn(new FTPFile[0]);
+        when(mockFtpClient.changeWorkingDirectory("remote/missing")).thenReturn(false);
+
+        ftpConnection.stat("remote/missing");
+    }
+
     private FTPFile[] createRemoteFTPFiles() {
 
         Calendar calendar = Calendar.getInstance();
@@ -348,4 +770,13 @@ public class FtpConnectionTest {
     private boolean setTrueIfNumberIsEven(int i) {
         return (i + 1) % 2 == 0 ? true : false;
     }
+
+    private FTPFile remoteFileOfSize(long size) {
+
+        FTPFile file = new FTPFile();
+        file.setSize(size);
+        file.setType(FTPFile.FILE_TYPE);
+
+        return file;
+    }
 }
@@ -0,0 +1,62 @@
+package jftp.connection;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.junit.Test;
+
+public class FtpFileFilterTest {
+
+    @Test
+    public void globsShouldMatchWholeNamesWithShellWildcards() {
+
+        assertThat(acceptsName(FtpFileFilter.glob("*.csv"), "report.csv"), is(true));
+        assertThat(acceptsName(FtpFileFilter.glob("*.csv"), "report.csv.bak"), is(false));
+        assertThat(acceptsName(FtpFileFilter.glob("log-?.txt"), "log-1.txt"), is(true));
+        assertThat(acceptsName(FtpFileFilter.glob("log-?.txt"), "log-10.txt"), is(false));
+        assertThat(acceptsName(FtpFileFilter.glob("[ab]*"), "beta"), is(true));
+        assertThat(acceptsName(FtpFileFilter.glob("[!ab]*"), "beta"), is(false));
+    }
+
+    @Test
+    public void globCharactersThatMeanSomethingInARegexShouldMatchLiterally() {
+
+        assertThat(acceptsName(FtpFileFilter.glob("a+b (1).txt"), "a+b (1).txt"), is(true));
+        assertThat(acceptsName(FtpFileFilter.glob("a.txt"), "abtxt"), is(false));
+        assertThat(acceptsName(FtpFileFilter.glob("[^]x"), "^x"), is(true));
+    }
+
+    @Test
+    public void regexesShouldMatchTheWholeName() {
+
+        assertThat(acceptsName(FtpFileFilter.regex("data-\\d+"), "data-42"), is(true));
+        assertThat(acceptsName(FtpFileFilter.regex("data"), "data-42"), is(false));
+    }
+
+    @Test
+    public void sizeAndTimeFiltersShouldCompareAgainstTheEntry() {
+
+        assertThat(FtpFileFilter.largerThan(100).accept("a", 100, 0, false), is(true));
+        assertThat(FtpFileFilter.smallerThan(100).accept("a", 100, 0, false), is(false));
+        assertThat(FtpFileFilter.modifiedSince(5000).accept("a", 0, 5000, false), is(true));
+        assertThat(FtpFileFilter.modifiedBefore(5000).accept("a", 0, 5000, false), is(false));
+        assertThat(FtpFileFilter.filesOnly().accept("a", 0, 0, true), is(false));
+    }
+
+    @Test
+    public void combinedFiltersShouldRequireBothAndKeepTheGlob() {
+
+        FtpFileFilter filter = FtpFileFilter.filesOnly().and(FtpFileFilter.glob("*.csv"));
+
+        assertThat(filter.accept("a.csv", 0, 0, false), is(true));
+        assertThat(filter.accept("a.csv", 0, 0, true), is(false));
+        assertThat(filter.getGlob(), is(equalTo("*.csv")));
+        assertThat(FtpFileFilter.regex(".*").getGlob(), is(nullValue()));
+    }
+
+    private boolean acceptsName(FtpFileFilter filter, String name) {
+        return filter.accept(name, 0, 0, false);
+    }
+}
@@ -0,0 +1,231 @@
+package jftp.connection;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+
+import jftp.exception.FtpException;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.io.CopyStreamException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+public class FxpTransferTest {
+
+    private FTPClient mockSourceClient;
+    private FTPClient mockTargetClient;
+
+    private FtpConnection source;
+    private FtpConnection target;
+
+    private FxpTransfer fxpTransfer = new FxpTransfer();
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Before
+    public void setUp() throws IOException {
+
+        mockSourceClient = mock(FTPClient.class);
+        mockTargetClient = mock(FTPClient.class);
+
+        source = new FtpConnection(mockSourceClient);
+        target = new FtpConnection(mockTargetClient);
+
+        when(mockSourceClient.getRemoteAddress()).thenReturn(InetAddress.getByName("203.0.113.1"));
+        when(mockTargetClient.getRemoteAddress()).thenReturn(InetAddress.getByName("203.0.113.2"));
+
+        when(mockSourceClient.pasv()).thenReturn(227);
+        when(mockSourceClient.getReplyString()).thenReturn("227 Entering Passive Mode (203,0,113,1,19,137)");
+        when(mockTargetClient.port(any(InetAddress.class), anyInt())).thenReturn(200);
+        when(mockTargetClient.stor(anyString())).thenReturn(150);
+        when(mockSourceClient.retr(anyString())).thenReturn(150);
+        when(mockSourceClient.getReply()).thenReturn(226);
+        when(mockTargetClient.getReply()).thenReturn(226);
+
+        InputStream relayStream = new ByteArrayInputStream(new byte[0]);
+
+        when(mockSourceClient.retrieveFileStream(anyString())).thenReturn(relayStream);
+        when(mockTargetClient.storeFile(anyString(), any(InputStream.class))).thenReturn(true);
+        when(mockSourceClient.completePendingCommand()).thenReturn(true);
+        when(mockSourceClient.isConnected()).thenReturn(true);
+        when(mockTargetClient.isConnected()).thenReturn(true);
+    }
+
+    @Test
+    public void targetShouldBeToldToConnectToTheSourcesPassivePortBeforeEitherTransferStarts() throws IOException {
+
+        fxpTransfer.transfer(source, "in/file.txt", target, "out/file.txt");
+
+        InOrder inOrder = Mockito.inOrder(mockSourceClient, mockTargetClient);
+
+        inOrder.verify(mockSourceClient).pasv();
+        inOrder.verify(mockTargetClient).port(InetAddress.getByName("203.0.113.1"), 19 * 256 + 137);
+        inOrder.verify(mockTargetClient).stor("out/file.txt");
+        inOrder.verify(mockSourceClient).retr("in/file.txt");
+        inOrder.verify(mockTargetClient).getReply();
+        inOrder.verify(mockSourceClient).getReply();
+
+        verify(mockSourceClient, never()).retrieveFileStream(anyString());
+    }
+
+    @Test
+    public void privatePassiveAddressShouldBeReplacedWithTheAddressTheSourceWasReachedOn() throws IOException {
+
+        when(mockSourceClient.getReplyString()).thenReturn("227 Entering Passive Mode (10,0,0,5,19,137)");
+
+        fxpTransfer.transfer(source, "in/file.txt", target, "out/file.txt");
+
+        verify(mockTargetClient).port(InetAddress.getByName("203.0.113.1"), 19 * 256 + 137);
+    }
+
+    @Test
+    public void targetRefusingForeignPortShouldFallBackToRelayingThroughThisHost() throws IOException {
+
+        when(mockTargetClient.port(any(InetAddress.class), anyInt())).thenReturn(500);
+
+        fxpTransfer.transfer(source, "in/file.txt", target, "out/file.txt");
+
+        verify(mockTargetClient, never()).stor(anyString());
+        verify(mockSourceClient).retrieveFileStream("in/file.txt");
+        verify(mockTargetClient).storeFile(anyString(), any(InputStream.class));
+        verify(mockSourceClient).completePendingCommand();
+    }
+
+    @Test
+    public void sourceRefusingToSendShouldAbortTheWaitingTargetAndRelayInstead() throws IOException {
+
+        when(mockSourceClient.retr(anyString())).thenReturn(425);
+        when(mockTargetClient.abor()).thenReturn(426);
+
+        fxpTransfer.transfer(source, "in/file.txt", target, "out/file.txt");
+
+        InOrder inOrder = Mockito.inOrder(mockTargetClient);
+
+        inOrder.verify(mockTargetClient).abor();
+        inOrder.verify(mockTargetClient).getReply();
+        inOrder.verify(mockTargetClient).storeFile(anyString(), any(InputStream.class));
+
+        verify(mockSourceClient).retrieveFileStream("in/file.txt");
+    }
+
+    @Test
+    public void targetUnableToReachTheSourceAfterAcceptingStorShouldAbortTheSourceAndRelayInstead() throws IOException {
+
+        when(mockTargetClient.getReply()).thenReturn(425);
+        when(mockSourceClient.abor()).thenReturn(426);
+        when(mockSourceClient.getReply()).thenReturn(226);
+
+        fxpTransfer.transfer(source, "in/file.txt", target, "out/file.txt");
+
+        InOrder inOrder = Mockito.inOrder(mockSourceClient);
+
+        inOrder.verify(mockSourceClient).abor();
+        inOrder.verify(mockSourceClient).getReply();
+        inOrder.verify(mockSourceClient).retrieveFileStream("in/file.txt");
+
+        verify(mockTargetClient).storeFile(anyString(), any(InputStream.class));
+    }
+
+    @Test
+    public void aRelayFailingMidCopyShouldReadBothPendingReplies() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to relay a.txt to b.txt")));
+
+        fxpTransfer.setFxpEnabled(false);
+        when(mockTargetClient.storeFile(anyString(), any(InputStream.class))).thenThrow(new CopyStreamException("Reset", 0, new IOException()));
+
+        try {
+
+            fxpTransfer.transfer(source, "a.txt", target, "b.txt");
+
+        } finally {
+
+            verify(mockTargetClient).completePendingCommand();
+            verify(mockSourceClient).completePendingCommand();
+        }
+    }
+
+    @Test
+    public void targetThatCannotBeAbortedShouldBeDisconnectedRatherThanReused() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage("Unable to copy in/file.txt to out/file.txt");
+
+        when(mockSourceClient.retr(anyString())).thenReturn(425);
+        when(mockTargetClient.abor()).thenReturn(502);
+
+        try {
+
+            fxpTransfer.transfer(source, "in/file.txt", target, "out/file.txt");
+
+        } finally {
+
+            verify(mockTargetClient).disconnect();
+            verify(mockTargetClient, never()).storeFile(anyString(), any(InputStream.class));
+        }
+    }
+
+    @Test
+    public void serversThatRefusedFxpOnceShouldGoStraightToTheRelayAfterwards() throws IOException {
+
+        when(mockTargetClient.port(any(InetAddress.class), anyInt())).thenReturn(500);
+
+        fxpTransfer.transfer(source, "a.txt", target, "a.txt");
+        fxpTransfer.transfer(source, "b.txt", target, "b.txt");
+
+        verify(mockSourceClient, times(1)).pasv();
+        verify(mockSourceClient, times(2)).completePendingCommand();
+    }
+
+    @Test
+    public void disablingFxpShouldAlwaysRelay() throws IOException {
+
+        fxpTransfer.setFxpEnabled(false);
+        fxpTransfer.transfer(source, "a.txt", target, "a.txt");
+
+        verify(mockSourceClient, never()).pasv();
+        verify(mockSourceClient).retrieveFileStream("a.txt");
+    }
+
+    @Test
+    public void failedCompletionAfterServerToServerTransferShouldThrowException() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to copy a.txt to b.txt")));
+
+        when(mockTargetClient.getReply()).thenReturn(451);
+
+        fxpTransfer.transfer(source, "a.txt", target, "b.txt");
+    }
+
+    @Test
+    public void relayShouldThrowExceptionWhenTargetFailsToStore() throws IOException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to relay a.txt to b.txt")));
+
+        fxpTransfer.setFxpEnabled(false);
+        when(mockTargetClient.storeFile(anyString(), any(InputStream.class))).thenReturn(false);
+
+        fxpTransfer.transfer(source, "a.txt", target, "b.txt");
+    }
+}
@@ -0,0 +1,622 @@
+package jftp.connection;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jftp.exception.FtpException;
+import jftp.util.BufferPool;
+import jftp.util.FileStreamFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InjectMocks;
+import org.mockito.Spy;
+import org.mockftpserver.core.command.Command;
+import org.mockftpserver.core.command.CommandHandler;
+import org.mockftpserver.core.session.Session;
+import org.mockftpserver.fake.FakeFtpServer;
+import org.mockftpserver.fake.UserAccount;
+import org.mockftpserver.fake.filesystem.DirectoryEntry;
+import org.mockftpserver.fake.filesystem.FileEntry;
+import org.mockftpserver.fake.filesystem.FileSystemEntry;
+import org.mockftpserver.fake.filesystem.UnixFakeFileSystem;
+
+public class NioFtpConnectionTest {
+
+    private static final String USERNAME = "user";
+    private static final String PASSWORD = "password";
+    private static final String HOME = "/home/user";
+    private static final String CONTENTS = "The quick brown fox jumps over the lazy dog.";
+
+    private FakeFtpServer server;
+    private UnixFakeFileSystem fileSystem;
+
+    private NioFtpEngine engine;
+
+    @InjectMocks
+    private NioFtpConnection connection;
+
+    @Spy
+    private FileStreamFactory fileStreamFactory = new FileStreamFactory();
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+
+        fileSystem = new UnixFakeFileSystem();
+        fileSystem.add(new DirectoryEntry(HOME));
+        fileSystem.add(new FileEntry(HOME + "/file.txt", CONTENTS));
+        fileSystem.add(new DirectoryEntry(HOME + "/directory"));
+
+        server = new FakeFtpServer();
+        server.setServerControlPort(0);
+        server.setSystemName("UNIX");
+        server.setFileSystem(fileSystem);
+        server.addUserAccount(new UserAccount(USERNAME, PASSWORD, HOME));
+        server.start();
+
+        engine = new NioFtpEngine(1);
+        connection = engine.connect("localhost", server.getServerControlPort(), USERNAME, PASSWORD).get();
+
+        initMocks(this);
+    }
+
+    @After
+    public void tearDown() {
+
+        engine.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void connectingWithTheWrongPasswordShouldFailWithTheLoginMessage() throws Exception {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to login for user user")));
+
+        try {
+
+            engine.connect("localhost", server.getServerControlPort(), USERNAME, "wrong").get();
+
+        } catch (ExecutionException e) {
+
+            throw (Exception) e.getCause();
+        }
+    }
+
+    @Test
+    public void workingDirectoryShouldStartAtTheUsersHome() {
+        assertThat(connection.printWorkingDirectory(), is(equalTo(HOME)));
+    }
+
+    @Test
+    public void changingDirectoryShouldMoveTheWorkingDirectory() {
+
+        connection.changeDirectory("directory");
+
+        assertThat(connection.printWorkingDirectory(), is(equalTo(HOME + "/directory")));
+    }
+
+    @Test
+    public void changingToAMissingDirectoryShouldThrowException() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("The directory missing doesn't exist on the remote server.")));
+
+        connection.changeDirectory("missing");
+    }
+
+    @Test
+    public void listingShouldReturnEachEntryWithItsFullPath() {
+
+        List<FtpFile> files = connection.listFiles(HOME);
+
+        List<String> paths = new ArrayList<String>();
+
+        for (FtpFile file : files)
+            paths.add(file.getFullPath() + (file.isDirectory() ? "/" : ":" + file.getSize()));
+
+        assertThat(paths.size(), is(equalTo(2)));
+        assertThat(paths.contains(HOME + "/directory/"), is(true));
+        assertThat(paths.contains(HOME + "/file.txt:" + CONTENTS.length()), is(true));
+        assertThat(connection.printWorkingDirectory(), is(equalTo(HOME)));
+    }
+
+    @Test
+    public void filteredListingShouldReturnOnlyMatchingEntries() {
+
+        fileSystem.add(new FileEntry(HOME + "/data.csv", CONTENTS));
+
+        List<FtpFile> files = connection.listFiles(HOME, FtpFileFilter.glob("*.csv"));
+
+        assertThat(files.size(), is(equalTo(1)));
+        assertThat(files.get(0).getFullPath(), is(equalTo(HOME + "/data.csv")));
+    }
+
+    @Test
+    public void serverSideGlobbingShouldStillApplyTheRestOfTheFilter() {
+
+        fileSystem.add(new FileEntry(HOME + "/empty.txt"));
+
+        connection.setServerSideGlobbing(true);
+
+        List<FtpFile> files = connection.listFiles(HOME, FtpFileFilter.glob("*.txt").and(FtpFileFilter.largerThan(1)));
+
+        assertThat(files.size(), is(equalTo(1)));
+        assertThat(files.get(0).getName(), is(equalTo("file.txt")));
+    }
+
+    @Test
+    public void downloadShouldWriteTheRemoteFileToTheStream() {
+
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+
+        connection.download("file.txt", destination);
+
+        assertThat(destination.toString(), is(equalTo(CONTENTS)));
+    }
+
+    @Test
+    public void transfersShouldReuseTheEnginesPooledBuffers() throws Exception {
+
+        BufferPool pool = new BufferPool(4096, 1, 1);
+
+        NioFtpEngine pooledEngine = new NioFtpEngine(1);
+        pooledEngine.setBufferPool(pool);
+
+        try {
+
+            NioFtpConnection pooledConnection = pooledEngine.connect("localhost", server.getServerControlPort(), USERNAME,
+                    PASSWORD).get();
+
+            pooledConnection.download("file.txt", new ByteArrayOutputStream());
+            pooledConnection.download("file.txt", new ByteArrayOutputStream());
+
+        } finally {
+
+            pooledEngine.shutdown();
+        }
+
+        // The copy out of the pipe allocates one array; the data buffer and the second array are reused.
+        assertThat(pool.getAllocations(), is(equalTo(1L)));
+        assertThat(pool.getHits(), is(equalTo(3L)));
+    }
+
+    @Test
+    public void downloadShouldReadTheRemoteFileIntoTheBufferFromItsPosition() {
+
+        ByteBuffer destination = ByteBuffer.allocateDirect(CONTENTS.length() + 4);
+        destination.put("csv:".getBytes());
+
+        connection.download("file.txt", destination);
+
+        assertThat(destination.position(), is(equalTo(CONTENTS.length() + 4)));
+
+        byte[] downloaded = new byte[CONTENTS.length() + 4];
+        destination.flip();
+        destination.get(downloaded);
+
+        assertThat(new String(downloaded), is(equalTo("csv:" + CONTENTS)));
+    }
+
+    @Test
+    public void downloadingIntoABufferTooSmallForTheFileShouldFailBeforeRetrieving() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("The file file.txt is 44 bytes, more than the 43 left in the buffer.")));
+
+        AtomicInteger retrCommands = countCommands("RETR");
+
+        try {
+
+            connection.download("file.txt", ByteBuffer.allocateDirect(CONTENTS.length() - 1));
+
+        } finally {
+
+            assertThat(retrCommands.get(), is(equalTo(0)));
+        }
+    }
+
+    @Test
+    public void aFileOverflowingTheBufferShouldNotLeaveItsReplyForTheNextCommand() {
+
+        server.setCommandHandler("MLST", new CommandHandler() {
+
+            @Override
+            public void handleCommand(Command command, Session session) {
+                session.sendReply(500, "MLST not understood.");
+            }
+        });
+
+        // Lists the file as smaller than it is, as if it grew after being listed.
+        server.setCommandHandler("LIST", new CommandHandler() {
+
+            @Override
+            public void handleCommand(Command command, Session session) {
+
+                byte[] listing = "-rw-r--r-- 1 user group 10 Jan 01 2014 file.txt\r\n".getBytes();
+
+                session.sendReply(150, "Here comes the listing.");
+                session.openDataConnection();
+                session.sendData(listing, listing.length);
+                session.closeDataConnection();
+                session.sendReply(226, "Done.");
+            }
+        });
+
+        String failure = null;
+
+        try {
+
+            connection.download("file.txt", ByteBuffer.allocateDirect(10));
+
+        } catch (FtpException e) {
+
+            failure = e.getMessage();
+        }
+
+        assertThat(failure, is(equalTo("Unable to download file file.txt")));
+        assertThat(connection.printWorkingDirectory(), is(equalTo(HOME)));
+    }
+
+    @Test
+    public void aServerRefusingToRestartShouldFailTheDownload() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to download file file.txt")));
+
+        server.setCommandHandler("REST", new CommandHandler() {
+
+            @Override
+            public void handleCommand(Command command, Session session) {
+                session.sendReply(502, "REST not implemented.");
+            }
+        });
+
+        connection.download("file.txt", new ByteArrayOutputStream(), 4);
+    }
+
+    @Test
+    public void transfersShouldAskForTheirDataPortWithEpsv() {
+
+        AtomicInteger epsvCommands = countCommands("EPSV");
+        AtomicInteger pasvCommands = countCommands("PASV");
+
+        ByteArrayOutputStream downloaded = new ByteArrayOutputStream();
+
+        connection.download("file.txt", downloaded);
+
+        assertThat(downloaded.toString(), is(equalTo(CONTENTS)));
+        assertThat(epsvCommands.get(), is(1));
+        assertThat(pasvCommands.get(), is(0));
+    }
+
+    @Test
+    public void aServerRefusingEpsvShouldOnlyBeAskedForPasvFromThenOn() {
+
+        final AtomicInteger epsvCommands = new AtomicInteger();
+
+        server.setCommandHandler("EPSV", new CommandHandler() {
+
+            @Override
+            public void handleCommand(Command command, Session session) {
+
+                epsvCommands.incrementAndGet();
+                session.sendReply(502, "EPSV not implemented.");
+            }
+        });
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+
+        connection.download("file.txt", first);
+        connection.download("file.txt", second);
+
+        assertThat(first.toString(), is(equalTo(CONTENTS)));
+        assertThat(second.toString(), is(equalTo(CONTENTS)));
+        assertThat(epsvCommands.get(), is(1));
+    }
+
+    @Test
+    public void withEpsvTurnedOffTransfersShouldOnlyUsePasv() throws Exception {
+
+        AtomicInteger epsvCommands = countCommands("EPSV");
+
+        engine.setUseEpsv(false);
+
+        NioFtpConnection pasvConnection = engine.connect("localhost", server.getServerControlPort(), USERNAME, PASSWORD).get();
+
+        ByteArrayOutputStream downloaded = new ByteArrayOutputStream();
+
+        pasvConnection.download("file.txt", downloaded);
+        pasvConnection.close();
+
+        assertThat(downloaded.toString(), is(equalTo(CONTENTS)));
+        assertThat(epsvCommands.get(), is(0));
+    }
+
+    @Test
+    public void downloadShouldWriteTheRemoteFileIntoTheLocalDirectory() throws IOException {
+
+        File localDirectory = temporaryFolder.getRoot();
+
+        connection.download(HOME + "/file.txt", localDirectory.getAbsolutePath());
+
+        byte[] downloaded = Files.readAllBytes(new File(localDirectory, "file.txt").toPath());
+
+        assertThat(new String(downloaded), is(equalTo(CONTENTS)));
+    }
+
+    @Test
+    public void downloadingAMissingFileShouldThrowException() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to download file missing.txt")));
+
+        connection.download("missing.txt", new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void uploadShouldStoreTheStreamInTheRemoteFile() {
+
+        connection.upload(new ByteArrayInputStream(CONTENTS.getBytes()), HOME + "/uploaded.txt");
+
+        assertThat(contentsOf(HOME + "/uploaded.txt"), is(equalTo(CONTENTS)));
+    }
+
+    @Test
+    public void appendShouldAddTheStreamToTheEndOfTheRemoteFile() {
+
+        connection.append(new ByteArrayInputStream(" Twice.".getBytes()), HOME + "/file.txt");
+
+        assertThat(contentsOf(HOME + "/file.txt"), is(equalTo(CONTENTS + " Twice.")));
+    }
+
+    @Test
+    public void uploadShouldStoreTheLocalFileInTheRemoteDirectory() throws IOException {
+
+        File localFile = temporaryFolder.newFile("local.txt");
+        Files.write(localFile.toPath(), CONTENTS.getBytes());
+
+        connection.upload(localFile.getAbsolutePath(), HOME + "/directory");
+
+        assertThat(contentsOf(HOME + "/directory/local.txt"), is(equalTo(CONTENTS)));
+    }
+
+    @Test
+    public void statShouldFindFilesAndDirectories() {
+
+        FtpFile file = connection.stat(HOME + "/file.txt");
+        FtpFile directory = connection.stat(HOME + "/directory");
+
+        assertThat(file.getName(), is(equalTo("file.txt")));
+        assertThat(file.getSize(), is(equalTo((long) CONTENTS.length())));
+        assertThat(file.isDirectory(), is(false));
+        assertThat(directory.isDirectory(), is(true));
+    }
+
+    @Test
+    public void makeDirectoriesShouldCreateEveryMissingParent() {
+
+        connection.makeDirectories(HOME + "/a/b/c");
+
+        assertThat(fileSystem.isDirectory(HOME + "/a/b/c"), is(true));
+    }
+
+    @Test
+    public void renameAndDeleteShouldChangeTheRemoteFiles() {
+
+        connection.rename(HOME + "/file.txt", HOME + "/renamed.txt");
+
+        assertThat(fileSystem.exists(HOME + "/renamed.txt"), is(true));
+
+        connection.delete(HOME + "/renamed.txt");
+
+        assertThat(fileSystem.exists(HOME + "/renamed.txt"), is(false));
+    }
+
+    @Test
+    public void asyncTransfersShouldReadAndWriteLocalFilesOffTheSelectorThread() throws Exception {
+
+        File downloadDirectory = temporaryFolder.newFolder("download");
+        File uploadFile = temporaryFolder.newFile("upload.txt");
+        Files.write(uploadFile.toPath(), CONTENTS.getBytes());
+
+        final List<String> fileThreads = new ArrayList<String>();
+
+        doReturn(new FileOutputStream(new File(downloadDirectory, "file.txt")) {
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+
+                fileThreads.add(Thread.currentThread().getName());
+
+                super.write(bytes, offset, length);
+            }
+
+        }).when(fileStreamFactory).createOutputStream(anyString());
+
+        doReturn(new FileInputStream(uploadFile) {
+
+            @Override
+            public int read(byte[] bytes) throws IOException {
+
+                fileThreads.add(Thread.currentThread().getName());
+
+                return super.read(bytes);
+            }
+
+        }).when(fileStreamFactory).createInputStream(anyString());
+
+        connection.downloadAsync(HOME + "/file.txt", downloadDirectory.getAbsolutePath()).get();
+        connection.uploadAsync(uploadFile.getAbsolutePath(), HOME + "/directory").get();
+
+        assertThat(new String(Files.readAllBytes(new File(downloadDirectory, "file.txt").toPath())), is(equalTo(CONTENTS)));
+        assertThat(fileSystem.exists(HOME + "/directory/upload.txt"), is(true));
+
+        assertThat(fileThreads.isEmpty(), is(false));
+
+        for (String thread : fileThreads)
+            assertThat(thread, is(equalTo("jftp-nio-files")));
+    }
+
+    @Test
+    public void oneSelectorThreadShouldDriveManyConcurrentTransfers() throws Exception {
+
+        int sessions = 20;
+
+        List<NioFtpConnection> connections = new ArrayList<NioFtpConnection>();
+
+        for (int i = 0; i < sessions; i++)
+            connections.add(engine.connect("localhost", server.getServerControlPort(), USERNAME, PASSWORD).get());
+
+        List<Future<Void>> downloads = new ArrayList<Future<Void>>();
+
+        for (int i = 0; i < sessions; i++) {
+
+            File localDirectory = temporaryFolder.newFolder("download" + i);
+
+            downloads.add(connections.get(i).downloadAsync(HOME + "/file.txt", localDirectory.getAbsolutePath()));
+        }
+
+        for (Future<Void> download : downloads)
+            download.get();
+
+        for (int i = 0; i < sessions; i++) {
+
+            byte[] downloaded = Files.readAllBytes(new File(temporaryFolder.getRoot(), "download" + i + "/file.txt").toPath());
+
+            assertThat(new String(downloaded), is(equalTo(CONTENTS)));
+        }
+
+        for (NioFtpConnection each : connections)
+            each.close();
+    }
+
+    @Test
+    public void abortingFromAnotherThreadShouldFailACommandTheServerNeverAnswers() throws InterruptedException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("The session was aborted.")));
+
+        server.setCommandHandler("PWD", new CommandHandler() {
+
+            @Override
+            public void handleCommand(Command command, Session session) {
+            }
+        });
+
+        Thread aborter = new Thread() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    Thread.sleep(50);
+
+                } catch (InterruptedException e) {
+
+                    return;
+                }
+
+                connection.abort();
+            }
+        };
+
+        aborter.start();
+
+        try {
+
+            connection.printWorkingDirectory();
+
+        } finally {
+
+            aborter.join();
+        }
+    }
+
+    @Test
+    public void closedConnectionShouldRefuseFurtherCommands() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("The session has been closed.")));
+
+        connection.close();
+
+        connection.printWorkingDirectory();
+    }
+
+    /**
+     * Counts the commands of the given name the server receives while still handling them as usual.
+     */
+    private AtomicInteger countCommands(String name) {
+
+        final AtomicInteger count = new AtomicInteger();
+        final CommandHandler handler = server.getCommandHandler(name);
+
+        server.setCommandHandler(name, new CommandHandler() {
+
+            @Override
+            public void handleCommand(Command command, Session session) throws Exception {
+
+                count.incrementAndGet();
+                handler.handleCommand(command, session);
+            }
+        });
+
+        return count;
+    }
+
+    private String contentsOf(String path) {
+
+        FileSystemEntry entry = fileSystem.getEntry(path);
+
+        try {
+
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+
+            InputStream in = ((FileEntry) entry).createInputStream();
+
+            int read;
+
+            while ((read = in.read(buffer)) >= 0)
+                contents.write(buffer, 0, read);
+
+            return contents.toString();
+
+        } catch (IOException e) {
+
+            throw new AssertionError(e);
+        }
+    }
+}
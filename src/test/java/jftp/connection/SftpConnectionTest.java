@@ -4,33 +4,57 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import jftp.exception.FtpException;
 import jftp.util.FileStreamFactory;
+import jftp.util.TarReader;
+import jftp.util.TarWriter;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.InjectMocks;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
+import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.ChannelSftp.LsEntrySelector;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
 import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
 
@@ -55,6 +79,9 @@ public class SftpConnectionTest {
     @Rule
     public ExpectedException expectedException = ExpectedException.none();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Before
     public void setUp() throws SftpException, FileNotFoundException {
 
@@ -73,6 +100,35 @@ public class SftpConnectionTest {
         when(mockFileStreamFactory.createOutputStream(anyString())).thenReturn(mockFileOutputStream);
     }
 
+    @Test
+    public void keepAliveShouldResolveThePathOnTheServer() throws SftpException {
+
+        when(mockChannel.isConnected()).thenReturn(true);
+
+        sftpConnection.keepAlive();
+
+        verify(mockChannel).realpath(".");
+    }
+
+    @Test
+    public void keepAliveShouldThrowExceptionWhenTheChannelHasClosed() {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("The server did not answer the keep-alive.")));
+
+        when(mockChannel.isConnected()).thenReturn(false);
+
+        sftpConnection.keepAlive();
+    }
+
+    @Test
+    public void abortingShouldDisconnectTheChannelSoBlockedCallsWakeUp() {
+
+        sftpConnection.abort();
+
+        verify(mockChannel).disconnect();
+    }
+
     @Test
     public void setDirectoryShouldCallOnChannelLsCommandWithDirectoryPath() throws SftpException {
 
@@ -183,6 +239,45 @@ public class SftpConnectionTest {
         verify(mockChannel).get("path/to/file.txt", "some/directory");
     }
 
+    @Test
+    public void downloadingFromAnOffsetShouldResumeTheGetFromThatOffset() throws SftpException {
+
+        sftpConnection.download("path/to/file.txt", mockFileOutputStream, 1024);
+
+        verify(mockChannel).get("path/to/file.txt", mockFileOutputStream, null, ChannelSftp.RESUME, 1024);
+    }
+
+    @Test
+    public void downloadingIntoABufferShouldFillItFromTheChannel() throws SftpException {
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+
+                ((OutputStream) invocation.getArguments()[1]).write("contents".getBytes());
+
+                return null;
+            }
+
+        }).when(mockChannel).get(anyString(), any(OutputStream.class));
+
+        ByteBuffer destination = ByteBuffer.allocateDirect(8);
+
+        sftpConnection.download("path/to/file.txt", destination);
+
+        assertThat(destination.hasRemaining(), is(equalTo(false)));
+        assertThat(destination.get(0), is(equalTo((byte) 'c')));
+    }
+
+    @Test
+    public void appendShouldPutTheStreamInAppendMode() throws SftpException {
+
+        sftpConnection.append(mockFileInputStream, "path/to/file.txt");
+
+        verify(mockChannel).put(mockFileInputStream, "path/to/file.txt", ChannelSftp.APPEND);
+    }
+
     @Test
     public void downloadMethodShouldThrowDownloadFailedExceptionWhenChannelThrowsSftpConnection() throws SftpException {
 
@@ -271,6 +366,291 @@ public class SftpConnectionTest {
         sftpConnection.printWorkingDirectory();
     }
     
+    @Test
+    public void ifPipelinedChannelCannotBeOpenedForBulkOperationThenExceptionShouldBeCaughtAndRethrown() throws JSchException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to open a pipelined SFTP channel")));
+
+        when(mockChannel.getSession()).thenThrow(new JSchException());
+
+        sftpConnection.deleteFiles(Arrays.asList("file.txt"));
+    }
+
+    @Test
+    public void deletingShouldCallOnChannelRm() throws SftpException {
+
+        sftpConnection.delete("remote/file.txt");
+
+        verify(mockChannel).rm("remote/file.txt");
+    }
+
+    @Test
+    public void ifChannelCannotRenameThenExceptionShouldBeCaughtAndRethrown() throws SftpException {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to rename a.tmp to a.txt")));
+
+        doThrow(new SftpException(0, "")).when(mockChannel).rename("a.tmp", "a.txt");
+
+        sftpConnection.rename("a.tmp", "a.txt");
+    }
+
+    @Test
+    public void makingDirectoriesShouldOnlyCreateLevelsThatDoNotExist() throws SftpException {
+
+        when(mockChannel.stat("/one/two")).thenThrow(new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, ""));
+
+        sftpConnection.makeDirectories("/one/two");
+
+        verify(mockChannel, never()).mkdir("/one");
+        verify(mockChannel).mkdir("/one/two");
+    }
+
+    @Test
+    public void statShouldConvertChannelAttributesIntoFtpFile() throws SftpException {
+
+        SftpATTRS attributes = mock(SftpATTRS.class);
+        when(attributes.getSize()).thenReturn(42l);
+        when(attributes.getMTime()).thenReturn(1394525265);
+        when(mockChannel.stat("remote/file.txt")).thenReturn(attributes);
+
+        FtpFile file = sftpConnection.stat("remote/file.txt");
+
+        assertThat(file.getName(), is(equalTo("file.txt")));
+        assertThat(file.getSize(), is(equalTo(42l)));
+        assertThat(file.getLastModified().getMillis(), is(equalTo(1394525265000l)));
+    }
+
+    @Test
+    public void filteredListingShouldOnlyKeepEntriesTheFilterAcceptsAsJSchReadsThem() throws SftpException {
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+
+                LsEntrySelector selector = (LsEntrySelector) invocation.getArguments()[1];
+
+                for (LsEntry entry : createEntries())
+                    selector.select(entry);
+
+                return null;
+            }
+        }).when(mockChannel).ls(anyString(), any(LsEntrySelector.class));
+
+        List<FtpFile> files = sftpConnection.listFiles(DIRECTORY, FtpFileFilter.largerThan(400).and(FtpFileFilter.regex("File [12]")));
+
+        assertThat(files.size(), is(equalTo(1)));
+        assertThat(files.get(0).getFullPath(), is(equalTo(DIRECTORY + "/File 2")));
+    }
+
+    @Test
+    public void uploadingAnArchiveShouldStreamTheFilesAsATarToARemoteTar() throws Exception {
+
+        File first = localFile("first.txt", "first");
+        File second = localFile("second.txt", "second");
+
+        ChannelExec exec = mockExec(0);
+        ByteArrayOutputStream remoteInput = new ByteArrayOutputStream();
+        when(exec.getOutputStream()).thenReturn(remoteInput);
+
+        sftpConnection.uploadArchive(Arrays.asList(first.getPath(), second.getPath()), "/remote/it's here", false);
+
+        verify(exec).setCommand("tar -xf - -C '/remote/it'\\''s here'");
+        verify(exec).disconnect();
+
+        TarReader archive = new TarReader(new ByteArrayInputStream(remoteInput.toByteArray()));
+
+        assertThat(archive.nextFile(), is(equalTo("first.txt")));
+        assertThat(archive.nextFile(), is(equalTo("second.txt")));
+        assertThat(archive.nextFile(), is(equalTo(null)));
+    }
+
+    @Test
+    public void downloadingAnArchiveShouldWriteEachFileInTheRemoteTarToTheLocalDirectory() throws Exception {
+
+        String localDirectory = temporaryFolder.getRoot().getPath();
+        File local = new File(localDirectory, "a.txt");
+
+        ByteArrayOutputStream remoteOutput = new ByteArrayOutputStream();
+        TarWriter writer = new TarWriter(remoteOutput);
+        writer.putFile("home/user/a.txt", 8, 0, new ByteArrayInputStream("contents".getBytes()));
+        writer.close();
+
+        ChannelExec exec = mockExec(0);
+        when(exec.getInputStream()).thenReturn(new ByteArrayInputStream(remoteOutput.toByteArray()));
+        when(mockFileStreamFactory.createOutputStream(local.getPath())).thenReturn(new FileOutputStream(local));
+
+        sftpConnection.downloadArchive(Arrays.asList("/home/user/a.txt"), localDirectory, false);
+
+        verify(exec).setCommand("tar -cf - -C / -- 'home/user/a.txt'");
+        assertThat(new String(Files.readAllBytes(local.toPath())), is(equalTo("contents")));
+    }
+
+    @Test
+    public void aRemoteTarThatFailsShouldFailTheArchiveTransfer() throws Exception {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to upload files through a remote tar: tar exited with status 127")));
+
+        ChannelExec exec = mockExec(127);
+        when(exec.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+
+        sftpConnection.uploadArchive(Arrays.asList(localFile("a.txt", "a").getPath()), "/remote", true);
+    }
+
+    @Test
+    public void theErrorsOfAFailedRemoteTarShouldBeInTheFailure() throws Exception {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo(
+                "Unable to download files through a remote tar: tar exited with status 2: tar: home/user/a.txt: Cannot stat")));
+
+        ChannelExec exec = mockExec(2);
+        when(exec.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+
+                ((OutputStream) invocation.getArguments()[0]).write("tar: home/user/a.txt: Cannot stat\n".getBytes());
+
+                return null;
+            }
+
+        }).when(exec).setErrStream(any(OutputStream.class));
+
+        sftpConnection.downloadArchive(Arrays.asList("/home/user/a.txt"), "local", false);
+    }
+
+    @Test
+    public void aRemoteCommandThatDoesNotExitShouldFailOnceTheSessionTimeoutPasses() throws Exception {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to checksum /data/big.bin on the server: split did not exit within 50 ms")));
+
+        ChannelExec exec = mockExec(0);
+        when(exec.isClosed()).thenReturn(false);
+        when(exec.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(mockChannel.getSession().getTimeout()).thenReturn(50);
+
+        try {
+
+            sftpConnection.blockDigests("/data/big.bin", 1048576);
+
+        } finally {
+
+            verify(exec).disconnect();
+        }
+    }
+
+    @Test
+    public void archiveDownloadsShouldBeSplitToKeepEachCommandLineShort() throws Exception {
+
+        List<String> remoteFilePaths = new ArrayList<String>();
+        char[] name = new char[1000];
+        Arrays.fill(name, 'a');
+
+        for (int i = 0; i < 100; i++)
+            remoteFilePaths.add("/" + i + new String(name));
+
+        ChannelExec exec = mockExec(0);
+        when(exec.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]), new ByteArrayInputStream(new byte[0]));
+
+        sftpConnection.downloadArchive(remoteFilePaths, "local", false);
+
+        ArgumentCaptor<String> commands = ArgumentCaptor.forClass(String.class);
+        verify(exec, times(2)).setCommand(commands.capture());
+
+        assertThat(commands.getAllValues().get(0).length() <= 65536, is(true));
+        assertThat(commands.getAllValues().get(1).contains("'99aaa"), is(true));
+    }
+
+    @Test
+    public void aServerRefusingExecShouldFailTheArchiveTransfer() throws Exception {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to download files through a remote tar: exec is not available")));
+
+        ChannelExec exec = mockExec(0);
+        doThrow(new JSchException("channel is not opened.")).when(exec).connect();
+
+        sftpConnection.downloadArchive(Arrays.asList("/a.txt"), "local", false);
+    }
+
+    @Test
+    public void blockDigestsShouldBeReadFromTheServersSplitOutput() throws Exception {
+
+        ChannelExec exec = mockExec(0);
+        String output = "227cd0c71811af7d3cab6e359755b7a9  -\n69537860a2a5e733e1552ebec1e0b03f  -\n";
+        when(exec.getInputStream()).thenReturn(new ByteArrayInputStream(output.getBytes()));
+
+        List<String> digests = sftpConnection.blockDigests("/data/big.bin", 1048576);
+
+        verify(exec).setCommand("split -b 1048576 --filter=md5sum -- '/data/big.bin'");
+        assertThat(digests, is(equalTo(Arrays.asList("227cd0c71811af7d3cab6e359755b7a9", "69537860a2a5e733e1552ebec1e0b03f"))));
+    }
+
+    @Test
+    public void aServerWithoutGnuSplitShouldFailTheBlockDigests() throws Exception {
+
+        expectedException.expect(FtpException.class);
+        expectedException.expectMessage(is(equalTo("Unable to checksum /data/big.bin on the server: split exited with status 1")));
+
+        ChannelExec exec = mockExec(1);
+        when(exec.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+
+        sftpConnection.blockDigests("/data/big.bin", 1048576);
+    }
+
+    @Test
+    public void downloadingARangeShouldReadOnlyThatRangeAndCloseTheRemoteFile() throws Exception {
+
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        InputStream remote = new ByteArrayInputStream("3456789".getBytes()) {
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+
+        when(mockChannel.get("file.txt", null, 3L)).thenReturn(remote);
+
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+
+        sftpConnection.downloadRange("file.txt", destination, 3, 4);
+
+        assertThat(destination.toString(), is(equalTo("3456")));
+        assertThat(closed.get(), is(true));
+    }
+
+    private ChannelExec mockExec(int exitStatus) throws JSchException {
+
+        Session session = mock(Session.class);
+        ChannelExec exec = mock(ChannelExec.class);
+
+        when(mockChannel.getSession()).thenReturn(session);
+        when(session.openChannel("exec")).thenReturn(exec);
+        when(exec.isClosed()).thenReturn(true);
+        when(exec.getExitStatus()).thenReturn(exitStatus);
+
+        return exec;
+    }
+
+    private File localFile(String name, String contents) throws IOException {
+
+        File file = temporaryFolder.newFile(name);
+        Files.write(file.toPath(), contents.getBytes());
+
+        when(mockFileStreamFactory.createInputStream(file.getPath())).thenReturn(new FileInputStream(file));
+
+        return file;
+    }
+
     private Vector<LsEntry> createEntries() {
 
         Vector<LsEntry> vector = new Vector<LsEntry>();
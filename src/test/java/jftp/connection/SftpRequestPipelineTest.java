@@ -0,0 +1,530 @@
+package jftp.connection;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jftp.connection.SftpRequestPipeline.OffsetWriteOperation;
+import jftp.connection.SftpRequestPipeline.ParallelReadOperation;
+import jftp.connection.SftpRequestPipeline.ParallelWriteOperation;
+import jftp.connection.SftpRequestPipeline.ReadFileOperation;
+import jftp.connection.SftpRequestPipeline.StatOperation;
+import jftp.connection.SftpRequestPipeline.StatusOperation;
+import jftp.util.FileStreamFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+
+public class SftpRequestPipelineTest {
+
+    @Mock
+    private FileStreamFactory mockFileStreamFactory;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ByteArrayOutputStream sentToServer;
+    private ServerReplies serverReplies;
+
+    @Before
+    public void setUp() throws IOException {
+
+        initMocks(this);
+
+        sentToServer = new ByteArrayOutputStream();
+        serverReplies = new ServerReplies();
+
+        serverReplies.version();
+    }
+
+    @Test
+    public void initShouldSendVersionThreeAndAcceptTheServersVersionReply() throws IOException {
+
+        SftpRequestPipeline pipeline = start();
+
+        List<int[]> packets = sentPackets();
+
+        assertThat(packets.get(0)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_INIT)));
+        assertThat(pipeline.getWindowSize(), is(equalTo(64)));
+    }
+
+    @Test
+    public void allRequestsInTheWindowShouldBeSentBeforeTheFirstReplyIsRead() throws IOException {
+
+        serverReplies.status(1, SftpRequestPipeline.SSH_FX_OK);
+        serverReplies.status(2, SftpRequestPipeline.SSH_FX_OK);
+        serverReplies.status(3, SftpRequestPipeline.SSH_FX_OK);
+
+        SftpRequestPipeline pipeline = start();
+
+        serverReplies.recordSentBytesOnFirstRead();
+
+        pipeline.execute(Arrays.asList(StatusOperation.remove("/a"), StatusOperation.remove("/b"), StatusOperation.remove("/c")));
+
+        assertThat(serverReplies.sentBytesOnFirstRead, is(equalTo(sentToServer.size())));
+        assertThat(sentPackets().size(), is(equalTo(1 + 3)));
+    }
+
+    @Test
+    public void noMoreThanTheWindowSizeOfRequestsShouldBeOutstanding() throws IOException {
+
+        serverReplies.status(1, SftpRequestPipeline.SSH_FX_OK);
+        serverReplies.status(2, SftpRequestPipeline.SSH_FX_OK);
+        serverReplies.status(3, SftpRequestPipeline.SSH_FX_OK);
+
+        SftpRequestPipeline pipeline = start();
+        pipeline.setWindowSize(2);
+
+        serverReplies.recordSentBytesOnFirstRead();
+
+        pipeline.execute(Arrays.asList(StatusOperation.remove("/a"), StatusOperation.remove("/b"), StatusOperation.remove("/c")));
+
+        assertThat(serverReplies.sentPacketsOnFirstRead(), is(equalTo(1 + 2)));
+    }
+
+    @Test
+    public void repliesShouldBeMatchedToTheirOperationByRequestIdWhateverTheOrder() throws IOException {
+
+        serverReplies.status(2, 2);
+        serverReplies.status(1, SftpRequestPipeline.SSH_FX_OK);
+
+        SftpRequestPipeline pipeline = start();
+
+        StatusOperation first = StatusOperation.remove("/a");
+        StatusOperation second = StatusOperation.remove("/b");
+
+        pipeline.execute(Arrays.asList(first, second));
+
+        assertThat(first.hasFailed(), is(equalTo(false)));
+        assertThat(second.getFailure(), is(equalTo("/b: status 2")));
+    }
+
+    @Test
+    public void statShouldConvertReturnedAttributesIntoAnFtpFile() throws IOException {
+
+        serverReplies.attrs(1, 1234, 0040755, 1395265200);
+
+        SftpRequestPipeline pipeline = start();
+
+        StatOperation stat = new StatOperation("/remote/dir");
+
+        pipeline.execute(Arrays.asList(stat));
+
+        assertThat(stat.getFile().getName(), is(equalTo("dir")));
+        assertThat(stat.getFile().getFullPath(), is(equalTo("/remote/dir")));
+        assertThat(stat.getFile().getSize(), is(equalTo(1234l)));
+        assertThat(stat.getFile().isDirectory(), is(equalTo(true)));
+        assertThat(stat.getFile().getLastModified().getMillis(), is(equalTo(1395265200000l)));
+    }
+
+    @Test
+    public void aReplyLongerThanAnyRequestCouldCauseShouldBeRefused() throws IOException {
+
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(is(equalTo("Server sent an SFTP packet length of 2147483647, outside 1 to 262144.")));
+
+        serverReplies.packetLength(Integer.MAX_VALUE);
+
+        SftpRequestPipeline pipeline = start();
+
+        pipeline.execute(Arrays.asList(new StatOperation("/remote/dir")));
+    }
+
+    @Test
+    public void repliesToReadsLargerThanTheUsualLimitShouldBeAccepted() throws IOException {
+
+        File localFile = temporaryFolder.newFile("large.txt");
+
+        char[] content = new char[512 * 1024];
+        Arrays.fill(content, 'a');
+
+        serverReplies.handle(1, "h1");
+        serverReplies.data(2, new String(content));
+        serverReplies.status(3, SftpRequestPipeline.SSH_FX_EOF);
+        serverReplies.status(4, SftpRequestPipeline.SSH_FX_OK);
+
+        SftpRequestPipeline pipeline = start();
+
+        RandomAccessFile destination = new RandomAccessFile(localFile, "rw");
+
+        ParallelReadOperation read = new ParallelReadOperation("/large.txt", destination.getChannel(), content.length);
+
+        pipeline.execute(Arrays.asList(read), 1);
+
+        destination.close();
+
+        assertThat(read.hasFailed(), is(equalTo(false)));
+        assertThat(localFile.length(), is(equalTo((long) content.length)));
+    }
+
+    @Test
+    public void readingAFileShouldOpenReadUntilEndOfFileThenClose() throws IOException {
+
+        File localFile = temporaryFolder.newFile("a.txt");
+
+        serverReplies.handle(1, "h1");
+        serverReplies.data(2, "hello ");
+        serverReplies.data(3, "world");
+        serverReplies.status(4, SftpRequestPipeline.SSH_FX_EOF);
+        serverReplies.status(5, SftpRequestPipeline.SSH_FX_OK);
+
+        SftpRequestPipeline pipeline = start();
+
+        ReadFileOperation read = new ReadFileOperation("/a.txt", localFile.getPath(), new FileStreamFactory());
+
+        pipeline.execute(Arrays.asList(read));
+
+        List<int[]> packets = sentPackets();
+
+        assertThat(read.hasFailed(), is(equalTo(false)));
+        assertThat(new String(Files.readAllBytes(localFile.toPath()), "UTF-8"), is(equalTo("hello world")));
+
+        assertThat(packets.get(1)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_OPEN)));
+        assertThat(packets.get(2)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_READ)));
+        assertThat(packets.get(3)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_READ)));
+        assertThat(packets.get(4)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_READ)));
+        assertThat(packets.get(5)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_CLOSE)));
+    }
+
+    @Test
+    public void failingToOpenARemoteFileShouldFailOnlyThatOperation() throws IOException {
+
+        serverReplies.status(1, 2);
+
+        SftpRequestPipeline pipeline = start();
+
+        ReadFileOperation read = new ReadFileOperation("/missing.txt", "local/missing.txt", mockFileStreamFactory);
+
+        pipeline.execute(Arrays.asList(read));
+
+        assertThat(read.getFailure(), is(equalTo("/missing.txt: status 2")));
+    }
+
+    @Test
+    public void closingTheDestinationOfAReadCutOffMidFileShouldCloseTheLocalFile() throws IOException {
+
+        File localFile = temporaryFolder.newFile("cut.txt");
+        FileOutputStream localStream = new FileOutputStream(localFile);
+
+        when(mockFileStreamFactory.createOutputStream("local/cut.txt")).thenReturn(localStream);
+
+        serverReplies.handle(1, "h1");
+        serverReplies.data(2, "hello ");
+
+        SftpRequestPipeline pipeline = start();
+
+        ReadFileOperation read = new ReadFileOperation("/cut.txt", "local/cut.txt", mockFileStreamFactory);
+
+        try {
+
+            pipeline.execute(Arrays.asList(read));
+
+        } catch (IOException e) {
+            // The server went away before the end of the file.
+        }
+
+        read.closeDestination();
+
+        assertThat(localStream.getChannel().isOpen(), is(equalTo(false)));
+    }
+
+    @Test
+    public void parallelReadShouldKeepRequestsInFlightAndWriteOutOfOrderRepliesAtTheirOffsets() throws IOException {
+
+        File localFile = temporaryFolder.newFile("parallel.txt");
+
+        serverReplies.handle(1, "h1");
+        serverReplies.data(3, "efgh");
+        serverReplies.data(2, "abcd");
+        serverReplies.status(4, SftpRequestPipeline.SSH_FX_EOF);
+        serverReplies.status(5, SftpRequestPipeline.SSH_FX_EOF);
+        serverReplies.status(6, SftpRequestPipeline.SSH_FX_EOF);
+        serverReplies.status(7, SftpRequestPipeline.SSH_FX_OK);
+
+        SftpRequestPipeline pipeline = start();
+
+        RandomAccessFile destination = new RandomAccessFile(localFile, "rw");
+
+        ParallelReadOperation read = new ParallelReadOperation("/parallel.txt", destination.getChannel(), 4);
+
+        pipeline.execute(Arrays.asList(read), 3);
+
+        destination.close();
+
+        assertThat(read.hasFailed(), is(equalTo(false)));
+        assertThat(new String(Files.readAllBytes(localFile.toPath()), "UTF-8"), is(equalTo("abcdefgh")));
+        assertThat(sentPackets().get(7)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_CLOSE)));
+    }
+
+    @Test
+    public void parallelWriteShouldSendBlocksFromTheLocalFileThenCloseOnceAllAreAcknowledged() throws IOException {
+
+        File localFile = temporaryFolder.newFile("upload.txt");
+        Files.write(localFile.toPath(), "abcdefghij".getBytes("UTF-8"));
+
+        serverReplies.handle(1, "h1");
+        serverReplies.status(2, SftpRequestPipeline.SSH_FX_OK);
+        serverReplies.status(3, SftpRequestPipeline.SSH_FX_OK);
+        serverReplies.status(4, SftpRequestPipeline.SSH_FX_OK);
+        serverReplies.status(5, SftpRequestPipeline.SSH_FX_OK);
+
+        SftpRequestPipeline pipeline = start();
+
+        RandomAccessFile source = new RandomAccessFile(localFile, "r");
+
+        ParallelWriteOperation write = new ParallelWriteOperation(source.getChannel(), "/upload.txt", 4);
+
+        pipeline.execute(Arrays.asList(write), 2);
+
+        source.close();
+
+        List<int[]> packets = sentPackets();
+
+        assertThat(write.hasFailed(), is(equalTo(false)));
+        assertThat(packets.size(), is(equalTo(6)));
+        assertThat(packets.get(1)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_OPEN)));
+        assertThat(packets.get(2)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_WRITE)));
+        assertThat(packets.get(3)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_WRITE)));
+        assertThat(packets.get(4)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_WRITE)));
+        assertThat(packets.get(5)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_CLOSE)));
+    }
+
+    @Test
+    public void parallelWriteShouldFailWhenTheServerCannotCloseTheFile() throws IOException {
+
+        File localFile = temporaryFolder.newFile("full.txt");
+        Files.write(localFile.toPath(), "abcd".getBytes("UTF-8"));
+
+        serverReplies.handle(1, "h1");
+        serverReplies.status(2, SftpRequestPipeline.SSH_FX_OK);
+        serverReplies.status(3, 4);
+
+        SftpRequestPipeline pipeline = start();
+
+        RandomAccessFile source = new RandomAccessFile(localFile, "r");
+
+        ParallelWriteOperation write = new ParallelWriteOperation(source.getChannel(), "/full.txt", 4);
+
+        pipeline.execute(Arrays.asList(write), 2);
+
+        source.close();
+
+        assertThat(write.getFailure(), is(equalTo("/full.txt: status 4")));
+    }
+
+    @Test
+    public void offsetWriteShouldOpenWithoutTruncatingAndWriteFromTheOffset() throws IOException {
+
+        serverReplies.handle(1, "h1");
+        serverReplies.status(2, SftpRequestPipeline.SSH_FX_OK);
+        serverReplies.status(3, SftpRequestPipeline.SSH_FX_OK);
+        serverReplies.status(4, SftpRequestPipeline.SSH_FX_OK);
+
+        SftpRequestPipeline pipeline = start();
+
+        OffsetWriteOperation write = new OffsetWriteOperation(new ByteArrayInputStream("abcdef".getBytes("UTF-8")), "/upload.txt", 1000, 4);
+
+        pipeline.execute(Arrays.asList(write), 2);
+
+        List<int[]> packets = sentPackets();
+
+        assertThat(write.hasFailed(), is(equalTo(false)));
+        assertThat(packets.size(), is(equalTo(5)));
+        assertThat(packets.get(4)[0], is(equalTo(SftpRequestPipeline.SSH_FXP_CLOSE)));
+
+        DataInputStream open = packetBody(1);
+        open.skipBytes(open.readInt());
+
+        assertThat(open.readInt(), is(equalTo(SftpRequestPipeline.SSH_FXF_WRITE | SftpRequestPipeline.SSH_FXF_CREAT)));
+
+        DataInputStream firstWrite = packetBody(2);
+        firstWrite.skipBytes(firstWrite.readInt());
+
+        DataInputStream secondWrite = packetBody(3);
+        secondWrite.skipBytes(secondWrite.readInt());
+
+        assertThat(firstWrite.readLong(), is(equalTo(1000L)));
+        assertThat(secondWrite.readLong(), is(equalTo(1004L)));
+        assertThat(secondWrite.readInt(), is(equalTo(2)));
+    }
+
+    @Test
+    public void offsetWriteShouldFailWhenTheServerCannotCloseTheFile() throws IOException {
+
+        serverReplies.handle(1, "h1");
+        serverReplies.status(2, SftpRequestPipeline.SSH_FX_OK);
+        serverReplies.status(3, 4);
+
+        SftpRequestPipeline pipeline = start();
+
+        OffsetWriteOperation write = new OffsetWriteOperation(new ByteArrayInputStream("abcd".getBytes("UTF-8")), "/upload.txt", 1000, 4);
+
+        pipeline.execute(Arrays.asList(write), 2);
+
+        assertThat(write.getFailure(), is(equalTo("/upload.txt: status 4")));
+    }
+
+    private SftpRequestPipeline start() throws IOException {
+
+        SftpRequestPipeline pipeline = new SftpRequestPipeline(serverReplies.toInputStream(), sentToServer);
+        pipeline.init();
+
+        return pipeline;
+    }
+
+    /**
+     * @return
+     * The type and (for anything but INIT) request id of every packet sent to the server.
+     */
+    private List<int[]> sentPackets() throws IOException {
+        return parsePackets(sentToServer.toByteArray(), sentToServer.size());
+    }
+
+    /**
+     * @return
+     * The given sent packet, positioned after its request id.
+     */
+    private DataInputStream packetBody(int index) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(sentToServer.toByteArray()));
+
+        for (int i = 0; i < index; i++)
+            in.skipBytes(in.readInt());
+
+        in.readInt();
+        in.readUnsignedByte();
+        in.readInt();
+
+        return in;
+    }
+
+    private static List<int[]> parsePackets(byte[] bytes, int length) throws IOException {
+
+        List<int[]> packets = new ArrayList<int[]>();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+
+        while (in.available() > 0) {
+
+            int packetLength = in.readInt();
+            int type = in.readUnsignedByte();
+            int id = in.readInt();
+
+            in.skipBytes(packetLength - 5);
+
+            packets.add(new int[] { type, id });
+        }
+
+        return packets;
+    }
+
+    private class ServerReplies {
+
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private DataOutputStream data = new DataOutputStream(bytes);
+
+        private boolean recordOnFirstRead;
+        private int sentBytesOnFirstRead = -1;
+
+        void version() throws IOException {
+
+            data.writeInt(5);
+            data.writeByte(SftpRequestPipeline.SSH_FXP_VERSION);
+            data.writeInt(3);
+        }
+
+        void status(int id, int code) throws IOException {
+
+            byte[] message = ("status " + code).getBytes("UTF-8");
+
+            data.writeInt(1 + 4 + 4 + 4 + message.length + 4);
+            data.writeByte(SftpRequestPipeline.SSH_FXP_STATUS);
+            data.writeInt(id);
+            data.writeInt(code);
+            data.writeInt(message.length);
+            data.write(message);
+            data.writeInt(0);
+        }
+
+        void handle(int id, String handle) throws IOException {
+            string(SftpRequestPipeline.SSH_FXP_HANDLE, id, handle);
+        }
+
+        void data(int id, String content) throws IOException {
+            string(SftpRequestPipeline.SSH_FXP_DATA, id, content);
+        }
+
+        void attrs(int id, long size, int permissions, int mTime) throws IOException {
+
+            data.writeInt(1 + 4 + 4 + 8 + 4 + 4 + 4);
+            data.writeByte(SftpRequestPipeline.SSH_FXP_ATTRS);
+            data.writeInt(id);
+            data.writeInt(0x01 | 0x04 | 0x08);
+            data.writeLong(size);
+            data.writeInt(permissions);
+            data.writeInt(mTime);
+            data.writeInt(mTime);
+        }
+
+        void packetLength(int length) throws IOException {
+            data.writeInt(length);
+        }
+
+        void recordSentBytesOnFirstRead() {
+            recordOnFirstRead = true;
+        }
+
+        int sentPacketsOnFirstRead() throws IOException {
+            return parsePackets(sentToServer.toByteArray(), sentBytesOnFirstRead).size();
+        }
+
+        InputStream toInputStream() {
+
+            return new ByteArrayInputStream(bytes.toByteArray()) {
+
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+
+                    if (recordOnFirstRead && sentBytesOnFirstRead < 0)
+                        sentBytesOnFirstRead = sentToServer.size();
+
+                    return super.read(b, off, len);
+                }
+            };
+        }
+
+        private void string(int type, int id, String value) throws IOException {
+
+            byte[] content = value.getBytes("UTF-8");
+
+            data.writeInt(1 + 4 + 4 + content.length);
+            data.writeByte(type);
+            data.writeInt(id);
+            data.writeInt(content.length);
+            data.write(content);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package jftp.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class BufferPoolTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void aReleasedArrayShouldBeHandedOutAgainOnTheSameThread() {
+
+        BufferPool pool = new BufferPool(1024, 2, 0);
+
+        byte[] array = pool.acquireArray();
+        pool.release(array);
+
+        assertThat(pool.acquireArray(), is(sameInstance(array)));
+        assertThat(pool.getHits(), is(equalTo(1L)));
+        assertThat(pool.getAllocations(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void arraysShouldNotBeSharedBetweenThreads() throws InterruptedException {
+
+        final BufferPool pool = new BufferPool(1024, 2, 0);
+        pool.release(pool.acquireArray());
+
+        final AtomicReference<byte[]> acquiredElsewhere = new AtomicReference<byte[]>();
+
+        Thread other = new Thread() {
+
+            @Override
+            public void run() {
+                acquiredElsewhere.set(pool.acquireArray());
+            }
+        };
+
+        other.start();
+        other.join();
+
+        assertThat(acquiredElsewhere.get().length, is(equalTo(1024)));
+        assertThat(pool.getAllocations(), is(equalTo(2L)));
+    }
+
+    @Test
+    public void eachThreadShouldOnlyKeepAsManyArraysAsConfigured() {
+
+        BufferPool pool = new BufferPool(1024, 1, 0);
+
+        byte[] first = pool.acquireArray();
+        byte[] second = pool.acquireArray();
+
+        pool.release(first);
+        pool.release(second);
+
+        assertThat(pool.acquireArray(), is(sameInstance(first)));
+        assertThat(pool.acquireArray(), is(not(sameInstance(second))));
+    }
+
+    @Test
+    public void arraysOfAnotherSizeShouldNotBeKept() {
+
+        BufferPool pool = new BufferPool(1024, 2, 0);
+
+        pool.release(new byte[512]);
+
+        assertThat(pool.acquireArray().length, is(equalTo(1024)));
+        assertThat(pool.getHits(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void directBuffersShouldBeCutFromTheSlabAndReturnedToIt() {
+
+        BufferPool pool = new BufferPool(1024, 2, 2);
+
+        ByteBuffer first = pool.acquireDirect();
+        ByteBuffer second = pool.acquireDirect();
+
+        assertThat(first.isDirect(), is(equalTo(true)));
+        assertThat(first.capacity(), is(equalTo(1024)));
+
+        first.put((byte) 1);
+        second.put(0, (byte) 2);
+
+        assertThat(first.get(0), is(equalTo((byte) 1)));
+
+        pool.release(first);
+
+        ByteBuffer again = pool.acquireDirect();
+
+        assertThat(again, is(sameInstance(first)));
+        assertThat(again.position(), is(equalTo(0)));
+        assertThat(pool.getHits(), is(equalTo(3L)));
+    }
+
+    @Test
+    public void anEmptySlabShouldFallBackToHeapBuffersThatAreNotKept() {
+
+        BufferPool pool = new BufferPool(1024, 2, 1);
+
+        pool.acquireDirect();
+
+        ByteBuffer overflow = pool.acquireDirect();
+
+        assertThat(overflow.isDirect(), is(equalTo(false)));
+        assertThat(pool.getAllocations(), is(equalTo(1L)));
+
+        pool.release(overflow);
+
+        assertThat(pool.acquireDirect(), is(not(sameInstance(overflow))));
+    }
+
+    @Test
+    public void releasingABufferTwiceShouldOnlyReturnItToTheSlabOnce() {
+
+        BufferPool pool = new BufferPool(1024, 2, 2);
+
+        ByteBuffer buffer = pool.acquireDirect();
+
+        pool.release(buffer);
+        pool.release(buffer);
+
+        ByteBuffer first = pool.acquireDirect();
+        ByteBuffer second = pool.acquireDirect();
+
+        assertThat(second, is(not(sameInstance(first))));
+        assertThat(pool.acquireDirect().isDirect(), is(equalTo(false)));
+    }
+
+    @Test
+    public void directBuffersFromElsewhereShouldNotBeTakenIntoTheSlab() {
+
+        BufferPool pool = new BufferPool(1024, 2, 1);
+        BufferPool other = new BufferPool(1024, 2, 1);
+
+        pool.acquireDirect();
+
+        pool.release(other.acquireDirect());
+        pool.release(ByteBuffer.allocateDirect(1024));
+
+        assertThat(pool.acquireDirect().isDirect(), is(equalTo(false)));
+    }
+
+    @Test
+    public void copyShouldMoveTheWholeStreamThroughOneBuffer() throws IOException {
+
+        byte[] data = new byte[10000];
+        new Random(3).nextBytes(data);
+
+        BufferPool pool = new BufferPool(1024, 2, 0);
+        ByteArrayOutputStream copied = new ByteArrayOutputStream();
+
+        assertThat(pool.copy(new ByteArrayInputStream(data), copied), is(equalTo(10000L)));
+        pool.copy(new ByteArrayInputStream(data), new ByteArrayOutputStream());
+
+        assertThat(copied.toByteArray(), is(equalTo(data)));
+        assertThat(pool.getAllocations(), is(equalTo(1L)));
+        assertThat(pool.getHits(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void aSlabOverTwoGigabytesShouldBeRefused() {
+
+        expectedException.expect(IllegalArgumentException.class);
+
+        new BufferPool(1 << 20, 2, 4096);
+    }
+}
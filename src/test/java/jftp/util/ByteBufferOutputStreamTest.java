@@ -0,0 +1,61 @@
+package jftp.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ByteBufferOutputStreamTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void writesShouldFillTheBufferFromItsPosition() throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(6);
+        buffer.put((byte) 'a');
+
+        OutputStream out = new ByteBufferOutputStream(buffer);
+
+        out.write('b');
+        out.write("xcdex".getBytes(), 1, 3);
+
+        assertThat(buffer.position(), is(equalTo(5)));
+
+        byte[] written = new byte[5];
+        buffer.flip();
+        buffer.get(written);
+
+        assertThat(new String(written), is(equalTo("abcde")));
+    }
+
+    @Test
+    public void writingMoreThanTheBufferHasRoomForShouldThrowExceptionWithoutWritingAnything() throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+
+        OutputStream out = new ByteBufferOutputStream(buffer);
+        out.write('a');
+
+        try {
+
+            out.write(new byte[4]);
+            fail("The write should have overflowed.");
+
+        } catch (IOException e) {
+
+            assertThat(e.getMessage(), is(equalTo("Unable to write 4 bytes with only 3 left in the buffer.")));
+        }
+
+        assertThat(buffer.position(), is(equalTo(1)));
+    }
+}
@@ -0,0 +1,84 @@
+package jftp.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+public class FileSegmentInputStreamTest {
+
+    private FileChannel channel;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+
+        File file = temporaryFolder.newFile("segments.txt");
+        Files.write(file.toPath(), "abcdefghij".getBytes("US-ASCII"));
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        channel.close();
+    }
+
+    @Test
+    public void aSegmentShouldOnlyReadItsOwnRange() throws IOException {
+        assertThat(contentsOf(new FileSegmentInputStream(channel, 3, 4)), is(equalTo("defg")));
+    }
+
+    @Test
+    public void segmentsShouldNotMoveEachOthersPositionOrTheChannels() throws IOException {
+
+        InputStream first = new FileSegmentInputStream(channel, 0, 5);
+        InputStream second = new FileSegmentInputStream(channel, 5, 5);
+
+        assertThat(first.read(), is(equalTo((int) 'a')));
+        assertThat(second.read(), is(equalTo((int) 'f')));
+        assertThat(first.read(), is(equalTo((int) 'b')));
+        assertThat(channel.position(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void aFileEndingBeforeTheSegmentShouldThrowException() throws IOException {
+
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage("The file ended 2 bytes before the segment did.");
+
+        contentsOf(new FileSegmentInputStream(channel, 8, 4));
+    }
+
+    private String contentsOf(InputStream in) throws IOException {
+
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+
+        int read;
+
+        while ((read = in.read(buffer)) >= 0)
+            contents.write(buffer, 0, read);
+
+        return contents.toString("US-ASCII");
+    }
+}
@@ -0,0 +1,160 @@
+package jftp.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class HappyEyeballsConnectorTest {
+
+    private static final long NEVER = -1;
+
+    private InetAddress slowAddress;
+    private InetAddress fastAddress;
+
+    private HostResolver mockHostResolver;
+
+    private Map<InetAddress, Long> connectDelays = new HashMap<InetAddress, Long>();
+    private Map<InetAddress, Socket> sockets = new HashMap<InetAddress, Socket>();
+
+    private HappyEyeballsConnector connector;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Before
+    public void setUp() throws UnknownHostException {
+
+        slowAddress = InetAddress.getByName("192.0.2.1");
+        fastAddress = InetAddress.getByName("192.0.2.2");
+
+        sockets.put(slowAddress, new Socket());
+        sockets.put(fastAddress, new Socket());
+
+        mockHostResolver = mock(HostResolver.class);
+        when(mockHostResolver.resolve("host")).thenReturn(Arrays.asList(slowAddress, fastAddress));
+
+        connector = new HappyEyeballsConnector(mockHostResolver) {
+
+            @Override
+            protected Socket createSocket(InetAddress address, int port, int timeout) throws IOException {
+
+                long delay = connectDelays.get(address);
+
+                if (delay == NEVER)
+                    throw new ConnectException("Connection refused");
+
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+
+                return sockets.get(address);
+            }
+        };
+
+        connector.setAttemptDelay(50);
+    }
+
+    @After
+    public void tearDown() {
+        connector.shutdown();
+    }
+
+    @Test
+    public void slowAddressShouldBeOvertakenByTheNextOne() throws IOException {
+
+        connectDelays.put(slowAddress, 2000L);
+        connectDelays.put(fastAddress, 0L);
+
+        long started = System.currentTimeMillis();
+
+        Socket socket = connector.connect("host", 21);
+
+        assertThat(socket, is(equalTo(sockets.get(fastAddress))));
+        assertThat(System.currentTimeMillis() - started < 1000, is(true));
+    }
+
+    @Test
+    public void failedAddressShouldMoveStraightOnToTheNextOne() throws IOException {
+
+        connector.setAttemptDelay(5000);
+
+        connectDelays.put(slowAddress, NEVER);
+        connectDelays.put(fastAddress, 0L);
+
+        long started = System.currentTimeMillis();
+
+        assertThat(connector.connect("host", 21), is(equalTo(sockets.get(fastAddress))));
+        assertThat(System.currentTimeMillis() - started < 1000, is(true));
+    }
+
+    @Test
+    public void firstAddressShouldWinWhenItAnswersInTime() throws IOException {
+
+        connectDelays.put(slowAddress, 0L);
+        connectDelays.put(fastAddress, 0L);
+
+        assertThat(connector.connect("host", 21), is(equalTo(sockets.get(slowAddress))));
+    }
+
+    @Test
+    public void whenEveryAddressFailsTheLastFailureShouldBeThrownAndTheHostForgotten() throws IOException {
+
+        connectDelays.put(slowAddress, NEVER);
+        connectDelays.put(fastAddress, NEVER);
+
+        try {
+
+            connector.connect("host", 21);
+
+        } catch (ConnectException e) {
+
+            assertThat(e.getMessage(), is(equalTo("Connection refused")));
+        }
+
+        verify(mockHostResolver).evict("host");
+    }
+
+    @Test
+    public void raceShouldGiveUpAtTheConnectTimeout() throws IOException {
+
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(is(equalTo("Timed out connecting to host on port 21")));
+
+        connector.setConnectTimeout(200);
+
+        connectDelays.put(slowAddress, 2000L);
+        connectDelays.put(fastAddress, 2000L);
+
+        connector.connect("host", 21);
+    }
+
+    @Test
+    public void singleAddressShouldBeConnectedToDirectly() throws IOException {
+
+        when(mockHostResolver.resolve("single")).thenReturn(Collections.singletonList(fastAddress));
+        connectDelays.put(fastAddress, 0L);
+
+        assertThat(connector.connect("single", 21), is(equalTo(sockets.get(fastAddress))));
+    }
+}
@@ -0,0 +1,81 @@
+package jftp.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HostResolverTest {
+
+    private InetAddress ipv4First;
+    private InetAddress ipv4Second;
+    private InetAddress ipv6First;
+    private InetAddress ipv6Second;
+
+    private int lookups;
+    private InetAddress[] answer;
+
+    private HostResolver hostResolver = new HostResolver() {
+
+        @Override
+        protected InetAddress[] lookup(String host) throws UnknownHostException {
+
+            lookups++;
+
+            return answer;
+        }
+    };
+
+    @Before
+    public void setUp() throws UnknownHostException {
+
+        ipv4First = InetAddress.getByName("192.0.2.1");
+        ipv4Second = InetAddress.getByName("192.0.2.2");
+        ipv6First = InetAddress.getByName("2001:db8::1");
+        ipv6Second = InetAddress.getByName("2001:db8::2");
+
+        answer = new InetAddress[] { ipv6First, ipv6Second, ipv4First, ipv4Second };
+    }
+
+    @Test
+    public void addressesShouldAlternateFamiliesStartingWithTheFirstOneResolved() throws UnknownHostException {
+
+        assertThat(hostResolver.resolve("host"), is(equalTo(Arrays.asList(ipv6First, ipv4First, ipv6Second, ipv4Second))));
+    }
+
+    @Test
+    public void resolvingAgainWithinTheTimeToLiveShouldUseTheCache() throws UnknownHostException {
+
+        hostResolver.resolve("host");
+        hostResolver.resolve("host");
+
+        assertThat(lookups, is(equalTo(1)));
+    }
+
+    @Test
+    public void expiredEntriesShouldBeLookedUpAgain() throws UnknownHostException {
+
+        hostResolver.setTimeToLive(0);
+
+        hostResolver.resolve("host");
+        hostResolver.resolve("host");
+
+        assertThat(lookups, is(equalTo(2)));
+    }
+
+    @Test
+    public void evictedHostShouldBeLookedUpAgain() throws UnknownHostException {
+
+        hostResolver.resolve("host");
+        hostResolver.evict("host");
+        hostResolver.resolve("host");
+
+        assertThat(lookups, is(equalTo(2)));
+    }
+}
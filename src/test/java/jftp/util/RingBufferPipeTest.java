@@ -0,0 +1,123 @@
+package jftp.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class RingBufferPipeTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void dataWrittenOnOneThreadShouldBeReadInFullAndInOrderOnAnother() throws Exception {
+
+        final byte[] data = new byte[100000];
+        new Random(7).nextBytes(data);
+
+        final RingBufferPipe pipe = new RingBufferPipe(1000, 3);
+
+        Thread writer = new Thread() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    OutputStream out = pipe.getOutputStream();
+
+                    for (int offset = 0; offset < data.length; offset += 777)
+                        out.write(data, offset, Math.min(777, data.length - offset));
+
+                    out.close();
+
+                } catch (IOException e) {
+                    pipe.abort();
+                }
+            }
+        };
+
+        writer.start();
+
+        assertThat(readAll(pipe.getInputStream()), is(equalTo(data)));
+
+        writer.join();
+    }
+
+    @Test
+    public void readerShouldSeeEndOfStreamOnceWriterHasClosed() throws IOException {
+
+        RingBufferPipe pipe = new RingBufferPipe(16, 2);
+
+        pipe.getOutputStream().write(42);
+        pipe.getOutputStream().close();
+
+        assertThat(pipe.getInputStream().read(), is(equalTo(42)));
+        assertThat(pipe.getInputStream().read(), is(equalTo(-1)));
+    }
+
+    @Test
+    public void writerBlockedOnAFullPipeShouldFailOnceTheReaderAborts() throws Exception {
+
+        final RingBufferPipe pipe = new RingBufferPipe(4, 1);
+        final IOException[] failure = new IOException[1];
+
+        Thread writer = new Thread() {
+
+            @Override
+            public void run() {
+
+                try {
+                    pipe.getOutputStream().write(new byte[64]);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+
+        writer.start();
+
+        Thread.sleep(50);
+        pipe.abort();
+
+        writer.join(1000);
+
+        assertThat(failure[0].getMessage(), is(equalTo("The other end of the pipe was aborted.")));
+    }
+
+    @Test
+    public void readerShouldFailOnceTheWriterAborts() throws IOException {
+
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(is(equalTo("The other end of the pipe was aborted.")));
+
+        RingBufferPipe pipe = new RingBufferPipe(4, 1);
+
+        pipe.abort();
+
+        pipe.getInputStream().read();
+    }
+
+    private byte[] readAll(InputStream in) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[500];
+
+        int read;
+
+        while ((read = in.read(buffer)) >= 0)
+            out.write(buffer, 0, read);
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,108 @@
+package jftp.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class TarReaderTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void entriesThatAreNotRegularFilesShouldBeSkipped() throws IOException {
+
+        byte[] archive = archiveOf("directory", "file.txt");
+
+        retype(archive, 0, (byte) '5');
+
+        TarReader reader = new TarReader(new ByteArrayInputStream(archive));
+
+        assertThat(reader.nextFile(), is(equalTo("file.txt")));
+        assertThat(reader.nextFile(), is(nullValue()));
+    }
+
+    @Test
+    public void unreadContentsShouldBeSkippedWhenMovingToTheNextFile() throws IOException {
+
+        TarReader reader = new TarReader(new ByteArrayInputStream(archiveOf("a.txt", "b.txt")));
+
+        reader.nextFile();
+
+        assertThat(reader.nextFile(), is(equalTo("b.txt")));
+    }
+
+    @Test
+    public void aStreamEndingWithoutTheEndOfArchiveBlocksShouldEndTheArchive() throws IOException {
+
+        byte[] archive = archiveOf("a.txt");
+
+        TarReader reader = new TarReader(new ByteArrayInputStream(Arrays.copyOf(archive, 1024)));
+
+        assertThat(reader.nextFile(), is(equalTo("a.txt")));
+        assertThat(reader.nextFile(), is(nullValue()));
+    }
+
+    @Test
+    public void anArchiveCutOffPartWayThroughAFileShouldThrowException() throws IOException {
+
+        expectedException.expect(EOFException.class);
+
+        TarReader reader = new TarReader(new ByteArrayInputStream(Arrays.copyOf(archiveOf("a.txt"), 600)));
+
+        reader.nextFile();
+        reader.copyFileTo(new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void aCorruptHeaderShouldThrowException() throws IOException {
+
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(is(equalTo("The archive is corrupt: a header's checksum doesn't match.")));
+
+        byte[] archive = archiveOf("a.txt");
+        archive[0] = 'b';
+
+        new TarReader(new ByteArrayInputStream(archive)).nextFile();
+    }
+
+    /**
+     * Builds an archive of files, each holding 100 bytes so its contents fill one block.
+     */
+    private byte[] archiveOf(String... names) throws IOException {
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+
+        TarWriter writer = new TarWriter(archive);
+
+        for (String name : names)
+            writer.putFile(name, 100, 0, new ByteArrayInputStream(new byte[100]));
+
+        writer.finish();
+
+        return archive.toByteArray();
+    }
+
+    private void retype(byte[] archive, int headerOffset, byte type) {
+
+        archive[headerOffset + TarWriter.TYPE_OFFSET] = type;
+
+        Arrays.fill(archive, headerOffset + TarWriter.CHECKSUM_OFFSET, headerOffset + TarWriter.CHECKSUM_OFFSET + 8, (byte) ' ');
+
+        byte[] checksum = String.format("%06o", TarWriter.checksum(Arrays.copyOfRange(archive, headerOffset, headerOffset + 512))).getBytes();
+
+        System.arraycopy(checksum, 0, archive, headerOffset + TarWriter.CHECKSUM_OFFSET, 6);
+        archive[headerOffset + TarWriter.CHECKSUM_OFFSET + 6] = 0;
+    }
+}
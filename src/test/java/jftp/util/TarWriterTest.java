@@ -0,0 +1,88 @@
+package jftp.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class TarWriterTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void filesShouldBeWrittenAsUstarHeadersFollowedByTheirPaddedContents() throws IOException {
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+
+        TarWriter writer = new TarWriter(archive);
+        writer.putFile("a.txt", 5, 1000000000000L, new ByteArrayInputStream("hello".getBytes()));
+        writer.finish();
+
+        byte[] bytes = archive.toByteArray();
+
+        assertThat(bytes.length, is(equalTo(512 * 4)));
+        assertThat(new String(bytes, 0, 5), is(equalTo("a.txt")));
+        assertThat(new String(bytes, 124, 11), is(equalTo("00000000005")));
+        assertThat(new String(bytes, 136, 11), is(equalTo(String.format("%011o", 1000000000L))));
+        assertThat(new String(bytes, 257, 5), is(equalTo("ustar")));
+        assertThat(new String(bytes, 512, 5), is(equalTo("hello")));
+    }
+
+    @Test
+    public void filesShouldReadBackWithTheirNamesAndContents() throws IOException {
+
+        byte[] large = new byte[100000];
+        new Random(3).nextBytes(large);
+
+        char[] longName = new char[150];
+        Arrays.fill(longName, 'n');
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+
+        TarWriter writer = new TarWriter(archive);
+        writer.putFile("small.txt", 5, 0, new ByteArrayInputStream("small".getBytes()));
+        writer.putFile(new String(longName), large.length, 0, new ByteArrayInputStream(large));
+        writer.putFile("empty.txt", 0, 0, new ByteArrayInputStream(new byte[0]));
+        writer.close();
+
+        TarReader reader = new TarReader(new ByteArrayInputStream(archive.toByteArray()));
+
+        assertThat(reader.nextFile(), is(equalTo("small.txt")));
+        assertThat(contentsOf(reader), is(equalTo("small".getBytes())));
+
+        assertThat(reader.nextFile(), is(equalTo(new String(longName))));
+        assertThat(contentsOf(reader), is(equalTo(large)));
+
+        assertThat(reader.nextFile(), is(equalTo("empty.txt")));
+        assertThat(reader.nextFile(), is(nullValue()));
+    }
+
+    @Test
+    public void aFileShorterThanItsSizeShouldThrowException() throws IOException {
+
+        expectedException.expect(EOFException.class);
+
+        new TarWriter(new ByteArrayOutputStream()).putFile("a.txt", 10, 0, new ByteArrayInputStream("short".getBytes()));
+    }
+
+    private byte[] contentsOf(TarReader reader) throws IOException {
+
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+
+        reader.copyFileTo(contents);
+
+        return contents.toByteArray();
+    }
+}